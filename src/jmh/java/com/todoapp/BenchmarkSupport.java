@@ -0,0 +1,65 @@
+package com.todoapp;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Helpers shared by the benchmarks: throw-away databases and test data.
+ */
+final class BenchmarkSupport {
+
+    private static final int SEED_BATCH_SIZE = 10000;
+
+    private BenchmarkSupport() {
+    }
+
+    /**
+     * Open a TodoDatabase on a new, empty temporary file.
+     */
+    static TodoDatabase createDatabase() throws Exception {
+        Path file = Files.createTempFile("todo-bench", ".db");
+        return new TodoDatabase(file, 4, 5000, 30000, 5000);
+    }
+
+    /**
+     * Close a database opened by {@link #createDatabase()} and delete its files.
+     */
+    static void deleteDatabase(TodoDatabase database) throws IOException {
+        database.close();
+        Path file = database.getFile();
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(Paths.get(file + "-wal"));
+        Files.deleteIfExists(Paths.get(file + "-shm"));
+    }
+
+    /**
+     * Add count todos through the batch API.
+     */
+    static void seed(TodoService service, int count) throws TodoService.TodoServiceException {
+        for (int start = 0; start < count; start += SEED_BATCH_SIZE) {
+            List<TodoBatch.Operation> ops = new ArrayList<>();
+            for (int i = start; i < Math.min(count, start + SEED_BATCH_SIZE); i++) {
+                ops.add(new TodoBatch.Operation(TodoBatch.Type.create, null, todo(i)));
+            }
+            service.applyBatch(ops);
+        }
+    }
+
+    static List<Todo> todos(int count) {
+        List<Todo> todos = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Todo t = todo(i);
+            todos.add(new Todo(Integer.toString(i + 1), t.getTitle(), t.isDone(), t.getCreatedOn()));
+        }
+        return todos;
+    }
+
+    static Todo todo(int i) {
+        return new Todo(null, "Benchmark todo number " + i, i % 3 == 0, new Date(1420070400000L + i * 60000L));
+    }
+}
@@ -0,0 +1,125 @@
+package com.todoapp;
+
+import org.openjdk.jmh.annotations.*;
+import spark.Spark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trips through the full HTTP stack: the server is started in-process by
+ * Bootstrap against a temporary database and driven over keep-alive connections.
+ * Throughput is reported alongside sampled latencies, whose percentiles JMH prints
+ * and exports. Use -t to add client threads.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HttpBenchmark {
+
+    @Param({"10000"})
+    public int tableSize;
+
+    //"memory" takes storage out of the picture and measures the HTTP layer alone
+    @Param({"sqlite", "memory"})
+    public String store;
+
+    //Where requests are handled; see Bootstrap.EXECUTION
+    @Param({"jetty", "executor"})
+    public String execution;
+
+    private Path file;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        //Bootstrap reads its settings once, when the class is first used. Each trial runs
+        //in its own forked JVM, so setting them here, before touching Bootstrap, is enough.
+        file = Files.createTempFile("todo-bench", ".db");
+        System.setProperty("todo.db.path", file.toString());
+        System.setProperty("todo.port", Integer.toString(freePort()));
+        System.setProperty("todo.cache.size", "0");
+        System.setProperty("todo.store", store);
+        System.setProperty("todo.execution", execution);
+
+        Bootstrap.main(null);
+        Spark.awaitInitialization();
+
+        int batch = 10000;
+        for (int start = 0; start < tableSize; start += batch) {
+            List<TodoBatch.Operation> ops = new ArrayList<>();
+            for (int i = start; i < Math.min(tableSize, start + batch); i++) {
+                ops.add(new TodoBatch.Operation(TodoBatch.Type.create, null, BenchmarkSupport.todo(i)));
+            }
+            send("POST", "/api/v1/todos/batch", TodoJson.GSON.toJson(ops));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        Bootstrap.stop();
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public int getTodo() throws IOException {
+        return send("GET", "/api/v1/todos/" + ThreadLocalRandom.current().nextInt(1, tableSize + 1), null);
+    }
+
+    @Benchmark
+    public int listPage() throws IOException {
+        return send("GET", "/api/v1/todos?limit=50", null);
+    }
+
+    @Benchmark
+    public int createTodo() throws IOException {
+        return send("POST", "/api/v1/todos", "{\"title\":\"Created by benchmark\",\"done\":false,\"createdOn\":\"2016-01-02T03:04:05Z\"}");
+    }
+
+    /**
+     * Send a request and drain the response so the connection can be reused.
+     * @return The HTTP status code
+     */
+    private static int send(String method, String path, String body) throws IOException {
+        URL url = new URL("http", Bootstrap.IP_ADDRESS, Bootstrap.PORT, path);
+        HttpURLConnection http = (HttpURLConnection) url.openConnection();
+        http.setRequestMethod(method);
+        if (body != null) {
+            http.setDoOutput(true);
+            http.setRequestProperty("Content-Type", "application/json");
+            try (OutputStream out = http.getOutputStream()) {
+                out.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        int status = http.getResponseCode();
+        try (InputStream in = status < 400 ? http.getInputStream() : http.getErrorStream()) {
+            byte[] buffer = new byte[8192];
+            while (in != null && in.read(buffer) != -1) {
+                //discard
+            }
+        }
+        if (status >= 400) {
+            throw new IOException(String.format("%s %s failed with %d", method, path, status));
+        }
+        return status;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.todoapp;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rendering lists of todos the way the GET /todos route does.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JsonTransformerBenchmark {
+
+    @Param({"100", "10000", "100000"})
+    public int listSize;
+
+    private final JsonTransformer transformer = new JsonTransformer();
+    private List<Todo> todos;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        todos = BenchmarkSupport.todos(listSize);
+    }
+
+    @Benchmark
+    public String render() {
+        return transformer.render(todos);
+    }
+}
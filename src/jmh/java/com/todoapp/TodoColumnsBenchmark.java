@@ -0,0 +1,101 @@
+package com.todoapp;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A cached list held as Todo objects against the same list in columns. The heap and
+ * off-heap memory each takes is printed at setup. Run with -prof gc to see allocation
+ * and collections; fullGc measures how long a full collection takes with the list live.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = "-Xmx2g")
+@State(Scope.Benchmark)
+public class TodoColumnsBenchmark {
+
+    @Param({"10000", "1000000"})
+    public int listSize;
+
+    @Param({"objects", "columns"})
+    public String representation;
+
+    private final JsonTransformer transformer = new JsonTransformer();
+    private List<Todo> todos;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        long heap = usedHeap();
+        long direct = usedDirect();
+        todos = BenchmarkSupport.todos(listSize);
+        if (representation.equals("columns")) {
+            todos = TodoColumns.of(todos);
+        }
+        System.out.printf("%n%d todos as %s: %.1f MB heap, %.1f MB off-heap%n", listSize, representation,
+                (usedHeap() - heap) / 1e6, (usedDirect() - direct) / 1e6);
+    }
+
+    @Benchmark
+    public String render() {
+        return transformer.render(todos);
+    }
+
+    /**
+     * Reads every field of every entry, the way serializers do.
+     */
+    @Benchmark
+    public void visit(Blackhole blackhole) throws Exception {
+        if (todos instanceof TodoColumns) {
+            ((TodoColumns) todos).visit(todo -> consume(blackhole, todo));
+        } else {
+            for (Todo todo : todos) {
+                consume(blackhole, todo);
+            }
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 10)
+    public void fullGc() {
+        System.gc();
+    }
+
+    private static void consume(Blackhole blackhole, Todo todo) {
+        blackhole.consume(todo.getId());
+        blackhole.consume(todo.getTitle());
+        blackhole.consume(todo.isDone());
+        blackhole.consume(todo.getCreatedOn());
+    }
+
+    /**
+     * @return The heap in use after a full collection, from the lowest of a few tries
+     */
+    private static long usedHeap() {
+        long lowest = Long.MAX_VALUE;
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            lowest = Math.min(lowest, ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+        }
+        return lowest;
+    }
+
+    private static long usedDirect() {
+        long used = 0;
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) {
+                used += pool.getMemoryUsed();
+            }
+        }
+        return used;
+    }
+}
@@ -0,0 +1,74 @@
+package com.todoapp;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TodoService operations against a real SQLite database of various sizes. The cache
+ * is off by default so that the numbers reflect the database path; run with
+ * -p cacheSize=10000 to measure with it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TodoServiceBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int tableSize;
+
+    @Param({"0"})
+    public int cacheSize;
+
+    private TodoDatabase database;
+    private TodoService service;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        database = BenchmarkSupport.createDatabase();
+        service = new TodoService(database.getReadDataSource(), database.getWriteDataSource(), new TodoCache(cacheSize));
+        BenchmarkSupport.seed(service, tableSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        BenchmarkSupport.deleteDatabase(database);
+    }
+
+    private String randomId() {
+        return Integer.toString(ThreadLocalRandom.current().nextInt(1, tableSize + 1));
+    }
+
+    @Benchmark
+    public Todo find() throws Exception {
+        return service.find(randomId());
+    }
+
+    @Benchmark
+    public List<Todo> findAll() throws Exception {
+        return service.findAll();
+    }
+
+    @Benchmark
+    public TodoPage search() throws Exception {
+        //Matches the titles whose number starts with three random digits
+        return service.search(new TodoSearch(Integer.toString(ThreadLocalRandom.current().nextInt(100, 1000)), 20, 0));
+    }
+
+    @Benchmark
+    public void createNewTodo() throws Exception {
+        service.createNewTodo(new Todo(null, "Created by benchmark", false, new Date()));
+    }
+
+    @Benchmark
+    public Todo update() throws Exception {
+        String id = randomId();
+        return service.update(id, new Todo(id, "Updated by benchmark", ThreadLocalRandom.current().nextBoolean(), new Date()));
+    }
+}
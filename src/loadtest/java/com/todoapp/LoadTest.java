@@ -0,0 +1,364 @@
+package com.todoapp;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import spark.Spark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+/**
+ * An open-loop load generator. It starts the server in-process with Bootstrap against a
+ * temporary database, seeds it, and sends requests at a fixed rate from a pool of client
+ * threads for a while, whether or not earlier requests have been answered.
+ *
+ * Each request's latency is measured from when it was due to be sent, not from when a
+ * client got round to sending it, so time spent queued behind a slow server counts
+ * against the server (correcting for coordinated omission). The time from sending to the
+ * response is reported alongside as the service time.
+ *
+ * Settings are system properties, see the README. Properties for the server itself,
+ * such as todo.execution or todo.db.readers, are passed on to Bootstrap.
+ */
+public class LoadTest {
+
+    //Requests per second, over all clients
+    static final double RATE = Double.parseDouble(System.getProperty("load.rate", "200"));
+    //"fixed" spaces requests evenly, "poisson" at random with the same mean
+    static final String ARRIVALS = System.getProperty("load.arrivals", "fixed");
+    static final int CLIENTS = Integer.getInteger("load.clients", 32);
+    static final int WARMUP_SECONDS = Integer.getInteger("load.warmupSec", 5);
+    static final int DURATION_SECONDS = Integer.getInteger("load.durationSec", 30);
+    static final int SEED = Integer.getInteger("load.seed", 10000);
+    static final String MIX = System.getProperty("load.mix", "get=50,list=20,create=15,update=10,delete=5");
+    static final String REPLAY = System.getProperty("load.replay");
+    static final double REPLAY_SPEED = Double.parseDouble(System.getProperty("load.replay.speed", "1"));
+    static final String OUT = System.getProperty("load.out", "target/loadtest-result.json");
+
+    //How long to wait for requests still outstanding when the run ends
+    private static final long DRAIN_SECONDS = 60;
+    private static final int SEED_BATCH_SIZE = 10000;
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    /**
+     * The results of the requests due after the warmup.
+     */
+    static class Results {
+        final Map<String, Stats> operations = new ConcurrentHashMap<>();
+
+        //From the end of the warmup to when the last request was due
+        double seconds;
+    }
+
+    /**
+     * The results of one operation.
+     */
+    static class Stats {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LatencyHistogram service = new LatencyHistogram();
+        final Map<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+
+        void record(long latencyNanos, long serviceNanos, int status) {
+            latency.record(latencyNanos);
+            service.record(serviceNanos);
+            statuses.computeIfAbsent(status, s -> new LongAdder()).increment();
+        }
+
+        long errors() {
+            long errors = 0;
+            for (Entry<Integer, LongAdder> entry : statuses.entrySet()) {
+                //0 stands for a request that failed without a response
+                if (entry.getKey() == 0 || entry.getKey() >= 500) {
+                    errors += entry.getValue().sum();
+                }
+            }
+            return errors;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (RATE <= 0 || CLIENTS < 1 || DURATION_SECONDS < 1 || WARMUP_SECONDS < 0 || REPLAY_SPEED <= 0) {
+            System.out.println("load.rate, load.clients, load.durationSec and load.replay.speed must be positive, and load.warmupSec not negative");
+            System.exit(1);
+        }
+        if (!ARRIVALS.equals("fixed") && !ARRIVALS.equals("poisson")) {
+            System.out.printf("Unknown arrivals: %s. Use fixed or poisson\n", ARRIVALS);
+            System.exit(1);
+        }
+
+        //One keep-alive connection per client; the JDK keeps only 5 by default
+        System.setProperty("http.maxConnections", Integer.toString(CLIENTS));
+
+        Workload workload;
+        AtomicLong skipped = new AtomicLong();
+        if (REPLAY != null) {
+            workload = Workload.Replay.read(Paths.get(REPLAY), REPLAY_SPEED, skipped);
+        } else {
+            workload = new Workload.Mix(Workload.Mix.parse(MIX), SEED);
+        }
+
+        //Bootstrap reads its settings when it is first used, so set them before that
+        Path directory = Files.createTempDirectory("todo-load");
+        System.setProperty("todo.db.path", directory.resolve("todo.db").toString());
+        System.setProperty("todo.port", Integer.toString(freePort()));
+        try {
+            Bootstrap.main(null);
+            Spark.awaitInitialization();
+            seed(SEED);
+            System.out.printf("Seeded %d todos on port %d\n", SEED, Bootstrap.PORT);
+            if (skipped.get() > 0) {
+                System.out.printf("Skipped %d lines of %s that are not requests\n", skipped.get(), REPLAY);
+            }
+
+            Results results = run(workload);
+            report(results);
+        } finally {
+            Bootstrap.stop();
+            deleteDirectory(directory);
+        }
+    }
+
+    /**
+     * Send the workload's requests when they are due, and wait for the answers.
+     */
+    static Results run(Workload workload) throws InterruptedException {
+        Results results = new Results();
+        ExecutorService clients = Executors.newFixedThreadPool(CLIENTS, runnable -> {
+            Thread thread = new Thread(runnable, "load-client");
+            thread.setDaemon(true);
+            return thread;
+        });
+        AtomicInteger outstanding = new AtomicInteger();
+        int mostOutstanding = 0;
+
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        //A recorded log is replayed once, as it was, so none of it is taken for warmup
+        long measureFrom = workload.isTimed() ? start : start + TimeUnit.SECONDS.toNanos(WARMUP_SECONDS);
+        long end = workload.isTimed() ? Long.MAX_VALUE : measureFrom + TimeUnit.SECONDS.toNanos(DURATION_SECONDS);
+        double interval = TimeUnit.SECONDS.toNanos(1) / RATE;
+        double due = start;
+
+        while (true) {
+            Workload.Request request = workload.next();
+            if (request == null) {
+                break;
+            }
+            if (workload.isTimed()) {
+                due = start + TimeUnit.MILLISECONDS.toNanos(request.offsetMillis);
+            } else {
+                due += ARRIVALS.equals("fixed") ? interval : -Math.log(1 - ThreadLocalRandom.current().nextDouble()) * interval;
+            }
+            long intended = (long) due;
+            if (intended >= end) {
+                break;
+            }
+
+            //Open loop: wait for the time the request is due, never for earlier answers
+            long wait;
+            while ((wait = intended - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            mostOutstanding = Math.max(mostOutstanding, outstanding.incrementAndGet());
+            clients.execute(() -> {
+                long sent = System.nanoTime();
+                int status = send(request);
+                long answered = System.nanoTime();
+                outstanding.decrementAndGet();
+                workload.answered(request, status);
+                if (intended >= measureFrom) {
+                    results.operations.computeIfAbsent(request.label, label -> new Stats())
+                            .record(answered - intended, answered - sent, status);
+                }
+            });
+        }
+
+        results.seconds = Math.max(due - measureFrom, 1) / TimeUnit.SECONDS.toNanos(1);
+        clients.shutdown();
+        if (!clients.awaitTermination(DRAIN_SECONDS, TimeUnit.SECONDS)) {
+            System.out.printf("%d requests were still outstanding %d seconds after the run\n", outstanding.get(), DRAIN_SECONDS);
+        }
+        System.out.printf("At most %d requests were outstanding at once\n", mostOutstanding);
+        return results;
+    }
+
+    /**
+     * Print the results, and write them to OUT as JSON for comparing runs.
+     */
+    static void report(Results results) throws IOException {
+        double seconds = results.seconds;
+        List<String> labels = new ArrayList<>(results.operations.keySet());
+        labels.sort(Comparator.naturalOrder());
+
+        System.out.printf("\n%-32s %9s %9s %7s %10s %10s %10s %10s %10s %12s\n",
+                "operation", "count", "req/s", "errors", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms", "svc p99 ms");
+        Map<String, Object> json = new LinkedHashMap<>();
+        Map<String, Object> operations = new LinkedHashMap<>();
+        for (String label : labels) {
+            Stats stats = results.operations.get(label);
+            print(label, stats, seconds);
+            operations.put(label, toJson(stats, seconds));
+        }
+
+        long count = 0;
+        long errors = 0;
+        for (Stats stats : results.operations.values()) {
+            count += stats.latency.getCount();
+            errors += stats.errors();
+        }
+        System.out.printf("%-32s %9d %9.1f %7d\n", "total", count, count / seconds, errors);
+
+        Map<String, Object> settings = new LinkedHashMap<>();
+        settings.put("rate", RATE);
+        settings.put("arrivals", ARRIVALS);
+        settings.put("clients", CLIENTS);
+        settings.put("warmupSec", WARMUP_SECONDS);
+        settings.put("durationSec", DURATION_SECONDS);
+        settings.put("seed", SEED);
+        settings.put(REPLAY != null ? "replay" : "mix", REPLAY != null ? REPLAY : MIX);
+        settings.put("execution", Bootstrap.EXECUTION);
+        settings.put("store", Bootstrap.STORE);
+        json.put("settings", settings);
+        json.put("seconds", seconds);
+        json.put("count", count);
+        json.put("errors", errors);
+        json.put("throughput", count / seconds);
+        json.put("operations", operations);
+
+        Path out = Paths.get(OUT);
+        if (out.getParent() != null) {
+            Files.createDirectories(out.getParent());
+        }
+        Gson gson = new GsonBuilder().setPrettyPrinting().create();
+        try (Writer writer = Files.newBufferedWriter(out, StandardCharsets.UTF_8)) {
+            gson.toJson(json, writer);
+        }
+        System.out.printf("\nWrote %s\n", out.toAbsolutePath());
+    }
+
+    //-----------------------------------------------------------------------------//
+    // Helper Classes and Methods
+    //-----------------------------------------------------------------------------//
+
+    private static void print(String label, Stats stats, double seconds) {
+        long[] latency = stats.latency.valuesAtQuantiles(QUANTILES);
+        long[] service = stats.service.valuesAtQuantiles(QUANTILES);
+        System.out.printf("%-32s %9d %9.1f %7d %10.2f %10.2f %10.2f %10.2f %10.2f %12.2f\n",
+                label, stats.latency.getCount(), stats.latency.getCount() / seconds, stats.errors(),
+                millis(latency[0]), millis(latency[1]), millis(latency[2]), millis(latency[3]),
+                millis(stats.latency.getMax()), millis(service[2]));
+    }
+
+    private static Map<String, Object> toJson(Stats stats, double seconds) {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("count", stats.latency.getCount());
+        json.put("throughput", stats.latency.getCount() / seconds);
+        Map<String, Long> statuses = new LinkedHashMap<>();
+        stats.statuses.forEach((status, count) -> statuses.put(Integer.toString(status), count.sum()));
+        json.put("statuses", statuses);
+        json.put("latencyMs", percentiles(stats.latency));
+        json.put("serviceTimeMs", percentiles(stats.service));
+        return json;
+    }
+
+    private static Map<String, Double> percentiles(LatencyHistogram histogram) {
+        long[] values = histogram.valuesAtQuantiles(QUANTILES);
+        Map<String, Double> json = new LinkedHashMap<>();
+        json.put("mean", histogram.getCount() == 0 ? 0 : millis(histogram.getSum() / histogram.getCount()));
+        json.put("p50", millis(values[0]));
+        json.put("p90", millis(values[1]));
+        json.put("p99", millis(values[2]));
+        json.put("p99.9", millis(values[3]));
+        json.put("max", millis(histogram.getMax()));
+        return json;
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    /**
+     * Add count todos through the batch API.
+     */
+    private static void seed(int count) throws IOException {
+        for (int start = 0; start < count; start += SEED_BATCH_SIZE) {
+            List<TodoBatch.Operation> ops = new ArrayList<>();
+            for (int i = start; i < Math.min(count, start + SEED_BATCH_SIZE); i++) {
+                ops.add(new TodoBatch.Operation(TodoBatch.Type.create, null,
+                        new Todo(null, "Load test todo number " + i, i % 3 == 0, new Date(1420070400000L + i * 60000L))));
+            }
+            int status = send(new Workload.Request("seed", "POST", Workload.API + "/batch", TodoJson.GSON.toJson(ops), -1));
+            if (status != 200) {
+                throw new IOException("Seeding failed with " + status);
+            }
+        }
+    }
+
+    /**
+     * Send a request and drain the response so the connection can be reused.
+     * @return The HTTP status code, or 0 if there was no response
+     */
+    private static int send(Workload.Request request) {
+        try {
+            URL url = new URL("http", Bootstrap.IP_ADDRESS, Bootstrap.PORT, request.path);
+            HttpURLConnection http = (HttpURLConnection) url.openConnection();
+            http.setRequestMethod(request.method);
+            if (request.body != null) {
+                http.setDoOutput(true);
+                http.setRequestProperty("Content-Type", "application/json");
+                try (OutputStream out = http.getOutputStream()) {
+                    out.write(request.body.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            int status = http.getResponseCode();
+            try (InputStream in = status < 400 ? http.getInputStream() : http.getErrorStream()) {
+                byte[] buffer = new byte[8192];
+                while (in != null && in.read(buffer) != -1) {
+                    //discard
+                }
+            }
+            return status;
+        } catch (IOException ex) {
+            return 0;
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void deleteDirectory(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package com.todoapp;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The requests a load test sends: either drawn at random from a weighted mix of
+ * operations on /api/v1/todos, or read from a recorded request log.
+ */
+abstract class Workload {
+
+    static final String API = "/api/v1/todos";
+
+    /**
+     * One request to send. Requests are labelled by operation so results can be
+     * reported per operation rather than per path.
+     */
+    static class Request {
+        final String label;
+        final String method;
+        final String path;
+        final String body;
+
+        //When the request was recorded, in milliseconds after the first one; -1 if unknown
+        final long offsetMillis;
+
+        Request(String label, String method, String path, String body, long offsetMillis) {
+            this.label = label;
+            this.method = method;
+            this.path = path;
+            this.body = body;
+            this.offsetMillis = offsetMillis;
+        }
+    }
+
+    /**
+     * @return The next request, or null once the workload has no more
+     */
+    abstract Request next();
+
+    /**
+     * Called with the status of every answered request, so the workload can keep
+     * track of the todos that exist.
+     */
+    void answered(Request request, int status) {
+    }
+
+    /**
+     * @return true if the requests carry their own timing, which replaces the arrival rate
+     */
+    boolean isTimed() {
+        return false;
+    }
+
+    //-----------------------------------------------------------------------------//
+    // Random mix
+    //-----------------------------------------------------------------------------//
+
+    enum Operation { get, list, create, update, delete }
+
+    /**
+     * Operations drawn at random with the given weights, on todos 1 to seeded to begin
+     * with. Deletes take the oldest todo that is left and creates add new ones at the
+     * end, so gets and updates mostly find what they ask for.
+     */
+    static class Mix extends Workload {
+        private final Operation[] operations;
+        private final int[] cumulative;
+        private final int total;
+
+        private final AtomicLong lowest = new AtomicLong(1);
+        private final AtomicLong highest;
+
+        Mix(Map<Operation, Integer> weights, long seeded) {
+            operations = weights.keySet().toArray(new Operation[0]);
+            cumulative = new int[operations.length];
+            int sum = 0;
+            for (int i = 0; i < operations.length; i++) {
+                sum += weights.get(operations[i]);
+                cumulative[i] = sum;
+            }
+            if (sum <= 0) {
+                throw new IllegalArgumentException("The mix needs at least one operation with a positive weight");
+            }
+            total = sum;
+            highest = new AtomicLong(seeded);
+        }
+
+        /**
+         * @param spec Weights such as "get=50,list=20,create=15,update=10,delete=5"
+         */
+        static Map<Operation, Integer> parse(String spec) {
+            Map<Operation, Integer> weights = new LinkedHashMap<>();
+            for (String part : spec.split(",")) {
+                String[] pair = part.trim().split("=");
+                if (pair.length != 2) {
+                    throw new IllegalArgumentException("Expected operation=weight, got " + part);
+                }
+                Operation operation;
+                int weight;
+                try {
+                    operation = Operation.valueOf(pair[0].trim());
+                    weight = Integer.parseInt(pair[1].trim());
+                } catch (IllegalArgumentException ex) {
+                    throw new IllegalArgumentException("Expected one of get, list, create, update or delete with a number, got " + part);
+                }
+                if (weight < 0) {
+                    throw new IllegalArgumentException("Weights cannot be negative, got " + part);
+                }
+                weights.put(operation, weight);
+            }
+            return weights;
+        }
+
+        @Override
+        Request next() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int pick = random.nextInt(total);
+            int i = 0;
+            while (cumulative[i] <= pick) {
+                i++;
+            }
+            Operation operation = operations[i];
+
+            long low = lowest.get();
+            long high = highest.get();
+            if (high < low && operation != Operation.create && operation != Operation.list) {
+                //Everything has been deleted; make something to work on
+                operation = Operation.create;
+            }
+            switch (operation) {
+                case get:
+                    return new Request("get", "GET", API + "/" + random.nextLong(low, high + 1), null, -1);
+                case list:
+                    return new Request("list", "GET", API + "?limit=50", null, -1);
+                case create:
+                    return new Request("create", "POST", API, todo("Created by load test", false), -1);
+                case update:
+                    return new Request("update", "PUT", API + "/" + random.nextLong(low, high + 1),
+                            todo("Updated by load test", random.nextBoolean()), -1);
+                default:
+                    return new Request("delete", "DELETE", API + "/" + lowest.getAndIncrement(), null, -1);
+            }
+        }
+
+        @Override
+        void answered(Request request, int status) {
+            //Ids are handed out in order, so counting creates is enough to know the highest
+            if (request.label.equals("create") && status == 201) {
+                highest.incrementAndGet();
+            }
+        }
+
+        private static String todo(String title, boolean done) {
+            return "{\"title\":\"" + title + "\",\"done\":" + done + ",\"createdOn\":\"2016-01-02T03:04:05Z\"}";
+        }
+    }
+
+    //-----------------------------------------------------------------------------//
+    // Replay
+    //-----------------------------------------------------------------------------//
+
+    /**
+     * Requests read from a log with one JSON object per line, such as
+     *     {"method": "PUT", "path": "/api/v1/todos/3", "body": {"title": "x", "done": true}, "offsetMs": 1500}
+     * The body may be an object or a string. If every line has an offsetMs, the requests
+     * are sent when they were recorded, scaled by the replay speed, and the log is sent
+     * once; otherwise they are sent at the arrival rate, going round the log as needed.
+     */
+    static class Replay extends Workload {
+        private final List<Request> requests;
+        private final boolean timed;
+        private int position;
+
+        Replay(List<Request> requests) {
+            if (requests.isEmpty()) {
+                throw new IllegalArgumentException("The log holds no requests");
+            }
+            this.requests = requests;
+            boolean allTimed = true;
+            for (Request request : requests) {
+                allTimed &= request.offsetMillis >= 0;
+            }
+            this.timed = allTimed;
+        }
+
+        /**
+         * Read a request log. Lines that are not requests, such as blank lines or other
+         * records kept in the same file, are skipped.
+         * @param skipped Incremented for every line skipped
+         */
+        static Replay read(Path file, double speed, AtomicLong skipped) throws IOException {
+            List<Request> requests = new ArrayList<>();
+            try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    Request request = line.isBlank() ? null : parse(line, speed);
+                    if (request == null) {
+                        skipped.incrementAndGet();
+                    } else {
+                        requests.add(request);
+                    }
+                }
+            }
+            return new Replay(requests);
+        }
+
+        private static Request parse(String line, double speed) {
+            JsonObject json;
+            try {
+                JsonElement element = JsonParser.parseString(line);
+                if (!element.isJsonObject()) {
+                    return null;
+                }
+                json = element.getAsJsonObject();
+            } catch (JsonParseException ex) {
+                return null;
+            }
+            if (!json.has("method") || !json.has("path")) {
+                return null;
+            }
+            String method = json.get("method").getAsString().toUpperCase();
+            String path = json.get("path").getAsString();
+            String body = null;
+            if (json.has("body") && !json.get("body").isJsonNull()) {
+                JsonElement element = json.get("body");
+                body = element.isJsonPrimitive() ? element.getAsString() : element.toString();
+            }
+            long offset = json.has("offsetMs") ? (long) (json.get("offsetMs").getAsLong() / speed) : -1;
+            return new Request(method + " " + template(path), method, path, body, offset);
+        }
+
+        /**
+         * @return The path without its query, with numeric segments such as ids replaced
+         *         by :id, so that requests for different todos are reported together
+         */
+        static String template(String path) {
+            int query = path.indexOf('?');
+            String[] segments = (query < 0 ? path : path.substring(0, query)).split("/", -1);
+            for (int i = 0; i < segments.length; i++) {
+                if (!segments[i].isEmpty() && segments[i].chars().allMatch(Character::isDigit)) {
+                    segments[i] = ":id";
+                }
+            }
+            return String.join("/", segments);
+        }
+
+        @Override
+        synchronized Request next() {
+            if (position == requests.size()) {
+                if (timed) {
+                    return null;
+                }
+                position = 0;
+            }
+            return requests.get(position++);
+        }
+
+        @Override
+        boolean isTimed() {
+            return timed;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.todoapp;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Turns requests away before they reach the database once it cannot keep up, so that
+ * the requests it does take are answered in time instead of every request timing out.
+ *
+ * Two limits apply. At most a given number of requests run at once. And requests are
+ * refused while the database is queueing: every interval, the time requests waited for
+ * a pooled connection in it is averaged over all pools, and if that exceeds the target,
+ * or a wait timed out, requests are refused until the next interval. Refused requests
+ * do not wait for connections, so the queues drain and the interval after that one
+ * measures the database again.
+ *
+ * Admitting a request takes a few atomic operations and no locks, except that the
+ * request that first finds an interval over sums up the pools.
+ */
+public class AdmissionControl {
+
+    public static final long DEFAULT_INTERVAL_MS = 100;
+
+    /**
+     * Whether a request was admitted, or which limit refused it.
+     */
+    public enum Verdict {
+        admitted, concurrency, queueDelay
+    }
+
+    private final int maxConcurrent;
+    private final long targetNanos;
+    private final long intervalNanos;
+    private final List<ConnectionPool> pools;
+    private final LongSupplier clock;
+
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicLong nextSample;
+    private volatile boolean queueing = false;
+    private volatile long queueDelayNanos = 0;
+
+    //Pool totals at the last sample, guarded by sample()
+    private long lastWaitNanos;
+    private long lastBorrows;
+    private long lastTimeouts;
+
+    /**
+     * @param maxConcurrent The most requests running at once; 0 for no limit
+     * @param targetMillis The mean wait for a connection above which requests are refused; 0 for no target
+     * @param intervalMillis How often the waits are averaged
+     * @param pools The connection pools to watch, none for an in-memory store
+     */
+    public AdmissionControl(int maxConcurrent, long targetMillis, long intervalMillis, List<ConnectionPool> pools) {
+        this(maxConcurrent, targetMillis, intervalMillis, pools, System::nanoTime);
+    }
+
+    AdmissionControl(int maxConcurrent, long targetMillis, long intervalMillis, List<ConnectionPool> pools, LongSupplier clock) {
+        this.maxConcurrent = maxConcurrent;
+        this.targetNanos = TimeUnit.MILLISECONDS.toNanos(targetMillis);
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        this.pools = pools;
+        this.clock = clock;
+        this.nextSample = new AtomicLong(clock.getAsLong() + intervalNanos);
+        for (ConnectionPool pool : pools) {
+            lastWaitNanos += pool.getTotalWaitNanos();
+            lastBorrows += pool.getBorrowCount();
+            lastTimeouts += pool.getTimeoutCount();
+        }
+    }
+
+    /**
+     * Admit a request, which must then call {@link #done()} when it finishes, unless it
+     * was refused.
+     */
+    public Verdict admit() {
+        if (targetNanos > 0 && !pools.isEmpty()) {
+            long now = clock.getAsLong();
+            long next = nextSample.get();
+            if (now - next >= 0 && nextSample.compareAndSet(next, now + intervalNanos)) {
+                sample();
+            }
+            if (queueing) {
+                return Verdict.queueDelay;
+            }
+        }
+        if (maxConcurrent > 0) {
+            int current;
+            do {
+                current = running.get();
+                if (current >= maxConcurrent) {
+                    return Verdict.concurrency;
+                }
+            } while (!running.compareAndSet(current, current + 1));
+        } else {
+            running.incrementAndGet();
+        }
+        return Verdict.admitted;
+    }
+
+    /**
+     * Finish an admitted request.
+     */
+    public void done() {
+        running.decrementAndGet();
+    }
+
+    /**
+     * @return The number of admitted requests still running
+     */
+    public int running() {
+        return running.get();
+    }
+
+    /**
+     * @return The mean wait for a connection over the last interval that had any
+     */
+    public long queueDelayNanos() {
+        return queueDelayNanos;
+    }
+
+    private synchronized void sample() {
+        long waitNanos = 0, borrows = 0, timeouts = 0;
+        for (ConnectionPool pool : pools) {
+            waitNanos += pool.getTotalWaitNanos();
+            borrows += pool.getBorrowCount();
+            timeouts += pool.getTimeoutCount();
+        }
+        long borrowed = borrows - lastBorrows;
+        if (borrowed > 0) {
+            queueDelayNanos = (waitNanos - lastWaitNanos) / borrowed;
+        }
+        //An interval without requests leaves nothing queued
+        queueing = timeouts > lastTimeouts || borrowed > 0 && queueDelayNanos > targetNanos;
+        lastWaitNanos = waitNanos;
+        lastBorrows = borrows;
+        lastTimeouts = timeouts;
+    }
+}
@@ -8,64 +8,424 @@ package com.todoapp;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.sqlite.SQLiteDataSource;
-
-import javax.sql.DataSource;
+import spark.Spark;
+import spark.embeddedserver.EmbeddedServers;
 
 import static spark.Spark.*;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 
 public class Bootstrap {
     public static final String IP_ADDRESS = "localhost";
-    public static final int PORT = 8080;
+    public static final int PORT = Integer.getInteger("todo.port", 8080);
+
+    //Where todos are kept: "sqlite" (the default) or "memory", which keeps nothing across restarts
+    public static final String STORE = System.getProperty("todo.store", "sqlite");
+
+    //Jetty's thread pool, and how many jobs may wait for one of its threads (0 for no limit)
+    public static final int HTTP_MAX_THREADS = Integer.getInteger("todo.http.maxThreads", 200);
+    public static final int HTTP_MIN_THREADS = Integer.getInteger("todo.http.minThreads", 8);
+    public static final int HTTP_IDLE_TIMEOUT_MS = Integer.getInteger("todo.http.idleTimeoutMs", 60000);
+    public static final int HTTP_QUEUE_SIZE = Integer.getInteger("todo.http.queueSize", 0);
+
+    //Responses of at least this many bytes are gzipped for clients that accept it; negative
+    //to gzip none
+    public static final int HTTP_COMPRESS_MIN_BYTES = Integer.getInteger("todo.http.compressMinBytes", 1024);
+
+    //Where API requests are handled: "jetty" (the default) on Jetty's threads, "executor" on a
+    //bounded pool of their own, or "virtual" on a virtual thread each where Java supports them
+    public static final String EXECUTION = System.getProperty("todo.execution", "jetty");
+    public static final int EXECUTOR_THREADS = Integer.getInteger("todo.executor.threads", 16);
+    public static final int EXECUTOR_QUEUE_SIZE = Integer.getInteger("todo.executor.queueSize", 1000);
+
+    //The SQLite database file, relative to the current directory
+    public static final String DB_PATH = System.getProperty("todo.db.path", "todo.db");
+
+    //Database connection pool settings. These can be overridden on the command line,
+    //e.g. java -Dtodo.db.readers=8 -jar target/todoapp1-1.0-SNAPSHOT.jar
+    public static final int DB_READERS = Integer.getInteger("todo.db.readers", 4);
+    public static final long DB_MAX_WAIT_MS = Long.getLong("todo.db.maxWaitMs", 5000);
+    public static final long DB_VALIDATION_INTERVAL_MS = Long.getLong("todo.db.validationIntervalMs", 30000);
+    public static final int DB_BUSY_TIMEOUT_MS = Integer.getInteger("todo.db.busyTimeoutMs", 5000);
+
+    //How many SQLite databases next to DB_PATH (todo-0.db, todo-1.db, ...) the lists under
+    //api/v1/lists are spread over; each has connection pools of DB_READERS readers and one writer
+    public static final int SHARDS = Integer.getInteger("todo.shards", 4);
+
+    //Maximum number of todos kept in memory by the TodoService cache; 0 disables it
+    public static final int CACHE_SIZE = Integer.getInteger("todo.cache.size", TodoCache.DEFAULT_SIZE);
+
+    //Acknowledge changes once they are in a log next to the database, and write them to
+    //the database in the background, in groups of up to WRITE_BEHIND_FLUSH_SIZE
+    public static final boolean WRITE_BEHIND = Boolean.getBoolean("todo.writeBehind");
+    public static final long WRITE_BEHIND_FLUSH_INTERVAL_MS = Long.getLong("todo.writeBehind.flushIntervalMs", 10);
+    public static final int WRITE_BEHIND_FLUSH_SIZE = Integer.getInteger("todo.writeBehind.flushSize", 1000);
+    public static final int WRITE_BEHIND_MAX_PENDING = Integer.getInteger("todo.writeBehind.maxPending", 10000);
+
+    //How many recent changes /api/v1/todos/events can replay to reconnecting clients, and
+    //how many clients may follow it at once, each holding a request thread
+    public static final int FEED_RETAINED = Integer.getInteger("todo.feed.retained", TodoChangeFeed.DEFAULT_RETAINED);
+    public static final int FEED_MAX_SUBSCRIBERS = Integer.getInteger("todo.feed.maxSubscribers", TodoController.DEFAULT_MAX_SUBSCRIBERS);
+
+    //How many Idempotency-Key headers of writes are remembered, and for how long, so that
+    //retries get the first outcome; 0 keys turns deduplication off
+    public static final int IDEMPOTENCY_MAX_KEYS = Integer.getInteger("todo.idempotency.maxKeys", IdempotencyCache.DEFAULT_MAX_KEYS);
+    public static final long IDEMPOTENCY_TTL_MS = Long.getLong("todo.idempotency.ttlMs", IdempotencyCache.DEFAULT_TTL_MS);
+
+    //How many API requests each client, by address, may send per second over time, and at
+    //once; 0 per second for no limit. Buckets of idle clients are dropped above maxClients
+    public static final int RATE_LIMIT_PER_SECOND = Integer.getInteger("todo.rateLimit.perSecond", 0);
+    public static final int RATE_LIMIT_BURST = Integer.getInteger("todo.rateLimit.burst", 100);
+    public static final int RATE_LIMIT_MAX_CLIENTS = Integer.getInteger("todo.rateLimit.maxClients", RateLimiter.DEFAULT_MAX_CLIENTS);
+
+    //Admission control: the most API requests running at once (0 for no limit), and the mean
+    //wait for a pooled connection, over each interval, above which requests are refused
+    //(0 to never refuse them for it)
+    public static final int ADMISSION_MAX_CONCURRENT = Integer.getInteger("todo.admission.maxConcurrent", 0);
+    public static final long ADMISSION_TARGET_QUEUE_MS = Long.getLong("todo.admission.targetQueueMs", 100);
+    public static final long ADMISSION_INTERVAL_MS = Long.getLong("todo.admission.intervalMs", AdmissionControl.DEFAULT_INTERVAL_MS);
+
+    //A startup time above which a warning is logged, 0 for none; and whether to stop once
+    //started, after a request for the list and one for the web UI, as the cds profile does to
+    //record the classes a server loads
+    public static final long STARTUP_TARGET_MS = Long.getLong("todo.startup.targetMs", 0);
+    public static final boolean STARTUP_EXIT = Boolean.getBoolean("todo.startup.exit");
 
     private static final Logger logger = LoggerFactory.getLogger(Bootstrap.class);
 
+    private static TodoDatabase database;
+    private static TodoShards shards;
+    private static TodoLists lists;
+    private static WriteBehindTodoStore writeBehind;
+    private static ExecutorService executor;
+    private static TodoService service;
+
+    /**
+     * Start the server, or with arguments, back up or restore the default list instead:
+     *     java -jar todoapp1-1.0-SNAPSHOT.jar export backup.snap
+     *     java -jar todoapp1-1.0-SNAPSHOT.jar import backup.snap
+     * Files ending in .ndjson or .jsonl are NDJSON, others binary; see TodoSnapshot.
+     */
     public static void main(String[] args) throws Exception {
-        //Check if the database file exists in the current directory. Abort if not
-        DataSource dataSource = configureDataSource();
-        if (dataSource == null) {
-            System.out.printf("Could not find todo.db in the current directory (%s). Terminating\n",
-                    Paths.get(".").toAbsolutePath().normalize());
+        if (args != null && args.length > 0) {
+            System.exit(runSnapshotTool(args));
+        }
+
+        if (!STORE.equals("sqlite") && !STORE.equals("memory")) {
+            System.out.printf("Unknown store: %s. Use sqlite or memory. Terminating\n", STORE);
+            System.exit(1);
+        }
+
+        if (SHARDS < 1) {
+            System.out.printf("Invalid number of shards: %d. Terminating\n", SHARDS);
             System.exit(1);
         }
 
-        //Specify the IP address and Port at which the server should be run
+        if (RATE_LIMIT_PER_SECOND < 0 || RATE_LIMIT_PER_SECOND > 0 && RATE_LIMIT_BURST < 1) {
+            System.out.printf("Invalid rate limit: %d per second in bursts of %d. Terminating\n", RATE_LIMIT_PER_SECOND, RATE_LIMIT_BURST);
+            System.exit(1);
+        }
+
+        //Event streams hold a Jetty thread each, whatever the execution mode; Jetty needs
+        //some left over to accept connections and serve everything else
+        if (FEED_MAX_SUBSCRIBERS >= HTTP_MAX_THREADS) {
+            System.out.printf("todo.feed.maxSubscribers (%d) must be below todo.http.maxThreads (%d). Terminating\n",
+                    FEED_MAX_SUBSCRIBERS, HTTP_MAX_THREADS);
+            System.exit(1);
+        }
+
+        if (!EXECUTION.equals("jetty") && !EXECUTION.equals("executor") && !EXECUTION.equals("virtual")) {
+            System.out.printf("Unknown execution mode: %s. Use jetty, executor or virtual. Terminating\n", EXECUTION);
+            System.exit(1);
+        }
+
+        //The databases are opened on a thread of their own while the web UI is loaded and
+        //Jetty starts, since neither needs the other
+        StartupProfile profile = new StartupProfile();
+        FutureTask<Boolean> data = new FutureTask<>(() -> openData(profile));
+        new Thread(data, "todo-startup-data").start();
+
+        if (EXECUTION.equals("virtual")) {
+            executor = TodoServerFactory.newVirtualThreadExecutor();
+            if (executor == null) {
+                logger.warn("This Java version has no virtual threads, using a bounded executor instead");
+            }
+        }
+        if (executor == null && !EXECUTION.equals("jetty")) {
+            executor = TodoServerFactory.newBoundedExecutor(EXECUTOR_THREADS, EXECUTOR_QUEUE_SIZE);
+        }
+
+        //Load the static resources (like html and css) of the web UI, which are served from memory
+        long started = System.nanoTime();
+        TodoAssets assets;
+        try {
+            assets = TodoAssets.fromClasspath("/public", HTTP_COMPRESS_MIN_BYTES);
+        } catch (IOException ex) {
+            logger.error("Failed to load the static files. Aborting", ex);
+            System.exit(1);
+            return;
+        }
+        profile.record("assets", started);
+
+        //Until the routes are in place, requests other than for the web UI are answered
+        //with 503: Spark's routes must not change while requests are matched against them
+        TodoServerFactory factory = new TodoServerFactory(HTTP_MAX_THREADS, HTTP_MIN_THREADS, HTTP_IDLE_TIMEOUT_MS,
+                HTTP_QUEUE_SIZE, executor, assets, HTTP_COMPRESS_MIN_BYTES);
+        factory.setReady(false);
+        EmbeddedServers.add(EmbeddedServers.defaultIdentifier(), factory);
+
+        //Specify the IP address and Port at which the server should be run, and start it
         ipAddress(IP_ADDRESS);
         port(PORT);
+        long jettyStarted = System.nanoTime();
+        Spark.init();
+
+        if (!data.get()) {
+            System.exit(1);
+        }
+
+        //Watch the connection pools of every database for queueing
+        started = System.nanoTime();
+        List<ConnectionPool> pools = new ArrayList<>();
+        if (database != null) {
+            pools.add(database.getWritePool());
+            pools.add(database.getReadPool());
+            pools.addAll(shards.pools());
+        }
+        RateLimiter rateLimiter = new RateLimiter(RATE_LIMIT_PER_SECOND, RATE_LIMIT_BURST, RATE_LIMIT_MAX_CLIENTS);
+        AdmissionControl admission = new AdmissionControl(ADMISSION_MAX_CONCURRENT, ADMISSION_TARGET_QUEUE_MS,
+                ADMISSION_INTERVAL_MS, pools);
+        new TodoController(service, lists, FEED_MAX_SUBSCRIBERS, new IdempotencyCache(IDEMPOTENCY_MAX_KEYS, IDEMPOTENCY_TTL_MS),
+                rateLimiter, admission);
+        factory.setReady(true);
+        profile.record("routes", started);
 
-        //Specify the sub-directory from which to serve static resources (like html and css)
-        staticFileLocation("/public");
+        Spark.awaitInitialization();
+        profile.record("jetty", jettyStarted);
 
-        //Create the model instance and then configure and start the web service
+        //The web UI is gzipped in the background; requests that come first gzip what they need
+        Thread compress = new Thread(assets::compressAll, "todo-startup-gzip");
+        compress.setDaemon(true);
+        compress.start();
+
+        profile.finish();
+        service.getMetrics().startup(profile);
+        logger.info(profile.report());
+        if (STARTUP_TARGET_MS > 0 && TimeUnit.NANOSECONDS.toMillis(profile.getElapsedNanos()) > STARTUP_TARGET_MS) {
+            logger.warn(String.format("Startup took longer than the target of %d ms", STARTUP_TARGET_MS));
+        }
+
+        if (STARTUP_EXIT) {
+            warmUp();
+            stop();
+            System.exit(0);
+        }
+    }
+
+    /**
+     * Open the databases and the services of the default list and the other lists on
+     * them, or on memory only.
+     *
+     * @return false if that failed, which has been logged
+     */
+    private static boolean openData(StartupProfile profile) {
+        if (STORE.equals("sqlite")) {
+            //Check if the database file exists. Create it if not, and abort if that fails
+            long started = System.nanoTime();
+            Path todoPath = Paths.get(DB_PATH);
+            if (!createDatabaseFile(todoPath)) {
+                System.out.printf("Could not find %s in the current directory (%s). Terminating\n",
+                        DB_PATH, Paths.get(".").toAbsolutePath().normalize());
+                return false;
+            }
+
+            //Put bounded connection pools in front of the database
+            try {
+                database = new TodoDatabase(todoPath, DB_READERS, DB_MAX_WAIT_MS, DB_VALIDATION_INTERVAL_MS, DB_BUSY_TIMEOUT_MS);
+            } catch (SQLException ex) {
+                logger.error(String.format("Failed to open connections to %s. Aborting", DB_PATH), ex);
+                return false;
+            }
+            profile.record("database", started);
+
+            //Open the shards of the lists, each with its own pools
+            started = System.nanoTime();
+            try {
+                shards = new TodoShards(TodoShards.files(todoPath, SHARDS), DB_READERS, DB_MAX_WAIT_MS,
+                        DB_VALIDATION_INTERVAL_MS, DB_BUSY_TIMEOUT_MS);
+            } catch (SQLException ex) {
+                logger.error(String.format("Failed to open the %d shards next to %s. Aborting", SHARDS, DB_PATH), ex);
+                return false;
+            }
+            profile.record("shards", started);
+        }
+
+        long started = System.nanoTime();
+        try {
+            //The memory store is as fast as the cache, so it goes without one
+            TodoChangeFeed changes = new TodoChangeFeed(FEED_RETAINED);
+            if (STORE.equals("memory")) {
+                service = new TodoService(new MemoryTodoStore(), new TodoCache(0), changes);
+                lists = new TodoLists(null, new TodoShardRouter(1), (shard, table) -> new MemoryTodoStore(),
+                        service.getMetrics(), 0);
+            } else {
+                SqliteTodoStore sqlite = new SqliteTodoStore(database.getReadDataSource(), database.getWriteDataSource());
+                TodoStore store = sqlite;
+                if (WRITE_BEHIND) {
+                    writeBehind = new WriteBehindTodoStore(sqlite, Paths.get(DB_PATH + "-wbl"), WRITE_BEHIND_FLUSH_INTERVAL_MS,
+                            WRITE_BEHIND_FLUSH_SIZE, WRITE_BEHIND_MAX_PENDING, DB_MAX_WAIT_MS);
+                    store = writeBehind;
+                }
+                service = new TodoService(store, new TodoCache(CACHE_SIZE), changes);
+                lists = new TodoLists(database.getWriteDataSource(), new TodoShardRouter(shards.size()), shards,
+                        service.getMetrics(), CACHE_SIZE);
+            }
+        } catch (TodoService.TodoServiceException ex) {
+            logger.error("Failed to create a TodoService instance. Aborting", ex);
+            return false;
+        }
+        profile.record("services", started);
+
+        //Count the default list now, before any request needs the counts; they are counted
+        //on the first request that does if this fails
+        started = System.nanoTime();
         try {
-            TodoService model = new TodoService(dataSource);
-            new TodoController(model);
+            service.countStats();
         } catch (TodoService.TodoServiceException ex) {
-            logger.error("Failed to create a TodoService instance. Aborting");
+            logger.warn("Failed to count the list", ex);
         }
+        profile.record("stats", started);
+        return true;
     }
 
     /**
-     * Check if the database file exists in the current directory. If it does
-     * create a DataSource instance for the file and return it.
-     * @return javax.sql.DataSource corresponding to the todo database
+     * Request the list and the web UI once, so that the classes that handle them are
+     * loaded, and written to a class data sharing archive if one is being recorded.
      */
-    private static DataSource configureDataSource() {
-        Path todoPath = Paths.get(".", "todo.db");
+    private static void warmUp() {
+        for (String path : new String[] { "/api/v1/todos", "/" }) {
+            try {
+                HttpURLConnection conn = (HttpURLConnection) new URL("http", IP_ADDRESS, Spark.port(), path).openConnection();
+                try (InputStream in = conn.getInputStream()) {
+                    in.readAllBytes();
+                }
+            } catch (IOException ex) {
+                logger.warn(String.format("Failed to warm up with a request for %s", path), ex);
+            }
+        }
+    }
+
+    /**
+     * Stop the web server, write out pending changes and close the database connection pools.
+     */
+    public static void stop() {
+        //Let change feed subscribers go, or Jetty would wait for them
+        if (service != null) {
+            service.getChanges().close();
+            service = null;
+        }
+        if (lists != null) {
+            lists.close();
+            lists = null;
+        }
+        Spark.stop();
+        Spark.awaitStop();
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+        if (writeBehind != null) {
+            writeBehind.close();
+            writeBehind = null;
+        }
+        if (shards != null) {
+            shards.close();
+            shards = null;
+        }
+        if (database != null) {
+            database.close();
+            database = null;
+        }
+    }
+
+    /**
+     * Export the default list of DB_PATH to a snapshot file, or replace it with one,
+     * without starting the server, which must not be running.
+     *
+     * @return The exit status
+     */
+    private static int runSnapshotTool(String[] args) {
+        if (args.length != 2 || (!args[0].equals("export") && !args[0].equals("import"))) {
+            System.out.println("Usage: export <file> | import <file>");
+            return 2;
+        }
+        Path todoPath = Paths.get(DB_PATH);
+        Path file = Paths.get(args[1]);
+        boolean export = args[0].equals("export");
+        if (export ? !Files.exists(todoPath) : !createDatabaseFile(todoPath)) {
+            System.out.printf("Could not find %s in the current directory (%s)\n", DB_PATH, Paths.get(".").toAbsolutePath().normalize());
+            return 1;
+        }
+
+        long started = System.nanoTime();
+        try (TodoDatabase db = new TodoDatabase(todoPath, 1, DB_MAX_WAIT_MS, DB_VALIDATION_INTERVAL_MS, DB_BUSY_TIMEOUT_MS)) {
+            SqliteTodoStore sqlite = new SqliteTodoStore(db.getReadDataSource(), db.getWriteDataSource());
+            //Changes still in a write-behind log are applied first, so the snapshot has them
+            WriteBehindTodoStore logged = WRITE_BEHIND ? new WriteBehindTodoStore(sqlite, Paths.get(DB_PATH + "-wbl"),
+                    WRITE_BEHIND_FLUSH_INTERVAL_MS, WRITE_BEHIND_FLUSH_SIZE, WRITE_BEHIND_MAX_PENDING, DB_MAX_WAIT_MS) : null;
+            try {
+                TodoService todos = new TodoService(logged != null ? logged : sqlite, new TodoCache(0));
+                long count;
+                if (export) {
+                    try (TodoSnapshot.Writer snapshot = TodoSnapshot.create(file)) {
+                        count = todos.exportSnapshot(snapshot);
+                    }
+                } else {
+                    try (TodoSnapshot.Reader snapshot = TodoSnapshot.open(file)) {
+                        count = todos.restore(snapshot);
+                    }
+                }
+                System.out.printf("%s %d todos %s %s in %d ms\n", export ? "Exported" : "Imported", count,
+                        export ? "to" : "from", file, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+                return 0;
+            } finally {
+                if (logged != null) {
+                    logged.close();
+                }
+            }
+        } catch (IOException ex) {
+            logger.error(String.format("Failed to %s %s", args[0], file), ex);
+            return 1;
+        } catch (SQLException | TodoService.TodoServiceException ex) {
+            logger.error(String.format("Failed to %s %s", args[0], DB_PATH), ex);
+            return 1;
+        }
+    }
+
+    /**
+     * Check if the database file exists, and create an empty one if it does not.
+     * @return false if the file does not exist and could not be created
+     */
+    private static boolean createDatabaseFile(Path todoPath) {
         if ( !(Files.exists(todoPath) )) {
             try { Files.createFile(todoPath); }
             catch (java.io.IOException ex) {
-                logger.error("Failed to create toto.db file in current directory. Aborting");
+                logger.error(String.format("Failed to create %s. Aborting", todoPath));
+                return false;
             }
         }
-
-        SQLiteDataSource dataSource = new SQLiteDataSource();
-        dataSource.setUrl("jdbc:sqlite:todo.db");
-        return dataSource;
-
+        return true;
     }
 }
@@ -0,0 +1,596 @@
+package com.todoapp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A small bounded pool of JDBC connections in front of another DataSource.
+ *
+ * Connections handed out by {@link #getConnection()} are thin proxies whose close()
+ * returns the physical connection to the pool instead of closing it, so sql2o's
+ * usual try-with-resources pattern keeps working unchanged. Idle connections are
+ * health checked before being handed out again, and the time callers spend waiting
+ * for a connection is recorded so the pool can be sized from real numbers.
+ *
+ * Each connection also keeps the statements prepared on it, so that a query run again
+ * on the same connection skips SQLite's parsing and planning. Closing a statement from
+ * prepareStatement() resets it and puts it back rather than finalizing it. A statement
+ * is only handed out to one caller at a time; preparing the same SQL again while it is
+ * in use prepares another one. As with any JDBC connection, closing a connection also
+ * closes the statements still open on it; sql2o's commit() closes the connection
+ * without closing its statements first.
+ */
+public class ConnectionPool implements DataSource, AutoCloseable {
+
+    public static final int DEFAULT_STATEMENT_CACHE_SIZE = 64;
+
+    private final DataSource source;
+    private final String name;
+    private final int maxSize;
+    private final long maxWaitMillis;
+    private final long validationIntervalMillis;
+    private final int statementCacheSize;
+
+    private final BlockingQueue<PooledConnection> idle;
+    private final AtomicInteger open = new AtomicInteger();
+    private volatile boolean closed = false;
+
+    //Metrics
+    private final LongAdder borrowed = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder failedHealthChecks = new LongAdder();
+    private final LongAdder statementHits = new LongAdder();
+    private final LongAdder statementMisses = new LongAdder();
+
+    private final Logger logger = LoggerFactory.getLogger(ConnectionPool.class);
+
+    /**
+     * @param source The DataSource physical connections are created from
+     * @param name A short name used in log messages and metrics
+     * @param maxSize The maximum number of open connections
+     * @param maxWaitMillis How long getConnection() waits for a free connection before giving up
+     * @param validationIntervalMillis Connections idle for longer than this are checked before reuse
+     */
+    public ConnectionPool(DataSource source, String name, int maxSize, long maxWaitMillis, long validationIntervalMillis) {
+        this(source, name, maxSize, maxWaitMillis, validationIntervalMillis, DEFAULT_STATEMENT_CACHE_SIZE);
+    }
+
+    /**
+     * @param statementCacheSize The most idle prepared statements kept per connection; 0 to keep none
+     */
+    public ConnectionPool(DataSource source, String name, int maxSize, long maxWaitMillis, long validationIntervalMillis,
+                          int statementCacheSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Pool size must be at least 1, got " + maxSize);
+        }
+        this.source = source;
+        this.name = name;
+        this.maxSize = maxSize;
+        this.maxWaitMillis = maxWaitMillis;
+        this.validationIntervalMillis = validationIntervalMillis;
+        this.statementCacheSize = statementCacheSize;
+        this.idle = new ArrayBlockingQueue<>(maxSize);
+    }
+
+    /**
+     * Open all connections up front so that the first requests do not pay for
+     * opening the database file and applying its pragmas.
+     */
+    public void warmUp() throws SQLException {
+        while (!closed) {
+            PooledConnection pc = tryCreate();
+            if (pc == null) {
+                break;
+            }
+            idle.offer(pc);
+        }
+        logger.info(String.format("Connection pool '%s' warmed up with %d connections", name, open.get()));
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        if (closed) {
+            throw new SQLException(String.format("Connection pool '%s' is closed", name));
+        }
+
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        PooledConnection pc = idle.poll();
+        while (true) {
+            if (pc == null) {
+                pc = tryCreate();
+            }
+            if (pc == null) {
+                long remaining = deadline - System.nanoTime();
+                try {
+                    pc = remaining > 0 ? idle.poll(remaining, TimeUnit.NANOSECONDS) : null;
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException(String.format("Interrupted while waiting for a connection from '%s'", name), ex);
+                }
+                if (pc == null) {
+                    timeouts.increment();
+                    throw new SQLTimeoutException(String.format("Timed out after %d ms waiting for a connection from '%s'", maxWaitMillis, name));
+                }
+            }
+            if (isHealthy(pc)) {
+                break;
+            }
+            failedHealthChecks.increment();
+            discard(pc);
+            pc = null;
+        }
+
+        long waited = System.nanoTime() - start;
+        borrowed.increment();
+        waitNanos.add(waited);
+        maxWaitNanos.accumulateAndGet(waited, Math::max);
+        return pc.lease();
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        throw new SQLFeatureNotSupportedException("ConnectionPool does not support per-call credentials");
+    }
+
+    /**
+     * Close all idle connections and refuse further requests. Connections that are
+     * currently leased are closed when they are returned.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        PooledConnection pc;
+        while ((pc = idle.poll()) != null) {
+            discard(pc);
+        }
+    }
+
+    //-----------------------------------------------------------------------------//
+    // Metrics
+    //-----------------------------------------------------------------------------//
+
+    public String getName() {
+        return name;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int getOpenCount() {
+        return open.get();
+    }
+
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    public long getBorrowCount() {
+        return borrowed.sum();
+    }
+
+    public long getTimeoutCount() {
+        return timeouts.sum();
+    }
+
+    public long getFailedHealthCheckCount() {
+        return failedHealthChecks.sum();
+    }
+
+    public long getTotalWaitNanos() {
+        return waitNanos.sum();
+    }
+
+    public long getMaxWaitNanos() {
+        return maxWaitNanos.get();
+    }
+
+    /**
+     * @return How many statements were reused rather than prepared
+     */
+    public long getStatementHitCount() {
+        return statementHits.sum();
+    }
+
+    public long getStatementMissCount() {
+        return statementMisses.sum();
+    }
+
+    @Override
+    public String toString() {
+        long borrows = getBorrowCount();
+        return String.format("ConnectionPool{name='%s', open=%d, idle=%d, max=%d, borrows=%d, avgWaitUs=%d, maxWaitUs=%d, timeouts=%d, statementHits=%d, statementMisses=%d}",
+                name, getOpenCount(), getIdleCount(), maxSize, borrows,
+                borrows == 0 ? 0 : getTotalWaitNanos() / borrows / 1000, getMaxWaitNanos() / 1000, getTimeoutCount(),
+                getStatementHitCount(), getStatementMissCount());
+    }
+
+    //-----------------------------------------------------------------------------//
+    // Helper Classes and Methods
+    //-----------------------------------------------------------------------------//
+
+    /**
+     * Open a new physical connection if the pool is below its maximum size.
+     * @return The new connection, or null if the pool is already at capacity
+     */
+    private PooledConnection tryCreate() throws SQLException {
+        while (true) {
+            int current = open.get();
+            if (current >= maxSize) {
+                return null;
+            }
+            if (open.compareAndSet(current, current + 1)) {
+                break;
+            }
+        }
+        try {
+            return new PooledConnection(source.getConnection());
+        } catch (SQLException | RuntimeException ex) {
+            open.decrementAndGet();
+            throw ex;
+        }
+    }
+
+    private boolean isHealthy(PooledConnection pc) {
+        try {
+            if (pc.physical.isClosed()) {
+                return false;
+            }
+            if (System.currentTimeMillis() - pc.lastReturned < validationIntervalMillis) {
+                return true;
+            }
+            try (Statement st = pc.physical.createStatement()) {
+                st.execute("SELECT 1");
+            }
+            return true;
+        } catch (SQLException ex) {
+            logger.warn(String.format("Discarding broken connection from pool '%s'", name), ex);
+            return false;
+        }
+    }
+
+    private void release(PooledConnection pc) {
+        try {
+            //Never hand out a connection in the middle of someone else's transaction
+            if (!pc.physical.getAutoCommit()) {
+                pc.physical.rollback();
+                pc.physical.setAutoCommit(true);
+            }
+        } catch (SQLException ex) {
+            logger.warn(String.format("Failed to reset connection returned to pool '%s'", name), ex);
+            discard(pc);
+            return;
+        }
+
+        pc.lastReturned = System.currentTimeMillis();
+        if (closed || !idle.offer(pc)) {
+            discard(pc);
+        }
+    }
+
+    private void discard(PooledConnection pc) {
+        open.decrementAndGet();
+        pc.closeStatements();
+        try {
+            pc.physical.close();
+        } catch (SQLException ex) {
+            logger.warn(String.format("Failed to close connection from pool '%s'", name), ex);
+        }
+    }
+
+    /**
+     * A physical connection owned by the pool. Each lease hands out a fresh proxy so
+     * that a caller that closes twice, or keeps using a connection after closing it,
+     * cannot affect whoever borrows the connection next.
+     */
+    private class PooledConnection {
+        final Connection physical;
+        volatile long lastReturned = System.currentTimeMillis();
+
+        //Idle prepared statements by SQL, least recently used first; guarded by itself
+        private final Map<String, PreparedStatement> statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() > statementCacheSize) {
+                    closeQuietly(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        PooledConnection(Connection physical) {
+            this.physical = physical;
+        }
+
+        Connection lease() {
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class<?>[] { Connection.class }, new Lease(this));
+        }
+
+        /**
+         * @param keys Statement.NO_GENERATED_KEYS or Statement.RETURN_GENERATED_KEYS
+         * @return A statement only the caller uses until it closes it
+         */
+        CachedStatement prepare(Lease owner, Connection lease, String sql, int keys) throws SQLException {
+            String key = keys == Statement.NO_GENERATED_KEYS ? sql : keys + ":" + sql;
+            PreparedStatement statement;
+            synchronized (statements) {
+                statement = statements.remove(key);
+            }
+            if (statement != null) {
+                statementHits.increment();
+            } else {
+                statementMisses.increment();
+                statement = physical.prepareStatement(sql, keys);
+            }
+            return new CachedStatement(this, owner, lease, key, statement);
+        }
+
+        /**
+         * Reset a statement and keep it for reuse, or finalize it if it cannot be reset.
+         */
+        void giveBack(String key, PreparedStatement statement, ResultSet results) {
+            try {
+                //Closing the result set resets the statement, which ends its read of the
+                //database; an idle statement must not hold on to an old snapshot
+                if (results != null) {
+                    results.close();
+                }
+                statement.clearParameters();
+                statement.clearBatch();
+            } catch (SQLException ex) {
+                closeQuietly(statement);
+                return;
+            }
+            PreparedStatement replaced;
+            synchronized (statements) {
+                replaced = statements.put(key, statement);
+            }
+            if (replaced != null) {
+                closeQuietly(replaced);
+            }
+        }
+
+        void closeStatements() {
+            synchronized (statements) {
+                for (PreparedStatement statement : statements.values()) {
+                    closeQuietly(statement);
+                }
+                statements.clear();
+            }
+        }
+    }
+
+    private class Lease implements InvocationHandler {
+        private PooledConnection pc;
+
+        //Statements prepared through this lease and not closed yet, which go back to the
+        //cache with it at the latest; each leaves as soon as it is closed, so a long lease
+        //only holds those still open
+        private final Set<CachedStatement> statements = new HashSet<>();
+
+        Lease(PooledConnection pc) {
+            this.pc = pc;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    PooledConnection returned;
+                    List<CachedStatement> open;
+                    synchronized (this) {
+                        if (pc == null) {
+                            return null;
+                        }
+                        returned = pc;
+                        pc = null;
+                        open = new ArrayList<>(statements);
+                        statements.clear();
+                    }
+                    //Outside the lock, since closing a statement calls forget()
+                    for (CachedStatement statement : open) {
+                        statement.close();
+                    }
+                    release(returned);
+                    return null;
+                case "isClosed":
+                    return pc == null || pc.physical.isClosed();
+                case "prepareStatement":
+                    //Only the forms that sql2o uses are cached
+                    Class<?>[] types = method.getParameterTypes();
+                    if (statementCacheSize > 0 && (types.length == 1 || (types.length == 2 && types[1] == int.class))) {
+                        PooledConnection current = pc;
+                        if (current == null) {
+                            throw new SQLException("Connection has already been returned to the pool");
+                        }
+                        CachedStatement statement = current.prepare(this, (Connection) proxy, (String) args[0],
+                                types.length == 1 ? Statement.NO_GENERATED_KEYS : (Integer) args[1]);
+                        synchronized (this) {
+                            statements.add(statement);
+                        }
+                        return Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                                new Class<?>[] { PreparedStatement.class }, statement);
+                    }
+                    return invokePhysical(method, args);
+                case "unwrap":
+                    return ((Class<?>) args[0]).isInstance(proxy) ? proxy : physical().unwrap((Class<?>) args[0]);
+                case "isWrapperFor":
+                    return ((Class<?>) args[0]).isInstance(proxy) || physical().isWrapperFor((Class<?>) args[0]);
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return "PooledConnection[" + name + "]";
+                default:
+                    return invokePhysical(method, args);
+            }
+        }
+
+        synchronized void forget(CachedStatement statement) {
+            statements.remove(statement);
+        }
+
+        private Object invokePhysical(Method method, Object[] args) throws Throwable {
+            try {
+                return method.invoke(physical(), args);
+            } catch (InvocationTargetException ex) {
+                throw ex.getCause();
+            }
+        }
+
+        private Connection physical() throws SQLException {
+            PooledConnection current = pc;
+            if (current == null) {
+                throw new SQLException("Connection has already been returned to the pool");
+            }
+            return current.physical;
+        }
+    }
+
+    /**
+     * A statement from a connection's cache, which goes back to the cache when closed.
+     */
+    private static class CachedStatement implements InvocationHandler {
+        private final PooledConnection pc;
+        private final Lease owner;
+        private final Connection lease;
+        private final String key;
+        private PreparedStatement statement;
+        private volatile ResultSet results;
+
+        CachedStatement(PooledConnection pc, Lease owner, Connection lease, String key, PreparedStatement statement) {
+            this.pc = pc;
+            this.owner = owner;
+            this.lease = lease;
+            this.key = key;
+            this.statement = statement;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    close();
+                    return null;
+                case "isClosed":
+                    return statement == null || statement.isClosed();
+                case "getConnection":
+                    return lease;
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return "CachedStatement[" + key + "]";
+                default:
+                    PreparedStatement current = statement;
+                    if (current == null) {
+                        throw new SQLException("Statement has already been closed");
+                    }
+                    try {
+                        Object result = method.invoke(current, args);
+                        if (result instanceof ResultSet) {
+                            results = (ResultSet) result;
+                        }
+                        return result;
+                    } catch (InvocationTargetException ex) {
+                        throw ex.getCause();
+                    }
+            }
+        }
+
+        void close() {
+            PreparedStatement returned;
+            synchronized (this) {
+                returned = statement;
+                statement = null;
+            }
+            if (returned != null) {
+                owner.forget(this);
+                pc.giveBack(key, returned, results);
+            }
+        }
+    }
+
+    private static void closeQuietly(Statement statement) {
+        try {
+            statement.close();
+        } catch (SQLException ex) {
+            //It is being thrown away anyway
+        }
+    }
+
+    //-----------------------------------------------------------------------------//
+    // Remaining DataSource methods delegate to the underlying source
+    //-----------------------------------------------------------------------------//
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return source.getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        source.setLogWriter(out);
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) throws SQLException {
+        source.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return source.getLoginTimeout();
+    }
+
+    @Override
+    public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        return source.getParentLogger();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        return source.unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this) || source.isWrapperFor(iface);
+    }
+}
@@ -0,0 +1,169 @@
+package com.todoapp;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The outcomes of recent writes by the Idempotency-Key their client sent, so that a
+ * retried write is answered with the original outcome instead of being applied again.
+ *
+ * A key is claimed before its request runs and completed with the outcome afterwards.
+ * Keys are kept for a fixed time after they are claimed, up to a maximum number; the
+ * oldest go first. A request whose outcome should not be replayed, such as one that
+ * failed on the server, releases its key so that a retry runs again.
+ */
+public class IdempotencyCache {
+
+    public static final int DEFAULT_MAX_KEYS = 10000;
+    public static final long DEFAULT_TTL_MS = 24 * 60 * 60 * 1000L;
+
+    /**
+     * What a write answered: its status, the Location header if any, and the result
+     * its route returned, before rendering.
+     */
+    public static class Outcome {
+        private final int status;
+        private final String location;
+        private final Object body;
+
+        public Outcome(int status, String location, Object body) {
+            this.status = status;
+            this.location = location;
+            this.body = body;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public String getLocation() {
+            return location;
+        }
+
+        public Object getBody() {
+            return body;
+        }
+    }
+
+    public enum State {
+        //The key is new; run the request and complete or release the key
+        claimed,
+        //The request already ran; replay its outcome
+        completed,
+        //The request with this key is still running
+        inProgress,
+        //The key was used for a different request
+        mismatch
+    }
+
+    /**
+     * What to do with a request carrying a key, and the outcome to replay if it already ran.
+     */
+    public static class Claim {
+        private final State state;
+        private final Outcome outcome;
+
+        Claim(State state, Outcome outcome) {
+            this.state = state;
+            this.outcome = outcome;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        public Outcome getOutcome() {
+            return outcome;
+        }
+    }
+
+    private static class Entry {
+        final String fingerprint;
+        final long expires;
+        Outcome outcome;
+
+        Entry(String fingerprint, long expires) {
+            this.fingerprint = fingerprint;
+            this.expires = expires;
+        }
+    }
+
+    private final int maxKeys;
+    private final long ttlMillis;
+
+    //By key, oldest first; since every key lives equally long, also soonest to expire first
+    private final LinkedHashMap<String, Entry> entries;
+
+    /**
+     * @param maxKeys The most keys to remember; 0 disables deduplication
+     * @param ttlMillis How long a key is remembered after it is claimed
+     */
+    public IdempotencyCache(int maxKeys, long ttlMillis) {
+        this.maxKeys = maxKeys;
+        this.ttlMillis = ttlMillis;
+        this.entries = new LinkedHashMap<String, Entry>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > IdempotencyCache.this.maxKeys;
+            }
+        };
+    }
+
+    public boolean isEnabled() {
+        return maxKeys > 0;
+    }
+
+    /**
+     * Claim a key for a request, unless it was claimed before.
+     *
+     * @param fingerprint What identifies the request, such as its method, path and body;
+     *                    a key may only be reused for the same request
+     */
+    public synchronized Claim claim(String key, String fingerprint) {
+        expire(System.currentTimeMillis());
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entries.put(key, new Entry(fingerprint, System.currentTimeMillis() + ttlMillis));
+            return new Claim(State.claimed, null);
+        }
+        if (!entry.fingerprint.equals(fingerprint)) {
+            return new Claim(State.mismatch, null);
+        }
+        if (entry.outcome == null) {
+            return new Claim(State.inProgress, null);
+        }
+        return new Claim(State.completed, entry.outcome);
+    }
+
+    /**
+     * Record the outcome of a claimed key.
+     */
+    public synchronized void complete(String key, Outcome outcome) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.outcome == null) {
+            entry.outcome = outcome;
+        }
+    }
+
+    /**
+     * Forget a claimed key that was not completed, so that its request can be retried.
+     */
+    public synchronized void release(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.outcome == null) {
+            entries.remove(key);
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private void expire(long now) {
+        Iterator<Entry> oldest = entries.values().iterator();
+        while (oldest.hasNext() && oldest.next().expires <= now) {
+            oldest.remove();
+        }
+    }
+}
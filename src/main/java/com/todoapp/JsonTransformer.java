@@ -5,7 +5,6 @@
 
 package com.todoapp;
 
-import com.google.gson.Gson;
 import spark.Response;
 import spark.ResponseTransformer;
 
@@ -13,14 +12,12 @@ import java.util.HashMap;
 
 public class JsonTransformer implements ResponseTransformer {
 
-    private Gson gson = new Gson();
-
     @Override
     public String render(Object model) {
         if (model instanceof Response) {
-            return gson.toJson(new HashMap<>());
+            return TodoJson.GSON.toJson(new HashMap<>());
         }
-        return gson.toJson(model);
+        return TodoJson.GSON.toJson(model);
     }
 
 }
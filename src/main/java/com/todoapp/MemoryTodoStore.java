@@ -0,0 +1,555 @@
+package com.todoapp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A TodoStore that keeps everything in memory, for hot, ephemeral instances and for
+ * measuring the HTTP layer without disk I/O. Nothing survives a restart.
+ *
+ * Entries are spread over a fixed number of stripes by id. Each stripe is an
+ * open-addressing hash table from primitive long ids to todos with its own lock, so
+ * operations on different ids rarely contend and no ids are boxed. Ids come from an
+ * AtomicLong and are never reused. Stored Todo objects are never modified, so they are
+ * handed out without copying.
+ *
+ * Listing, paging, search and changesSince() take every stripe's read lock at once, so
+ * they see a consistent state, and scan all entries. Versions are handed out under the
+ * changed entry's stripe lock, so holding every read lock also fixes the last version.
+ */
+public class MemoryTodoStore implements TodoStore {
+
+    private static final int STRIPES = 64;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final AtomicLong lastId = new AtomicLong();
+    private final AtomicLong lastVersion = new AtomicLong();
+
+    public MemoryTodoStore() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    @Override
+    public List<Todo> findAll() {
+        List<Entry> entries = snapshot();
+        List<Todo> todos = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            todos.add(entry.todo);
+        }
+        return todos;
+    }
+
+    @Override
+    public void forEach(TodoService.TodoVisitor visitor) throws IOException {
+        for (Entry entry : snapshot()) {
+            visitor.visit(entry.todo);
+        }
+    }
+
+    /**
+     * Costs O(n log limit) for every page, since there is no index to seek into.
+     */
+    @Override
+    public TodoPage findPage(TodoQuery query) {
+        Comparator<Entry> order = query.getSort() == TodoQuery.SortField.ID
+                ? Comparator.comparingLong((Entry e) -> e.id)
+                : Comparator.comparing((Entry e) -> e.createdOn, Comparator.nullsFirst(Comparator.<Long>naturalOrder()))
+                            .thenComparingLong(e -> e.id);
+        if (query.isDescending()) {
+            order = order.reversed();
+        }
+        TodoQuery.Cursor after = query.getAfter();
+        Entry afterKey = after == null ? null : new Entry(after.getId(), after.getCreatedOn(), null);
+
+        //Keep the limit + 1 first entries after the cursor; the extra one tells us if there is a next page
+        int keep = query.getLimit() + 1;
+        PriorityQueue<Entry> first = new PriorityQueue<>(keep + 1, order.reversed());
+        for (Entry entry : snapshot()) {
+            if (query.getDone() != null && entry.todo.isDone() != query.getDone()) {
+                continue;
+            }
+            if (afterKey != null && order.compare(entry, afterKey) <= 0) {
+                continue;
+            }
+            first.add(entry);
+            if (first.size() > keep) {
+                first.poll();
+            }
+        }
+
+        List<Entry> sorted = new ArrayList<>(first);
+        sorted.sort(order);
+        List<Todo> todos = new ArrayList<>(sorted.size());
+        for (Entry entry : sorted) {
+            todos.add(entry.todo);
+        }
+        TodoQuery.Cursor next = null;
+        if (todos.size() > query.getLimit()) {
+            todos = todos.subList(0, query.getLimit());
+            next = TodoQuery.Cursor.after(query.getSort(), todos.get(todos.size() - 1));
+        }
+        return new TodoPage(todos, next, -1);
+    }
+
+    /**
+     * Matches like the SQLite store, ignoring case. Ranking approximates BM25 by the
+     * share of a title's words that match a search term. As there, the matches are only
+     * reported on the first page.
+     */
+    @Override
+    public TodoPage search(TodoSearch search) {
+        List<String> terms = new ArrayList<>();
+        for (String term : search.getTerms()) {
+            terms.add(term.toLowerCase(Locale.ROOT));
+        }
+
+        List<Match> matches = new ArrayList<>();
+        for (Entry entry : snapshot()) {
+            double score = score(entry.todo.getTitle(), terms);
+            if (score > 0) {
+                matches.add(new Match(entry, score));
+            }
+        }
+        matches.sort(Comparator.comparingDouble((Match m) -> -m.score).thenComparingLong(m -> m.entry.id));
+
+        List<Todo> todos = new ArrayList<>();
+        for (int i = search.getOffset(); i < matches.size() && todos.size() < search.getLimit(); i++) {
+            todos.add(matches.get(i).entry.todo);
+        }
+        boolean more = search.getOffset() + todos.size() < matches.size();
+        return new TodoPage(todos, more, search.getOffset() == 0 ? matches.size() : -1);
+    }
+
+    /**
+     * Scans every entry and tombstone, since there is no index by version.
+     */
+    @Override
+    public TodoDelta changesSince(long since, int limit) {
+        List<Entry> changed = new ArrayList<>();
+        List<long[]> tombstones = new ArrayList<>();
+        long latest;
+        long[] stamps = new long[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stamps[i] = stripes[i].lock.readLock();
+        }
+        try {
+            for (Stripe stripe : stripes) {
+                stripe.addChanges(since, changed, tombstones);
+            }
+            latest = lastVersion.get();
+        } finally {
+            for (int i = STRIPES - 1; i >= 0; i--) {
+                stripes[i].lock.unlockRead(stamps[i]);
+            }
+        }
+        changed.sort(Comparator.comparingLong(e -> e.version));
+        tombstones.sort(Comparator.comparingLong(t -> t[1]));
+
+        List<Todo> todos = new ArrayList<>();
+        List<String> deleted = new ArrayList<>();
+        int i = 0;
+        int t = 0;
+        long version = since;
+        while (todos.size() + deleted.size() < limit && (i < changed.size() || t < tombstones.size())) {
+            if (t == tombstones.size() || (i < changed.size() && changed.get(i).version < tombstones.get(t)[1])) {
+                todos.add(changed.get(i).todo);
+                version = changed.get(i++).version;
+            } else {
+                deleted.add(Long.toString(tombstones.get(t)[0]));
+                version = tombstones.get(t++)[1];
+            }
+        }
+        boolean more = i < changed.size() || t < tombstones.size();
+        return new TodoDelta(todos, deleted, more ? version : latest, more);
+    }
+
+    @Override
+    public long create(Todo todo) {
+        long id = lastId.incrementAndGet();
+        Stripe stripe = stripe(id);
+        long stamp = stripe.lock.writeLock();
+        try {
+            stripe.put(id, withId(id, todo), lastVersion.incrementAndGet());
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+        return id;
+    }
+
+    /**
+     * Holds every stripe's write lock for the whole batch, so readers see all of it or none.
+     */
+    @Override
+    public List<TodoBatch.Result> applyBatch(List<TodoBatch.Operation> ops) {
+        TodoBatch.Result[] results = new TodoBatch.Result[ops.size()];
+        long[] stamps = new long[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stamps[i] = stripes[i].lock.writeLock();
+        }
+        try {
+            for (int i = 0; i < ops.size(); i++) {
+                TodoBatch.Operation op = ops.get(i);
+                switch (op.getOp()) {
+                    case create:
+                        long id = lastId.incrementAndGet();
+                        stripe(id).put(id, withId(id, op.getTodo()), lastVersion.incrementAndGet());
+                        results[i] = new TodoBatch.Result(op.getOp(), Long.toString(id), 201);
+                        break;
+                    case update:
+                        id = Long.parseLong(op.getId());
+                        boolean updated = stripe(id).get(id) != null;
+                        if (updated) {
+                            stripe(id).put(id, withId(id, op.getTodo()), lastVersion.incrementAndGet());
+                        }
+                        results[i] = new TodoBatch.Result(op.getOp(), op.getId(), updated ? 200 : 404);
+                        break;
+                    default:
+                        id = Long.parseLong(op.getId());
+                        boolean deleted = stripe(id).delete(id, lastVersion) != null;
+                        results[i] = new TodoBatch.Result(op.getOp(), op.getId(), deleted ? 200 : 404);
+                }
+            }
+        } finally {
+            for (int i = STRIPES - 1; i >= 0; i--) {
+                stripes[i].lock.unlockWrite(stamps[i]);
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    @Override
+    public Todo find(long id) {
+        Stripe stripe = stripe(id);
+        long stamp = stripe.lock.readLock();
+        try {
+            return stripe.get(id);
+        } finally {
+            stripe.lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public Todo update(long id, Todo todo) {
+        Stripe stripe = stripe(id);
+        long stamp = stripe.lock.writeLock();
+        try {
+            Todo before = stripe.get(id);
+            if (before != null) {
+                stripe.put(id, withId(id, todo), lastVersion.incrementAndGet());
+            }
+            return before;
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public Todo delete(long id) {
+        Stripe stripe = stripe(id);
+        long stamp = stripe.lock.writeLock();
+        try {
+            return stripe.delete(id, lastVersion);
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Reads the whole snapshot before taking every stripe's write lock, so that a bad
+     * snapshot changes nothing and readers do not wait for it to arrive.
+     */
+    @Override
+    public long restore(TodoSnapshot.Reader snapshot) throws IOException {
+        List<Todo> todos = new ArrayList<>();
+        long maxId = 0;
+        for (Todo todo = snapshot.next(); todo != null; todo = snapshot.next()) {
+            todos.add(todo);
+            maxId = Math.max(maxId, Long.parseLong(todo.getId()));
+        }
+
+        long[] stamps = new long[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stamps[i] = stripes[i].lock.writeLock();
+        }
+        try {
+            //Every tombstone and restored entry gets a version of its own, so that
+            //changesSince() can page through them
+            for (Stripe stripe : stripes) {
+                stripe.clear(lastVersion);
+            }
+            for (Todo todo : todos) {
+                long id = Long.parseLong(todo.getId());
+                Stripe stripe = stripe(id);
+                stripe.put(id, withId(id, todo), lastVersion.incrementAndGet());
+                stripe.tombstones.remove(id);
+            }
+            lastId.accumulateAndGet(maxId, Math::max);
+        } finally {
+            for (int i = STRIPES - 1; i >= 0; i--) {
+                stripes[i].lock.unlockWrite(stamps[i]);
+            }
+        }
+        return todos.size();
+    }
+
+    //-----------------------------------------------------------------------------//
+    // Helper Classes and Methods
+    //-----------------------------------------------------------------------------//
+
+    /**
+     * A todo with its id and creation time unpacked for sorting.
+     */
+    private static final class Entry {
+        final long id;
+        final Long createdOn;
+        final Todo todo;
+        final long version;
+
+        Entry(long id, Long createdOn, Todo todo) {
+            this(id, createdOn, todo, 0);
+        }
+
+        Entry(long id, Long createdOn, Todo todo, long version) {
+            this.id = id;
+            this.createdOn = createdOn;
+            this.todo = todo;
+            this.version = version;
+        }
+    }
+
+    private static final class Match {
+        final Entry entry;
+        final double score;
+
+        Match(Entry entry, double score) {
+            this.entry = entry;
+            this.score = score;
+        }
+    }
+
+    /**
+     * An open-addressing hash table with linear probing from ids to todos and their
+     * versions. Id 0 marks an empty slot; ids start at 1. Callers hold the lock.
+     */
+    private static final class Stripe {
+        final StampedLock lock = new StampedLock();
+        long[] keys = new long[16];
+        Todo[] values = new Todo[16];
+        long[] versions = new long[16];
+        int size;
+
+        //The version of each delete, by id. Deletes are rare enough not to need a primitive map
+        final Map<Long, Long> tombstones = new HashMap<>();
+
+        Todo get(long id) {
+            int mask = keys.length - 1;
+            for (int i = slot(id, mask); keys[i] != 0; i = (i + 1) & mask) {
+                if (keys[i] == id) {
+                    return values[i];
+                }
+            }
+            return null;
+        }
+
+        void put(long id, Todo todo, long version) {
+            //Keep the table at most half full so that probe sequences stay short
+            if (2 * (size + 1) > keys.length) {
+                resize();
+            }
+            int mask = keys.length - 1;
+            int i = slot(id, mask);
+            while (keys[i] != 0 && keys[i] != id) {
+                i = (i + 1) & mask;
+            }
+            if (keys[i] == 0) {
+                keys[i] = id;
+                size++;
+            }
+            values[i] = todo;
+            versions[i] = version;
+        }
+
+        /**
+         * Remove an entry and record the version of its delete.
+         *
+         * @return The entry removed, or null if there is none with the id
+         */
+        Todo delete(long id, AtomicLong lastVersion) {
+            Todo removed = remove(id);
+            if (removed != null) {
+                tombstones.put(id, lastVersion.incrementAndGet());
+            }
+            return removed;
+        }
+
+        Todo remove(long id) {
+            if (id == 0) {
+                return null;
+            }
+            int mask = keys.length - 1;
+            int i = slot(id, mask);
+            while (keys[i] != id) {
+                if (keys[i] == 0) {
+                    return null;
+                }
+                i = (i + 1) & mask;
+            }
+            Todo removed = values[i];
+
+            //Shift later entries of the probe sequence back into the gap, so that
+            //lookups never stop early at an empty slot
+            int gap = i;
+            for (int j = (gap + 1) & mask; keys[j] != 0; j = (j + 1) & mask) {
+                int home = slot(keys[j], mask);
+                if (((j - home) & mask) >= ((j - gap) & mask)) {
+                    keys[gap] = keys[j];
+                    values[gap] = values[j];
+                    versions[gap] = versions[j];
+                    gap = j;
+                }
+            }
+            keys[gap] = 0;
+            values[gap] = null;
+            versions[gap] = 0;
+            size--;
+            return removed;
+        }
+
+        /**
+         * Remove every entry, recording each delete with a new version.
+         */
+        void clear(AtomicLong lastVersion) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != 0) {
+                    tombstones.put(keys[i], lastVersion.incrementAndGet());
+                }
+            }
+            keys = new long[16];
+            values = new Todo[16];
+            versions = new long[16];
+            size = 0;
+        }
+
+        void addTo(List<Entry> entries) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != 0) {
+                    Date createdOn = values[i].getCreatedOn();
+                    entries.add(new Entry(keys[i], createdOn == null ? null : createdOn.getTime(), values[i]));
+                }
+            }
+        }
+
+        /**
+         * Add the entries and tombstones changed after a version; tombstones as {id, version}.
+         */
+        void addChanges(long since, List<Entry> entries, List<long[]> deleted) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != 0 && versions[i] > since) {
+                    entries.add(new Entry(keys[i], null, values[i], versions[i]));
+                }
+            }
+            for (Map.Entry<Long, Long> tombstone : tombstones.entrySet()) {
+                if (tombstone.getValue() > since) {
+                    deleted.add(new long[] { tombstone.getKey(), tombstone.getValue() });
+                }
+            }
+        }
+
+        private void resize() {
+            long[] oldKeys = keys;
+            Todo[] oldValues = values;
+            long[] oldVersions = versions;
+            keys = new long[oldKeys.length * 2];
+            values = new Todo[oldKeys.length * 2];
+            versions = new long[oldKeys.length * 2];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) {
+                    put(oldKeys[i], oldValues[i], oldVersions[i]);
+                }
+            }
+        }
+
+        private static int slot(long id, int mask) {
+            //The finalizer of MurmurHash3, since ids are sequential
+            long h = id;
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            return (int) h & mask;
+        }
+    }
+
+    private Stripe stripe(long id) {
+        return stripes[(int) (id & (STRIPES - 1))];
+    }
+
+    /**
+     * @return Every entry in id order, read under all stripes' read locks
+     */
+    private List<Entry> snapshot() {
+        long[] stamps = new long[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stamps[i] = stripes[i].lock.readLock();
+        }
+        List<Entry> entries = new ArrayList<>();
+        try {
+            for (Stripe stripe : stripes) {
+                stripe.addTo(entries);
+            }
+        } finally {
+            for (int i = STRIPES - 1; i >= 0; i--) {
+                stripes[i].lock.unlockRead(stamps[i]);
+            }
+        }
+        entries.sort(Comparator.comparingLong(e -> e.id));
+        return entries;
+    }
+
+    private static Todo withId(long id, Todo todo) {
+        return new Todo(Long.toString(id), todo.getTitle(), todo.isDone(), todo.getCreatedOn());
+    }
+
+    /**
+     * @return The share of the title's words that start with one of the terms, or 0
+     *         unless every term starts at least one word
+     */
+    private static double score(String title, List<String> terms) {
+        if (title == null) {
+            return 0;
+        }
+        List<String> words = TodoSearch.words(title.toLowerCase(Locale.ROOT));
+        boolean[] found = new boolean[terms.size()];
+        int matching = 0;
+        for (String word : words) {
+            boolean matched = false;
+            for (int t = 0; t < terms.size(); t++) {
+                if (word.startsWith(terms.get(t))) {
+                    found[t] = true;
+                    matched = true;
+                }
+            }
+            if (matched) {
+                matching++;
+            }
+        }
+        for (boolean f : found) {
+            if (!f) {
+                return 0;
+            }
+        }
+        return (double) matching / words.size();
+    }
+}
@@ -0,0 +1,361 @@
+package com.todoapp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * The durable log behind {@link WriteBehindTodoStore}: an append-only sequence of
+ * records, each a list of operations with their final ids. Records go to numbered
+ * segment files next to the database (todo.db-wbl.1, todo.db-wbl.2, ...), and a segment
+ * is deleted once all of its records have been applied to the database.
+ *
+ * Every record is framed by its length and a CRC32, so a record torn by a crash is
+ * recognised and dropped when the log is read back at startup.
+ *
+ * Appends only hand the bytes to the operating system; {@link #sync(long)} makes them
+ * durable. Concurrent callers of sync share fsyncs: whoever gets there first forces
+ * everything appended so far, and the others find their records already durable.
+ */
+class MutationLog {
+
+    static final long SEGMENT_BYTES = 8 << 20;
+
+    //Larger lengths can only come from a torn or corrupt record
+    private static final int MAX_RECORD_BYTES = 64 << 20;
+
+    /**
+     * One appended list of operations.
+     */
+    static class Record {
+        private final long seq;
+        private final List<TodoBatch.Operation> ops;
+
+        Record(long seq, List<TodoBatch.Operation> ops) {
+            this.seq = seq;
+            this.ops = ops;
+        }
+
+        long getSeq() {
+            return seq;
+        }
+
+        List<TodoBatch.Operation> getOps() {
+            return ops;
+        }
+    }
+
+    private static class Segment {
+        final Path path;
+        final int number;
+        FileChannel channel;
+        long size;
+        long lastSeq;
+        //The size up to which the segment is known to be on disk
+        long syncedSize;
+
+        Segment(Path path, int number) {
+            this.path = path;
+            this.number = number;
+        }
+    }
+
+    private final Path prefix;
+    private final List<Record> recovered = new ArrayList<>();
+
+    //Segments no longer appended to, oldest first
+    private final Deque<Segment> closed = new ArrayDeque<>();
+    private Segment current;
+    private long lastSeq;
+    private volatile long appendedSeq;
+
+    private final Object syncLock = new Object();
+    private long syncedSeq;
+    //Bumped by abort(), guarded by this and syncLock
+    private long aborts;
+
+    private final Logger logger = LoggerFactory.getLogger(MutationLog.class);
+
+    /**
+     * Read back the records of any existing segments, then start a new segment.
+     *
+     * @param prefix The path of the segment files without their number
+     */
+    MutationLog(Path prefix) throws IOException {
+        this.prefix = prefix;
+
+        TreeMap<Integer, Path> existing = new TreeMap<>();
+        Path dir = prefix.toAbsolutePath().getParent();
+        String name = prefix.getFileName().toString() + ".";
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, name + "*")) {
+            for (Path file : files) {
+                try {
+                    existing.put(Integer.parseInt(file.getFileName().toString().substring(name.length())), file);
+                } catch (NumberFormatException ex) {
+                    //not a segment
+                }
+            }
+        }
+
+        for (Map.Entry<Integer, Path> entry : existing.entrySet()) {
+            Segment segment = new Segment(entry.getValue(), entry.getKey());
+            segment.lastSeq = lastSeq;
+            read(segment);
+            closed.add(segment);
+        }
+        appendedSeq = lastSeq;
+        syncedSeq = lastSeq;
+        current = open(existing.isEmpty() ? 1 : existing.lastKey() + 1);
+    }
+
+    /**
+     * @return The records found in the log at startup, in order
+     */
+    List<Record> getRecovered() {
+        return Collections.unmodifiableList(recovered);
+    }
+
+    /**
+     * Append a record. It is not durable until {@link #sync(long)} returns.
+     */
+    synchronized Record append(List<TodoBatch.Operation> ops) throws IOException {
+        Record record = new Record(lastSeq + 1, ops);
+        ByteBuffer frame = encode(record);
+        if (current.size > 0 && current.size + frame.remaining() > SEGMENT_BYTES) {
+            roll();
+        }
+        while (frame.hasRemaining()) {
+            current.size += current.channel.write(frame);
+        }
+        lastSeq = record.seq;
+        current.lastSeq = lastSeq;
+        appendedSeq = lastSeq;
+        return record;
+    }
+
+    /**
+     * Wait until the record with the given sequence number, and all before it, are on disk.
+     */
+    void sync(long seq) throws IOException {
+        Segment segment;
+        long target;
+        long size;
+        long aborted;
+        synchronized (this) {
+            segment = current;
+            target = appendedSeq;
+            size = segment.size;
+            aborted = aborts;
+        }
+        synchronized (syncLock) {
+            //A roll since then forced the segment, seq included
+            if (syncedSeq >= seq) {
+                return;
+            }
+            if (aborts != aborted) {
+                throw new IOException("record " + seq + " was dropped from the log");
+            }
+            segment.channel.force(false);
+            syncedSeq = target;
+            segment.syncedSize = size;
+        }
+    }
+
+    /**
+     * After a failed sync, drop every record after the last one known to be on disk, so
+     * that records whose changes were reported as failed are not replayed at the next
+     * start. Sequence numbers continue from that record.
+     *
+     * @return The sequence number of the last record kept
+     */
+    synchronized long abort() throws IOException {
+        synchronized (syncLock) {
+            current.channel.truncate(current.syncedSize);
+            current.channel.force(false);
+            current.size = current.syncedSize;
+            current.lastSeq = syncedSeq;
+            lastSeq = syncedSeq;
+            appendedSeq = syncedSeq;
+            aborts++;
+            return syncedSeq;
+        }
+    }
+
+    /**
+     * Delete the segments all of whose records are at or below the given sequence number.
+     */
+    synchronized void release(long appliedSeq) throws IOException {
+        while (!closed.isEmpty() && closed.peekFirst().lastSeq <= appliedSeq) {
+            Segment segment = closed.pollFirst();
+            Files.deleteIfExists(segment.path);
+        }
+    }
+
+    /**
+     * Close the log, and delete it if all of its records have been applied.
+     */
+    synchronized void close(long appliedSeq) throws IOException {
+        synchronized (syncLock) {
+            current.channel.force(false);
+            current.channel.close();
+        }
+        release(appliedSeq);
+        if (closed.isEmpty() && appliedSeq >= lastSeq) {
+            Files.deleteIfExists(current.path);
+        }
+    }
+
+    //-----------------------------------------------------------------------------//
+    // Helper Classes and Methods
+    //-----------------------------------------------------------------------------//
+
+    /**
+     * Start a new segment. The old one is forced first, so that sync() only ever has to
+     * force the current segment.
+     */
+    private void roll() throws IOException {
+        synchronized (syncLock) {
+            current.channel.force(false);
+            current.channel.close();
+            syncedSeq = current.lastSeq;
+            closed.add(current);
+            current = open(current.number + 1);
+        }
+    }
+
+    private Segment open(int number) throws IOException {
+        Segment segment = new Segment(prefix.resolveSibling(prefix.getFileName() + "." + number), number);
+        segment.channel = FileChannel.open(segment.path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        segment.lastSeq = lastSeq;
+        return segment;
+    }
+
+    /**
+     * Read the records of a segment into the recovered list, up to the first torn one.
+     */
+    private void read(Segment segment) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(segment.path)))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException ex) {
+                    return;
+                }
+                try {
+                    if (length <= 0 || length > MAX_RECORD_BYTES) {
+                        throw new IOException("invalid record length " + length);
+                    }
+                    byte[] payload = new byte[length];
+                    in.readFully(payload);
+                    int crc = in.readInt();
+                    if (crc != crc(payload)) {
+                        throw new IOException("checksum mismatch");
+                    }
+                    Record record = decode(payload);
+                    recovered.add(record);
+                    lastSeq = record.seq;
+                    segment.lastSeq = lastSeq;
+                } catch (IOException ex) {
+                    logger.warn(String.format("Ignoring the rest of %s: %s", segment.path, ex.getMessage()));
+                    return;
+                }
+            }
+        }
+    }
+
+    private static ByteBuffer encode(Record record) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(record.seq);
+        out.writeInt(record.ops.size());
+        for (TodoBatch.Operation op : record.ops) {
+            out.writeByte(op.getOp().ordinal());
+            out.writeLong(Long.parseLong(op.getId()));
+            if (op.getOp() != TodoBatch.Type.delete) {
+                Todo todo = op.getTodo();
+                writeString(out, todo.getTitle());
+                out.writeBoolean(todo.isDone());
+                out.writeBoolean(todo.getCreatedOn() != null);
+                out.writeLong(todo.getCreatedOn() == null ? 0 : todo.getCreatedOn().getTime());
+            }
+        }
+        out.flush();
+        byte[] payload = bytes.toByteArray();
+
+        ByteBuffer frame = ByteBuffer.allocate(payload.length + 8);
+        frame.putInt(payload.length).put(payload).putInt(crc(payload));
+        frame.flip();
+        return frame;
+    }
+
+    private static Record decode(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        long seq = in.readLong();
+        int count = in.readInt();
+        List<TodoBatch.Operation> ops = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            TodoBatch.Type type = TodoBatch.Type.values()[in.readByte()];
+            String id = Long.toString(in.readLong());
+            Todo todo = null;
+            if (type != TodoBatch.Type.delete) {
+                String title = readString(in);
+                boolean done = in.readBoolean();
+                boolean hasCreatedOn = in.readBoolean();
+                long createdOn = in.readLong();
+                todo = new Todo(id, title, done, hasCreatedOn ? new Date(createdOn) : null);
+            }
+            ops.add(new TodoBatch.Operation(type, id, todo));
+        }
+        return new Record(seq, ops);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int crc(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+}
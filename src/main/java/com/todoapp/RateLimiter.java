@@ -0,0 +1,118 @@
+package com.todoapp;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * A token bucket per client, so that one client sending requests faster than a given
+ * rate is turned away without slowing down the others. Each client may send a burst of
+ * requests at once, and after that one request per 1/rate seconds.
+ *
+ * A bucket is a single long: the time at which it will be full again (the "theoretical
+ * arrival time" of the generic cell rate algorithm). Taking a token moves that time on
+ * by one interval with a compare-and-set, so requests never lock, not even those of the
+ * same client. A bucket whose time has passed is full, and is the same as no bucket at
+ * all, so such buckets are dropped once there are more than a given number of clients.
+ */
+public class RateLimiter {
+
+    public static final int DEFAULT_MAX_CLIENTS = 10000;
+
+    //How often the buckets of idle clients are dropped, at most
+    private static final long SWEEP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final long intervalNanos;
+    private final long burstNanos;
+    private final int maxClients;
+    private final LongSupplier clock;
+
+    private final Map<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+    private volatile long nextSweep;
+
+    /**
+     * @param perSecond The rate each client may send requests at over time; 0 for no limit
+     * @param burst The most requests a client may send at once
+     * @param maxClients The number of clients above which idle ones are forgotten
+     */
+    public RateLimiter(double perSecond, int burst, int maxClients) {
+        this(perSecond, burst, maxClients, System::nanoTime);
+    }
+
+    RateLimiter(double perSecond, int burst, int maxClients, LongSupplier clock) {
+        if (perSecond < 0 || (perSecond > 0 && burst < 1)) {
+            throw new IllegalArgumentException(String.format("Invalid rate limit of %s per second in bursts of %d", perSecond, burst));
+        }
+        this.intervalNanos = perSecond > 0 ? Math.max((long) (1e9 / perSecond), 1) : 0;
+        this.burstNanos = intervalNanos * burst;
+        this.maxClients = maxClients;
+        this.clock = clock;
+        this.nextSweep = clock.getAsLong() + SWEEP_INTERVAL_NANOS;
+    }
+
+    public boolean isEnabled() {
+        return intervalNanos > 0;
+    }
+
+    /**
+     * Take a token from a client's bucket.
+     *
+     * @return 0 if the client may go ahead, otherwise how many nanoseconds it should
+     *         wait before its next token
+     */
+    public long acquire(String client) {
+        if (!isEnabled()) {
+            return 0;
+        }
+        long now = clock.getAsLong();
+        AtomicLong bucket = buckets.get(client);
+        if (bucket == null) {
+            sweep(now);
+            bucket = buckets.computeIfAbsent(client, key -> new AtomicLong(now));
+        }
+        while (true) {
+            long full = bucket.get();
+            long next = Math.max(full, now) + intervalNanos;
+            if (next - now > burstNanos) {
+                return next - now - burstNanos;
+            }
+            if (bucket.compareAndSet(full, next)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * @return The number of clients with a bucket
+     */
+    public int clients() {
+        return buckets.size();
+    }
+
+    /**
+     * Drop the buckets that are full, if there are too many, by one thread at a time and
+     * at most once per interval. A bucket that is dropped while a request of its client
+     * takes a token gives that client one token too many, which is harmless.
+     */
+    private void sweep(long now) {
+        if (buckets.size() < maxClients || now - nextSweep < 0 || !sweeping.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            Iterator<AtomicLong> all = buckets.values().iterator();
+            while (all.hasNext()) {
+                if (all.next().get() - now <= 0) {
+                    all.remove();
+                }
+            }
+            nextSweep = now + SWEEP_INTERVAL_NANOS;
+        } finally {
+            sweeping.set(false);
+        }
+    }
+}
@@ -0,0 +1,726 @@
+//-------------------------------------------------------------------------------------------------------------//
+// Code based on a tutorial by Shekhar Gulati of SparkJava at
+// https://blog.openshift.com/developing-single-page-web-applications-using-java-8-spark-mongodb-and-angularjs/
+//-------------------------------------------------------------------------------------------------------------//
+
+package com.todoapp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sql2o.Connection;
+import org.sql2o.Query;
+import org.sql2o.ResultSetHandler;
+import org.sql2o.ResultSetIterable;
+import org.sql2o.Sql2o;
+import org.sql2o.Sql2oException;
+import org.sql2o.data.Row;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.todoapp.TodoService.TodoServiceException;
+
+/**
+ * The TodoStore backed by the item table of an SQLite database, or by another table of
+ * the same layout, so that several lists can share one database file.
+ */
+public class SqliteTodoStore implements TodoStore {
+
+    //Reads and writes go through separate pools so that, with SQLite in WAL mode,
+    //readers never queue behind the single writer connection.
+    private final Sql2o readDb;
+    private final Sql2o writeDb;
+
+    //The columns of a Todo; item also has a version column that Todo does not map
+    private static final String COLUMNS = "item.item_id, item.title, item.done, item.created_on";
+
+    //Reads a Todo from the columns above by position, rather than have sql2o look up
+    //setters by reflection for every row
+    private static final ResultSetHandler<Todo> TODO_MAPPER = rs -> {
+        Timestamp createdOn = rs.getTimestamp(4);
+        return new Todo(Long.toString(rs.getLong(1)), rs.getString(2), rs.getBoolean(3),
+                        createdOn == null ? null : new Date(createdOn.getTime()));
+    };
+
+    public static final String DEFAULT_TABLE = "item";
+
+    //The version of the schema that migrate() brings a table to: 1 for the table and its
+    //indexes, 2 for the search index, 3 for versioning. Raise it with each new step
+    static final int SCHEMA_VERSION = 3;
+
+    //The indexes and triggers on the table, dropped while a snapshot is restored
+    private static final String[] INDEXES = { "idx_item_done", "idx_item_created_on", "idx_item_done_created_on", "idx_item_version" };
+    private static final String[] TRIGGERS = { "item_fts_insert", "item_fts_delete", "item_fts_update",
+                                               "item_version_insert", "item_version_update", "item_version_delete" };
+
+    //Rows sent to SQLite at once while restoring a snapshot
+    private static final int RESTORE_BATCH_SIZE = 10000;
+
+    //The names in SQL statements that are derived from the table's: the table, its search
+    //index, tombstones, sync counter, indexes and triggers, but not the item_id column
+    private static final Pattern TABLE_NAMES = Pattern.compile("\\b(idx_)?item(?![A-Za-z]|_id\\b)");
+    private static final Pattern VALID_TABLE = Pattern.compile("[A-Za-z][A-Za-z0-9_]*");
+
+    private final String table;
+
+    //Statements with the table's names in place of item's, by statement
+    private final Map<String, String> statements = new ConcurrentHashMap<>();
+
+    private final Logger logger = LoggerFactory.getLogger(SqliteTodoStore.class);
+
+    /**
+     * Construct the store with separate datasources for queries and for updates. The
+     * current implementation also ensures that the DB schema is created if necessary,
+     * which takes a single query when it is already current.
+     *
+     * @param readDataSource Used for all queries; may be read-only
+     * @param writeDataSource Used for schema creation and all updates
+     */
+    public SqliteTodoStore(DataSource readDataSource, DataSource writeDataSource) throws TodoServiceException {
+        this(readDataSource, writeDataSource, DEFAULT_TABLE);
+    }
+
+    /**
+     * Construct the store on a table other than item. The search index, tombstones and
+     * everything else kept alongside the table are named after it, e.g. list_7_fts.
+     *
+     * @param table The name of the table; letters, digits and underscores only
+     */
+    public SqliteTodoStore(DataSource readDataSource, DataSource writeDataSource, String table) throws TodoServiceException {
+        if (!VALID_TABLE.matcher(table).matches()) {
+            throw new IllegalArgumentException(String.format("Invalid table name: %s", table));
+        }
+        this.table = table;
+        readDb = new Sql2o(readDataSource);
+        writeDb = new Sql2o(writeDataSource);
+
+        //Create the schema for the database if necessary. This allows this
+        //program to mostly self-contained. But this is not always what you want;
+        //sometimes you want to create the schema externally via a script.
+        try {
+            int version = schemaVersion();
+            if (version < SCHEMA_VERSION) {
+                migrate(version);
+            }
+        } catch(Sql2oException ex) {
+            logger.error("Failed to create schema at startup", ex);
+            throw new TodoServiceException("Failed to create schema at startup", ex);
+        }
+    }
+
+    @Override
+    public List<Todo> findAll() throws TodoServiceException {
+        String sql = "SELECT " + COLUMNS + " FROM item" ;
+        try (Connection conn = readDb.open()) {
+            return conn.createQuery(named(sql))
+                .executeAndFetch(TODO_MAPPER);
+        } catch(Sql2oException ex) {
+            logger.error("SqliteTodoStore.findAll: Failed to query database", ex);
+            throw new TodoServiceException("SqliteTodoStore.findAll: Failed to query database", ex);
+        }
+    }
+
+    /**
+     * Rows are read from the database one at a time as the visitor consumes them, so
+     * memory use does not grow with the size of the table.
+     */
+    @Override
+    public void forEach(TodoService.TodoVisitor visitor) throws TodoServiceException, IOException {
+        String sql = "SELECT " + COLUMNS + " FROM item ORDER BY item_id" ;
+        try (Connection conn = readDb.open();
+             ResultSetIterable<Todo> todos = conn.createQuery(named(sql))
+                .executeAndFetchLazy(TODO_MAPPER)) {
+            for (Todo todo : todos) {
+                visitor.visit(todo);
+            }
+        } catch(Sql2oException ex) {
+            logger.error("SqliteTodoStore.forEach: Failed to query database", ex);
+            throw new TodoServiceException("SqliteTodoStore.forEach: Failed to query database", ex);
+        }
+    }
+
+    @Override
+    public TodoPage findPage(TodoQuery query) throws TodoServiceException {
+        StringBuilder where = new StringBuilder();
+        if (query.getDone() != null) {
+            where.append(" AND done = :done");
+        }
+        if (query.getAfter() != null) {
+            where.append(" AND ").append(keysetCondition(query));
+        }
+        String direction = query.isDescending() ? " DESC" : " ASC";
+        String orderBy = query.getSort() == TodoQuery.SortField.ID
+                ? "item_id" + direction
+                : "created_on" + direction + ", item_id" + direction;
+
+        String sql = "SELECT " + COLUMNS + " FROM item WHERE 1 = 1" + where + " ORDER BY " + orderBy + " LIMIT :limit";
+
+        try (Connection conn = readDb.open()) {
+            Query select = conn.createQuery(named(sql))
+                .addParameter("limit", query.getLimit() + 1);  // one extra row tells us if there is a next page
+            if (query.getDone() != null) {
+                select.addParameter("done", query.getDone());
+            }
+            TodoQuery.Cursor after = query.getAfter();
+            if (after != null) {
+                select.addParameter("afterId", after.getId());
+                if (after.getCreatedOn() != null) {
+                    select.addParameter("afterCreatedOn", after.getCreatedOn());
+                }
+            }
+
+            List<Todo> todos = select.executeAndFetch(TODO_MAPPER);
+            TodoQuery.Cursor next = null;
+            if (todos.size() > query.getLimit()) {
+                todos = todos.subList(0, query.getLimit());
+                next = TodoQuery.Cursor.after(query.getSort(), todos.get(todos.size() - 1));
+            }
+            return new TodoPage(todos, next, -1);
+        } catch(Sql2oException ex) {
+            logger.error("SqliteTodoStore.findPage: Failed to query database", ex);
+            throw new TodoServiceException("SqliteTodoStore.findPage: Failed to query database", ex);
+        }
+    }
+
+    /**
+     * Results are ranked by FTS5's BM25 score. Matches are counted on the first page only.
+     */
+    @Override
+    public TodoPage search(TodoSearch search) throws TodoServiceException {
+        String sql = "SELECT " + COLUMNS + " FROM item_fts JOIN item ON item.item_id = item_fts.rowid " +
+                     "WHERE item_fts MATCH :match ORDER BY item_fts.rank, item.item_id LIMIT :limit OFFSET :offset";
+        String countSql = "SELECT COUNT(*) FROM item_fts WHERE item_fts MATCH :match";
+
+        try (Connection conn = readDb.open()) {
+            List<Todo> todos = conn.createQuery(named(sql))
+                .addParameter("match", search.toMatchExpression())
+                .addParameter("limit", search.getLimit() + 1)  // one extra row tells us if there is a next page
+                .addParameter("offset", search.getOffset())
+                .executeAndFetch(TODO_MAPPER);
+            boolean more = todos.size() > search.getLimit();
+            if (more) {
+                todos = todos.subList(0, search.getLimit());
+            }
+            long total = -1;
+            if (search.getOffset() == 0) {
+                total = conn.createQuery(named(countSql))
+                    .addParameter("match", search.toMatchExpression())
+                    .executeScalar(Long.class);
+            }
+            return new TodoPage(todos, more, total);
+        } catch(Sql2oException ex) {
+            logger.error("SqliteTodoStore.search: Failed to query database", ex);
+            throw new TodoServiceException("SqliteTodoStore.search: Failed to query database", ex);
+        }
+    }
+
+    /**
+     * Reads the rows and tombstones changed after since, merged in version order, in one
+     * read transaction so that both come from the same snapshot. Both are found through
+     * indexes on their version column, so the cost depends on the number of changes and
+     * not on the size of the table.
+     */
+    @Override
+    public TodoDelta changesSince(long since, int limit) throws TodoServiceException {
+        String itemSql = "SELECT " + COLUMNS + ", item.version FROM item WHERE version > :since ORDER BY version LIMIT :limit";
+        String tombstoneSql = "SELECT item_id, version FROM item_tombstone WHERE version > :since ORDER BY version LIMIT :limit";
+
+        try (Connection conn = readDb.beginTransaction(java.sql.Connection.TRANSACTION_SERIALIZABLE)) {
+            //One extra row of each tells us if there are more changes
+            List<Row> items = conn.createQuery(named(itemSql))
+                .addParameter("since", since)
+                .addParameter("limit", limit + 1)
+                .executeAndFetchTable().rows();
+            List<Row> tombstones = conn.createQuery(named(tombstoneSql))
+                .addParameter("since", since)
+                .addParameter("limit", limit + 1)
+                .executeAndFetchTable().rows();
+            long latest = conn.createQuery(named("SELECT version FROM item_sync")).executeScalar(Long.class);
+
+            List<Todo> todos = new ArrayList<>();
+            List<String> deleted = new ArrayList<>();
+            int i = 0;
+            int t = 0;
+            long version = since;
+            while (todos.size() + deleted.size() < limit && (i < items.size() || t < tombstones.size())) {
+                boolean item = t == tombstones.size()
+                        || (i < items.size() && items.get(i).getLong("version") < tombstones.get(t).getLong("version"));
+                if (item) {
+                    Row row = items.get(i++);
+                    todos.add(new Todo(Long.toString(row.getLong("item_id")), row.getString("title"),
+                                       Boolean.TRUE.equals(row.getObject("done", Boolean.class)), row.getDate("created_on")));
+                    version = row.getLong("version");
+                } else {
+                    Row row = tombstones.get(t++);
+                    deleted.add(Long.toString(row.getLong("item_id")));
+                    version = row.getLong("version");
+                }
+            }
+            boolean more = i < items.size() || t < tombstones.size();
+            return new TodoDelta(todos, deleted, more ? version : latest, more);
+        } catch(Sql2oException ex) {
+            logger.error("SqliteTodoStore.changesSince: Failed to query database", ex);
+            throw new TodoServiceException("SqliteTodoStore.changesSince: Failed to query database", ex);
+        }
+    }
+
+    @Override
+    public long create(Todo todo) throws TodoServiceException {
+        String sql = "INSERT INTO item (title, done, created_on) " +
+                     "             VALUES (:title, :done, :createdOn)" ;
+
+        try (Connection conn = writeDb.open()) {
+            return conn.createQuery(named(sql), true)
+                .addParameter("title", todo.getTitle())
+                .addParameter("done", todo.isDone())
+                .addParameter("createdOn", todo.getCreatedOn())
+                .executeUpdate()
+                .getKey(Long.class);
+        } catch(Sql2oException ex) {
+            logger.error("SqliteTodoStore.create: Failed to create new entry", ex);
+            throw new TodoServiceException("SqliteTodoStore.create: Failed to create new entry", ex);
+        }
+    }
+
+    /**
+     * The batch costs one commit instead of one per row, and consecutive operations of
+     * the same kind are sent to SQLite as one JDBC batch.
+     */
+    @Override
+    public List<TodoBatch.Result> applyBatch(List<TodoBatch.Operation> ops) throws TodoServiceException {
+        TodoBatch.Result[] results = new TodoBatch.Result[ops.size()];
+
+        //SQLite rejects sql2o's default isolation level (READ_COMMITTED)
+        try (Connection conn = writeDb.beginTransaction(java.sql.Connection.TRANSACTION_SERIALIZABLE)) {
+            int start = 0;
+            while (start < ops.size()) {
+                int end = start + 1;
+                while (end < ops.size() && ops.get(end).getOp() == ops.get(start).getOp()) {
+                    end++;
+                }
+                applyBatchRun(conn, ops, start, end, results);
+                start = end;
+            }
+            conn.commit();
+        } catch(Sql2oException ex) {
+            logger.error("SqliteTodoStore.applyBatch: Failed to apply batch", ex);
+            throw new TodoServiceException("SqliteTodoStore.applyBatch: Failed to apply batch", ex);
+        }
+        return Arrays.asList(results);
+    }
+
+    @Override
+    public Todo find(long id) throws TodoServiceException {
+        String sql = "SELECT " + COLUMNS + " FROM item WHERE item_id = :itemId ";
+        try (Connection conn = readDb.open()) {
+            return conn.createQuery(named(sql))
+                .addParameter("itemId", id)
+                .executeAndFetchFirst(TODO_MAPPER);
+        } catch(Sql2oException ex) {
+            logger.error(String.format("SqliteTodoStore.find: Failed to query database for id: %d", id), ex);
+            throw new TodoServiceException(String.format("SqliteTodoStore.find: Failed to query database for id: %d", id), ex);
+        }
+    }
+
+    /**
+     * Reads the entry and updates it in one write transaction, since RETURNING only has
+     * the new values of an update.
+     */
+    @Override
+    public Todo update(long id, Todo todo) throws TodoServiceException {
+        String findSql = "SELECT " + COLUMNS + " FROM item WHERE item_id = :itemId ";
+        String sql = "UPDATE item SET title = :title, done = :done, created_on = :createdOn WHERE item_id = :itemId ";
+        try (Connection conn = writeDb.beginTransaction(java.sql.Connection.TRANSACTION_SERIALIZABLE)) {
+            Todo before = conn.createQuery(named(findSql))
+                    .addParameter("itemId", id)
+                    .executeAndFetchFirst(TODO_MAPPER);
+            if (before != null) {
+                conn.createQuery(named(sql))
+                        .addParameter("title", todo.getTitle())
+                        .addParameter("done", todo.isDone())
+                        .addParameter("createdOn", todo.getCreatedOn())
+                        .addParameter("itemId", id)
+                        .executeUpdate();
+            }
+            conn.commit();
+            return before;
+        } catch(Sql2oException ex) {
+            logger.error(String.format("SqliteTodoStore.update: Failed to update database for id: %d", id), ex);
+            throw new TodoServiceException(String.format("SqliteTodoStore.update: Failed to update database for id: %d", id), ex);
+        }
+    }
+
+    @Override
+    public Todo delete(long id) throws TodoServiceException {
+        String sql = "DELETE FROM item WHERE item_id = :itemId RETURNING " + COLUMNS;
+        try (Connection conn = writeDb.open()) {
+            //Delete the item, and return it as it was if there was one
+            return conn.createQuery(named(sql))
+                .addParameter("itemId", id)
+                .executeAndFetchFirst(TODO_MAPPER);
+        } catch(Sql2oException ex) {
+            logger.error(String.format("SqliteTodoStore.delete: Failed to delete id: %d", id), ex);
+            throw new TodoServiceException(String.format("SqliteTodoStore.delete: Failed to delete id: %d", id), ex);
+        }
+    }
+
+    /**
+     * Loads the snapshot in one transaction, with the indexes and triggers dropped while
+     * rows are inserted in JDBC batches, and rebuilt once at the end: building an index
+     * from sorted rows is much cheaper than updating it for every insert. Every tombstone
+     * and every restored row gets a version of its own, as the dropped triggers would have
+     * given them, so that changesSince() can page through a restore of any size.
+     */
+    @Override
+    public long restore(TodoSnapshot.Reader snapshot) throws TodoServiceException, IOException {
+        String insertSql = "INSERT OR REPLACE INTO item (item_id, title, done, created_on, version) " +
+                           "VALUES (:itemId, :title, :done, :createdOn, :version)";
+
+        try (Connection conn = writeDb.beginTransaction(java.sql.Connection.TRANSACTION_SERIALIZABLE)) {
+            for (String index : INDEXES) {
+                conn.createQuery(named("DROP INDEX IF EXISTS " + index)).executeUpdate();
+            }
+            for (String trigger : TRIGGERS) {
+                conn.createQuery(named("DROP TRIGGER IF EXISTS " + trigger)).executeUpdate();
+            }
+
+            long version = conn.createQuery(named("SELECT version FROM item_sync")).executeScalar(Long.class);
+            version += conn.createQuery(named("INSERT OR REPLACE INTO item_tombstone (item_id, version) " +
+                                              "SELECT item_id, :version + ROW_NUMBER() OVER (ORDER BY item_id) FROM item"))
+                .addParameter("version", version)
+                .executeUpdate()
+                .getResult();
+            conn.createQuery(named("DELETE FROM item")).executeUpdate();
+
+            Query insert = conn.createQuery(named(insertSql));
+            long restored = 0;
+            for (Todo todo = snapshot.next(); todo != null; todo = snapshot.next()) {
+                insert.addParameter("itemId", Long.parseLong(todo.getId()))
+                      .addParameter("title", todo.getTitle())
+                      .addParameter("done", todo.isDone())
+                      .addParameter("createdOn", todo.getCreatedOn())
+                      .addParameter("version", ++version)
+                      .addToBatch();
+                if (++restored % RESTORE_BATCH_SIZE == 0) {
+                    insert.executeBatch();
+                }
+            }
+            insert.executeBatch();
+            conn.createQuery(named("UPDATE item_sync SET version = :version"))
+                .addParameter("version", version)
+                .executeUpdate();
+            conn.createQuery(named("DELETE FROM item_tombstone WHERE item_id IN (SELECT item_id FROM item)")).executeUpdate();
+
+            //The missing triggers make createSearchIndex() rebuild the index from the table
+            createIndexes(conn);
+            createSearchIndex(conn);
+            createVersioning(conn);
+            conn.commit();
+            return restored;
+        } catch(Sql2oException ex) {
+            logger.error("SqliteTodoStore.restore: Failed to restore a snapshot", ex);
+            throw new TodoServiceException("SqliteTodoStore.restore: Failed to restore a snapshot", ex);
+        }
+    }
+
+    /**
+     * Apply operations whose ids were assigned elsewhere, in one transaction. Creates
+     * overwrite any row with the same id, and updates and deletes of missing rows do
+     * nothing, so applying the same operations again has no further effect.
+     *
+     * @param ops Operations that all carry an id, creates included
+     */
+    void applyAssigned(List<TodoBatch.Operation> ops) throws TodoServiceException {
+        //An upsert rather than INSERT OR REPLACE, whose implicit delete would not fire
+        //the search index triggers
+        String createSql = "INSERT INTO item (item_id, title, done, created_on) VALUES (:itemId, :title, :done, :createdOn) " +
+                           "ON CONFLICT (item_id) DO UPDATE SET title = excluded.title, done = excluded.done, created_on = excluded.created_on";
+        String updateSql = "UPDATE item SET title = :title, done = :done, created_on = :createdOn WHERE item_id = :itemId";
+        String deleteSql = "DELETE FROM item WHERE item_id = :itemId";
+
+        try (Connection conn = writeDb.beginTransaction(java.sql.Connection.TRANSACTION_SERIALIZABLE)) {
+            Map<TodoBatch.Type, Query> queries = new EnumMap<>(TodoBatch.Type.class);
+            queries.put(TodoBatch.Type.create, conn.createQuery(named(createSql)));
+            queries.put(TodoBatch.Type.update, conn.createQuery(named(updateSql)));
+            queries.put(TodoBatch.Type.delete, conn.createQuery(named(deleteSql)));
+
+            //Send runs of the same kind of operation as one JDBC batch
+            TodoBatch.Type batched = null;
+            for (TodoBatch.Operation op : ops) {
+                if (batched != null && op.getOp() != batched) {
+                    queries.get(batched).executeBatch();
+                }
+                batched = op.getOp();
+                Query query = queries.get(batched);
+                if (batched != TodoBatch.Type.delete) {
+                    query.addParameter("title", op.getTodo().getTitle())
+                         .addParameter("done", op.getTodo().isDone())
+                         .addParameter("createdOn", op.getTodo().getCreatedOn());
+                }
+                query.addParameter("itemId", Long.parseLong(op.getId()))
+                     .addToBatch();
+            }
+            if (batched != null) {
+                queries.get(batched).executeBatch();
+            }
+            conn.commit();
+        } catch(Sql2oException ex) {
+            logger.error(String.format("SqliteTodoStore.applyAssigned: Failed to apply %d operations", ops.size()), ex);
+            throw new TodoServiceException(String.format("SqliteTodoStore.applyAssigned: Failed to apply %d operations", ops.size()), ex);
+        }
+    }
+
+    /**
+     * @return The largest id ever handed out, including those of deleted rows
+     */
+    long maxId() throws TodoServiceException {
+        String sql = "SELECT MAX(id) FROM (SELECT MAX(item_id) AS id FROM item " +
+                     "                     UNION ALL SELECT seq FROM sqlite_sequence WHERE name = 'item')";
+        try (Connection conn = writeDb.open()) {
+            Long max = conn.createQuery(named(sql)).executeScalar(Long.class);
+            return max == null ? 0 : max;
+        } catch(Sql2oException ex) {
+            logger.error("SqliteTodoStore.maxId: Failed to query database", ex);
+            throw new TodoServiceException("SqliteTodoStore.maxId: Failed to query database", ex);
+        }
+    }
+
+    /**
+     * Drop the table and everything kept alongside it, if they exist. The store must not
+     * be used afterwards.
+     */
+    void drop() throws TodoServiceException {
+        try (Connection conn = writeDb.beginTransaction(java.sql.Connection.TRANSACTION_SERIALIZABLE)) {
+            //Dropping the table drops its indexes and triggers too
+            conn.createQuery(named("DROP TABLE IF EXISTS item_fts")).executeUpdate();
+            conn.createQuery(named("DROP TABLE IF EXISTS item_tombstone")).executeUpdate();
+            conn.createQuery(named("DROP TABLE IF EXISTS item_sync")).executeUpdate();
+            conn.createQuery(named("DROP TABLE IF EXISTS item")).executeUpdate();
+            conn.createQuery("DELETE FROM schema_version WHERE name = :name").addParameter("name", table).executeUpdate();
+            conn.commit();
+        } catch(Sql2oException ex) {
+            logger.error(String.format("SqliteTodoStore.drop: Failed to drop %s", table), ex);
+            throw new TodoServiceException(String.format("SqliteTodoStore.drop: Failed to drop %s", table), ex);
+        }
+    }
+
+    //-----------------------------------------------------------------------------//
+    // Helper Classes and Methods
+    //-----------------------------------------------------------------------------//
+
+    /**
+     * @return A statement written against the item table, against this store's table
+     */
+    private String named(String sql) {
+        if (table.equals(DEFAULT_TABLE)) {
+            return sql;
+        }
+        return statements.computeIfAbsent(sql, key -> TABLE_NAMES.matcher(key).replaceAll("$1" + Matcher.quoteReplacement(table)));
+    }
+
+    /**
+     * Apply ops[start, end), which are all of the same kind, as one JDBC batch.
+     */
+    private void applyBatchRun(Connection conn, List<TodoBatch.Operation> ops, int start, int end,
+                               TodoBatch.Result[] results) throws Sql2oException {
+        TodoBatch.Type type = ops.get(start).getOp();
+        String sql;
+        switch (type) {
+            case create:
+                sql = "INSERT INTO item (title, done, created_on) VALUES (:title, :done, :createdOn)";
+                break;
+            case update:
+                sql = "UPDATE item SET title = :title, done = :done, created_on = :createdOn WHERE item_id = :itemId";
+                break;
+            default:
+                sql = "DELETE FROM item WHERE item_id = :itemId";
+        }
+
+        Query query = conn.createQuery(named(sql));
+        for (int i = start; i < end; i++) {
+            TodoBatch.Operation op = ops.get(i);
+            if (type != TodoBatch.Type.delete) {
+                //Not bind(): sql2o only binds a parameter from a POJO once per query
+                query.addParameter("title", op.getTodo().getTitle())
+                     .addParameter("done", op.getTodo().isDone())
+                     .addParameter("createdOn", op.getTodo().getCreatedOn());
+            }
+            if (type != TodoBatch.Type.create) {
+                query.addParameter("itemId", Long.parseLong(op.getId()));
+            }
+            query.addToBatch();
+        }
+        query.executeBatch();
+        int[] counts = conn.getBatchResult();
+
+        if (type == TodoBatch.Type.create) {
+            //The single writer holds SQLite's write lock for the whole transaction, so
+            //AUTOINCREMENT hands out consecutive ids ending at the last inserted rowid
+            long lastId = conn.createQuery("SELECT last_insert_rowid()").executeScalar(Long.class);
+            long firstId = lastId - (end - start) + 1;
+            for (int i = start; i < end; i++) {
+                results[i] = new TodoBatch.Result(type, Long.toString(firstId + i - start), 201);
+            }
+        } else {
+            for (int i = start; i < end; i++) {
+                results[i] = new TodoBatch.Result(type, ops.get(i).getId(), counts[i - start] == 1 ? 200 : 404);
+            }
+        }
+    }
+
+    /**
+     * @return The version of the table's schema, or 0 if none is recorded, as for tables
+     *         from before versions were, or if the table does not exist
+     */
+    private int schemaVersion() throws Sql2oException {
+        try (Connection conn = writeDb.open()) {
+            conn.createQuery("CREATE TABLE IF NOT EXISTS schema_version (name TEXT PRIMARY KEY, version INTEGER NOT NULL)")
+                .executeUpdate();
+            Integer version = conn.createQuery("SELECT version FROM schema_version WHERE name = :name " +
+                                               "AND EXISTS (SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = :name)")
+                .addParameter("name", table)
+                .executeScalar(Integer.class);
+            return version == null ? 0 : version;
+        }
+    }
+
+    /**
+     * Bring the table's schema from a version up to SCHEMA_VERSION in one transaction,
+     * and record that it is. Each step also works on a schema that already has it, so a
+     * table whose version is not recorded is brought up by running them all.
+     */
+    private void migrate(int from) throws Sql2oException {
+        try (Connection conn = writeDb.beginTransaction(java.sql.Connection.TRANSACTION_SERIALIZABLE)) {
+            if (from < 1) {
+                String sql = "CREATE TABLE IF NOT EXISTS item (item_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                             "                                 title TEXT, done BOOLEAN, created_on TIMESTAMP, " +
+                             "                                 version INTEGER NOT NULL DEFAULT 0)" ;
+                conn.createQuery(named(sql)).executeUpdate();
+                createIndexes(conn);
+            }
+            if (from < 2) {
+                createSearchIndex(conn);
+            }
+            if (from < 3) {
+                createVersioning(conn);
+            }
+            conn.createQuery("INSERT OR REPLACE INTO schema_version (name, version) VALUES (:name, :version)")
+                .addParameter("name", table)
+                .addParameter("version", SCHEMA_VERSION)
+                .executeUpdate();
+            conn.commit();
+        }
+        logger.info(String.format("Migrated the schema of %s from version %d to %d", table, from, SCHEMA_VERSION));
+    }
+
+    /**
+     * Create the indexes backing the keyset pagination in findPage(). SQLite appends the
+     * rowid (item_id) to every index entry, so these also order ties by item_id.
+     */
+    private void createIndexes(Connection conn) throws Sql2oException {
+        conn.createQuery(named("CREATE INDEX IF NOT EXISTS idx_item_done ON item (done)")).executeUpdate();
+        conn.createQuery(named("CREATE INDEX IF NOT EXISTS idx_item_created_on ON item (created_on)")).executeUpdate();
+        conn.createQuery(named("CREATE INDEX IF NOT EXISTS idx_item_done_created_on ON item (done, created_on)")).executeUpdate();
+    }
+
+    /**
+     * Create the full-text index over titles and the triggers that keep it in step with
+     * the item table, so that every write path, including batches, updates it. The index
+     * is an FTS5 external content table: it stores only the index, and reads titles from
+     * the item table. Prefix indexes make the prefix queries TodoSearch issues cheap.
+     *
+     * Dropping the item table drops its triggers too, so missing triggers mean the index
+     * may not match the table, and it is rebuilt from scratch.
+     */
+    private void createSearchIndex(Connection conn) throws Sql2oException {
+        boolean inSync = conn.createQuery(named("SELECT COUNT(*) FROM sqlite_master WHERE type = 'trigger' AND name = 'item_fts_insert'"))
+                .executeScalar(Integer.class) > 0;
+
+        conn.createQuery(named("CREATE VIRTUAL TABLE IF NOT EXISTS item_fts USING fts5(title, content = 'item', " +
+                         "content_rowid = 'item_id', prefix = '2 3')")).executeUpdate();
+        conn.createQuery(named("CREATE TRIGGER IF NOT EXISTS item_fts_insert AFTER INSERT ON item BEGIN " +
+                         "  INSERT INTO item_fts (rowid, title) VALUES (new.item_id, new.title); " +
+                         "END")).executeUpdate();
+        conn.createQuery(named("CREATE TRIGGER IF NOT EXISTS item_fts_delete AFTER DELETE ON item BEGIN " +
+                         "  INSERT INTO item_fts (item_fts, rowid, title) VALUES ('delete', old.item_id, old.title); " +
+                         "END")).executeUpdate();
+        conn.createQuery(named("CREATE TRIGGER IF NOT EXISTS item_fts_update AFTER UPDATE OF title ON item BEGIN " +
+                         "  INSERT INTO item_fts (item_fts, rowid, title) VALUES ('delete', old.item_id, old.title); " +
+                         "  INSERT INTO item_fts (rowid, title) VALUES (new.item_id, new.title); " +
+                         "END")).executeUpdate();
+
+        if (!inSync) {
+            conn.createQuery(named("INSERT INTO item_fts (item_fts) VALUES ('rebuild')")).executeUpdate();
+        }
+    }
+
+    /**
+     * Give every row a version, bumped by each change to it, and keep the version of
+     * every delete in a tombstone, so that changesSince() can find what changed. As with
+     * the search index, triggers do the work so that every write path is covered. The
+     * last version handed out is kept in the single row of item_sync.
+     *
+     * Rows of a database from before versioning are numbered by id, once.
+     */
+    private void createVersioning(Connection conn) throws Sql2oException {
+        boolean versioned = conn.createQuery(named("SELECT COUNT(*) FROM pragma_table_info('item') WHERE name = 'version'"))
+                .executeScalar(Integer.class) > 0;
+        if (!versioned) {
+            conn.createQuery(named("ALTER TABLE item ADD COLUMN version INTEGER NOT NULL DEFAULT 0")).executeUpdate();
+        }
+        conn.createQuery(named("CREATE INDEX IF NOT EXISTS idx_item_version ON item (version)")).executeUpdate();
+        conn.createQuery(named("CREATE TABLE IF NOT EXISTS item_tombstone (item_id INTEGER PRIMARY KEY, version INTEGER NOT NULL)")).executeUpdate();
+        conn.createQuery(named("CREATE INDEX IF NOT EXISTS idx_item_tombstone_version ON item_tombstone (version)")).executeUpdate();
+        conn.createQuery(named("CREATE TABLE IF NOT EXISTS item_sync (id INTEGER PRIMARY KEY CHECK (id = 1), version INTEGER NOT NULL)")).executeUpdate();
+
+        //Only rows from before versioning have version 0; the index makes this cheap once there are none
+        conn.createQuery(named("UPDATE item SET version = item_id WHERE version = 0")).executeUpdate();
+        conn.createQuery(named("INSERT OR IGNORE INTO item_sync (id, version) SELECT 1, COALESCE(MAX(version), 0) FROM item")).executeUpdate();
+
+        conn.createQuery(named("CREATE TRIGGER IF NOT EXISTS item_version_insert AFTER INSERT ON item BEGIN " +
+                         "  UPDATE item_sync SET version = version + 1; " +
+                         "  UPDATE item SET version = (SELECT version FROM item_sync) WHERE item_id = new.item_id; " +
+                         "  DELETE FROM item_tombstone WHERE item_id = new.item_id; " +
+                         "END")).executeUpdate();
+        conn.createQuery(named("CREATE TRIGGER IF NOT EXISTS item_version_update AFTER UPDATE OF title, done, created_on ON item BEGIN " +
+                         "  UPDATE item_sync SET version = version + 1; " +
+                         "  UPDATE item SET version = (SELECT version FROM item_sync) WHERE item_id = new.item_id; " +
+                         "END")).executeUpdate();
+        conn.createQuery(named("CREATE TRIGGER IF NOT EXISTS item_version_delete AFTER DELETE ON item BEGIN " +
+                         "  UPDATE item_sync SET version = version + 1; " +
+                         "  INSERT OR REPLACE INTO item_tombstone (item_id, version) VALUES (old.item_id, (SELECT version FROM item_sync)); " +
+                         "END")).executeUpdate();
+    }
+
+    /**
+     * Build the WHERE clause that selects the rows following the query's cursor in the
+     * query's sort order. SQLite sorts NULL before any value, so rows without a creation
+     * time come first in ascending order and last in descending order.
+     */
+    private static String keysetCondition(TodoQuery query) {
+        boolean desc = query.isDescending();
+        String cmp = desc ? "<" : ">";
+        if (query.getSort() == TodoQuery.SortField.ID) {
+            return "item_id " + cmp + " :afterId";
+        }
+
+        if (query.getAfter().getCreatedOn() == null) {
+            return desc
+                ? "(created_on IS NULL AND item_id < :afterId)"
+                : "((created_on IS NULL AND item_id > :afterId) OR created_on IS NOT NULL)";
+        }
+        //Written as a range plus a tie-break so that SQLite can use the created_on index
+        String keyset = "(created_on " + cmp + "= :afterCreatedOn AND (created_on " + cmp + " :afterCreatedOn OR item_id " + cmp + " :afterId))";
+        return desc ? "(" + keyset + " OR created_on IS NULL)" : keyset;
+    }
+}
@@ -0,0 +1,118 @@
+package com.todoapp;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long each phase of starting the server took, so that cold starts can be kept
+ * short. Phases may run on several threads at once; each is recorded with when it
+ * started, relative to the profile, and the thread it ran on.
+ *
+ * The time the JVM took before the profile was created, mostly class loading, is taken
+ * from the start time of the process.
+ */
+public class StartupProfile {
+
+    /**
+     * One phase of startup.
+     */
+    public static class Phase {
+        private final String name;
+        private final String thread;
+        private final long offsetNanos;
+        private final long durationNanos;
+
+        Phase(String name, String thread, long offsetNanos, long durationNanos) {
+            this.name = name;
+            this.thread = thread;
+            this.offsetNanos = offsetNanos;
+            this.durationNanos = durationNanos;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getThread() {
+            return thread;
+        }
+
+        /**
+         * @return When the phase started, after the profile was created
+         */
+        public long getOffsetNanos() {
+            return offsetNanos;
+        }
+
+        public long getDurationNanos() {
+            return durationNanos;
+        }
+    }
+
+    private final long started = System.nanoTime();
+    private final long jvmMillis;
+    private final List<Phase> phases = new ArrayList<>();
+    private volatile long finishedNanos = -1;
+
+    public StartupProfile() {
+        jvmMillis = ProcessHandle.current().info().startInstant()
+                .map(start -> Duration.between(start, Instant.now()).toMillis())
+                .orElse(-1L);
+    }
+
+    /**
+     * Record a phase that started at the given System.nanoTime() and has just ended.
+     */
+    public synchronized void record(String name, long startedNanos) {
+        long now = System.nanoTime();
+        phases.add(new Phase(name, Thread.currentThread().getName(), startedNanos - started, now - startedNanos));
+    }
+
+    /**
+     * Mark startup as done.
+     */
+    public void finish() {
+        finishedNanos = System.nanoTime() - started;
+    }
+
+    /**
+     * @return The time from the profile's creation to finish(), or so far if not finished
+     */
+    public long getElapsedNanos() {
+        return finishedNanos >= 0 ? finishedNanos : System.nanoTime() - started;
+    }
+
+    /**
+     * @return How long the JVM ran before the profile was created, or -1 if unknown
+     */
+    public long getJvmMillis() {
+        return jvmMillis;
+    }
+
+    /**
+     * @return The phases recorded so far, in the order they ended
+     */
+    public synchronized List<Phase> getPhases() {
+        return new ArrayList<>(phases);
+    }
+
+    /**
+     * @return One line per phase, with when it started and how long it took
+     */
+    public String report() {
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("Started in %d ms", TimeUnit.NANOSECONDS.toMillis(getElapsedNanos())));
+        if (jvmMillis >= 0) {
+            out.append(String.format(", after %d ms of JVM startup", jvmMillis));
+        }
+        for (Phase phase : getPhases()) {
+            out.append(String.format("%n  %-12s %6d ms  at %6d ms  on %s", phase.name,
+                    TimeUnit.NANOSECONDS.toMillis(phase.durationNanos), TimeUnit.NANOSECONDS.toMillis(phase.offsetNanos),
+                    phase.thread));
+        }
+        return out.toString();
+    }
+}
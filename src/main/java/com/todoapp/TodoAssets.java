@@ -0,0 +1,358 @@
+package com.todoapp;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Serves the files of the web UI from memory, in place of Spark's static file handling.
+ *
+ * Every file is read and hashed once, at startup, and sent straight from a read-only
+ * buffer. Files are gzipped later, so that the server starts sooner: by
+ * {@link #compressAll()}, run in the background once the server is up, or by the first
+ * request for a file that accepts gzip, if that comes first. Each file can also be fetched under a name that includes its hash,
+ * e.g. /js/angular.1f3a9c2e07.js, which never changes content and so is cached by
+ * browsers for a year; the pages refer to files by those names, so a repeat visit only
+ * revalidates the pages themselves. A file "x.br" next to "x" is taken as a Brotli
+ * encoding of it, for browsers that accept one.
+ */
+public class TodoAssets extends AbstractHandler {
+
+    public static final String IMMUTABLE = "public, max-age=31536000, immutable";
+    public static final String REVALIDATE = "no-cache";
+
+    private static final Pattern REFERENCE = Pattern.compile("(src|href)=\"(/[^\"]+)\"");
+
+    private static final Map<String, String> TYPES = Map.of(
+            "html", "text/html; charset=utf-8",
+            "js", "application/javascript; charset=utf-8",
+            "css", "text/css; charset=utf-8",
+            "json", "application/json",
+            "svg", "image/svg+xml",
+            "png", "image/png",
+            "ico", "image/x-icon");
+
+    private final Logger logger = LoggerFactory.getLogger(TodoAssets.class);
+
+    //By path, under both the plain and the fingerprinted name
+    private final Map<String, Asset> assets = new HashMap<>();
+    private final Map<String, String> fingerprinted = new HashMap<>();
+
+    /**
+     * Read every file under a directory.
+     *
+     * @param root The directory, which is served as /
+     * @param compressMinBytes Files smaller than this are not gzipped; negative to gzip none
+     */
+    public TodoAssets(Path root, int compressMinBytes) throws IOException {
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(root)) {
+            files = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+
+        //Pages come last, so that their references to other files can be fingerprinted
+        List<Path> pages = files.stream().filter(file -> extension(file.toString()).equals("html")).collect(Collectors.toList());
+        files.removeAll(pages);
+        files.addAll(pages);
+
+        long total = 0;
+        for (Path file : files) {
+            String path = "/" + root.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+            if (path.endsWith(".br")) {
+                continue;
+            }
+            byte[] content = Files.readAllBytes(file);
+            if (pages.contains(file)) {
+                content = fingerprint(content, fingerprinted);
+            }
+            Path brotli = file.resolveSibling(file.getFileName() + ".br");
+            Asset asset = new Asset(content, type(path), compressMinBytes,
+                    Files.exists(brotli) ? Files.readAllBytes(brotli) : null);
+
+            String name = path.substring(path.lastIndexOf('/') + 1);
+            int dot = name.lastIndexOf('.');
+            String hashed = path.substring(0, path.length() - name.length())
+                    + (dot > 0 ? name.substring(0, dot) + "." + asset.hash + name.substring(dot) : name + "." + asset.hash);
+            fingerprinted.put(path, hashed);
+            assets.put(path, asset);
+            assets.put(hashed, asset);
+            total += content.length;
+        }
+        if (assets.containsKey("/index.html")) {
+            assets.put("/", assets.get("/index.html"));
+        }
+        logger.info(String.format("Loaded %d static files, %d bytes", fingerprinted.size(), total));
+    }
+
+    /**
+     * Gzip every file that is worth it and is not gzipped yet.
+     */
+    public void compressAll() {
+        long started = System.nanoTime();
+        try {
+            for (Asset asset : assets.values()) {
+                asset.gzip();
+            }
+        } catch (IOException ex) {
+            logger.error("Failed to gzip the static files", ex);
+            return;
+        }
+        logger.info(String.format("Gzipped the static files in %d ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started)));
+    }
+
+    /**
+     * Read every file under a directory on the class path, which may be inside a jar.
+     */
+    public static TodoAssets fromClasspath(String location, int compressMinBytes) throws IOException {
+        URL url = TodoAssets.class.getResource(location);
+        if (url == null) {
+            throw new IOException(String.format("%s is not on the class path", location));
+        }
+        try {
+            URI uri = url.toURI();
+            if (!uri.getScheme().equals("jar")) {
+                return new TodoAssets(Paths.get(uri), compressMinBytes);
+            }
+            try (FileSystem jar = FileSystems.newFileSystem(uri, Collections.emptyMap())) {
+                return new TodoAssets(jar.provider().getPath(uri), compressMinBytes);
+            }
+        } catch (URISyntaxException ex) {
+            throw new IOException(String.format("Failed to locate %s", location), ex);
+        }
+    }
+
+    /**
+     * @return The name under which a file is cached for good, e.g. /js/angular.1f3a9c2e07.js
+     *         for /js/angular.js, or null if there is no such file
+     */
+    public String fingerprinted(String path) {
+        return fingerprinted.get(path);
+    }
+
+    @Override
+    public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        Asset asset = assets.get(target);
+        boolean head = request.getMethod().equals("HEAD");
+        if (asset == null || (!head && !request.getMethod().equals("GET"))) {
+            return;
+        }
+        baseRequest.setHandled(true);
+
+        ByteBuffer body = asset.content;
+        String encoding = null;
+        String accepted = request.getHeader("Accept-Encoding");
+        ByteBuffer gzip;
+        if (asset.brotli != null && accepts(accepted, "br")) {
+            body = asset.brotli;
+            encoding = "br";
+        } else if (asset.compressible && accepts(accepted, "gzip") && (gzip = asset.gzip()) != null) {
+            body = gzip;
+            encoding = "gzip";
+        }
+
+        String etag = "\"" + asset.hash + (encoding == null ? "" : "-" + encoding) + "\"";
+        response.setHeader("ETag", etag);
+        response.setHeader("Cache-Control", target.contains("." + asset.hash) ? IMMUTABLE : REVALIDATE);
+        if (asset.compressible || asset.brotli != null) {
+            response.setHeader("Vary", "Accept-Encoding");
+        }
+        if (matches(request.getHeader("If-None-Match"), asset.hash)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType(asset.type);
+        if (encoding != null) {
+            response.setHeader("Content-Encoding", encoding);
+        }
+        response.setContentLengthLong(body.remaining());
+        if (!head) {
+            //A duplicate shares the bytes, so nothing is copied on the way to the connection
+            baseRequest.getResponse().getHttpOutput().sendContent(body.duplicate());
+        }
+    }
+
+    //-----------------------------------------------------------------------------//
+    // Helper Classes and Methods
+    //-----------------------------------------------------------------------------//
+
+    /**
+     * One file, as it is and in the encodings that make it smaller.
+     */
+    private static class Asset {
+        private final String type;
+        private final String hash;
+        private final ByteBuffer content;
+        private final ByteBuffer brotli;
+
+        //Whether the file is worth gzipping, and once it has been, the result, which is
+        //null if it came out no smaller
+        private final boolean compressible;
+        private volatile boolean compressed;
+        private ByteBuffer gzip;
+
+        Asset(byte[] content, String type, int compressMinBytes, byte[] brotli) {
+            this.type = type;
+            this.hash = hash(content);
+            this.content = readOnly(content);
+            this.brotli = brotli != null && brotli.length < content.length ? readOnly(brotli) : null;
+            this.compressible = compressible(type) && compressMinBytes >= 0 && content.length >= compressMinBytes;
+        }
+
+        /**
+         * @return The gzipped file, gzipping it first if no one has yet, or null if that
+         *         does not make it smaller
+         */
+        ByteBuffer gzip() throws IOException {
+            if (!compressible) {
+                return null;
+            }
+            if (!compressed) {
+                synchronized (this) {
+                    if (!compressed) {
+                        byte[] plain = new byte[content.remaining()];
+                        content.duplicate().get(plain);
+                        byte[] gzipped = TodoAssets.gzip(plain);
+                        gzip = gzipped.length < plain.length ? readOnly(gzipped) : null;
+                        compressed = true;
+                    }
+                }
+            }
+            return gzip;
+        }
+    }
+
+    /**
+     * Point a page's src and href attributes at the fingerprinted names of the files
+     * they refer to.
+     */
+    private static byte[] fingerprint(byte[] page, Map<String, String> fingerprinted) {
+        Matcher matcher = REFERENCE.matcher(new String(page, StandardCharsets.UTF_8));
+        StringBuilder result = new StringBuilder();
+        while (matcher.find()) {
+            String hashed = fingerprinted.getOrDefault(matcher.group(2), matcher.group(2));
+            matcher.appendReplacement(result, Matcher.quoteReplacement(matcher.group(1) + "=\"" + hashed + "\""));
+        }
+        matcher.appendTail(result);
+        return result.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String hash(byte[] content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+            StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < 5; i++) {
+                hex.append(String.format("%02x", digest[i]));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not available", ex);
+        }
+    }
+
+    private static byte[] gzip(byte[] content) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(content.length / 3);
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes) {
+            {
+                def.setLevel(Deflater.BEST_COMPRESSION);
+            }
+        }) {
+            out.write(content);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static ByteBuffer readOnly(byte[] content) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(content.length);
+        buffer.put(content).flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    private static boolean compressible(String type) {
+        return type.startsWith("text/") || type.startsWith("application/javascript")
+                || type.startsWith("application/json") || type.startsWith("image/svg");
+    }
+
+    private static String type(String path) {
+        return TYPES.getOrDefault(extension(path), "application/octet-stream");
+    }
+
+    private static String extension(String path) {
+        int dot = path.lastIndexOf('.');
+        return dot < 0 ? "" : path.substring(dot + 1);
+    }
+
+    /**
+     * @return Whether an Accept-Encoding header lists an encoding without q=0
+     */
+    private static boolean accepts(String header, String encoding) {
+        if (header == null) {
+            return false;
+        }
+        for (String part : header.split(",")) {
+            String[] params = part.trim().split(";");
+            if (!params[0].trim().equalsIgnoreCase(encoding)) {
+                continue;
+            }
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        return Double.parseDouble(param.substring(2)) > 0;
+                    } catch (NumberFormatException ex) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return Whether an If-None-Match header names any encoding of a file
+     */
+    private static boolean matches(String header, String hash) {
+        if (header == null) {
+            return false;
+        }
+        for (String tag : header.split(",")) {
+            tag = tag.trim();
+            if (tag.equals("*") || tag.startsWith("\"" + hash) || tag.startsWith("W/\"" + hash)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
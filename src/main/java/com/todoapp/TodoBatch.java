@@ -0,0 +1,115 @@
+package com.todoapp;
+
+import com.google.gson.JsonParseException;
+
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The request and response types of the batch endpoint. A batch is a JSON array of
+ * operations that are applied in order within a single transaction, e.g.
+ *
+ * <pre>
+ * [ {"op": "create", "todo": {"title": "Milk", "done": false, "createdOn": "..."}},
+ *   {"op": "update", "id": "3", "todo": {"title": "Eggs", "done": true, "createdOn": "..."}},
+ *   {"op": "delete", "id": "4"} ]
+ * </pre>
+ */
+public class TodoBatch {
+
+    public static final int MAX_OPERATIONS = 10000;
+
+    public enum Type {
+        create, update, delete
+    }
+
+    public static class Operation {
+        private Type op;
+        private String id;
+        private Todo todo;
+
+        public Operation(Type op, String id, Todo todo) {
+            this.op = op;
+            this.id = id;
+            this.todo = todo;
+        }
+
+        public Type getOp() {
+            return op;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public Todo getTodo() {
+            return todo;
+        }
+    }
+
+    /**
+     * The outcome of one operation: an HTTP-style status and the id it applied to.
+     */
+    public static class Result {
+        private final Type op;
+        private final String id;
+        private final int status;
+
+        public Result(Type op, String id, int status) {
+            this.op = op;
+            this.id = id;
+            this.status = status;
+        }
+
+        public Type getOp() {
+            return op;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+    }
+
+    /**
+     * Parse and validate a batch request body.
+     *
+     * @throws IllegalArgumentException if the body is not a valid batch
+     */
+    public static List<Operation> parse(Reader body) {
+        Operation[] ops;
+        try {
+            ops = TodoJson.GSON.fromJson(body, Operation[].class);
+        } catch (JsonParseException ex) {
+            throw new IllegalArgumentException("Batch is not a JSON array of operations", ex);
+        }
+        if (ops == null) {
+            throw new IllegalArgumentException("Batch is empty");
+        }
+        if (ops.length > MAX_OPERATIONS) {
+            throw new IllegalArgumentException(String.format("Batch has %d operations, the maximum is %d", ops.length, MAX_OPERATIONS));
+        }
+
+        for (int i = 0; i < ops.length; i++) {
+            Operation op = ops[i];
+            if (op == null || op.op == null) {
+                throw new IllegalArgumentException(String.format("Operation %d: missing or unknown op", i));
+            }
+            if (op.op != Type.create) {
+                try {
+                    Long.parseLong(op.id);
+                } catch (NumberFormatException ex) {
+                    throw new IllegalArgumentException(String.format("Operation %d: invalid id: %s", i, op.id));
+                }
+            }
+            if (op.op != Type.delete && op.todo == null) {
+                throw new IllegalArgumentException(String.format("Operation %d: missing todo", i));
+            }
+        }
+        return Arrays.asList(ops);
+    }
+}
@@ -0,0 +1,158 @@
+package com.todoapp;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded, least-recently-used cache of Todo entries by id, plus the full list
+ * returned by {@link TodoService#findAll()} as long as it is no larger than the cache.
+ * The full list is kept as {@link TodoColumns}, so caching it costs a few large arrays
+ * rather than several objects per entry.
+ *
+ * Every invalidation bumps a generation number. Readers note the generation before
+ * going to the database and only store what they read if nothing was invalidated in
+ * the meantime, so a slow read can never put stale data back after a write.
+ */
+public class TodoCache {
+
+    public static final int DEFAULT_SIZE = 10000;
+
+    private final int maxEntries;
+
+    private final Map<Long, Todo> entries;
+    private TodoColumns all;
+    private long generation = 0;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxEntries The maximum number of entries to keep; 0 disables caching
+     */
+    public TodoCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<Long, Todo>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Todo> eldest) {
+                if (size() > TodoCache.this.maxEntries) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * @return The cached entry, or null on a miss
+     */
+    public synchronized Todo get(long id) {
+        Todo todo = entries.get(id);
+        (todo == null ? misses : hits).increment();
+        return todo;
+    }
+
+    /**
+     * Cache an entry read from the database, unless something was invalidated since
+     * the given generation was read.
+     */
+    public synchronized void put(long generation, Todo todo) {
+        if (maxEntries > 0 && generation == this.generation) {
+            entries.put(Long.parseLong(todo.getId()), todo);
+        }
+    }
+
+    /**
+     * @return The cached full list, or null on a miss
+     */
+    public synchronized TodoColumns getAll() {
+        (all == null ? misses : hits).increment();
+        return all;
+    }
+
+    /**
+     * Cache the full list read from the database, unless it is larger than the cache or
+     * something was invalidated since the given generation was read.
+     */
+    public synchronized void putAll(long generation, TodoColumns todos) {
+        if (todos.size() <= maxEntries && generation == this.generation) {
+            all = todos;
+        }
+    }
+
+    /**
+     * Drop one entry and the full list. Called after the entry was updated or deleted.
+     */
+    public synchronized void invalidate(long id) {
+        generation++;
+        entries.remove(id);
+        all = null;
+    }
+
+    /**
+     * Drop the full list only. Called after entries were added.
+     */
+    public synchronized void invalidateList() {
+        generation++;
+        all = null;
+    }
+
+    /**
+     * Drop everything.
+     */
+    public synchronized void clear() {
+        generation++;
+        entries.clear();
+        all = null;
+    }
+
+    //-----------------------------------------------------------------------------//
+    // Metrics
+    //-----------------------------------------------------------------------------//
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private synchronized TodoColumns getCachedList() {
+        return all;
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return A snapshot of the counters, for reporting
+     */
+    public Map<String, Number> stats() {
+        Map<String, Number> stats = new LinkedHashMap<>();
+        stats.put("maxEntries", maxEntries);
+        stats.put("size", size());
+        stats.put("hits", getHitCount());
+        stats.put("misses", getMissCount());
+        stats.put("evictions", getEvictionCount());
+        TodoColumns list = getCachedList();
+        stats.put("listHeapBytes", list == null ? 0 : list.heapBytes());
+        stats.put("listOffHeapBytes", list == null ? 0 : list.offHeapBytes());
+        return stats;
+    }
+}
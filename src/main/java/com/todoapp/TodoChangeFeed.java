@@ -0,0 +1,188 @@
+package com.todoapp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The most recent changes TodoService has made, numbered in the order they were made,
+ * for clients that follow the list through /api/v1/todos/events instead of fetching it
+ * again after every change.
+ *
+ * Only a fixed number of changes are kept. A client that has fallen further behind, or
+ * that followed a previous run of the server, has to fetch the list again; positions in
+ * the feed carry an epoch that is new on every start so that the latter is recognised.
+ */
+public class TodoChangeFeed {
+
+    public static final int DEFAULT_RETAINED = 10000;
+
+    public enum Type {
+        create, update, delete
+    }
+
+    /**
+     * One change: the entry as it is after the change, or null for a delete.
+     */
+    public static class Change {
+        private final long seq;
+        private final Type type;
+        private final String id;
+        private final Todo todo;
+
+        Change(long seq, Type type, String id, Todo todo) {
+            this.seq = seq;
+            this.type = type;
+            this.id = id;
+            this.todo = todo;
+        }
+
+        public long getSeq() {
+            return seq;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public Todo getTodo() {
+            return todo;
+        }
+    }
+
+    private final String epoch;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition published = lock.newCondition();
+
+    //A ring of the last changes; guarded by lock
+    private final Change[] retained;
+    private long lastSeq;
+    private boolean closed;
+
+    public TodoChangeFeed(int retained) {
+        this.retained = new Change[retained];
+        this.epoch = Long.toString(System.currentTimeMillis(), 36);
+    }
+
+    /**
+     * Record a change and wake up everyone waiting for one.
+     */
+    public void publish(Type type, String id, Todo todo) {
+        lock.lock();
+        try {
+            lastSeq++;
+            retained[(int) (lastSeq % retained.length)] = new Change(lastSeq, type, id, todo);
+            published.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forget every retained change, so that everyone following the feed fetches the
+     * list again, as after a restore of the whole list.
+     */
+    public void reset() {
+        lock.lock();
+        try {
+            lastSeq += retained.length + 1;
+            Arrays.fill(retained, null);
+            published.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait for changes after a position in the feed.
+     *
+     * @param afterSeq The sequence number of the last change the caller has seen
+     * @param timeoutMillis How long to wait if there are none yet
+     * @return The changes after afterSeq, oldest first; empty if there were none in
+     *         time or the feed was closed; null if some of them are no longer retained
+     */
+    public List<Change> await(long afterSeq, long timeoutMillis) throws InterruptedException {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        lock.lock();
+        try {
+            while (lastSeq == afterSeq && !closed && remaining > 0) {
+                remaining = published.awaitNanos(remaining);
+            }
+            if (afterSeq > lastSeq || lastSeq - afterSeq > retained.length) {
+                return null;
+            }
+            List<Change> changes = new ArrayList<>((int) (lastSeq - afterSeq));
+            for (long seq = afterSeq + 1; seq <= lastSeq; seq++) {
+                changes.add(retained[(int) (seq % retained.length)]);
+            }
+            return changes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The sequence number of the last change so far
+     */
+    public long lastSeq() {
+        lock.lock();
+        try {
+            return lastSeq;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wake up everyone waiting, for good, so that the server can stop.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            published.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return A position in the feed as sent to clients, e.g. "kv3x1b2-42"
+     */
+    public String position(long seq) {
+        return epoch + "-" + seq;
+    }
+
+    /**
+     * @return The sequence number of a position from this run of the server, or -1 if
+     *         it is malformed or from another run
+     */
+    public long parsePosition(String position) {
+        if (position == null || !position.startsWith(epoch + "-")) {
+            return -1;
+        }
+        try {
+            long seq = Long.parseLong(position.substring(epoch.length() + 1));
+            return seq >= 0 ? seq : -1;
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+}
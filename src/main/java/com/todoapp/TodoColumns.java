@@ -0,0 +1,283 @@
+package com.todoapp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * An immutable list of todos kept in primitive columns rather than as Todo objects:
+ * ids and creation times as longs, done flags as bits, and titles as UTF-8 bytes in an
+ * arena of direct buffers outside the heap. A Todo with its id String, title String and
+ * Date costs around 150 bytes of heap plus the title; here a row costs 28 bytes of heap,
+ * in a handful of large arrays the garbage collector does not have to trace, and the
+ * title bytes are off-heap.
+ *
+ * get() builds a new Todo for the row. {@link #visit(TodoService.TodoVisitor)} instead
+ * hands the visitor the same flyweight for every row, which reads the columns when its
+ * getters are called, so serializing the list allocates little beyond the output.
+ *
+ * Lists are built once by a {@link Builder} and only read after that, so they can be
+ * shared between threads once safely published.
+ */
+public final class TodoColumns extends AbstractList<Todo> implements RandomAccess {
+
+    //Creation time of the rows without one, as in snapshots
+    private static final long NO_DATE = Long.MIN_VALUE;
+
+    //Titles go into arena chunks that start small, so short lists stay cheap, and double
+    //up to a limit. A title longer than a chunk gets a chunk of its own.
+    private static final int FIRST_CHUNK_SIZE = 4096;
+    private static final int MAX_CHUNK_SIZE = 1 << 20;
+
+    private final int size;
+    private final long[] ids;
+    private final long[] createdOn;
+    private final long[] done;
+
+    //Where each title is in the arena, as chunk << 32 | offset, and its length in bytes; -1 for no title
+    private final long[] titleRefs;
+    private final int[] titleLengths;
+    private final ByteBuffer[] arena;
+    private final long arenaBytes;
+
+    private TodoColumns(Builder builder) {
+        size = builder.size;
+        ids = Arrays.copyOf(builder.ids, size);
+        createdOn = Arrays.copyOf(builder.createdOn, size);
+        done = Arrays.copyOf(builder.done, (size + 63) >>> 6);
+        titleRefs = Arrays.copyOf(builder.titleRefs, size);
+        titleLengths = Arrays.copyOf(builder.titleLengths, size);
+        arena = builder.chunks.toArray(new ByteBuffer[0]);
+        long bytes = 0;
+        for (ByteBuffer chunk : arena) {
+            bytes += chunk.capacity();
+        }
+        arenaBytes = bytes;
+    }
+
+    /**
+     * @return The list in columns, in the same order
+     */
+    public static TodoColumns of(List<Todo> todos) {
+        if (todos instanceof TodoColumns) {
+            return (TodoColumns) todos;
+        }
+        Builder builder = new Builder(todos.size());
+        for (Todo todo : todos) {
+            builder.add(todo);
+        }
+        return builder.build();
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return A new Todo with the row's values, which the caller may keep
+     */
+    @Override
+    public Todo get(int row) {
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+        }
+        return new Todo(Long.toString(ids[row]), title(row, null), done(row), date(row));
+    }
+
+    /**
+     * Visit every row in order with one flyweight Todo, which is only valid during the
+     * call to visit(): it must not be kept, and it is not equal to a Todo with the same
+     * values. Use get() for a Todo to keep.
+     */
+    public void visit(TodoService.TodoVisitor visitor) throws IOException {
+        View view = new View();
+        for (int row = 0; row < size; row++) {
+            view.row = row;
+            view.title = null;
+            visitor.visit(view);
+        }
+    }
+
+    /**
+     * @return The heap taken by the columns, not counting this object and the arena's buffer objects
+     */
+    public long heapBytes() {
+        return 8L * (ids.length + createdOn.length + done.length + titleRefs.length) + 4L * titleLengths.length;
+    }
+
+    /**
+     * @return The memory outside the heap that holds the titles
+     */
+    public long offHeapBytes() {
+        return arenaBytes;
+    }
+
+    //-----------------------------------------------------------------------------//
+    // Builder
+    //-----------------------------------------------------------------------------//
+
+    /**
+     * Collects rows, for instance from {@link TodoStore#forEach(TodoService.TodoVisitor)},
+     * without holding on to the Todo objects. Not thread-safe.
+     */
+    public static final class Builder implements TodoService.TodoVisitor {
+        private int size;
+        private long[] ids;
+        private long[] createdOn;
+        private long[] done;
+        private long[] titleRefs;
+        private int[] titleLengths;
+        private final List<ByteBuffer> chunks = new ArrayList<>();
+        private ByteBuffer current;
+
+        public Builder() {
+            this(16);
+        }
+
+        /**
+         * @param expected The number of rows to make room for up front
+         */
+        public Builder(int expected) {
+            int capacity = Math.max(expected, 1);
+            ids = new long[capacity];
+            createdOn = new long[capacity];
+            done = new long[(capacity + 63) >>> 6];
+            titleRefs = new long[capacity];
+            titleLengths = new int[capacity];
+        }
+
+        /**
+         * @param todo A todo with a numeric id
+         */
+        public Builder add(Todo todo) {
+            if (size == ids.length) {
+                grow();
+            }
+            ids[size] = Long.parseLong(todo.getId());
+            createdOn[size] = todo.getCreatedOn() == null ? NO_DATE : todo.getCreatedOn().getTime();
+            if (todo.isDone()) {
+                done[size >>> 6] |= 1L << size;
+            }
+            if (todo.getTitle() == null) {
+                titleLengths[size] = -1;
+            } else {
+                byte[] title = todo.getTitle().getBytes(StandardCharsets.UTF_8);
+                ByteBuffer chunk = room(title.length);
+                titleRefs[size] = (long) (chunks.size() - 1) << 32 | chunk.position();
+                titleLengths[size] = title.length;
+                chunk.put(title);
+            }
+            size++;
+            return this;
+        }
+
+        @Override
+        public void visit(Todo todo) {
+            add(todo);
+        }
+
+        public TodoColumns build() {
+            return new TodoColumns(this);
+        }
+
+        private void grow() {
+            int capacity = ids.length * 2;
+            ids = Arrays.copyOf(ids, capacity);
+            createdOn = Arrays.copyOf(createdOn, capacity);
+            done = Arrays.copyOf(done, (capacity + 63) >>> 6);
+            titleRefs = Arrays.copyOf(titleRefs, capacity);
+            titleLengths = Arrays.copyOf(titleLengths, capacity);
+        }
+
+        /**
+         * @return The chunk to put the given number of bytes into, which is the last one
+         */
+        private ByteBuffer room(int bytes) {
+            if (current == null || current.remaining() < bytes) {
+                int size = current == null ? FIRST_CHUNK_SIZE : Math.min(current.capacity() * 2, MAX_CHUNK_SIZE);
+                current = ByteBuffer.allocateDirect(Math.max(size, bytes));
+                chunks.add(current);
+            }
+            return current;
+        }
+    }
+
+    //-----------------------------------------------------------------------------//
+    // Helper Classes and Methods
+    //-----------------------------------------------------------------------------//
+
+    /**
+     * A Todo that reads its values from one row of the columns.
+     */
+    private final class View extends Todo {
+        int row;
+
+        //The decoded title of the row, once asked for, and the buffer it was decoded from
+        String title;
+        byte[] scratch = new byte[256];
+
+        View() {
+            super(null, null, false, null);
+        }
+
+        @Override
+        public String getId() {
+            return Long.toString(ids[row]);
+        }
+
+        @Override
+        public String getTitle() {
+            if (title == null && titleLengths[row] >= 0) {
+                if (scratch.length < titleLengths[row]) {
+                    scratch = new byte[Math.max(titleLengths[row], scratch.length * 2)];
+                }
+                title = title(row, scratch);
+            }
+            return title;
+        }
+
+        @Override
+        public boolean isDone() {
+            return done(row);
+        }
+
+        @Override
+        public Date getCreatedOn() {
+            return date(row);
+        }
+
+        @Override
+        public String toString() {
+            return get(row).toString();
+        }
+    }
+
+    private boolean done(int row) {
+        return (done[row >>> 6] & 1L << row) != 0;
+    }
+
+    private Date date(int row) {
+        return createdOn[row] == NO_DATE ? null : new Date(createdOn[row]);
+    }
+
+    /**
+     * @param scratch A buffer of at least the title's length to decode from, or null to allocate one
+     */
+    private String title(int row, byte[] scratch) {
+        int length = titleLengths[row];
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = scratch != null ? scratch : new byte[length];
+        //An absolute get does not move the buffer's position, so readers can share it
+        arena[(int) (titleRefs[row] >>> 32)].get((int) titleRefs[row], bytes, 0, length);
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+}
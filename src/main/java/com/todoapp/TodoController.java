@@ -5,77 +5,784 @@
 
 package com.todoapp;
 
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import spark.Request;
+import spark.Response;
+import spark.ResponseTransformer;
+import spark.Route;
 
+import javax.servlet.ServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Base64;
 import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static spark.Spark.*;
 
 public class TodoController {
 
     private static final String API_CONTEXT = "/api/v1";
+    private static final String LIST_CONTEXT = API_CONTEXT + "/lists/:listId";
+
+    public static final int DEFAULT_MAX_SUBSCRIBERS = 100;
+
+    //How often an idle change feed sends a comment, which also notices disconnected clients
+    private static final long FEED_HEARTBEAT_MS = 15000;
+
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
+
+    private static final String IDEMPOTENCY_KEY = "Idempotency-Key";
+    private static final int MAX_IDEMPOTENCY_KEY_LENGTH = 255;
+
+    //The request attribute holding a body that was read before its route ran
+    private static final String BODY_ATTRIBUTE = "todo.body";
 
     private final TodoService todoService;
 
+    //The other lists, or null if there are none
+    private final TodoLists lists;
+
+    private final TodoMetrics metrics;
+
+    private final int maxSubscribers;
+    private final AtomicInteger subscribers = new AtomicInteger();
+
+    private final IdempotencyCache idempotency;
+
+    private final RateLimiter rateLimiter;
+    private final AdmissionControl admission;
+
+    //One transformer for all routes; it is stateless and uses the shared TodoJson codec
+    private final JsonTransformer json = new JsonTransformer();
+
     private final Logger logger = LoggerFactory.getLogger(TodoController.class);
 
     public TodoController(TodoService todoService) {
+        this(todoService, DEFAULT_MAX_SUBSCRIBERS);
+    }
+
+    /**
+     * @param maxSubscribers The most clients following the change feed at once; each holds a request thread
+     */
+    public TodoController(TodoService todoService, int maxSubscribers) {
+        this(todoService, null, maxSubscribers);
+    }
+
+    /**
+     * @param todoService The default list, at /api/v1/todos
+     * @param lists The other lists, at /api/v1/lists, or null to serve only the default list
+     * @param maxSubscribers The most clients following change feeds at once; each holds a request thread
+     */
+    public TodoController(TodoService todoService, TodoLists lists, int maxSubscribers) {
+        this(todoService, lists, maxSubscribers, new IdempotencyCache(IdempotencyCache.DEFAULT_MAX_KEYS, IdempotencyCache.DEFAULT_TTL_MS));
+    }
+
+    /**
+     * @param idempotency The outcomes of writes by Idempotency-Key, shared by all lists
+     */
+    public TodoController(TodoService todoService, TodoLists lists, int maxSubscribers, IdempotencyCache idempotency) {
+        this(todoService, lists, maxSubscribers, idempotency, new RateLimiter(0, 1, RateLimiter.DEFAULT_MAX_CLIENTS),
+                new AdmissionControl(0, 0, AdmissionControl.DEFAULT_INTERVAL_MS, Collections.emptyList()));
+    }
+
+    /**
+     * @param rateLimiter The rate each client may send API requests at, by address
+     * @param admission Which API requests are let through to the lists at all
+     */
+    public TodoController(TodoService todoService, TodoLists lists, int maxSubscribers, IdempotencyCache idempotency,
+                          RateLimiter rateLimiter, AdmissionControl admission) {
         this.todoService = todoService;
+        this.lists = lists;
+        this.metrics = todoService.getMetrics();
+        this.maxSubscribers = maxSubscribers;
+        this.idempotency = idempotency;
+        this.rateLimiter = rateLimiter;
+        this.admission = admission;
         setupEndpoints();
     }
 
     private void setupEndpoints() {
-        post(API_CONTEXT + "/todos", "application/json", (request, response) -> {
+        get(API_CONTEXT + "/metrics", (request, response) -> {
+            response.type("text/plain; version=0.0.4; charset=utf-8");
+            return metrics.toPrometheus();
+        });
+
+        get(API_CONTEXT + "/cache/stats", "application/json", timed("GET", API_CONTEXT + "/cache/stats", (request, response) -> {
+            return todoService.getCache().stats();
+        }, json));
+
+        setupTodoEndpoints(API_CONTEXT, request -> todoService);
+        if (lists != null) {
+            setupListEndpoints();
+            setupTodoEndpoints(LIST_CONTEXT, request -> lists.service(request.params(":listId")));
+        }
+    }
+
+    private void setupListEndpoints() {
+        //Every route of a list starts with finding it
+        before(LIST_CONTEXT, (request, response) -> checkListExists(request));
+        before(LIST_CONTEXT + "/*", (request, response) -> checkListExists(request));
+
+        get(API_CONTEXT + "/lists", "application/json", timed("GET", API_CONTEXT + "/lists", (request, response) -> {
+            return lists.findAll();
+        }, json));
+
+        post(API_CONTEXT + "/lists", "application/json", timed("POST", API_CONTEXT + "/lists", idempotent((request, response) -> {
             try {
-                todoService.createNewTodo(request.body());
+                TodoList list = TodoJson.GSON.fromJson(bodyReader(request), TodoList.class);
+                if (list == null || list.getName() == null || list.getName().trim().isEmpty()) {
+                    throw new JsonParseException("A list needs a name");
+                }
+                TodoList created = lists.create(list.getName().trim());
                 response.status(201);
+                response.header("Location", API_CONTEXT + "/lists/" + created.getId());
+                return created;
+            } catch (JsonParseException ex) {
+                logger.error(String.format("Invalid list: %s", ex.getMessage()));
+                response.status(400);
+            } catch (TodoService.TodoServiceException ex) {
+                logger.error("Failed to create new list");
+                response.status(500);
+            }
+            return Collections.EMPTY_MAP;
+        }), json));
+
+        get(LIST_CONTEXT, "application/json", timed("GET", LIST_CONTEXT, (request, response) -> {
+            return lists.find(request.params(":listId"));
+        }, json));
+
+        delete(LIST_CONTEXT, "application/json", timed("DELETE", LIST_CONTEXT, (request, response) -> {
+            try {
+                lists.delete(request.params(":listId"));
+            } catch (TodoService.TodoServiceException ex) {
+                logger.error(String.format("Failed to delete list with id: %s", request.params(":listId")));
+                response.status(500);
+            }
+            return Collections.EMPTY_MAP;
+        }, json));
+    }
+
+    /**
+     * The routes of one list of todos under a context path, e.g. /api/v1/todos for the
+     * default list.
+     */
+    private void setupTodoEndpoints(String context, ServiceLookup services) {
+        //Answer conditional GETs from the version stamps alone, before any route
+        //touches the database or serializes anything
+        before(context + "/todos", (request, response) -> {
+            TodoVersions versions = services.find(request).getVersions();
+            checkNotModified(request, response, versions, versions.collection());
+        });
+
+        before(context + "/todos/:id", (request, response) -> {
+            String id = request.params(":id");
+            TodoVersions versions = services.find(request).getVersions();
+            if (id.equals("export") || id.equals("stats") || id.equals("snapshot")) {
+                checkNotModified(request, response, versions, versions.collection());
+            } else if (isId(id)) {
+                checkNotModified(request, response, versions, versions.item(Long.parseLong(id)));
+            }
+        });
+
+        post(context + "/todos", "application/json", timed("POST", context + "/todos", idempotent((request, response) -> {
+            try {
+                Todo created = services.find(request).createNewTodo(TodoJson.readTodo(bodyReader(request)));
+                response.status(201);
+                response.header("Location", request.pathInfo() + "/" + created.getId());
+                return created;
+            } catch (JsonParseException ex) {
+                logger.error(String.format("Invalid todo: %s", ex.getMessage()));
+                response.status(400);
             } catch (TodoService.TodoServiceException ex) {
                 logger.error("Failed to create new entry");
                 response.status(500);
             }
             return Collections.EMPTY_MAP;
-        }, new JsonTransformer());
+        }), json));
+
+        post(context + "/todos/batch", "application/json", timed("POST", context + "/todos/batch", idempotent((request, response) -> {
+            try {
+                return services.find(request).applyBatch(TodoBatch.parse(bodyReader(request)));
+            } catch (IllegalArgumentException ex) {
+                logger.error(String.format("Invalid batch: %s", ex.getMessage()));
+                response.status(400);
+            } catch (TodoService.TodoServiceException ex) {
+                logger.error("Failed to apply batch");
+                response.status(500);
+            }
+            return Collections.EMPTY_MAP;
+        }), json));
+
+        //Streams the whole list; must be registered before /todos/:id so "export" is not taken for an id
+        get(context + "/todos/export", "application/json", timed("GET", context + "/todos/export", (request, response) -> {
+            response.type("application/json");
+            try {
+                streamAll(response.raw(), services.find(request));
+            } catch (TodoService.TodoServiceException ex) {
+                logger.error("Failed to export the list of todos");
+                if (response.raw().isCommitted()) {
+                    //Too late to report an error; cut the response short so the client sees a broken body
+                    throw new IllegalStateException("Export failed after the response was committed", ex);
+                }
+                response.status(500);
+                return "{}";
+            }
+            return "";
+        }, null));
+
+        //Backup and restore of the whole list; must also be registered before /todos/:id.
+        //Not restricted to JSON clients, since the default format is binary
+        get(context + "/todos/snapshot", timed("GET", context + "/todos/snapshot", (request, response) -> {
+            TodoSnapshot.Format format;
+            try {
+                format = snapshotFormat(request.queryParams("format"), null);
+            } catch (IllegalArgumentException ex) {
+                logger.error(String.format("Invalid snapshot request: %s", ex.getMessage()));
+                response.status(400);
+                return "";
+            }
+            response.type(format.getContentType());
+            try (TodoSnapshot.Writer snapshot = TodoSnapshot.writer(response.raw().getOutputStream(), format)) {
+                services.find(request).exportSnapshot(snapshot);
+            } catch (TodoService.TodoServiceException ex) {
+                logger.error("Failed to export a snapshot of the list of todos");
+                if (response.raw().isCommitted()) {
+                    //Too late to report an error; cut the response short so the client sees a broken snapshot
+                    throw new IllegalStateException("Snapshot failed after the response was committed", ex);
+                }
+                response.status(500);
+            }
+            return "";
+        }, null));
+
+        put(context + "/todos/snapshot", "application/json", timed("PUT", context + "/todos/snapshot", (request, response) -> {
+            try {
+                TodoSnapshot.Format format = snapshotFormat(request.queryParams("format"), request.contentType());
+                try (TodoSnapshot.Reader snapshot = TodoSnapshot.reader(bodyStream(request), format)) {
+                    return Collections.singletonMap("restored", services.find(request).restore(snapshot));
+                }
+            } catch (IllegalArgumentException | IOException ex) {
+                logger.error(String.format("Invalid snapshot: %s", ex.getMessage()));
+                response.status(400);
+            } catch (TodoService.TodoServiceException ex) {
+                logger.error("Failed to restore a snapshot of the list of todos");
+                response.status(500);
+            }
+            return Collections.EMPTY_MAP;
+        }, json));
+
+        //Server-sent events for every change, for as long as the client stays connected. Not
+        //timed, since its duration is the client's. Must also be registered before /todos/:id
+        get(context + "/todos/events", (request, response) -> {
+            TodoChangeFeed feed = services.find(request).getChanges();
+            if (subscribers.incrementAndGet() > maxSubscribers) {
+                subscribers.decrementAndGet();
+                logger.error(String.format("Refusing a change feed subscriber, %d are connected", maxSubscribers));
+                response.status(503);
+                response.header("Retry-After", "10");
+                return "";
+            }
+            try {
+                String from = request.headers("Last-Event-ID");
+                streamChanges(response.raw(), feed, from != null ? from : request.queryParams("since"));
+            } catch (IOException ex) {
+                //The client went away
+            } finally {
+                subscribers.decrementAndGet();
+            }
+            return "";
+        });
+
+        //Delta sync; must also be registered before /todos/:id
+        get(context + "/todos/changes", "application/json", timed("GET", context + "/todos/changes", (request, response) -> {
+            try {
+                String since = request.queryParams("since");
+                String limit = request.queryParams("limit");
+                long version = since == null ? 0 : parseVersion(since);
+                int max = limit == null ? TodoDelta.DEFAULT_LIMIT : TodoQuery.parseInt("limit", limit);
+                if (max < 1 || max > TodoDelta.MAX_LIMIT) {
+                    throw new IllegalArgumentException(String.format("limit must be between 1 and %d", TodoDelta.MAX_LIMIT));
+                }
+                return services.find(request).changesSince(version, max);
+            } catch (IllegalArgumentException ex) {
+                logger.error(String.format("Invalid request for changes: %s", ex.getMessage()));
+                response.status(400);
+                return Collections.EMPTY_MAP;
+            } catch (TodoService.TodoServiceException ex) {
+                logger.error("Failed to fetch changes");
+                response.status(500);
+                return Collections.EMPTY_MAP;
+            }
+        }, json));
 
-        get(API_CONTEXT + "/todos/:id", "application/json", (request, response) -> {
+        //Counts kept up to date by the service; must also be registered before /todos/:id
+        get(context + "/todos/stats", "application/json", timed("GET", context + "/todos/stats", (request, response) -> {
             try {
-                return todoService.find(request.params(":id"));
+                return services.find(request).stats();
+            } catch (TodoService.TodoServiceException ex) {
+                logger.error("Failed to count the list of todos");
+                response.status(500);
+                return Collections.EMPTY_MAP;
+            }
+        }, json));
+
+        //Must also be registered before /todos/:id
+        get(context + "/todos/search", "application/json", timed("GET", context + "/todos/search", (request, response) -> {
+            try {
+                TodoSearch search = TodoSearch.fromParams(request.queryParams("q"), request.queryParams("limit"), request.queryParams("offset"));
+                TodoPage page = services.find(request).search(search);
+                //Only the first page is counted
+                if (page.getTotal() >= 0) {
+                    response.header("X-Total-Count", Long.toString(page.getTotal()));
+                }
+                int next = search.getOffset() + page.getItems().size();
+                if (page.isMore()) {
+                    response.header("Link", String.format("<%s?%s>; rel=\"next\"", request.pathInfo(), search.toQueryString(next)));
+                }
+                return page.getItems();
+            } catch (IllegalArgumentException ex) {
+                logger.error(String.format("Invalid search: %s", ex.getMessage()));
+                response.status(400);
+                return Collections.EMPTY_MAP;
+            } catch (TodoService.TodoServiceException ex) {
+                logger.error("Failed to search the list of todos");
+                response.status(500);
+                return Collections.EMPTY_MAP;
+            }
+        }, json));
+
+        get(context + "/todos/:id", "application/json", timed("GET", context + "/todos/:id", (request, response) -> {
+            try {
+                return services.find(request).find(request.params(":id"));
             } catch (TodoService.TodoServiceException ex) {
                 logger.error(String.format("Failed to find object with id: %s", request.params(":id")));
                 response.status(500);
                 return Collections.EMPTY_MAP;
             }
-        }, new JsonTransformer());
+        }, json));
 
-        get(API_CONTEXT + "/todos", "application/json", (request, response)-> {
+        get(context + "/todos", "application/json", timed("GET", context + "/todos", (request, response)-> {
             try {
-                return todoService.findAll() ;
+                //Without any paging parameters return the whole list, as before. A list too
+                //large to cache is streamed as /todos/export does, rather than held at once
+                if (request.queryParams().isEmpty()) {
+                    TodoService service = services.find(request);
+                    List<Todo> all = service.findAllCached();
+                    if (all != null) {
+                        return all;
+                    }
+                    response.type("application/json");
+                    try {
+                        streamAll(response.raw(), service);
+                    } catch (TodoService.TodoServiceException ex) {
+                        if (response.raw().isCommitted()) {
+                            throw new IllegalStateException("Listing failed after the response was committed", ex);
+                        }
+                        throw ex;
+                    }
+                    return "";
+                }
+
+                TodoQuery query = TodoQuery.fromParams(request.queryParams("limit"), request.queryParams("cursor"),
+                        request.queryParams("done"), request.queryParams("sort"), request.queryParams("order"));
+                TodoPage page = services.find(request).findPage(query);
+                response.header("X-Total-Count", Long.toString(page.getTotal()));
+                if (page.getNext() != null) {
+                    response.header("X-Next-Cursor", page.getNext().encode());
+                    response.header("Link", String.format("<%s?%s>; rel=\"next\"", request.pathInfo(), query.toQueryString(page.getNext())));
+                }
+                return page.getItems();
+            } catch (IllegalArgumentException ex) {
+                logger.error(String.format("Invalid query for the list of todos: %s", ex.getMessage()));
+                response.status(400);
+                return Collections.EMPTY_MAP;
             } catch  (TodoService.TodoServiceException ex) {
                 logger.error("Failed to fetch the list of todos");
                 response.status(500);
                 return Collections.EMPTY_MAP;
             }
-        }, new JsonTransformer());
+        }, json));
 
-        put(API_CONTEXT + "/todos/:id", "application/json", (request, response) -> {
+        put(context + "/todos/:id", "application/json", timed("PUT", context + "/todos/:id", idempotent((request, response) -> {
             try {
-                return todoService.update(request.params(":id"), request.body());
+                return services.find(request).update(request.params(":id"), TodoJson.readTodo(bodyReader(request)));
+            } catch (JsonParseException ex) {
+                logger.error(String.format("Invalid todo: %s", ex.getMessage()));
+                response.status(400);
+                return Collections.EMPTY_MAP;
             } catch (TodoService.TodoServiceException ex) {
                 logger.error(String.format("Failed to update todo with id: %s", request.params(":id")));
                 response.status(500);
                 return Collections.EMPTY_MAP;
             }
-        }, new JsonTransformer());
+        }), json));
 
-        delete(API_CONTEXT + "/todos/:id", "application/json", (request, response) -> {
+        delete(context + "/todos/:id", "application/json", timed("DELETE", context + "/todos/:id", idempotent((request, response) -> {
             try {
-                todoService.delete(request.params(":id"));
+                services.find(request).delete(request.params(":id"));
                 response.status(200);
             } catch (TodoService.TodoServiceException ex) {
                 logger.error(String.format("Failed to delete todo with id: %s", request.params(":id")));
                 response.status(500);
             }
             return Collections.EMPTY_MAP;
-        }, new JsonTransformer());
+        }), json));
+    }
+
+    /**
+     * Halt with 404 Not Found if the list a request is for does not exist.
+     */
+    private void checkListExists(Request request) {
+        if (lists.find(request.params(":listId")) == null) {
+            halt(404, "{}");
+        }
+    }
+
+    /**
+     * Set the ETag and Last-Modified headers of a GET from a version stamp, and halt
+     * with 304 Not Modified if the client already has that version. Last-Modified has
+     * whole seconds only, so it is neither sent nor trusted while the stamp's second is
+     * still running: another change within it would have the same date.
+     */
+    private void checkNotModified(Request request, Response response, TodoVersions versions, TodoVersions.Stamp stamp) {
+        if (!request.requestMethod().equals("GET") && !request.requestMethod().equals("HEAD")) {
+            return;
+        }
+
+        String etag = versions.etag(stamp);
+        boolean settled = stamp.getModifiedMillis() / 1000 < System.currentTimeMillis() / 1000;
+        response.header("ETag", etag);
+        if (settled) {
+            response.header("Last-Modified", HTTP_DATE.format(Instant.ofEpochMilli(stamp.getModifiedMillis())));
+        }
+        //Let clients cache the body but make them check back every time
+        response.header("Cache-Control", "no-cache");
+
+        String ifNoneMatch = request.headers("If-None-Match");
+        String ifModifiedSince = request.headers("If-Modified-Since");
+        if (ifNoneMatch != null) {
+            for (String candidate : ifNoneMatch.split(",")) {
+                candidate = candidate.trim();
+                if (candidate.startsWith("W/")) {
+                    candidate = candidate.substring(2);
+                }
+                if (candidate.equals(etag) || candidate.equals("*")) {
+                    metrics.notModified();
+                    halt(304);
+                }
+            }
+        } else if (ifModifiedSince != null && settled) {
+            try {
+                long since = Instant.from(HTTP_DATE.parse(ifModifiedSince)).getEpochSecond();
+                if (stamp.getModifiedMillis() / 1000 <= since) {
+                    metrics.notModified();
+                    halt(304);
+                }
+            } catch (DateTimeParseException ex) {
+                //Ignore malformed dates, as RFC 7232 asks
+            }
+        }
+    }
+
+    /**
+     * Wrap a route so that its requests are counted and timed, once they are admitted.
+     * The response is serialized here rather than by Spark so that serialization can be
+     * timed separately.
+     *
+     * @param transformer Renders the route's result, or null if the route returns the body itself
+     */
+    private Route timed(String method, String path, Route route, ResponseTransformer transformer) {
+        TodoMetrics.RouteMetrics routeMetrics = metrics.route(method, path);
+        return (request, response) -> {
+            long started = metrics.beginRequest();
+            long serializationNanos = 0;
+            int status = 500;
+            boolean admitted = admit(request, response);
+            try {
+                if (!admitted) {
+                    status = response.raw().getStatus();
+                    return transformer != null ? "{}" : "";
+                }
+                Object body = route.handle(request, response);
+                long serializationStarted = System.nanoTime();
+                //A route that streamed its body has already committed the response
+                if (transformer != null && !response.raw().isCommitted()) {
+                    body = transformer.render(body);
+                }
+                if (body instanceof String && !response.raw().isCommitted()) {
+                    //With the length known up front, small responses are not worth gzipping
+                    //and the rest need not be chunked
+                    byte[] bytes = ((String) body).getBytes(StandardCharsets.UTF_8);
+                    response.raw().setContentLength(bytes.length);
+                    body = bytes;
+                }
+                serializationNanos = System.nanoTime() - serializationStarted;
+                status = response.raw().getStatus();
+                return body;
+            } finally {
+                if (admitted) {
+                    admission.done();
+                }
+                metrics.endRequest(routeMetrics, started, serializationNanos, status);
+            }
+        };
+    }
+
+    /**
+     * Let a request through unless its client is over its rate, which is answered with
+     * 429 Too Many Requests, or admission control refuses it, which is answered with 503
+     * Service Unavailable. Either way the request is turned away before it touches the
+     * database, with a Retry-After header.
+     *
+     * @return Whether the request was admitted; if so, it must call admission.done() when finished
+     */
+    private boolean admit(Request request, Response response) {
+        long wait = rateLimiter.acquire(request.ip());
+        if (wait > 0) {
+            metrics.rateLimited();
+            response.status(429);
+            response.header("Retry-After", Long.toString(TimeUnit.NANOSECONDS.toSeconds(wait) + 1));
+            return false;
+        }
+        AdmissionControl.Verdict verdict = admission.admit();
+        if (verdict != AdmissionControl.Verdict.admitted) {
+            metrics.shed(verdict);
+            response.status(503);
+            response.header("Retry-After", "1");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Wrap a write so that a client can retry it safely. A request with an
+     * Idempotency-Key header that was seen before, for the same method, path and body,
+     * is answered with the status, Location header and result of the first one, without
+     * running it again, and with an Idempotent-Replayed header. A retry that arrives
+     * while the first is still running gets 409 Conflict, and reusing a key for a
+     * different request gets 422. Outcomes of server errors are not kept, so those are
+     * run again when retried. Requests without the header run as usual.
+     */
+    private Route idempotent(Route route) {
+        return (request, response) -> {
+            String key = request.headers(IDEMPOTENCY_KEY);
+            if (key == null || !idempotency.isEnabled()) {
+                return route.handle(request, response);
+            }
+            if (key.isEmpty() || key.length() > MAX_IDEMPOTENCY_KEY_LENGTH) {
+                logger.error(String.format("Invalid %s of %d characters", IDEMPOTENCY_KEY, key.length()));
+                response.status(400);
+                return Collections.EMPTY_MAP;
+            }
+
+            //The body is part of what the key stands for, so it is read up front and the
+            //route reads it from memory
+            byte[] body = bodyStream(request).readAllBytes();
+            request.attribute(BODY_ATTRIBUTE, body);
+            String fingerprint = request.requestMethod() + " " + request.pathInfo() + " " + digest(body);
+
+            IdempotencyCache.Claim claim = idempotency.claim(key, fingerprint);
+            switch (claim.getState()) {
+                case completed:
+                    IdempotencyCache.Outcome outcome = claim.getOutcome();
+                    metrics.replayed();
+                    response.status(outcome.getStatus());
+                    if (outcome.getLocation() != null) {
+                        response.header("Location", outcome.getLocation());
+                    }
+                    response.header("Idempotent-Replayed", "true");
+                    return outcome.getBody();
+                case inProgress:
+                    response.status(409);
+                    response.header("Retry-After", "1");
+                    return Collections.EMPTY_MAP;
+                case mismatch:
+                    logger.error(String.format("%s %s was already used for a different request", IDEMPOTENCY_KEY, key));
+                    response.status(422);
+                    return Collections.EMPTY_MAP;
+                default:
+                    break;
+            }
+
+            boolean completed = false;
+            try {
+                Object result = route.handle(request, response);
+                int status = response.raw().getStatus();
+                if (status < 500) {
+                    idempotency.complete(key, new IdempotencyCache.Outcome(status, response.raw().getHeader("Location"), result));
+                    completed = true;
+                }
+                return result;
+            } finally {
+                if (!completed) {
+                    idempotency.release(key);
+                }
+            }
+        };
+    }
+
+    /**
+     * Read the request body straight from the servlet container's input stream. Spark
+     * wraps every request in an HttpRequestWrapper that copies the whole body into a
+     * byte array on first access; going around it lets the JSON parser consume the body
+     * as it arrives without that copy or an intermediate String. A body that
+     * {@link #idempotent(Route)} has already read is read from memory instead.
+     */
+    private static Reader bodyReader(Request request) throws IOException {
+        return new InputStreamReader(bodyStream(request), StandardCharsets.UTF_8);
+    }
+
+    private static InputStream bodyStream(Request request) throws IOException {
+        byte[] read = request.attribute(BODY_ATTRIBUTE);
+        if (read != null) {
+            return new ByteArrayInputStream(read);
+        }
+        ServletRequest raw = request.raw();
+        if (raw instanceof HttpServletRequestWrapper) {
+            raw = ((HttpServletRequestWrapper) raw).getRequest();
+        }
+        return raw.getInputStream();
+    }
+
+    /**
+     * @param name The format asked for, if any
+     * @param contentType The type of the request body, if any
+     * @return The named format, else the one of the content type, else binary
+     */
+    private static TodoSnapshot.Format snapshotFormat(String name, String contentType) {
+        if (name != null) {
+            try {
+                return TodoSnapshot.Format.valueOf(name);
+            } catch (IllegalArgumentException ex) {
+                throw new IllegalArgumentException(String.format("Unknown snapshot format %s, use binary or ndjson", name));
+            }
+        }
+        if (contentType != null && contentType.startsWith(TodoSnapshot.Format.ndjson.getContentType())) {
+            return TodoSnapshot.Format.ndjson;
+        }
+        return TodoSnapshot.Format.binary;
+    }
+
+    private static String digest(byte[] body) {
+        try {
+            return Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-256").digest(body));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not available", ex);
+        }
+    }
+
+    private static long parseVersion(String value) {
+        try {
+            long version = Long.parseLong(value);
+            if (version < 0) {
+                throw new IllegalArgumentException("since must not be negative");
+            }
+            return version;
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("since must be a number", ex);
+        }
+    }
+
+    private static boolean isId(String value) {
+        if (value.isEmpty() || value.length() > 18) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (!Character.isDigit(value.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Send changes as server-sent events until the client disconnects or the server
+     * stops. Each event's id is its position in the feed, which the browser sends back
+     * in Last-Event-ID when it reconnects, so the client resumes where it left off. If it
+     * cannot (a new client, one too far behind, or one from before a restart), it is
+     * sent a "reset" event first and should fetch the list again before applying
+     * further changes.
+     */
+    private void streamChanges(HttpServletResponse raw, TodoChangeFeed feed, String from) throws IOException, InterruptedException {
+        raw.setContentType("text/event-stream; charset=utf-8");
+        raw.setHeader("Cache-Control", "no-cache");
+        Writer out = new OutputStreamWriter(raw.getOutputStream(), StandardCharsets.UTF_8);
+        out.write("retry: 3000\n\n");
+
+        long seq = feed.parsePosition(from);
+        if (seq < 0) {
+            seq = feed.lastSeq();
+            writeEvent(out, "reset", feed.position(seq), "{}");
+        }
+        out.flush();
+
+        while (!feed.isClosed()) {
+            List<TodoChangeFeed.Change> changes = feed.await(seq, FEED_HEARTBEAT_MS);
+            if (changes == null) {
+                seq = feed.lastSeq();
+                writeEvent(out, "reset", feed.position(seq), "{}");
+            } else if (changes.isEmpty()) {
+                out.write(": keepalive\n\n");
+            } else {
+                for (TodoChangeFeed.Change change : changes) {
+                    writeEvent(out, "change", feed.position(change.getSeq()), TodoJson.GSON.toJson(change));
+                    seq = change.getSeq();
+                }
+            }
+            out.flush();
+        }
+    }
+
+    private static void writeEvent(Writer out, String event, String id, String data) throws IOException {
+        out.write("event: ");
+        out.write(event);
+        out.write("\nid: ");
+        out.write(id);
+        out.write("\ndata: ");
+        out.write(data);
+        out.write("\n\n");
+    }
+
+    /**
+     * Write every todo as one JSON array straight to the response, row by row as it is
+     * read from the database. The opening bracket is flushed immediately so clients see
+     * the first byte without waiting for the query; after that the servlet container
+     * sends the body in chunks whenever its buffer fills.
+     */
+    private void streamAll(HttpServletResponse raw, TodoService todoService) throws IOException, TodoService.TodoServiceException {
+        Writer out = new OutputStreamWriter(raw.getOutputStream(), StandardCharsets.UTF_8);
+        JsonWriter writer = new JsonWriter(out);
+        writer.beginArray();
+        writer.flush();
+        todoService.forEachTodo(todo -> TodoJson.TODO_ADAPTER.write(writer, todo));
+        writer.endArray();
+        writer.flush();
+    }
+
+    /**
+     * Finds the service of the list a request is for.
+     */
+    private interface ServiceLookup {
+        TodoService find(Request request) throws TodoService.TodoServiceException;
     }
 }
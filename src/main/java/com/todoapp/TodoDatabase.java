@@ -0,0 +1,85 @@
+package com.todoapp;
+
+import org.sqlite.SQLiteDataSource;
+
+import javax.sql.DataSource;
+import java.nio.file.Path;
+import java.sql.SQLException;
+
+/**
+ * The pooled connections to one SQLite database file: a single writer, since SQLite
+ * only allows one at a time anyway, and several read-only connections that WAL mode
+ * lets run alongside it. The writer is opened first so that the database is switched
+ * to WAL before any read-only connection sees it.
+ */
+public class TodoDatabase implements AutoCloseable {
+
+    private final Path file;
+    private final ConnectionPool writePool;
+    private ConnectionPool readPool;
+
+    /**
+     * Open and warm up the connection pools for a database file.
+     *
+     * @param file The SQLite database file; created if it does not exist
+     * @param readers The number of read-only connections
+     * @param maxWaitMillis How long a caller waits for a pooled connection
+     * @param validationIntervalMillis Connections idle for longer than this are checked before reuse
+     * @param busyTimeoutMillis SQLite busy timeout for all connections
+     */
+    public TodoDatabase(Path file, int readers, long maxWaitMillis, long validationIntervalMillis, int busyTimeoutMillis) throws SQLException {
+        this.file = file;
+        String url = "jdbc:sqlite:" + file;
+
+        SQLiteDataSource writeSource = new SQLiteDataSource();
+        writeSource.setUrl(url);
+        writeSource.setJournalMode("WAL");
+        writeSource.setSynchronous("NORMAL");
+        writeSource.setBusyTimeout(busyTimeoutMillis);
+
+        //The journal mode is not set for readers since it is a property of the database
+        //file, which the writer has already switched to WAL
+        SQLiteDataSource readSource = new SQLiteDataSource();
+        readSource.setUrl(url);
+        readSource.setReadOnly(true);
+        readSource.setBusyTimeout(busyTimeoutMillis);
+
+        writePool = new ConnectionPool(writeSource, file.getFileName() + "-writer", 1, maxWaitMillis, validationIntervalMillis);
+        try {
+            writePool.warmUp();
+            readPool = new ConnectionPool(readSource, file.getFileName() + "-readers", readers, maxWaitMillis, validationIntervalMillis);
+            readPool.warmUp();
+        } catch (SQLException ex) {
+            close();
+            throw ex;
+        }
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public DataSource getReadDataSource() {
+        return readPool;
+    }
+
+    public DataSource getWriteDataSource() {
+        return writePool;
+    }
+
+    public ConnectionPool getReadPool() {
+        return readPool;
+    }
+
+    public ConnectionPool getWritePool() {
+        return writePool;
+    }
+
+    @Override
+    public void close() {
+        if (readPool != null) {
+            readPool.close();
+        }
+        writePool.close();
+    }
+}
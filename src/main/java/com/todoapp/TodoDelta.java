@@ -0,0 +1,54 @@
+package com.todoapp;
+
+import java.util.List;
+
+/**
+ * The entries created, updated or deleted after a version of the list, for clients that
+ * keep a copy of it and only fetch what changed since they last synced.
+ */
+public class TodoDelta {
+
+    public static final int DEFAULT_LIMIT = 1000;
+    public static final int MAX_LIMIT = 10000;
+
+    private final List<Todo> todos;
+    private final List<String> deleted;
+    private final long version;
+    private final boolean more;
+
+    public TodoDelta(List<Todo> todos, List<String> deleted, long version, boolean more) {
+        this.todos = todos;
+        this.deleted = deleted;
+        this.version = version;
+        this.more = more;
+    }
+
+    /**
+     * @return The entries created or updated, as they are now, oldest change first
+     */
+    public List<Todo> getTodos() {
+        return todos;
+    }
+
+    /**
+     * @return The ids of the entries deleted
+     */
+    public List<String> getDeleted() {
+        return deleted;
+    }
+
+    /**
+     * @return The version to ask for changes since next time
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return Whether changes were left out to stay within the limit; if so, ask again
+     *         straight away with the new version
+     */
+    public boolean isMore() {
+        return more;
+    }
+}
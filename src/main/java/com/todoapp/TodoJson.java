@@ -0,0 +1,192 @@
+package com.todoapp;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.google.gson.stream.MalformedJsonException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Reader;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * The JSON codec shared by the whole application. Gson instances are thread-safe but
+ * expensive to build, so there is exactly one, and Todo is handled by a hand-written
+ * type adapter instead of Gson's reflective one. Lists in columns are written through
+ * their flyweight rather than a Todo per entry.
+ *
+ * Dates are written as ISO-8601 instants in UTC, e.g. "2015-04-24T06:10:15Z". For
+ * compatibility with existing clients they are read either as ISO-8601 (with or
+ * without a colon in the offset), as epoch milliseconds, or in Gson's old default
+ * format, e.g. "Apr 23, 2015 11:10:15 PM".
+ */
+public final class TodoJson {
+
+    public static final TypeAdapter<Todo> TODO_ADAPTER = new TodoAdapter();
+
+    public static final Gson GSON = new GsonBuilder()
+            .registerTypeAdapter(Todo.class, TODO_ADAPTER)
+            .registerTypeAdapter(TodoColumns.class, new ColumnsAdapter().nullSafe())
+            .registerTypeAdapter(Date.class, new DateAdapter().nullSafe())
+            .create();
+
+    private static final String[] LEGACY_DATE_PATTERNS = { "MMM d, yyyy, h:mm:ss a", "MMM d, yyyy h:mm:ss a" };
+
+    private static final DateTimeFormatter ISO_BASIC_OFFSET = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss[.SSS]XX");
+
+    private TodoJson() {
+    }
+
+    /**
+     * Read a single Todo from a request body.
+     *
+     * @throws JsonSyntaxException if the body is not a valid Todo
+     */
+    public static Todo readTodo(Reader in) throws IOException {
+        JsonReader reader = new JsonReader(in);
+        try {
+            Todo todo = TODO_ADAPTER.read(reader);
+            if (todo == null || reader.peek() != JsonToken.END_DOCUMENT) {
+                throw new JsonSyntaxException("Expected a single todo object");
+            }
+            return todo;
+        } catch (MalformedJsonException | EOFException | IllegalStateException | NumberFormatException ex) {
+            //The same failures Gson.fromJson() reports as syntax errors
+            throw new JsonSyntaxException(ex);
+        }
+    }
+
+    //-----------------------------------------------------------------------------//
+    // Helper Classes and Methods
+    //-----------------------------------------------------------------------------//
+
+    private static class TodoAdapter extends TypeAdapter<Todo> {
+
+        @Override
+        public void write(JsonWriter out, Todo todo) throws IOException {
+            if (todo == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("id").value(todo.getId());
+            out.name("title").value(todo.getTitle());
+            out.name("done").value(todo.isDone());
+            out.name("createdOn").value(todo.getCreatedOn() == null ? null : DateTimeFormatter.ISO_INSTANT.format(todo.getCreatedOn().toInstant()));
+            out.endObject();
+        }
+
+        @Override
+        public Todo read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+
+            String id = null;
+            String title = null;
+            boolean done = false;
+            Date createdOn = null;
+
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                    continue;
+                }
+                switch (name) {
+                    case "id":
+                        id = in.nextString();  // also accepts numbers
+                        break;
+                    case "title":
+                        title = in.nextString();
+                        break;
+                    case "done":
+                        done = in.nextBoolean();
+                        break;
+                    case "createdOn":
+                        createdOn = in.peek() == JsonToken.NUMBER ? new Date(in.nextLong()) : parseDate(in.nextString());
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+            return new Todo(id, title, done, createdOn);
+        }
+    }
+
+    private static class ColumnsAdapter extends TypeAdapter<TodoColumns> {
+
+        @Override
+        public void write(JsonWriter out, TodoColumns todos) throws IOException {
+            out.beginArray();
+            todos.visit(todo -> TODO_ADAPTER.write(out, todo));
+            out.endArray();
+        }
+
+        @Override
+        public TodoColumns read(JsonReader in) throws IOException {
+            TodoColumns.Builder todos = new TodoColumns.Builder();
+            in.beginArray();
+            while (in.hasNext()) {
+                todos.add(TODO_ADAPTER.read(in));
+            }
+            in.endArray();
+            return todos.build();
+        }
+    }
+
+    /**
+     * Dates of anything other than a Todo, such as a TodoList, in the same format.
+     */
+    private static class DateAdapter extends TypeAdapter<Date> {
+
+        @Override
+        public void write(JsonWriter out, Date date) throws IOException {
+            out.value(DateTimeFormatter.ISO_INSTANT.format(date.toInstant()));
+        }
+
+        @Override
+        public Date read(JsonReader in) throws IOException {
+            return in.peek() == JsonToken.NUMBER ? new Date(in.nextLong()) : parseDate(in.nextString());
+        }
+    }
+
+    static Date parseDate(String value) {
+        try {
+            return Date.from(OffsetDateTime.parse(value).toInstant());
+        } catch (DateTimeParseException ex) {
+            //try the next format
+        }
+        try {
+            return Date.from(Instant.from(ISO_BASIC_OFFSET.parse(value)));
+        } catch (DateTimeParseException ex) {
+            //try the next format
+        }
+        //Gson's default format, which is what clients received before this codec existed.
+        //It is in the server's time zone and gained a comma after the year in Java 9.
+        //SimpleDateFormat is not thread-safe, hence new instances on this slow path.
+        for (String pattern : LEGACY_DATE_PATTERNS) {
+            try {
+                return new SimpleDateFormat(pattern, Locale.US).parse(value);
+            } catch (ParseException ex) {
+                //try the next format
+            }
+        }
+        throw new JsonSyntaxException("Unparseable date: " + value);
+    }
+}
@@ -0,0 +1,40 @@
+package com.todoapp;
+
+import java.util.Date;
+
+/**
+ * A list of todos of its own, served at /api/v1/lists/:listId/todos.
+ */
+public class TodoList {
+
+    private final String id;
+    private final String name;
+    private final int shard;
+    private final Date createdOn;
+
+    public TodoList(String id, String name, int shard, Date createdOn) {
+        this.id = id;
+        this.name = name;
+        this.shard = shard;
+        this.createdOn = createdOn;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The shard the list's todos are kept in
+     */
+    public int getShard() {
+        return shard;
+    }
+
+    public Date getCreatedOn() {
+        return createdOn;
+    }
+}
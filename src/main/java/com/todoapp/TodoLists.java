@@ -0,0 +1,240 @@
+package com.todoapp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sql2o.Connection;
+import org.sql2o.Sql2o;
+import org.sql2o.Sql2oException;
+import org.sql2o.data.Row;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.todoapp.TodoService.TodoServiceException;
+
+/**
+ * The lists of todos besides the default one at /api/v1/todos, each with a TodoService
+ * of its own in front of its own store.
+ *
+ * A new list is placed on a shard by TodoShardRouter, and its todos are kept there in
+ * tables named after it. With each shard a separate SQLite database, writes to lists on
+ * different shards do not wait for each other's write lock. The shard of every list is
+ * recorded in the catalog of lists, so lists stay where they are if shards are added;
+ * only new lists are spread over the new ones.
+ */
+public class TodoLists {
+
+    //Changes kept for the change feed of each list; the default list keeps more
+    public static final int FEED_RETAINED = 1000;
+
+    /**
+     * Opens the stores of lists on shards.
+     */
+    public interface StoreFactory {
+        TodoStore open(int shard, String table) throws TodoServiceException;
+
+        /**
+         * Remove a list's todos for good; nothing to do for stores that keep nothing.
+         */
+        default void drop(int shard, String table) throws TodoServiceException {
+        }
+    }
+
+    //The catalog of lists, or null to keep it in memory only
+    private final Sql2o catalog;
+
+    private final TodoShardRouter router;
+    private final StoreFactory stores;
+    private final TodoMetrics metrics;
+    private final int cacheSize;
+
+    private final Map<String, Entry> lists = new ConcurrentHashMap<>();
+    private final AtomicLong lastId = new AtomicLong();
+
+    private final Logger logger = LoggerFactory.getLogger(TodoLists.class);
+
+    /**
+     * Load the catalog of lists, creating it if necessary. The lists' stores are opened
+     * on first use.
+     *
+     * @param catalogDataSource Where the catalog is kept, or null to keep it in memory only
+     * @param router Places new lists on shards
+     * @param stores Opens the store of a list on its shard
+     * @param metrics Where the lists' services time their store accesses
+     * @param cacheSize The size of each list's TodoCache
+     */
+    public TodoLists(DataSource catalogDataSource, TodoShardRouter router, StoreFactory stores, TodoMetrics metrics,
+                     int cacheSize) throws TodoServiceException {
+        this.catalog = catalogDataSource == null ? null : new Sql2o(catalogDataSource);
+        this.router = router;
+        this.stores = stores;
+        this.metrics = metrics;
+        this.cacheSize = cacheSize;
+
+        if (catalog == null) {
+            return;
+        }
+        try (Connection conn = catalog.open()) {
+            conn.createQuery("CREATE TABLE IF NOT EXISTS list (list_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                             "name TEXT NOT NULL, shard INTEGER NOT NULL, created_on TIMESTAMP)").executeUpdate();
+            for (Row row : conn.createQuery("SELECT list_id, name, shard, created_on FROM list").executeAndFetchTable().rows()) {
+                TodoList list = new TodoList(Long.toString(row.getLong("list_id")), row.getString("name"),
+                                             row.getInteger("shard"), row.getDate("created_on"));
+                if (list.getShard() >= router.getShards()) {
+                    logger.error(String.format("List %s is on shard %d, but there are only %d shards. Skipping it",
+                            list.getId(), list.getShard(), router.getShards()));
+                    continue;
+                }
+                lists.put(list.getId(), new Entry(list));
+            }
+        } catch (Sql2oException ex) {
+            logger.error("Failed to load the catalog of lists", ex);
+            throw new TodoServiceException("Failed to load the catalog of lists", ex);
+        }
+    }
+
+    /**
+     * @return Every list, oldest first
+     */
+    public List<TodoList> findAll() {
+        List<TodoList> all = new ArrayList<>();
+        for (Entry entry : lists.values()) {
+            all.add(entry.list);
+        }
+        all.sort(Comparator.comparingLong(list -> Long.parseLong(list.getId())));
+        return all;
+    }
+
+    /**
+     * @return The list, or null if there is no such list
+     */
+    public TodoList find(String id) {
+        Entry entry = lists.get(id);
+        return entry == null ? null : entry.list;
+    }
+
+    /**
+     * Create an empty list on the shard the router picks for its id.
+     */
+    public TodoList create(String name) throws TodoServiceException {
+        Date createdOn = new Date();
+        long id;
+        int shard;
+        if (catalog == null) {
+            id = lastId.incrementAndGet();
+            shard = router.shardFor(Long.toString(id));
+        } else {
+            try (Connection conn = catalog.beginTransaction(java.sql.Connection.TRANSACTION_SERIALIZABLE)) {
+                id = conn.createQuery("INSERT INTO list (name, shard, created_on) VALUES (:name, -1, :createdOn)", true)
+                        .addParameter("name", name)
+                        .addParameter("createdOn", createdOn)
+                        .executeUpdate()
+                        .getKey(Long.class);
+                shard = router.shardFor(Long.toString(id));
+                conn.createQuery("UPDATE list SET shard = :shard WHERE list_id = :listId")
+                        .addParameter("shard", shard)
+                        .addParameter("listId", id)
+                        .executeUpdate();
+                conn.commit();
+            } catch (Sql2oException ex) {
+                logger.error(String.format("Failed to create list %s", name), ex);
+                throw new TodoServiceException(String.format("Failed to create list %s", name), ex);
+            }
+        }
+
+        //Ids are only reused if the catalog was lost, but then so were the lists' todos
+        TodoList list = new TodoList(Long.toString(id), name, shard, createdOn);
+        stores.drop(shard, table(list));
+        Entry entry = new Entry(list);
+        entry.service();
+        lists.put(list.getId(), entry);
+        return list;
+    }
+
+    /**
+     * Delete a list and all its todos.
+     *
+     * @return false if there is no such list
+     */
+    public boolean delete(String id) throws TodoServiceException {
+        Entry entry = lists.remove(id);
+        if (entry == null) {
+            return false;
+        }
+        entry.close();
+        if (catalog != null) {
+            try (Connection conn = catalog.open()) {
+                conn.createQuery("DELETE FROM list WHERE list_id = :listId")
+                        .addParameter("listId", Long.parseLong(id))
+                        .executeUpdate();
+            } catch (Sql2oException ex) {
+                logger.error(String.format("Failed to delete list %s", id), ex);
+                throw new TodoServiceException(String.format("Failed to delete list %s", id), ex);
+            }
+        }
+        stores.drop(entry.list.getShard(), table(entry.list));
+        return true;
+    }
+
+    /**
+     * @return The service of a list, opening its store on first use
+     * @throws TodoServiceException if there is no such list, or its store cannot be opened
+     */
+    public TodoService service(String id) throws TodoServiceException {
+        Entry entry = lists.get(id);
+        if (entry == null) {
+            throw new TodoServiceException(String.format("TodoLists.service: No list with id: %s", id), null);
+        }
+        return entry.service();
+    }
+
+    /**
+     * Wake up everyone following the change feed of a list, for good, so that the
+     * server can stop.
+     */
+    public void close() {
+        for (Entry entry : lists.values()) {
+            entry.close();
+        }
+    }
+
+    //-----------------------------------------------------------------------------//
+    // Helper Classes and Methods
+    //-----------------------------------------------------------------------------//
+
+    /**
+     * A list and, once opened, its service.
+     */
+    private class Entry {
+        private final TodoList list;
+        private TodoService service;
+
+        Entry(TodoList list) {
+            this.list = list;
+        }
+
+        synchronized TodoService service() throws TodoServiceException {
+            if (service == null) {
+                TodoStore store = stores.open(list.getShard(), table(list));
+                service = new TodoService(store, new TodoCache(cacheSize), new TodoChangeFeed(FEED_RETAINED), metrics);
+            }
+            return service;
+        }
+
+        synchronized void close() {
+            if (service != null) {
+                service.getChanges().close();
+            }
+        }
+    }
+
+    private static String table(TodoList list) {
+        return "list_" + list.getId();
+    }
+}
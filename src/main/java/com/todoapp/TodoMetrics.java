@@ -0,0 +1,274 @@
+package com.todoapp;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Request and query counters and latency histograms, rendered in the Prometheus text
+ * exposition format at /api/v1/metrics.
+ *
+ * TodoController times every route in total and the part of it spent serializing the
+ * response; TodoService times every database access. Database time is also added to
+ * a per-thread total so that each request can report how much of it was spent in the
+ * database. Recording takes a few uncontended atomic increments and no locks.
+ *
+ * Quantiles are over all requests since startup.
+ */
+public class TodoMetrics {
+
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    private static final String[] STATUS_CLASSES = { "1xx", "2xx", "3xx", "4xx", "5xx" };
+
+    /**
+     * The metrics of one route.
+     */
+    public static class RouteMetrics {
+        private final String method;
+        private final String path;
+        private final LongAdder[] responses = new LongAdder[STATUS_CLASSES.length];
+        private final LatencyHistogram total = new LatencyHistogram();
+        private final LatencyHistogram db = new LatencyHistogram();
+        private final LatencyHistogram serialization = new LatencyHistogram();
+
+        RouteMetrics(String method, String path) {
+            this.method = method;
+            this.path = path;
+            for (int i = 0; i < responses.length; i++) {
+                responses[i] = new LongAdder();
+            }
+        }
+
+        public long getResponses(int status) {
+            return responses[statusClass(status)].sum();
+        }
+
+        public LatencyHistogram getTotal() {
+            return total;
+        }
+
+        public LatencyHistogram getDb() {
+            return db;
+        }
+
+        public LatencyHistogram getSerialization() {
+            return serialization;
+        }
+    }
+
+    /**
+     * The metrics of one kind of database access.
+     */
+    public class QueryMetrics {
+        private final String name;
+        private final LongAdder errors = new LongAdder();
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        QueryMetrics(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Record a query that started at the given System.nanoTime().
+         */
+        public void record(long startedNanos) {
+            long elapsed = System.nanoTime() - startedNanos;
+            latency.record(elapsed);
+            requestDbNanos.get()[0] += elapsed;
+        }
+
+        public void failed() {
+            errors.increment();
+        }
+
+        public long getErrors() {
+            return errors.sum();
+        }
+
+        public LatencyHistogram getLatency() {
+            return latency;
+        }
+    }
+
+    private final Map<String, RouteMetrics> routes = new ConcurrentSkipListMap<>();
+    private final Map<String, QueryMetrics> queries = new ConcurrentSkipListMap<>();
+    private final LongAdder notModified = new LongAdder();
+    private final LongAdder replayed = new LongAdder();
+    private final LongAdder rateLimited = new LongAdder();
+    private final LongAdder shedConcurrency = new LongAdder();
+    private final LongAdder shedQueueDelay = new LongAdder();
+
+    //How long the server took to start, once it has
+    private volatile StartupProfile startup;
+
+    //Database time of the request being handled by the current thread
+    private final ThreadLocal<long[]> requestDbNanos = ThreadLocal.withInitial(() -> new long[1]);
+
+    /**
+     * @return The metrics of a route, created on first use
+     */
+    public RouteMetrics route(String method, String path) {
+        return routes.computeIfAbsent(path + " " + method, key -> new RouteMetrics(method, path));
+    }
+
+    /**
+     * @return The metrics of a query, created on first use
+     */
+    public QueryMetrics query(String name) {
+        return queries.computeIfAbsent(name, QueryMetrics::new);
+    }
+
+    /**
+     * Start timing a request on the current thread.
+     *
+     * @return The start time to pass to {@link #endRequest}
+     */
+    public long beginRequest() {
+        requestDbNanos.get()[0] = 0;
+        return System.nanoTime();
+    }
+
+    /**
+     * Record a request started by {@link #beginRequest()} on the current thread.
+     */
+    public void endRequest(RouteMetrics route, long startedNanos, long serializationNanos, int status) {
+        route.total.record(System.nanoTime() - startedNanos);
+        route.db.record(requestDbNanos.get()[0]);
+        route.serialization.record(serializationNanos);
+        route.responses[statusClass(status)].increment();
+    }
+
+    /**
+     * Count a conditional GET answered with 304 Not Modified.
+     */
+    public void notModified() {
+        notModified.increment();
+    }
+
+    /**
+     * Count a retried write answered with the outcome of the original.
+     */
+    public void replayed() {
+        replayed.increment();
+    }
+
+    /**
+     * Count a request refused because its client sent too many.
+     */
+    public void rateLimited() {
+        rateLimited.increment();
+    }
+
+    /**
+     * Count a request refused by admission control.
+     */
+    public void shed(AdmissionControl.Verdict reason) {
+        (reason == AdmissionControl.Verdict.concurrency ? shedConcurrency : shedQueueDelay).increment();
+    }
+
+    /**
+     * Report how long the server took to start.
+     */
+    public void startup(StartupProfile profile) {
+        startup = profile;
+    }
+
+    /**
+     * @return All metrics in the Prometheus text exposition format, version 0.0.4
+     */
+    public String toPrometheus() {
+        StringBuilder out = new StringBuilder();
+
+        header(out, "todo_http_requests_total", "counter", "Requests handled by each route, by status class.");
+        for (RouteMetrics route : routes.values()) {
+            for (int i = 0; i < STATUS_CLASSES.length; i++) {
+                out.append("todo_http_requests_total").append(routeLabels(route))
+                   .append(",status=\"").append(STATUS_CLASSES[i]).append("\"} ")
+                   .append(route.responses[i].sum()).append('\n');
+            }
+        }
+
+        header(out, "todo_http_request_duration_seconds", "summary", "Time to handle a request, up to handing the body to the server.");
+        for (RouteMetrics route : routes.values()) {
+            summary(out, "todo_http_request_duration_seconds", routeLabels(route), route.total);
+        }
+        header(out, "todo_http_db_duration_seconds", "summary", "Time each request spent in database queries.");
+        for (RouteMetrics route : routes.values()) {
+            summary(out, "todo_http_db_duration_seconds", routeLabels(route), route.db);
+        }
+        header(out, "todo_http_serialization_duration_seconds", "summary", "Time each request spent serializing its response.");
+        for (RouteMetrics route : routes.values()) {
+            summary(out, "todo_http_serialization_duration_seconds", routeLabels(route), route.serialization);
+        }
+
+        header(out, "todo_http_not_modified_total", "counter", "Conditional GETs answered with 304 Not Modified.");
+        out.append("todo_http_not_modified_total ").append(notModified.sum()).append('\n');
+
+        header(out, "todo_http_idempotent_replays_total", "counter", "Writes with a known Idempotency-Key answered without running them again.");
+        out.append("todo_http_idempotent_replays_total ").append(replayed.sum()).append('\n');
+
+        header(out, "todo_http_rate_limited_total", "counter", "Requests answered with 429 because their client exceeded its rate.");
+        out.append("todo_http_rate_limited_total ").append(rateLimited.sum()).append('\n');
+
+        header(out, "todo_http_shed_total", "counter", "Requests answered with 503 by admission control, by the limit they hit.");
+        out.append("todo_http_shed_total{reason=\"concurrency\"} ").append(shedConcurrency.sum()).append('\n');
+        out.append("todo_http_shed_total{reason=\"queue_delay\"} ").append(shedQueueDelay.sum()).append('\n');
+
+        header(out, "todo_db_query_duration_seconds", "summary", "Time spent in each kind of database access.");
+        for (QueryMetrics query : queries.values()) {
+            summary(out, "todo_db_query_duration_seconds", "{query=\"" + query.name + "\"", query.latency);
+        }
+        header(out, "todo_db_query_errors_total", "counter", "Database accesses that failed.");
+        for (QueryMetrics query : queries.values()) {
+            out.append("todo_db_query_errors_total{query=\"").append(query.name).append("\"} ")
+               .append(query.errors.sum()).append('\n');
+        }
+
+        StartupProfile profile = startup;
+        if (profile != null) {
+            header(out, "todo_startup_duration_seconds", "gauge", "Time from the start of Bootstrap.main to serving requests.");
+            out.append("todo_startup_duration_seconds ").append(seconds(profile.getElapsedNanos())).append('\n');
+            header(out, "todo_startup_phase_duration_seconds", "gauge", "Time each phase of startup took; some run at the same time.");
+            for (StartupProfile.Phase phase : profile.getPhases()) {
+                out.append("todo_startup_phase_duration_seconds{phase=\"").append(phase.getName()).append("\"} ")
+                   .append(seconds(phase.getDurationNanos())).append('\n');
+            }
+        }
+        return out.toString();
+    }
+
+    //-----------------------------------------------------------------------------//
+    // Helper Classes and Methods
+    //-----------------------------------------------------------------------------//
+
+    private static int statusClass(int status) {
+        return Math.min(Math.max(status / 100, 1), 5) - 1;
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    /**
+     * @return The labels of a route, without the closing brace
+     */
+    private static String routeLabels(RouteMetrics route) {
+        return "{method=\"" + route.method + "\",route=\"" + route.path + "\"";
+    }
+
+    private static void summary(StringBuilder out, String name, String labels, LatencyHistogram histogram) {
+        long[] values = histogram.valuesAtQuantiles(QUANTILES);
+        for (int i = 0; i < QUANTILES.length; i++) {
+            out.append(name).append(labels).append(",quantile=\"").append(QUANTILES[i]).append("\"} ")
+               .append(seconds(values[i])).append('\n');
+        }
+        out.append(name).append("_sum").append(labels).append("} ").append(seconds(histogram.getSum())).append('\n');
+        out.append(name).append("_count").append(labels).append("} ").append(histogram.getCount()).append('\n');
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / 1e9;
+    }
+}
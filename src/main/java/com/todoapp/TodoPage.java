@@ -0,0 +1,60 @@
+package com.todoapp;
+
+import java.util.List;
+
+/**
+ * One page of a paginated listing together with what a client needs to fetch the next one.
+ */
+public class TodoPage {
+
+    private final List<Todo> items;
+    private final TodoQuery.Cursor next;
+    private final boolean more;
+    private final long total;
+
+    /**
+     * A page of a listing located by cursor.
+     */
+    public TodoPage(List<Todo> items, TodoQuery.Cursor next, long total) {
+        this.items = items;
+        this.next = next;
+        this.more = next != null;
+        this.total = total;
+    }
+
+    /**
+     * A page of a listing located by offset, which has no cursor.
+     */
+    public TodoPage(List<Todo> items, boolean more, long total) {
+        this.items = items;
+        this.next = null;
+        this.more = more;
+        this.total = total;
+    }
+
+    public List<Todo> getItems() {
+        return items;
+    }
+
+    /**
+     * @return The cursor for the following page, or null if this is the last page
+     */
+    public TodoQuery.Cursor getNext() {
+        return next;
+    }
+
+    /**
+     * @return Whether there are items after this page
+     */
+    public boolean isMore() {
+        return more;
+    }
+
+    /**
+     * @return The number of items matching the query's filter across all pages, or -1 if
+     *         they were not counted
+     */
+    public long getTotal() {
+        return total;
+    }
+}
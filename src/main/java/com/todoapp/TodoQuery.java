@@ -0,0 +1,200 @@
+package com.todoapp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * The parameters of a paginated listing: an optional filter on the done flag, the
+ * sort order and a page size, plus an opaque cursor marking where the previous page
+ * ended. Pages are fetched with keyset pagination, i.e. "rows after the last one
+ * seen" rather than OFFSET, so every page costs the same no matter how deep it is.
+ */
+public class TodoQuery {
+
+    public static final int DEFAULT_LIMIT = 100;
+    public static final int MAX_LIMIT = 1000;
+
+    public enum SortField {
+        ID("id"), CREATED_ON("createdOn");
+
+        private final String param;
+
+        SortField(String param) {
+            this.param = param;
+        }
+
+        public String getParam() {
+            return param;
+        }
+
+        static SortField fromParam(String value) {
+            for (SortField field : values()) {
+                if (field.param.equals(value)) {
+                    return field;
+                }
+            }
+            throw new IllegalArgumentException("Unknown sort field: " + value);
+        }
+    }
+
+    private final Boolean done;
+    private final SortField sort;
+    private final boolean descending;
+    private final int limit;
+    private final Cursor after;
+
+    public TodoQuery(Boolean done, SortField sort, boolean descending, int limit, Cursor after) {
+        if (limit < 1 || limit > MAX_LIMIT) {
+            throw new IllegalArgumentException(String.format("limit must be between 1 and %d", MAX_LIMIT));
+        }
+        if (after != null && after.sort != sort) {
+            throw new IllegalArgumentException("cursor does not belong to the requested sort order");
+        }
+        this.done = done;
+        this.sort = sort;
+        this.descending = descending;
+        this.limit = limit;
+        this.after = after;
+    }
+
+    /**
+     * Build a query from HTTP query parameters. Any parameter may be null.
+     *
+     * @param limit Page size, defaults to {@link #DEFAULT_LIMIT}
+     * @param cursor The X-Next-Cursor value returned with the previous page
+     * @param done "true" or "false" to only return items in that state
+     * @param sort "id" (the default) or "createdOn"
+     * @param order "asc" (the default) or "desc"
+     * @throws IllegalArgumentException if any of the parameters is malformed
+     */
+    public static TodoQuery fromParams(String limit, String cursor, String done, String sort, String order) {
+        SortField sortField = sort == null ? SortField.ID : SortField.fromParam(sort);
+        return new TodoQuery(
+                done == null ? null : parseBoolean("done", done),
+                sortField,
+                order != null && parseOrder(order),
+                limit == null ? DEFAULT_LIMIT : parseInt("limit", limit),
+                cursor == null ? null : Cursor.decode(cursor));
+    }
+
+    public Boolean getDone() {
+        return done;
+    }
+
+    public SortField getSort() {
+        return sort;
+    }
+
+    public boolean isDescending() {
+        return descending;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public Cursor getAfter() {
+        return after;
+    }
+
+    /**
+     * @return The query string (without the leading '?') that fetches the page after the given cursor
+     */
+    public String toQueryString(Cursor next) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("limit=").append(limit);
+        sb.append("&sort=").append(sort.getParam());
+        sb.append("&order=").append(descending ? "desc" : "asc");
+        if (done != null) {
+            sb.append("&done=").append(done);
+        }
+        if (next != null) {
+            sb.append("&cursor=").append(next.encode());
+        }
+        return sb.toString();
+    }
+
+    private static boolean parseBoolean(String name, String value) {
+        if ("true".equals(value)) return true;
+        if ("false".equals(value)) return false;
+        throw new IllegalArgumentException(String.format("%s must be true or false", name));
+    }
+
+    private static boolean parseOrder(String value) {
+        if ("asc".equals(value)) return false;
+        if ("desc".equals(value)) return true;
+        throw new IllegalArgumentException("order must be asc or desc");
+    }
+
+    static int parseInt(String name, String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException(String.format("%s must be a number", name), ex);
+        }
+    }
+
+    //-----------------------------------------------------------------------------//
+    // Helper Classes
+    //-----------------------------------------------------------------------------//
+
+    /**
+     * The sort key of the last row of a page. Clients treat it as an opaque string.
+     */
+    public static class Cursor {
+        private final SortField sort;
+        private final Long createdOn;
+        private final long id;
+
+        public Cursor(SortField sort, Long createdOn, long id) {
+            this.sort = sort;
+            this.createdOn = createdOn;
+            this.id = id;
+        }
+
+        public static Cursor after(SortField sort, Todo last) {
+            Long createdOn = last.getCreatedOn() == null ? null : last.getCreatedOn().getTime();
+            return new Cursor(sort, sort == SortField.CREATED_ON ? createdOn : null, Long.parseLong(last.getId()));
+        }
+
+        public SortField getSort() {
+            return sort;
+        }
+
+        /**
+         * @return The creation time of the last row in epoch milliseconds, or null if the
+         *         cursor is for the id ordering or the row had no creation time
+         */
+        public Long getCreatedOn() {
+            return createdOn;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String encode() {
+            String raw = sort == SortField.ID
+                    ? "i:" + id
+                    : "c:" + (createdOn == null ? "" : createdOn.toString()) + ":" + id;
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+        }
+
+        public static Cursor decode(String encoded) {
+            try {
+                String raw = new String(Base64.getUrlDecoder().decode(encoded), StandardCharsets.UTF_8);
+                String[] parts = raw.split(":", -1);
+                if (parts.length == 2 && parts[0].equals("i")) {
+                    return new Cursor(SortField.ID, null, Long.parseLong(parts[1]));
+                }
+                if (parts.length == 3 && parts[0].equals("c")) {
+                    Long createdOn = parts[1].isEmpty() ? null : Long.parseLong(parts[1]);
+                    return new Cursor(SortField.CREATED_ON, createdOn, Long.parseLong(parts[2]));
+                }
+            } catch (IllegalArgumentException ex) {
+                //fall through to the error below; NumberFormatException is an IllegalArgumentException
+            }
+            throw new IllegalArgumentException("Malformed cursor: " + encoded);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.todoapp;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The parameters of a full-text search over todo titles: the words to look for and
+ * which page of the ranked results to return.
+ *
+ * Every word of the search text must appear in a title, either as a word of its own
+ * or as the start of one, so "mil bre" finds "Buy milk and bread". Only letters and
+ * digits are taken from the search text; everything else separates words, which keeps
+ * FTS5 query syntax out of reach of clients.
+ */
+public class TodoSearch {
+
+    public static final int MAX_TERMS = 16;
+
+    private final String text;
+    private final List<String> terms;
+    private final int limit;
+    private final int offset;
+
+    public TodoSearch(String text, int limit, int offset) {
+        if (limit < 1 || limit > TodoQuery.MAX_LIMIT) {
+            throw new IllegalArgumentException(String.format("limit must be between 1 and %d", TodoQuery.MAX_LIMIT));
+        }
+        if (offset < 0) {
+            throw new IllegalArgumentException("offset must not be negative");
+        }
+        this.text = text;
+        this.terms = terms(text);
+        this.limit = limit;
+        this.offset = offset;
+    }
+
+    /**
+     * Build a search from HTTP query parameters.
+     *
+     * @param q The search text; required
+     * @param limit Page size, defaults to {@link TodoQuery#DEFAULT_LIMIT}; may be null
+     * @param offset Number of results to skip, defaults to 0; may be null
+     * @throws IllegalArgumentException if any of the parameters is malformed
+     */
+    public static TodoSearch fromParams(String q, String limit, String offset) {
+        if (q == null) {
+            throw new IllegalArgumentException("q is required");
+        }
+        return new TodoSearch(q,
+                limit == null ? TodoQuery.DEFAULT_LIMIT : TodoQuery.parseInt("limit", limit),
+                offset == null ? 0 : TodoQuery.parseInt("offset", offset));
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return The words to look for, as given
+     */
+    List<String> getTerms() {
+        return terms;
+    }
+
+    /**
+     * @return The FTS5 MATCH expression: every term quoted and as a prefix, e.g. "mil"* "bre"*
+     */
+    public String toMatchExpression() {
+        StringBuilder sb = new StringBuilder();
+        for (String term : terms) {
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append('"').append(term).append("\"*");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return The query string (without the leading '?') that fetches the results starting at offset
+     */
+    public String toQueryString(int offset) {
+        try {
+            return "q=" + URLEncoder.encode(text, "UTF-8") + "&limit=" + limit + "&offset=" + offset;
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    //-----------------------------------------------------------------------------//
+    // Helper Classes and Methods
+    //-----------------------------------------------------------------------------//
+
+    private static List<String> terms(String text) {
+        List<String> terms = words(text);
+        if (terms.isEmpty()) {
+            throw new IllegalArgumentException("q must contain at least one word");
+        }
+        if (terms.size() > MAX_TERMS) {
+            throw new IllegalArgumentException(String.format("q has more than %d words", MAX_TERMS));
+        }
+        return terms;
+    }
+
+    /**
+     * Split text into words, which are runs of letters and digits.
+     */
+    static List<String> words(String text) {
+        List<String> words = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                words.add(text.substring(start, i));
+                start = -1;
+            }
+        }
+        return words;
+    }
+}
@@ -0,0 +1,235 @@
+package com.todoapp;
+
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.HandlerList;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+import org.eclipse.jetty.server.handler.gzip.GzipHandler;
+import org.eclipse.jetty.server.session.SessionHandler;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import spark.ExceptionMapper;
+import spark.embeddedserver.EmbeddedServer;
+import spark.embeddedserver.EmbeddedServerFactory;
+import spark.embeddedserver.jetty.EmbeddedJettyServer;
+import spark.embeddedserver.jetty.HttpRequestWrapper;
+import spark.embeddedserver.jetty.JettyHandler;
+import spark.embeddedserver.jetty.JettyServerFactory;
+import spark.http.matching.MatcherFilter;
+import spark.route.Routes;
+import spark.staticfiles.StaticFilesConfiguration;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.Filter;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Builds the embedded Jetty server that Spark runs on, in place of Spark's default one,
+ * so that the size of Jetty's thread pool and of its queue of waiting jobs can be set.
+ *
+ * Given an executor, requests under /api/ are handled as asynchronous servlet requests:
+ * the Jetty thread hands the request to the executor and returns to the pool at once,
+ * so requests blocked on the database do not hold Jetty threads, and static files and
+ * new connections are still served when the database is slow. When the executor is
+ * full, such requests get a 503 straight away. Event streams under /api/ are the
+ * exception: each lasts as long as its client stays connected, so they stay on Jetty
+ * threads rather than take executor threads from every other request.
+ *
+ * Responses of at least a given size are gzipped for clients that accept it, except for
+ * event streams, which gzip would hold back. Given TodoAssets, the web UI is served by
+ * them ahead of Spark, already compressed.
+ *
+ * The server can be started before its routes are added, so that both are set up at the
+ * same time; until it is marked ready, requests that would go to Spark get a 503.
+ */
+public class TodoServerFactory implements EmbeddedServerFactory {
+
+    private static final String ASYNC_PREFIX = "/api/";
+    private static final String EVENTS_SUFFIX = "/events";
+
+    private final ThreadPool threadPool;
+    private final ExecutorService executor;
+    private final TodoAssets assets;
+    private final int compressMinBytes;
+    private volatile boolean ready = true;
+
+    public TodoServerFactory(int maxThreads, int minThreads, int idleTimeoutMillis, int queueSize, ExecutorService executor) {
+        this(maxThreads, minThreads, idleTimeoutMillis, queueSize, executor, null, -1);
+    }
+
+    /**
+     * @param maxThreads The most Jetty threads, for accepting, parsing and, without an executor, handling requests
+     * @param minThreads The Jetty threads kept when idle
+     * @param idleTimeoutMillis How long an idle Jetty thread above minThreads is kept
+     * @param queueSize The most jobs waiting for a Jetty thread, or 0 for no limit
+     * @param executor Where API requests are handled, or null to handle them on Jetty threads
+     * @param assets The static files to serve, or null to leave them to Spark
+     * @param compressMinBytes The smallest response that is gzipped, or negative to gzip none
+     */
+    public TodoServerFactory(int maxThreads, int minThreads, int idleTimeoutMillis, int queueSize, ExecutorService executor,
+                             TodoAssets assets, int compressMinBytes) {
+        BlockingQueue<Runnable> queue = queueSize > 0 ? new ArrayBlockingQueue<>(queueSize) : new LinkedBlockingQueue<>();
+        QueuedThreadPool pool = new QueuedThreadPool(maxThreads, minThreads, idleTimeoutMillis, queue);
+        pool.setName("todo-http");
+        this.threadPool = pool;
+        this.executor = executor;
+        this.assets = assets;
+        this.compressMinBytes = compressMinBytes;
+    }
+
+    @Override
+    public EmbeddedServer create(Routes routes, StaticFilesConfiguration staticFiles, ExceptionMapper exceptionMapper, boolean hasMultipleHandler) {
+        MatcherFilter filter = new MatcherFilter(routes, staticFiles, exceptionMapper, false, hasMultipleHandler);
+        filter.init(null);
+        Handler handler = executor == null ? new JettyHandler(filter) : new AsyncHandler(filter, executor);
+        if (compressMinBytes >= 0) {
+            GzipHandler gzip = new GzipHandler();
+            gzip.setMinGzipSize(compressMinBytes);
+            gzip.setIncludedMethods("GET", "POST", "PUT");
+            gzip.addExcludedMimeTypes("text/event-stream");
+            gzip.setHandler(handler);
+            handler = gzip;
+        }
+        StartupGate gate = new StartupGate();
+        gate.setHandler(handler);
+        handler = gate;
+        if (assets != null) {
+            handler = new HandlerList(assets, handler);
+        }
+        return new EmbeddedJettyServer(new PooledServerFactory(), handler).withThreadPool(threadPool);
+    }
+
+    /**
+     * Let requests through to Spark, or answer them with 503 Service Unavailable until
+     * this is called again with true.
+     */
+    public void setReady(boolean ready) {
+        this.ready = ready;
+    }
+
+    /**
+     * A fixed number of threads with a bounded queue in front of them, which rejects
+     * work when full.
+     */
+    public static ExecutorService newBoundedExecutor(int threads, int queueSize) {
+        AtomicInteger count = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueSize), task -> {
+            Thread thread = new Thread(task, "todo-request-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return An executor that starts a virtual thread per task, or null if this Java
+     *         version has no virtual threads. Found by reflection, so the build does not
+     *         require Java 21.
+     */
+    public static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            return null;
+        }
+    }
+
+    //-----------------------------------------------------------------------------//
+    // Helper Classes and Methods
+    //-----------------------------------------------------------------------------//
+
+    /**
+     * Spark's own server factory is not public, so this does the same.
+     */
+    private static class PooledServerFactory implements JettyServerFactory {
+        @Override
+        public Server create(int maxThreads, int minThreads, int threadTimeoutMillis) {
+            return new Server(new QueuedThreadPool(maxThreads, minThreads, threadTimeoutMillis));
+        }
+
+        @Override
+        public Server create(ThreadPool threadPool) {
+            return new Server(threadPool);
+        }
+    }
+
+    /**
+     * Turns requests away while the server is not ready.
+     */
+    private class StartupGate extends HandlerWrapper {
+        @Override
+        public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response)
+                throws IOException, ServletException {
+            if (!ready) {
+                baseRequest.setHandled(true);
+                response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                response.setHeader("Retry-After", "1");
+                return;
+            }
+            super.handle(target, baseRequest, request, response);
+        }
+    }
+
+    /**
+     * Spark's JettyHandler, except that API requests other than event streams are run on
+     * the executor.
+     */
+    private static class AsyncHandler extends SessionHandler {
+        private final Filter filter;
+        private final ExecutorService executor;
+
+        private final Logger logger = LoggerFactory.getLogger(AsyncHandler.class);
+
+        AsyncHandler(Filter filter, ExecutorService executor) {
+            this.filter = filter;
+            this.executor = executor;
+        }
+
+        @Override
+        public void doHandle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response)
+                throws IOException, ServletException {
+            HttpRequestWrapper wrapper = new HttpRequestWrapper(request);
+            if (!target.startsWith(ASYNC_PREFIX) || target.endsWith(EVENTS_SUFFIX)) {
+                filter.doFilter(wrapper, response, null);
+                baseRequest.setHandled(!wrapper.notConsumed());
+                return;
+            }
+
+            //Spark answers every API request itself, with a 404 if no route matches
+            baseRequest.setHandled(true);
+            AsyncContext async = request.startAsync();
+            async.setTimeout(0);
+            try {
+                executor.execute(() -> {
+                    try {
+                        filter.doFilter(wrapper, response, null);
+                    } catch (Exception ex) {
+                        logger.error(String.format("Failed to handle %s %s", request.getMethod(), target), ex);
+                        if (!response.isCommitted()) {
+                            response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                        }
+                    } finally {
+                        async.complete();
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                response.setHeader("Retry-After", "1");
+                async.complete();
+            }
+        }
+    }
+}
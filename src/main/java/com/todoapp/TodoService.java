@@ -5,19 +5,56 @@
 
 package com.todoapp;
 
-import com.google.gson.Gson;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.sql2o.Connection;
-import org.sql2o.Sql2o;
-import org.sql2o.Sql2oException;
 
 import javax.sql.DataSource;
+import java.io.IOException;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class TodoService {
 
-    private Sql2o db;
+    private final TodoStore store;
+
+    private final TodoCache cache;
+
+    private final TodoVersions versions = new TodoVersions(TodoVersions.DEFAULT_MAX_TRACKED);
+
+    private final TodoChangeFeed changes;
+
+    //Changes to the same id are made and published one at a time, so that the feed has
+    //them in the order the store made them
+    private static final int ID_LOCKS = 64;
+    private final ReentrantLock[] idLocks = new ReentrantLock[ID_LOCKS];
+
+    //The counts served by stats(), counted from the store by countStats() or when first
+    //asked for, and kept up to date by every change after that
+    private volatile TodoStats stats;
+
+    //Changes hold the read lock while they change the store and the counts, so that
+    //counting the store, or restoring it, sees either all of a change or none of it
+    private final ReentrantReadWriteLock changeLock = new ReentrantReadWriteLock();
+
+    //Every store access is timed; cache hits are not
+    private final TodoMetrics metrics;
+    private final TodoMetrics.QueryMetrics findAllQuery;
+    private final TodoMetrics.QueryMetrics forEachTodoQuery;
+    private final TodoMetrics.QueryMetrics findPageQuery;
+    private final TodoMetrics.QueryMetrics createQuery;
+    private final TodoMetrics.QueryMetrics batchQuery;
+    private final TodoMetrics.QueryMetrics findQuery;
+    private final TodoMetrics.QueryMetrics updateQuery;
+    private final TodoMetrics.QueryMetrics deleteQuery;
+    private final TodoMetrics.QueryMetrics searchQuery;
+    private final TodoMetrics.QueryMetrics changesSinceQuery;
+    private final TodoMetrics.QueryMetrics statsQuery;
+    private final TodoMetrics.QueryMetrics restoreQuery;
 
     private final Logger logger = LoggerFactory.getLogger(TodoService.class);
 
@@ -28,56 +65,326 @@ public class TodoService {
      * @param dataSource
      */
     public TodoService(DataSource dataSource) throws TodoServiceException {
-        db = new Sql2o(dataSource);
+        this(dataSource, dataSource, new TodoCache(TodoCache.DEFAULT_SIZE));
+    }
+
+    /**
+     * Construct the model on an SQLite database with separate datasources for queries
+     * and for updates.
+     *
+     * @param readDataSource Used for all queries; may be read-only
+     * @param writeDataSource Used for schema creation and all updates
+     * @param cache Cache for find() and findAll(), kept up to date by this service's updates
+     */
+    public TodoService(DataSource readDataSource, DataSource writeDataSource, TodoCache cache) throws TodoServiceException {
+        this(new SqliteTodoStore(readDataSource, writeDataSource), cache);
+    }
+
+    /**
+     * Construct the model on any storage backend.
+     *
+     * @param store Where the todos are kept; only this service may change it
+     * @param cache Cache for find() and findAll(), kept up to date by this service's updates
+     */
+    public TodoService(TodoStore store, TodoCache cache) {
+        this(store, cache, new TodoChangeFeed(TodoChangeFeed.DEFAULT_RETAINED));
+    }
 
-        //Create the schema for the database if necessary. This allows this
-        //program to mostly self-contained. But this is not always what you want;
-        //sometimes you want to create the schema externally via a script.
-        try (Connection conn = db.open()) {
-            String sql = "CREATE TABLE IF NOT EXISTS item (item_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
-                         "                                 title TEXT, done BOOLEAN, created_on TIMESTAMP)" ;
-            conn.createQuery(sql).executeUpdate();
-        } catch(Sql2oException ex) {
-            logger.error("Failed to create schema at startup", ex);
-            throw new TodoServiceException("Failed to create schema at startup", ex);
+    /**
+     * Construct the model on any storage backend, publishing its changes to a feed.
+     *
+     * @param store Where the todos are kept; only this service may change it
+     * @param cache Cache for find() and findAll(), kept up to date by this service's updates
+     * @param changes Where every change is published once made
+     */
+    public TodoService(TodoStore store, TodoCache cache, TodoChangeFeed changes) {
+        this(store, cache, changes, new TodoMetrics());
+    }
+
+    /**
+     * Construct the model on any storage backend, recording its timings alongside those
+     * of other services, as the services of the lists in TodoLists do.
+     *
+     * @param metrics Where store accesses are timed
+     */
+    public TodoService(TodoStore store, TodoCache cache, TodoChangeFeed changes, TodoMetrics metrics) {
+        this.store = store;
+        this.cache = cache;
+        this.changes = changes;
+        this.metrics = metrics;
+        findAllQuery = metrics.query("findAll");
+        forEachTodoQuery = metrics.query("forEachTodo");
+        findPageQuery = metrics.query("findPage");
+        createQuery = metrics.query("createNewTodo");
+        batchQuery = metrics.query("applyBatch");
+        findQuery = metrics.query("find");
+        updateQuery = metrics.query("update");
+        deleteQuery = metrics.query("delete");
+        searchQuery = metrics.query("search");
+        changesSinceQuery = metrics.query("changesSince");
+        statsQuery = metrics.query("stats");
+        restoreQuery = metrics.query("restore");
+        for (int i = 0; i < ID_LOCKS; i++) {
+            idLocks[i] = new ReentrantLock();
         }
     }
 
     /**
-     * Fetch all todo entries in the list
+     * Fetch all todo entries in the list. A list that fits the cache is collected straight
+     * into columns and cached, so it never exists as one Todo object per entry. A larger
+     * one is read as Todo objects: columns that are not kept would leave their off-heap
+     * titles to the garbage collector. Serve such lists with forEachTodo() instead.
      *
      * @return List of all Todo entries
      */
     public List<Todo> findAll() throws TodoServiceException {
-        String sql = "SELECT * FROM item" ;
-        try (Connection conn = db.open()) {
-            List<Todo> todos =  conn.createQuery(sql)
-                .addColumnMapping("item_id", "id")
-                .addColumnMapping("created_on", "createdOn")
-                .executeAndFetch(Todo.class);
+        TodoColumns all = findAllCached();
+        if (all != null) {
+            return all;
+        }
+
+        long started = System.nanoTime();
+        try {
+            return store.findAll();
+        } catch(TodoServiceException ex) {
+            findAllQuery.failed();
+            throw ex;
+        } finally {
+            findAllQuery.record(started);
+        }
+    }
+
+    /**
+     * Visit every todo entry in id order. If the full list fits the cache, it is read
+     * into the cache first if need be, and the visitor gets one flyweight Todo for all
+     * entries; see {@link TodoColumns#visit(TodoVisitor)}. Otherwise, with the SQLite
+     * store, rows are read one at a time as the visitor consumes them. Either way memory
+     * use does not grow beyond the size of the cache. The time recorded for this query
+     * includes the visitor's.
+     *
+     * @param visitor Called once for each entry, which it must not keep
+     */
+    public void forEachTodo(TodoVisitor visitor) throws TodoServiceException, IOException {
+        TodoColumns all = findAllCached();
+        long started = System.nanoTime();
+        try {
+            if (all != null) {
+                all.visit(visitor);
+            } else {
+                store.forEach(visitor);
+            }
+        } catch(TodoServiceException ex) {
+            forEachTodoQuery.failed();
+            throw ex;
+        } finally {
+            forEachTodoQuery.record(started);
+        }
+    }
+
+    /**
+     * Fetch all todo entries in the list from the cache, reading them into it first if
+     * they are not there.
+     *
+     * @return The full list, or null if it is larger than the cache, going by the counts
+     *         of stats()
+     */
+    public TodoColumns findAllCached() throws TodoServiceException {
+        TodoColumns cached = cache.getAll();
+        if (cached != null) {
+            return cached;
+        }
+        if (cache.getMaxEntries() == 0 || counts().getTotal() > cache.getMaxEntries()) {
+            return null;
+        }
+
+        long generation = cache.generation();
+        long started = System.nanoTime();
+        try {
+            TodoColumns.Builder all = new TodoColumns.Builder();
+            store.forEach(all);
+            TodoColumns todos = all.build();
+            cache.putAll(generation, todos);
             return todos;
-        } catch(Sql2oException ex) {
-            logger.error("TodoService.findAll: Failed to query database", ex);
-            throw new TodoServiceException("TodoService.findAll: Failed to query database", ex);
+        } catch(IOException ex) {
+            //Collecting does no I/O of its own
+            findAllQuery.failed();
+            throw new TodoServiceException("TodoService.findAll: Failed to read the list", ex);
+        } catch(TodoServiceException ex) {
+            findAllQuery.failed();
+            throw ex;
+        } finally {
+            findAllQuery.record(started);
         }
     }
 
     /**
-     * Create a new Todo entry.
+     * Fetch one page of todo entries. Pages are located by the sort key of the last
+     * entry of the previous page, so the cost of a page does not grow with its depth.
+     * The number of matching entries comes from the counts of stats(), so pages do not
+     * count the list either. The page and the count are read under the change lock, so a
+     * restore cannot come between them; changes still can, since they share that lock,
+     * so the count may be off by the changes made while the page is read.
+     *
+     * @param query The filter, sort order, page size and cursor to use
+     * @return The entries of the page, the cursor of the next page and the number of
+     *         entries matching the filter
+     */
+    public TodoPage findPage(TodoQuery query) throws TodoServiceException {
+        long started = System.nanoTime();
+        //Counted first, since counting takes the write lock
+        counts();
+        Lock change = changeLock.readLock();
+        change.lock();
+        try {
+            TodoPage page = store.findPage(query);
+            TodoStats counts = stats;
+            long total = query.getDone() == null ? counts.getTotal()
+                    : query.getDone() ? counts.getDone() : counts.getOpen();
+            return new TodoPage(page.getItems(), page.getNext(), total);
+        } catch(TodoServiceException ex) {
+            findPageQuery.failed();
+            throw ex;
+        } finally {
+            change.unlock();
+            findPageQuery.record(started);
+        }
+    }
+
+    /**
+     * Search the titles of all entries, best matches first, paged by offset since every
+     * search has to score all of its matches anyway. Matches are counted on the first
+     * page only, at offset 0.
+     *
+     * @param search The search terms, page size and offset
+     * @return The entries of the page, whether more follow, and the number of matches, or
+     *         -1 past the first page; the page's cursor is always null
+     */
+    public TodoPage search(TodoSearch search) throws TodoServiceException {
+        long started = System.nanoTime();
+        try {
+            return store.search(search);
+        } catch(TodoServiceException ex) {
+            searchQuery.failed();
+            throw ex;
+        } finally {
+            searchQuery.record(started);
+        }
+    }
+
+    /**
+     * Fetch what changed after a version of the list, for clients that keep a copy of it.
+     * A client starts with version 0, which returns every entry, and then asks with the
+     * version of each response. Entries changed more than once are returned once, as
+     * they are now.
+     *
+     * @param since The version of the client's copy
+     * @param limit The most changes to return; if there are more, the response says so
+     * @return The entries created or updated, the ids deleted and the new version
      */
-    public void createNewTodo(String body) throws TodoServiceException {
-        Todo todo = new Gson().fromJson(body, Todo.class);
+    public TodoDelta changesSince(long since, int limit) throws TodoServiceException {
+        long started = System.nanoTime();
+        try {
+            return store.changesSince(since, limit);
+        } catch(TodoServiceException ex) {
+            changesSinceQuery.failed();
+            throw ex;
+        } finally {
+            changesSinceQuery.record(started);
+        }
+    }
 
-        String sql = "INSERT INTO item (title, done, created_on) " +
-                     "             VALUES (:title, :done, :createdOn)" ;
+    /**
+     * Create a new Todo entry.
+     *
+     * @return The entry as created, with its new id
+     */
+    public Todo createNewTodo(Todo todo) throws TodoServiceException {
+        Lock change = changeLock.readLock();
+        change.lock();
+        long started = System.nanoTime();
+        try {
+            long id = store.create(todo);
+            TodoStats counts = stats;
+            if (counts != null) {
+                counts.add(todo);
+            }
+            versions.touch(id);
+            //A new id cannot have other changes in flight, so no lock is needed
+            Todo created = withId(id, todo);
+            changes.publish(TodoChangeFeed.Type.create, Long.toString(id), created);
+            return created;
+        } catch(TodoServiceException ex) {
+            createQuery.failed();
+            throw ex;
+        } finally {
+            cache.invalidateList();
+            change.unlock();
+            createQuery.record(started);
+        }
+    }
 
-        try (Connection conn = db.open()) {
-            conn.createQuery(sql)
-                .bind(todo)
-                .executeUpdate();
-        } catch(Sql2oException ex) {
-            logger.error("TodoService.createNewTodo: Failed to create new entry", ex);
-            throw new TodoServiceException("TodoService.createNewTodo: Failed to create new entry", ex);
+    /**
+     * Apply a batch of create, update and delete operations atomically.
+     *
+     * Updates and deletes of ids that do not exist do not abort the batch; they are
+     * reported with status 404 in the results. A storage error rolls back the whole
+     * batch.
+     *
+     * @param ops The operations, as validated by {@link TodoBatch#parse}
+     * @return The result of each operation, in the order of the request
+     */
+    public List<TodoBatch.Result> applyBatch(List<TodoBatch.Operation> ops) throws TodoServiceException {
+        List<TodoBatch.Result> results = null;
+        TreeSet<Integer> locked = new TreeSet<>();
+        for (TodoBatch.Operation op : ops) {
+            if (op.getOp() != TodoBatch.Type.create) {
+                locked.add(idLock(Long.parseLong(op.getId())));
+            }
+        }
+        //In ascending order, so that concurrent batches cannot deadlock
+        for (int i : locked) {
+            idLocks[i].lock();
+        }
+        Lock change = changeLock.readLock();
+        change.lock();
+        long started = System.nanoTime();
+        try {
+            TodoStats counts = stats;
+            Map<Long, Todo> before = counts == null ? null : findExisting(ops);
+            results = store.applyBatch(ops);
+            if (counts != null) {
+                count(counts, before, ops, results);
+            }
+            for (int i = 0; i < results.size(); i++) {
+                TodoBatch.Result result = results.get(i);
+                if (result.getStatus() == 404) {
+                    continue;
+                }
+                long id = Long.parseLong(result.getId());
+                Todo todo = result.getOp() == TodoBatch.Type.delete ? null : withId(id, ops.get(i).getTodo());
+                changes.publish(TodoChangeFeed.Type.valueOf(result.getOp().name()), result.getId(), todo);
+            }
+            return results;
+        } catch(TodoServiceException ex) {
+            batchQuery.failed();
+            throw ex;
+        } finally {
+            //Before the locks are released, so that no request sees the new entries with
+            //the old stamps
+            cache.invalidateList();
+            //A failed batch is rolled back, so only a successful one changed any entries
+            if (results != null) {
+                for (TodoBatch.Result result : results) {
+                    long id = Long.parseLong(result.getId());
+                    cache.invalidate(id);
+                    versions.touch(id);
+                }
+            }
+            change.unlock();
+            for (int i : locked.descendingSet()) {
+                idLocks[i].unlock();
+            }
+            batchQuery.record(started);
         }
     }
 
@@ -88,44 +395,65 @@ public class TodoService {
      * @return The Todo corresponding to the id if one is found, otherwise null
      */
     public Todo find(String id) throws TodoServiceException {
-        String sql = "SELECT * FROM item WHERE item_id = :itemId ";
+        long itemId = Long.parseLong(id);
+        Todo cached = cache.get(itemId);
+        if (cached != null) {
+            return cached;
+        }
 
-        try (Connection conn = db.open()) {
-            return conn.createQuery(sql)
-                .addParameter("itemId", Integer.parseInt(id))
-                .addColumnMapping("item_id", "id")
-                .addColumnMapping("created_on", "createdOn")
-                .executeAndFetchFirst(Todo.class);
-        } catch(Sql2oException ex) {
-            logger.error(String.format("TodoService.find: Failed to query database for id: %s", id), ex);
-            throw new TodoServiceException(String.format("TodoService.find: Failed to query database for id: %s", id), ex);
+        long generation = cache.generation();
+        long started = System.nanoTime();
+        try {
+            Todo todo = store.find(itemId);
+            if (todo != null) {
+                cache.put(generation, todo);
+            }
+            return todo;
+        } catch(TodoServiceException ex) {
+            findQuery.failed();
+            throw ex;
+        } finally {
+            findQuery.record(started);
         }
     }
 
     /**
      * Update the specified Todo entry with new information
      */
-    public Todo update(String todoId, String body) throws TodoServiceException {
-        Todo todo = new Gson().fromJson(body, Todo.class);
-
-        String sql = "UPDATE item SET title = :title, done = :done, created_on = :createdOn WHERE item_id = :itemId ";
-        try (Connection conn = db.open()) {
-            //Update the item
-            conn.createQuery(sql)
-                    .bind(todo)  // one-liner to map all Todo object fields to query parameters :title etc
-                    .addParameter("itemId", Integer.parseInt(todoId))
-                    .executeUpdate();
-
-            //Verify that we did indeed update something
-            if (getChangedRows(conn) != 1) {
-                logger.error(String.format("TodoService.update: Update operation did not update rows. Incorrect id(?): %s", todoId));
-                throw new TodoServiceException(String.format("TodoService.update: Update operation did not update rows. Incorrect id (?): %s", todoId), null);
+    public Todo update(String todoId, Todo todo) throws TodoServiceException {
+        long itemId = Long.parseLong(todoId);
+        boolean updated;
+        ReentrantLock lock = idLocks[idLock(itemId)];
+        lock.lock();
+        Lock change = changeLock.readLock();
+        change.lock();
+        long started = System.nanoTime();
+        try {
+            Todo before = store.update(itemId, todo);
+            updated = before != null;
+            if (updated) {
+                TodoStats counts = stats;
+                if (counts != null) {
+                    counts.replace(before, todo);
+                }
+                changes.publish(TodoChangeFeed.Type.update, todoId, withId(itemId, todo));
             }
-        } catch(Sql2oException ex) {
-            logger.error(String.format("TodoService.update: Failed to update database for id: %s", todoId), ex);
-            throw new TodoServiceException(String.format("TodoService.update: Failed to update database for id: %s", todoId), ex);
+        } catch(TodoServiceException ex) {
+            updateQuery.failed();
+            throw ex;
+        } finally {
+            cache.invalidate(itemId);
+            versions.touch(itemId);
+            change.unlock();
+            lock.unlock();
+            updateQuery.record(started);
         }
 
+        //Verify that we did indeed update something
+        if (!updated) {
+            logger.error(String.format("TodoService.update: Update operation did not update rows. Incorrect id(?): %s", todoId));
+            throw new TodoServiceException(String.format("TodoService.update: Update operation did not update rows. Incorrect id (?): %s", todoId), null);
+        }
         return find(todoId);
     }
 
@@ -133,24 +461,140 @@ public class TodoService {
      * Delete the entry with the specified id
      */
     public void delete(String todoId) throws TodoServiceException {
-        String sql = "DELETE FROM item WHERE item_id = :itemId" ;
-        try (Connection conn = db.open()) {
-            //Delete the item
-            conn.createQuery(sql)
-                .addParameter("itemId", Integer.parseInt(todoId))
-                .executeUpdate();
-
-            //Verify that we did indeed change something
-            if (getChangedRows(conn) != 1) {
-                logger.error(String.format("TodoService.delete: Delete operation did not delete rows. Incorrect id(?): %s", todoId));
-                throw new TodoServiceException(String.format("TodoService.delete: Delete operation did not delete rows. Incorrect id(?): %s", todoId), null);
+        long itemId = Long.parseLong(todoId);
+        boolean deleted;
+        ReentrantLock lock = idLocks[idLock(itemId)];
+        lock.lock();
+        Lock change = changeLock.readLock();
+        change.lock();
+        long started = System.nanoTime();
+        try {
+            Todo before = store.delete(itemId);
+            deleted = before != null;
+            if (deleted) {
+                TodoStats counts = stats;
+                if (counts != null) {
+                    counts.remove(before);
+                }
+                changes.publish(TodoChangeFeed.Type.delete, todoId, null);
             }
-        } catch(Sql2oException ex) {
-            logger.error(String.format("TodoService.update: Failed to delete id: %s", todoId), ex);
-            throw new TodoServiceException(String.format("TodoService.update: Failed to delete id: %s", todoId), ex);
+        } catch(TodoServiceException ex) {
+            deleteQuery.failed();
+            throw ex;
+        } finally {
+            cache.invalidate(itemId);
+            versions.touch(itemId);
+            change.unlock();
+            lock.unlock();
+            deleteQuery.record(started);
+        }
+
+        //Verify that we did indeed change something
+        if (!deleted) {
+            logger.error(String.format("TodoService.delete: Delete operation did not delete rows. Incorrect id(?): %s", todoId));
+            throw new TodoServiceException(String.format("TodoService.delete: Delete operation did not delete rows. Incorrect id(?): %s", todoId), null);
+        }
+    }
+
+    /**
+     * Write a snapshot of every entry, in id order.
+     *
+     * @param snapshot Visits every entry, then is finished; the caller closes it
+     * @return The number of entries written
+     */
+    public long exportSnapshot(TodoSnapshot.Writer snapshot) throws TodoServiceException, IOException {
+        long[] exported = new long[1];
+        forEachTodo(todo -> {
+            snapshot.visit(todo);
+            exported[0]++;
+        });
+        snapshot.finish();
+        return exported[0];
+    }
+
+    /**
+     * Replace every entry with those of a snapshot, keeping their ids. Changes wait
+     * until it is done. Clients following the change feed are told to fetch the list
+     * again, and the counts of stats() are those of the snapshot.
+     *
+     * @return The number of entries restored
+     */
+    public long restore(TodoSnapshot.Reader snapshot) throws TodoServiceException, IOException {
+        TodoStats counted = new TodoStats();
+        changeLock.writeLock().lock();
+        long started = System.nanoTime();
+        try {
+            long restored = store.restore(() -> {
+                Todo todo = snapshot.next();
+                if (todo != null) {
+                    counted.add(todo);
+                }
+                return todo;
+            });
+            stats = counted;
+            return restored;
+        } catch(TodoServiceException | IOException ex) {
+            restoreQuery.failed();
+            throw ex;
+        } finally {
+            //Harmless if nothing changed
+            cache.clear();
+            versions.touchAll();
+            changes.reset();
+            changeLock.writeLock().unlock();
+            restoreQuery.record(started);
         }
     }
 
+    /**
+     * Count the entries, the done ones and those created each day, if that has not been
+     * done yet. Bootstrap calls it while the server starts, so that no request waits for
+     * the count; otherwise the first request that needs the counts makes it.
+     */
+    public void countStats() throws TodoServiceException {
+        counts();
+    }
+
+    /**
+     * Count the entries, the done ones and those created each day. The first call, unless
+     * countStats() came first, counts the whole list, holding up changes while it does;
+     * after that the counts are kept up to date by every change, and served without
+     * touching the store.
+     *
+     * @return The counts as of the last change
+     */
+    public TodoStats.Snapshot stats() throws TodoServiceException {
+        return counts().snapshot();
+    }
+
+    /**
+     * @return The version stamps of the list and its entries, bumped by every change
+     */
+    public TodoVersions getVersions() {
+        return versions;
+    }
+
+    /**
+     * @return The feed of this service's changes
+     */
+    public TodoChangeFeed getChanges() {
+        return changes;
+    }
+
+    /**
+     * @return The timings of this service's store accesses, and of the requests using it
+     */
+    public TodoMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return The cache in front of find() and findAll()
+     */
+    public TodoCache getCache() {
+        return cache;
+    }
+
     //-----------------------------------------------------------------------------//
     // Helper Classes and Methods
     //-----------------------------------------------------------------------------//
@@ -162,11 +606,92 @@ public class TodoService {
     }
 
     /**
-     * This Sqlite specific method returns the number of rows changed by the most recent
-     * INSERT, UPDATE, DELETE operation. Note that you MUST use the same connection to get
-     * this information
+     * Callback used by {@link #forEachTodo(TodoVisitor)}.
+     */
+    public interface TodoVisitor {
+        void visit(Todo todo) throws IOException;
+    }
+
+    /**
+     * @return The entries that the updates and deletes of a batch apply to, as they are
+     *         before it; ids without an entry map to null
+     */
+    private Map<Long, Todo> findExisting(List<TodoBatch.Operation> ops) throws TodoServiceException {
+        Map<Long, Todo> existing = new HashMap<>();
+        for (TodoBatch.Operation op : ops) {
+            if (op.getOp() != TodoBatch.Type.create) {
+                long id = Long.parseLong(op.getId());
+                if (!existing.containsKey(id)) {
+                    existing.put(id, store.find(id));
+                }
+            }
+        }
+        return existing;
+    }
+
+    /**
+     * @return The counts kept up to date by every change, counting the list first if
+     *         that has not been done yet
+     */
+    private TodoStats counts() throws TodoServiceException {
+        TodoStats counts = stats;
+        if (counts != null) {
+            return counts;
+        }
+
+        changeLock.writeLock().lock();
+        long started = System.nanoTime();
+        try {
+            if (stats == null) {
+                TodoStats counted = new TodoStats();
+                store.forEach(counted::add);
+                stats = counted;
+            }
+            return stats;
+        } catch(IOException ex) {
+            //Counting does no I/O of its own
+            statsQuery.failed();
+            throw new TodoServiceException("TodoService.stats: Failed to count the list", ex);
+        } catch(TodoServiceException ex) {
+            statsQuery.failed();
+            throw ex;
+        } finally {
+            changeLock.writeLock().unlock();
+            statsQuery.record(started);
+        }
+    }
+
+    /**
+     * Count the changes a batch made, in order, since later operations may change the
+     * entries of earlier ones.
      */
-    private int getChangedRows(Connection conn) throws Sql2oException {
-        return conn.createQuery("SELECT changes()").executeScalar(Integer.class);
+    private static void count(TodoStats counts, Map<Long, Todo> entries, List<TodoBatch.Operation> ops,
+                              List<TodoBatch.Result> results) {
+        for (int i = 0; i < results.size(); i++) {
+            TodoBatch.Result result = results.get(i);
+            if (result.getStatus() == 404) {
+                continue;
+            }
+            Todo todo = ops.get(i).getTodo();
+            switch (result.getOp()) {
+                case create:
+                    counts.add(todo);
+                    break;
+                case update:
+                    counts.replace(entries.put(Long.parseLong(result.getId()), todo), todo);
+                    break;
+                case delete:
+                    counts.remove(entries.put(Long.parseLong(result.getId()), null));
+                    break;
+            }
+        }
+    }
+
+    private static int idLock(long id) {
+        return (int) (id & (ID_LOCKS - 1));
+    }
+
+    private static Todo withId(long id, Todo todo) {
+        return new Todo(Long.toString(id), todo.getTitle(), todo.isDone(), todo.getCreatedOn());
     }
 }
@@ -0,0 +1,75 @@
+package com.todoapp;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Picks the shard for a key by consistent hashing: every shard owns many points on a
+ * ring of 64-bit hashes, and a key goes to the owner of the first point at or after its
+ * own hash. Keys spread evenly over the shards, and adding a shard only moves the keys
+ * that the new shard takes over, about 1/n of them, rather than nearly all as with
+ * hash modulo n.
+ */
+public class TodoShardRouter {
+
+    public static final int DEFAULT_POINTS_PER_SHARD = 160;
+
+    private final TreeMap<Long, Integer> ring = new TreeMap<>();
+    private final int shards;
+
+    /**
+     * @param shards The number of shards, numbered from 0
+     * @param pointsPerShard How many points each shard owns; more spread keys more evenly
+     */
+    public TodoShardRouter(int shards, int pointsPerShard) {
+        if (shards < 1) {
+            throw new IllegalArgumentException("There must be at least one shard");
+        }
+        this.shards = shards;
+        for (int shard = 0; shard < shards; shard++) {
+            for (int point = 0; point < pointsPerShard; point++) {
+                ring.put(hash("shard-" + shard + "-" + point), shard);
+            }
+        }
+    }
+
+    public TodoShardRouter(int shards) {
+        this(shards, DEFAULT_POINTS_PER_SHARD);
+    }
+
+    /**
+     * @return The shard that owns a key
+     */
+    public int shardFor(String key) {
+        Map.Entry<Long, Integer> owner = ring.ceilingEntry(hash(key));
+        return owner != null ? owner.getValue() : ring.firstEntry().getValue();
+    }
+
+    public int getShards() {
+        return shards;
+    }
+
+    //-----------------------------------------------------------------------------//
+    // Helper Classes and Methods
+    //-----------------------------------------------------------------------------//
+
+    /**
+     * The first 8 bytes of the key's MD5 digest, which spreads similar keys such as
+     * consecutive ids all over the ring.
+     */
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            long hash = 0;
+            for (int i = 0; i < 8; i++) {
+                hash = (hash << 8) | (digest[i] & 0xff);
+            }
+            return hash;
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("MD5 is not available", ex);
+        }
+    }
+}
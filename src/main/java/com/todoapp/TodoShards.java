@@ -0,0 +1,87 @@
+package com.todoapp;
+
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.todoapp.TodoService.TodoServiceException;
+
+/**
+ * The SQLite databases that the lists of TodoLists are spread over, each a file with
+ * connection pools of its own, so each with a write lock of its own.
+ */
+public class TodoShards implements TodoLists.StoreFactory, AutoCloseable {
+
+    private final TodoDatabase[] databases;
+
+    /**
+     * Open every shard, creating its file if necessary.
+     *
+     * @param files The shards' database files, in shard order
+     */
+    public TodoShards(Path[] files, int readers, long maxWaitMillis, long validationIntervalMillis, int busyTimeoutMillis)
+            throws SQLException {
+        databases = new TodoDatabase[files.length];
+        try {
+            for (int i = 0; i < files.length; i++) {
+                databases[i] = new TodoDatabase(files[i], readers, maxWaitMillis, validationIntervalMillis, busyTimeoutMillis);
+            }
+        } catch (SQLException ex) {
+            close();
+            throw ex;
+        }
+    }
+
+    /**
+     * @return The files of n shards next to a database file, e.g. todo-0.db to todo-3.db
+     *         for todo.db
+     */
+    public static Path[] files(Path database, int shards) {
+        String name = database.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+        Path[] files = new Path[shards];
+        for (int i = 0; i < shards; i++) {
+            files[i] = database.resolveSibling(base + "-" + i + extension);
+        }
+        return files;
+    }
+
+    public int size() {
+        return databases.length;
+    }
+
+    /**
+     * @return The connection pools of every shard
+     */
+    public List<ConnectionPool> pools() {
+        List<ConnectionPool> pools = new ArrayList<>();
+        for (TodoDatabase database : databases) {
+            pools.add(database.getWritePool());
+            pools.add(database.getReadPool());
+        }
+        return pools;
+    }
+
+    @Override
+    public SqliteTodoStore open(int shard, String table) throws TodoServiceException {
+        TodoDatabase database = databases[shard];
+        return new SqliteTodoStore(database.getReadDataSource(), database.getWriteDataSource(), table);
+    }
+
+    @Override
+    public void drop(int shard, String table) throws TodoServiceException {
+        open(shard, table).drop();
+    }
+
+    @Override
+    public void close() {
+        for (TodoDatabase database : databases) {
+            if (database != null) {
+                database.close();
+            }
+        }
+    }
+}
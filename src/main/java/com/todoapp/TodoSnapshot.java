@@ -0,0 +1,548 @@
+package com.todoapp;
+
+import com.google.gson.JsonParseException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Snapshots of a whole list, for backing it up and restoring it, in one of two formats:
+ *
+ * <ul>
+ * <li>binary: the magic bytes "TODOSNAP", a format version (int), then one record per
+ *     entry, each an int length followed by the id (long), a flags byte (1 = done,
+ *     2 = no title), the creation time in epoch milliseconds (long, Long.MIN_VALUE if
+ *     none) and the title in UTF-8. A length of -1 ends the records and is followed by
+ *     their count (long), so a truncated snapshot is recognised. Numbers are big-endian.</li>
+ * <li>ndjson: one todo per line, as JSON, ids included.</li>
+ * </ul>
+ *
+ * Files are read and written through memory mappings, a window at a time, so the
+ * operating system moves the bytes without copying them through stream buffers.
+ */
+public final class TodoSnapshot {
+
+    public enum Format {
+        binary("application/octet-stream"), ndjson("application/x-ndjson");
+
+        private final String contentType;
+
+        Format(String contentType) {
+            this.contentType = contentType;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        /**
+         * @return ndjson for names ending in .ndjson or .jsonl, binary otherwise
+         */
+        public static Format ofFile(Path file) {
+            String name = file.getFileName().toString();
+            return name.endsWith(".ndjson") || name.endsWith(".jsonl") ? ndjson : binary;
+        }
+    }
+
+    /**
+     * The entries of a snapshot, read one at a time.
+     */
+    public interface Reader extends Closeable {
+        /**
+         * @return The next entry, with its id, or null after the last one
+         * @throws FormatException if the snapshot is malformed or truncated
+         */
+        Todo next() throws IOException;
+
+        @Override
+        default void close() throws IOException {
+        }
+    }
+
+    /**
+     * Writes a snapshot of the entries it visits; {@link #finish()} completes it.
+     */
+    public interface Writer extends TodoService.TodoVisitor, Closeable {
+        /**
+         * Write whatever ends the snapshot and flush it.
+         */
+        void finish() throws IOException;
+    }
+
+    /**
+     * A snapshot that cannot be read.
+     */
+    public static class FormatException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public FormatException(String message) {
+            super(message);
+        }
+    }
+
+    private static final byte[] MAGIC = "TODOSNAP".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final int END = -1;
+
+    private static final byte DONE = 1;
+    private static final byte NO_TITLE = 2;
+    private static final long NO_DATE = Long.MIN_VALUE;
+
+    //id, flags and creation time
+    private static final int FIXED_BYTES = 8 + 1 + 8;
+    //Larger lengths can only come from a corrupt snapshot
+    private static final int MAX_RECORD_BYTES = 1 << 20;
+
+    //How much of a file is mapped at once
+    private static final int WINDOW_BYTES = 64 << 20;
+
+    private TodoSnapshot() {
+    }
+
+    public static Reader reader(InputStream in, Format format) throws IOException {
+        return format == Format.binary ? new BinaryReader(in) : new NdjsonReader(in);
+    }
+
+    public static Writer writer(OutputStream out, Format format) throws IOException {
+        return format == Format.binary ? new BinaryWriter(out) : new NdjsonWriter(out);
+    }
+
+    /**
+     * Read a snapshot file in the format its name suggests, see {@link Format#ofFile(Path)}.
+     */
+    public static Reader open(Path file) throws IOException {
+        if (Format.ofFile(file) == Format.ndjson) {
+            return new NdjsonReader(new MappedInputStream(file));
+        }
+        return new MappedReader(file);
+    }
+
+    /**
+     * Write a snapshot file in the format its name suggests, replacing the file.
+     */
+    public static Writer create(Path file) throws IOException {
+        MappedOutputStream out = new MappedOutputStream(file);
+        return Format.ofFile(file) == Format.ndjson ? new NdjsonWriter(out) : new BinaryWriter(out);
+    }
+
+    //-----------------------------------------------------------------------------//
+    // Binary format
+    //-----------------------------------------------------------------------------//
+
+    private static class BinaryWriter implements Writer {
+        private final OutputStream out;
+        private ByteBuffer record = ByteBuffer.allocate(256);
+        private long count;
+
+        BinaryWriter(OutputStream out) throws IOException {
+            this.out = out instanceof MappedOutputStream ? out : new BufferedOutputStream(out, 64 << 10);
+            this.out.write(MAGIC);
+            this.out.write(ByteBuffer.allocate(4).putInt(VERSION).array());
+        }
+
+        @Override
+        public void visit(Todo todo) throws IOException {
+            byte[] title = todo.getTitle() == null ? new byte[0] : todo.getTitle().getBytes(StandardCharsets.UTF_8);
+            int length = FIXED_BYTES + title.length;
+            if (record.capacity() < 4 + length) {
+                record = ByteBuffer.allocate(4 + length);
+            }
+            record.clear();
+            record.putInt(length)
+                  .putLong(Long.parseLong(todo.getId()))
+                  .put((byte) ((todo.isDone() ? DONE : 0) | (todo.getTitle() == null ? NO_TITLE : 0)))
+                  .putLong(todo.getCreatedOn() == null ? NO_DATE : todo.getCreatedOn().getTime())
+                  .put(title);
+            out.write(record.array(), 0, record.position());
+            count++;
+        }
+
+        @Override
+        public void finish() throws IOException {
+            out.write(ByteBuffer.allocate(12).putInt(END).putLong(count).array());
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    private static class BinaryReader implements Reader {
+        private final DataInputStream in;
+        private byte[] record = new byte[256];
+        private long count;
+        private boolean ended;
+
+        BinaryReader(InputStream in) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(in, 64 << 10));
+            byte[] header = new byte[MAGIC.length + 4];
+            try {
+                this.in.readFully(header);
+            } catch (EOFException ex) {
+                throw new FormatException("Not a todo snapshot");
+            }
+            checkHeader(ByteBuffer.wrap(header));
+        }
+
+        @Override
+        public Todo next() throws IOException {
+            if (ended) {
+                return null;
+            }
+            int length;
+            try {
+                length = in.readInt();
+                if (length == END) {
+                    ended = true;
+                    checkCount(in.readLong(), count);
+                    return null;
+                }
+                checkLength(length);
+                if (record.length < length) {
+                    record = new byte[length];
+                }
+                in.readFully(record, 0, length);
+            } catch (EOFException ex) {
+                throw new FormatException(String.format("Snapshot ends after %d entries without its trailer", count));
+            }
+            count++;
+            return decode(ByteBuffer.wrap(record, 0, length), length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads a binary snapshot file straight from a mapping of it.
+     */
+    private static class MappedReader implements Reader {
+        private final FileChannel channel;
+        private final long size;
+        private MappedByteBuffer window;
+        private long windowStart;
+        private long count;
+        private boolean ended;
+
+        MappedReader(Path file) throws IOException {
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+            size = channel.size();
+            try {
+                map(0);
+                if (window.remaining() < MAGIC.length + 4) {
+                    throw new FormatException("Not a todo snapshot");
+                }
+                checkHeader(window);
+            } catch (IOException ex) {
+                channel.close();
+                throw ex;
+            }
+        }
+
+        @Override
+        public Todo next() throws IOException {
+            if (ended) {
+                return null;
+            }
+            ensure(4);
+            int length = window.getInt();
+            if (length == END) {
+                ended = true;
+                ensure(8);
+                checkCount(window.getLong(), count);
+                return null;
+            }
+            checkLength(length);
+            ensure(length);
+            count++;
+            return decode(window, length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            window = null;
+            channel.close();
+        }
+
+        /**
+         * Make sure the next bytes are in the window, moving it forward if need be.
+         */
+        private void ensure(int bytes) throws IOException {
+            if (window.remaining() >= bytes) {
+                return;
+            }
+            long position = windowStart + window.position();
+            if (size - position < bytes) {
+                throw new FormatException(String.format("Snapshot ends after %d entries without its trailer", count));
+            }
+            map(position);
+        }
+
+        private void map(long position) throws IOException {
+            windowStart = position;
+            window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW_BYTES, size - position));
+        }
+    }
+
+    private static void checkHeader(ByteBuffer header) throws FormatException {
+        byte[] magic = new byte[MAGIC.length];
+        header.get(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new FormatException("Not a todo snapshot");
+        }
+        int version = header.getInt();
+        if (version != VERSION) {
+            throw new FormatException(String.format("Unsupported snapshot version %d", version));
+        }
+    }
+
+    private static void checkLength(int length) throws FormatException {
+        if (length < FIXED_BYTES || length > MAX_RECORD_BYTES) {
+            throw new FormatException(String.format("Invalid record length %d", length));
+        }
+    }
+
+    private static void checkCount(long expected, long count) throws FormatException {
+        if (expected != count) {
+            throw new FormatException(String.format("Snapshot should hold %d entries but holds %d", expected, count));
+        }
+    }
+
+    /**
+     * Read one record of the given length, without its length, from the buffer's position.
+     */
+    private static Todo decode(ByteBuffer buffer, int length) throws FormatException {
+        long id = buffer.getLong();
+        byte flags = buffer.get();
+        long createdOn = buffer.getLong();
+        int titleLength = length - FIXED_BYTES;
+        String title;
+        if ((flags & NO_TITLE) != 0) {
+            buffer.position(buffer.position() + titleLength);
+            title = null;
+        } else if (buffer.hasArray()) {
+            title = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), titleLength, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + titleLength);
+        } else {
+            byte[] bytes = new byte[titleLength];
+            buffer.get(bytes);
+            title = new String(bytes, StandardCharsets.UTF_8);
+        }
+        if (id <= 0) {
+            throw new FormatException(String.format("Invalid id %d", id));
+        }
+        return new Todo(Long.toString(id), title, (flags & DONE) != 0, createdOn == NO_DATE ? null : new Date(createdOn));
+    }
+
+    //-----------------------------------------------------------------------------//
+    // NDJSON format
+    //-----------------------------------------------------------------------------//
+
+    private static class NdjsonWriter implements Writer {
+        private final java.io.Writer out;
+
+        NdjsonWriter(OutputStream out) {
+            this.out = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 64 << 10);
+        }
+
+        @Override
+        public void visit(Todo todo) throws IOException {
+            TodoJson.GSON.toJson(todo, Todo.class, out);
+            out.write('\n');
+        }
+
+        @Override
+        public void finish() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    private static class NdjsonReader implements Reader {
+        private final BufferedReader in;
+        private long line;
+
+        NdjsonReader(InputStream in) {
+            this.in = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 64 << 10);
+        }
+
+        @Override
+        public Todo next() throws IOException {
+            String text;
+            do {
+                text = in.readLine();
+                if (text == null) {
+                    return null;
+                }
+                line++;
+            } while (text.isBlank());
+
+            Todo todo;
+            try {
+                todo = TodoJson.readTodo(new StringReader(text));
+            } catch (JsonParseException ex) {
+                throw new FormatException(String.format("Line %d is not a todo: %s", line, ex.getMessage()));
+            }
+            try {
+                if (todo.getId() == null || Long.parseLong(todo.getId()) <= 0) {
+                    throw new NumberFormatException();
+                }
+            } catch (NumberFormatException ex) {
+                throw new FormatException(String.format("Line %d has no valid id", line));
+            }
+            return todo;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    //-----------------------------------------------------------------------------//
+    // Memory-mapped files
+    //-----------------------------------------------------------------------------//
+
+    /**
+     * Reads a file through a window mapped over it, moved along as it is read.
+     */
+    private static class MappedInputStream extends InputStream {
+        private final FileChannel channel;
+        private final long size;
+        private MappedByteBuffer window;
+        private long windowEnd;
+
+        MappedInputStream(Path file) throws IOException {
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+            size = channel.size();
+        }
+
+        @Override
+        public int read() throws IOException {
+            return available() == 0 ? -1 : window.get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            int available = available();
+            if (available == 0) {
+                return -1;
+            }
+            int read = Math.min(length, available);
+            window.get(bytes, offset, read);
+            return read;
+        }
+
+        /**
+         * @return The bytes left in the window, after moving it on if it is used up
+         */
+        @Override
+        public int available() throws IOException {
+            if (window == null || !window.hasRemaining()) {
+                if (windowEnd == size) {
+                    return 0;
+                }
+                long length = Math.min(WINDOW_BYTES, size - windowEnd);
+                window = channel.map(FileChannel.MapMode.READ_ONLY, windowEnd, length);
+                windowEnd += length;
+            }
+            return window.remaining();
+        }
+
+        @Override
+        public void close() throws IOException {
+            window = null;
+            channel.close();
+        }
+    }
+
+    /**
+     * Writes a file through a window mapped past its end, which grows the file as it is
+     * moved along. Closing cuts the file to the bytes written.
+     */
+    private static class MappedOutputStream extends OutputStream {
+        private final FileChannel channel;
+        private MappedByteBuffer window;
+        private long windowStart;
+
+        MappedOutputStream(Path file) throws IOException {
+            channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+            window = channel.map(FileChannel.MapMode.READ_WRITE, 0, WINDOW_BYTES);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (!window.hasRemaining()) {
+                advance();
+            }
+            window.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (!window.hasRemaining()) {
+                    advance();
+                }
+                int written = Math.min(length, window.remaining());
+                window.put(bytes, offset, written);
+                offset += written;
+                length -= written;
+            }
+        }
+
+        @Override
+        public void flush() {
+            window.force();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (window == null) {
+                return;
+            }
+            long size = windowStart + window.position();
+            window.force();
+            window = null;
+            try {
+                channel.truncate(size);
+            } finally {
+                channel.close();
+            }
+        }
+
+        private void advance() throws IOException {
+            window.force();
+            windowStart += window.position();
+            window = channel.map(FileChannel.MapMode.READ_WRITE, windowStart, WINDOW_BYTES);
+        }
+    }
+}
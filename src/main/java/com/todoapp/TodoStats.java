@@ -0,0 +1,117 @@
+package com.todoapp;
+
+import java.time.ZoneOffset;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Counts of the entries of a list: how many there are, how many are done, and how many
+ * were created on each day (in UTC). TodoService keeps them up to date as it changes the
+ * list, so serving them does not depend on the size of the list.
+ */
+public class TodoStats {
+
+    /**
+     * The counts at one point in time, as served at /todos/stats.
+     */
+    public static class Snapshot {
+        private final long total;
+        private final long done;
+        private final long open;
+        private final Map<String, Long> createdPerDay;
+
+        Snapshot(long total, long done, Map<String, Long> createdPerDay) {
+            this.total = total;
+            this.done = done;
+            this.open = total - done;
+            this.createdPerDay = createdPerDay;
+        }
+
+        public long getTotal() {
+            return total;
+        }
+
+        public long getDone() {
+            return done;
+        }
+
+        public long getOpen() {
+            return open;
+        }
+
+        /**
+         * @return The number of entries created on each day, as yyyy-mm-dd, oldest first;
+         *         entries without a creation time are not counted
+         */
+        public Map<String, Long> getCreatedPerDay() {
+            return createdPerDay;
+        }
+    }
+
+    //Changed with the lock held, read without it
+    private volatile long total;
+    private volatile long done;
+    private final TreeMap<String, Long> createdPerDay = new TreeMap<>();
+
+    public long getTotal() {
+        return total;
+    }
+
+    public long getDone() {
+        return done;
+    }
+
+    public long getOpen() {
+        return total - done;
+    }
+
+    public synchronized void add(Todo todo) {
+        total++;
+        if (todo.isDone()) {
+            done++;
+        }
+        String day = day(todo);
+        if (day != null) {
+            createdPerDay.merge(day, 1L, Long::sum);
+        }
+    }
+
+    /**
+     * @param todo The entry as it was; nothing is counted if null
+     */
+    public synchronized void remove(Todo todo) {
+        if (todo == null) {
+            return;
+        }
+        total--;
+        if (todo.isDone()) {
+            done--;
+        }
+        String day = day(todo);
+        if (day != null) {
+            createdPerDay.computeIfPresent(day, (d, count) -> count == 1 ? null : count - 1);
+        }
+    }
+
+    /**
+     * @param before The entry as it was; if null, the entry is only added
+     */
+    public synchronized void replace(Todo before, Todo after) {
+        remove(before);
+        add(after);
+    }
+
+    /**
+     * Copies the counts per day, so only /todos/stats takes one; the totals are read
+     * with the getters.
+     */
+    public synchronized Snapshot snapshot() {
+        return new Snapshot(total, done, Collections.unmodifiableMap(new TreeMap<>(createdPerDay)));
+    }
+
+    private static String day(Todo todo) {
+        return todo.getCreatedOn() == null ? null
+                : todo.getCreatedOn().toInstant().atOffset(ZoneOffset.UTC).toLocalDate().toString();
+    }
+}
@@ -0,0 +1,84 @@
+package com.todoapp;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Where todos are kept. {@link TodoService} adds caching, version stamps and metrics
+ * on top of a store, so implementations only deal with storage. Ids are positive and
+ * never reused.
+ *
+ * Implementations must be thread-safe, and report storage failures as
+ * TodoServiceException after logging them.
+ */
+public interface TodoStore {
+
+    /**
+     * @return All entries in id order
+     */
+    List<Todo> findAll() throws TodoService.TodoServiceException;
+
+    /**
+     * Visit every entry in id order.
+     */
+    void forEach(TodoService.TodoVisitor visitor) throws TodoService.TodoServiceException, IOException;
+
+    /**
+     * @return One page of entries as described by {@link TodoService#findPage(TodoQuery)},
+     *         but with a total of -1: TodoService counts the entries itself
+     */
+    TodoPage findPage(TodoQuery query) throws TodoService.TodoServiceException;
+
+    /**
+     * @return One page of search results as described by {@link TodoService#search(TodoSearch)}
+     */
+    TodoPage search(TodoSearch search) throws TodoService.TodoServiceException;
+
+    /**
+     * Every change gets a version, higher than that of any change before it. The
+     * versions of deleted entries are kept, so that deletes are reported too.
+     *
+     * @param since Only changes with a higher version are returned
+     * @param limit The most changes to return
+     * @return The changes after since, as described by {@link TodoService#changesSince(long, int)}
+     */
+    TodoDelta changesSince(long since, int limit) throws TodoService.TodoServiceException;
+
+    /**
+     * Add an entry; its id is ignored.
+     *
+     * @return The id assigned to the new entry
+     */
+    long create(Todo todo) throws TodoService.TodoServiceException;
+
+    /**
+     * Apply a batch of operations atomically, as described by {@link TodoService#applyBatch(List)}.
+     */
+    List<TodoBatch.Result> applyBatch(List<TodoBatch.Operation> ops) throws TodoService.TodoServiceException;
+
+    /**
+     * @return The entry with the given id, or null if there is none
+     */
+    Todo find(long id) throws TodoService.TodoServiceException;
+
+    /**
+     * Replace the title, done flag and creation time of an entry.
+     *
+     * @return The entry as it was, or null if there is no entry with the given id
+     */
+    Todo update(long id, Todo todo) throws TodoService.TodoServiceException;
+
+    /**
+     * @return The entry as it was, or null if there is no entry with the given id
+     */
+    Todo delete(long id) throws TodoService.TodoServiceException;
+
+    /**
+     * Replace every entry with those of a snapshot, keeping their ids, all at once: if the
+     * snapshot cannot be read, nothing changes. Entries that are not in the snapshot are
+     * reported as deleted by changesSince(), and those that are as changed.
+     *
+     * @return The number of entries restored
+     */
+    long restore(TodoSnapshot.Reader snapshot) throws TodoService.TodoServiceException, IOException;
+}
@@ -0,0 +1,95 @@
+package com.todoapp;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Version stamps for the todo list and for individual todos, bumped by every change
+ * TodoService makes. They let the controller answer conditional GETs (If-None-Match,
+ * If-Modified-Since) without touching the database.
+ *
+ * Stamps are only tracked for todos changed since startup, and at most for a fixed
+ * number of them. Every other todo shares a "floor" stamp that is at least as new as
+ * its last change: the startup time, or the time the tracked stamps were last dropped
+ * to stay within bounds. ETags carry an epoch that is new on every start, so clients
+ * never match a stamp from a previous run.
+ */
+public class TodoVersions {
+
+    public static final int DEFAULT_MAX_TRACKED = 100000;
+
+    /**
+     * A version number and the time it was assigned.
+     */
+    public static class Stamp {
+        private final long version;
+        private final long modifiedMillis;
+
+        Stamp(long version, long modifiedMillis) {
+            this.version = version;
+            this.modifiedMillis = modifiedMillis;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public long getModifiedMillis() {
+            return modifiedMillis;
+        }
+    }
+
+    private final String epoch;
+    private final int maxTracked;
+
+    private final ConcurrentHashMap<Long, Stamp> items = new ConcurrentHashMap<>();
+    private volatile Stamp floor;
+    private volatile Stamp collection;
+    private long lastVersion = 0;
+
+    public TodoVersions(int maxTracked) {
+        this.maxTracked = maxTracked;
+        this.epoch = Long.toString(System.currentTimeMillis(), 36);
+        this.floor = new Stamp(0, System.currentTimeMillis());
+        this.collection = floor;
+    }
+
+    /**
+     * Record a change to one todo, which is also a change to the list.
+     */
+    public synchronized void touch(long id) {
+        Stamp stamp = new Stamp(++lastVersion, System.currentTimeMillis());
+        if (items.size() >= maxTracked) {
+            //Forget individual stamps; everything untracked is now as new as this change
+            floor = stamp;
+            items.clear();
+        }
+        items.put(id, stamp);
+        collection = stamp;
+    }
+
+    /**
+     * Record a change to every todo, such as a restore of the whole list.
+     */
+    public synchronized void touchAll() {
+        Stamp stamp = new Stamp(++lastVersion, System.currentTimeMillis());
+        floor = stamp;
+        items.clear();
+        collection = stamp;
+    }
+
+    public Stamp collection() {
+        return collection;
+    }
+
+    public Stamp item(long id) {
+        Stamp stamp = items.get(id);
+        return stamp != null ? stamp : floor;
+    }
+
+    /**
+     * @return The strong ETag header value for a stamp
+     */
+    public String etag(Stamp stamp) {
+        return "\"" + epoch + "-" + stamp.version + "\"";
+    }
+}
@@ -0,0 +1,600 @@
+package com.todoapp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.todoapp.TodoService.TodoServiceException;
+
+/**
+ * A TodoStore in front of an SQLite store that acknowledges changes once they are in a
+ * durable log, instead of once they are committed to the database. A background
+ * writer applies the logged changes to the item table in group commits: whenever
+ * flushSize records are waiting, flushInterval after the first one arrived, or when a
+ * reader needs them. At startup, whatever the log still holds is applied before
+ * anything else happens, so acknowledged changes survive a crash.
+ *
+ * Ids are assigned here rather than by SQLite. Reads of single entries see acknowledged
+ * changes through an in-memory overlay; listings, pages, searches and deltas first wait for
+ * the writer to apply everything acknowledged so far. A change is acknowledged, and only
+ * then visible or written, once its record is synced; if the sync fails, it and every
+ * record after it are dropped from memory and from the log. When maxPending records are
+ * waiting, writers block until the background writer catches up, and fail after
+ * maxWait.
+ */
+public class WriteBehindTodoStore implements TodoStore, AutoCloseable {
+
+    /**
+     * A change not yet applied to the database: the new entry, or null once deleted.
+     */
+    private static class Pending {
+        final long seq;
+        final Todo todo;
+
+        Pending(long seq, Todo todo) {
+            this.seq = seq;
+            this.todo = todo;
+        }
+    }
+
+    private final SqliteTodoStore store;
+    private final MutationLog log;
+    private final long flushIntervalNanos;
+    private final int flushSize;
+    private final int maxPending;
+    private final long maxWaitNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    //Signalled when the writer has work: a full group, a waiting reader, or shutdown
+    private final Condition work = lock.newCondition();
+    //Signalled when the writer has applied records
+    private final Condition applied = lock.newCondition();
+
+    //Guarded by lock. Logged records not yet applied, synced ones first
+    private final ArrayDeque<MutationLog.Record> pending = new ArrayDeque<>();
+    //Changes of the records not yet synced, which only writers see
+    private final Map<Long, Pending> staged = new HashMap<>();
+    //Records dropped after another writer's sync failed, whose own writers are still to fail
+    private final Set<MutationLog.Record> aborted = Collections.newSetFromMap(new IdentityHashMap<>());
+    private long nextId;
+    private long appendedSeq;
+    private long syncedSeq;
+    private long appliedSeq;
+    private boolean flushRequested;
+    private boolean closing;
+
+    //Changes of the records synced but not yet applied
+    private final Map<Long, Pending> overlay = new ConcurrentHashMap<>();
+    private final Thread writer;
+
+    private final Logger logger = LoggerFactory.getLogger(WriteBehindTodoStore.class);
+
+    /**
+     * Replay the log into the database and start the background writer.
+     *
+     * @param store The database to write behind
+     * @param logPrefix The path of the log segments, without their number
+     * @param flushIntervalMillis How long a change may wait before it is applied
+     * @param flushSize How many waiting records trigger a group commit straight away
+     * @param maxPending How many records may wait before writers block
+     * @param maxWaitMillis How long writers wait for room, and readers for pending changes
+     */
+    public WriteBehindTodoStore(SqliteTodoStore store, Path logPrefix, long flushIntervalMillis, int flushSize,
+                                int maxPending, long maxWaitMillis) throws TodoServiceException {
+        this.store = store;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+        this.flushSize = flushSize;
+        this.maxPending = maxPending;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+
+        try {
+            log = new MutationLog(logPrefix);
+        } catch (IOException ex) {
+            logger.error(String.format("Failed to open the write-behind log %s", logPrefix), ex);
+            throw new TodoServiceException(String.format("Failed to open the write-behind log %s", logPrefix), ex);
+        }
+
+        //Crash recovery: whatever is still in the log may not have reached the database
+        List<MutationLog.Record> recovered = log.getRecovered();
+        if (!recovered.isEmpty()) {
+            store.applyAssigned(flatten(recovered));
+            long last = recovered.get(recovered.size() - 1).getSeq();
+            appendedSeq = last;
+            syncedSeq = last;
+            appliedSeq = last;
+            release(last);
+            logger.info(String.format("Replayed %d records from the write-behind log", recovered.size()));
+        }
+        nextId = store.maxId() + 1;
+
+        writer = new Thread(this::runWriter, "todo-write-behind");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public List<Todo> findAll() throws TodoServiceException {
+        awaitApplied();
+        return store.findAll();
+    }
+
+    @Override
+    public void forEach(TodoService.TodoVisitor visitor) throws TodoServiceException, IOException {
+        awaitApplied();
+        store.forEach(visitor);
+    }
+
+    @Override
+    public TodoPage findPage(TodoQuery query) throws TodoServiceException {
+        awaitApplied();
+        return store.findPage(query);
+    }
+
+    @Override
+    public TodoPage search(TodoSearch search) throws TodoServiceException {
+        awaitApplied();
+        return store.search(search);
+    }
+
+    @Override
+    public TodoDelta changesSince(long since, int limit) throws TodoServiceException {
+        awaitApplied();
+        return store.changesSince(since, limit);
+    }
+
+    @Override
+    public long create(Todo todo) throws TodoServiceException {
+        List<TodoBatch.Result> results = applyBatch(Collections.singletonList(new TodoBatch.Operation(TodoBatch.Type.create, null, todo)));
+        return Long.parseLong(results.get(0).getId());
+    }
+
+    /**
+     * The batch is one log record, so it is replayed all or nothing, and the background
+     * writer never splits it across group commits.
+     */
+    @Override
+    public List<TodoBatch.Result> applyBatch(List<TodoBatch.Operation> ops) throws TodoServiceException {
+        return apply(ops, null);
+    }
+
+    @Override
+    public Todo find(long id) throws TodoServiceException {
+        Pending change = overlay.get(id);
+        if (change != null) {
+            return change.todo;
+        }
+        //Not pending, or applied and committed before it was dropped from the overlay
+        return store.find(id);
+    }
+
+    @Override
+    public Todo update(long id, Todo todo) throws TodoServiceException {
+        Todo[] before = new Todo[1];
+        apply(Collections.singletonList(new TodoBatch.Operation(TodoBatch.Type.update, Long.toString(id), todo)), before);
+        return before[0];
+    }
+
+    @Override
+    public Todo delete(long id) throws TodoServiceException {
+        Todo[] before = new Todo[1];
+        apply(Collections.singletonList(new TodoBatch.Operation(TodoBatch.Type.delete, Long.toString(id), null)), before);
+        return before[0];
+    }
+
+    /**
+     * Waits for everything acknowledged so far to be written, then restores straight into
+     * the database. The caller must not make changes meanwhile, as TodoService does not.
+     */
+    @Override
+    public long restore(TodoSnapshot.Reader snapshot) throws TodoServiceException, IOException {
+        awaitApplied();
+        long restored = store.restore(snapshot);
+        lock.lock();
+        try {
+            nextId = Math.max(nextId, store.maxId() + 1);
+        } finally {
+            lock.unlock();
+        }
+        return restored;
+    }
+
+    /**
+     * Apply everything still pending and stop the background writer. If the database
+     * fails, the changes stay in the log and are applied at the next start.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closing = true;
+            work.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            log.close(appliedSeq);
+        } catch (IOException ex) {
+            logger.error("Failed to close the write-behind log", ex);
+        }
+    }
+
+    //-----------------------------------------------------------------------------//
+    // Helper Classes and Methods
+    //-----------------------------------------------------------------------------//
+
+    /**
+     * The background writer: wait for work, apply every acknowledged record in one
+     * transaction, then drop the applied records from the queue, overlay and log.
+     */
+    private void runWriter() {
+        while (true) {
+            List<MutationLog.Record> group;
+            lock.lock();
+            try {
+                long deadline = 0;
+                while (!closing && !flushRequested && syncedSeq - appliedSeq < flushSize) {
+                    if (syncedSeq == appliedSeq) {
+                        work.await();
+                        continue;
+                    }
+                    if (deadline == 0) {
+                        deadline = System.nanoTime() + flushIntervalNanos;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    work.awaitNanos(remaining);
+                }
+                flushRequested = false;
+                if (syncedSeq == appliedSeq) {
+                    if (closing) {
+                        return;
+                    }
+                    continue;
+                }
+                //Only acknowledged records; the rest may yet be dropped
+                group = new ArrayList<>();
+                for (MutationLog.Record record : pending) {
+                    if (record.getSeq() > syncedSeq) {
+                        break;
+                    }
+                    group.add(record);
+                }
+            } catch (InterruptedException ex) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                store.applyAssigned(flatten(group));
+            } catch (TodoServiceException ex) {
+                //Already logged by the store; the records stay queued and in the log
+                if (isClosing()) {
+                    return;
+                }
+                try {
+                    Thread.sleep(Math.max(100, TimeUnit.NANOSECONDS.toMillis(flushIntervalNanos)));
+                } catch (InterruptedException iex) {
+                    return;
+                }
+                continue;
+            }
+
+            long last = group.get(group.size() - 1).getSeq();
+            lock.lock();
+            try {
+                for (int i = 0; i < group.size(); i++) {
+                    pending.poll();
+                }
+                appliedSeq = last;
+                for (MutationLog.Record record : group) {
+                    for (TodoBatch.Operation op : record.getOps()) {
+                        overlay.computeIfPresent(Long.parseLong(op.getId()), (id, change) -> change.seq <= last ? null : change);
+                    }
+                }
+                applied.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            release(last);
+        }
+    }
+
+    /**
+     * Log a batch as one record, and once it is synced, make its changes visible.
+     *
+     * @param before If not null, gets the entry each update or delete applied to, as it
+     *               was, or null if there was none
+     */
+    private List<TodoBatch.Result> apply(List<TodoBatch.Operation> ops, Todo[] before) throws TodoServiceException {
+        TodoBatch.Result[] results = new TodoBatch.Result[ops.size()];
+        MutationLog.Record record = null;
+
+        lock.lock();
+        try {
+            //The entries in the database, as of appliedSeq == fetchedSeq
+            Map<Long, Todo> stored = new HashMap<>();
+            long fetchedSeq = -1;
+            while (true) {
+                awaitRoom();
+                if (fetchedSeq != appliedSeq) {
+                    stored.clear();
+                }
+                List<Long> missing = new ArrayList<>();
+                for (TodoBatch.Operation op : ops) {
+                    if (op.getOp() != TodoBatch.Type.create) {
+                        long id = Long.parseLong(op.getId());
+                        if (pendingChange(id) == null && !stored.containsKey(id)) {
+                            missing.add(id);
+                        }
+                    }
+                }
+                if (missing.isEmpty()) {
+                    break;
+                }
+
+                //Read the database without the lock; if the writer applies anything
+                //meanwhile, the answers may be stale and are read again
+                fetchedSeq = appliedSeq;
+                lock.unlock();
+                try {
+                    for (long id : missing) {
+                        stored.put(id, store.find(id));
+                    }
+                } finally {
+                    lock.lock();
+                }
+            }
+
+            //The entries as they are, given the operations of this batch seen so far
+            Map<Long, Todo> current = new HashMap<>();
+            List<TodoBatch.Operation> logged = new ArrayList<>();
+            for (int i = 0; i < ops.size(); i++) {
+                TodoBatch.Operation op = ops.get(i);
+                if (op.getOp() == TodoBatch.Type.create) {
+                    long id = nextId++;
+                    Todo created = withId(id, op.getTodo());
+                    logged.add(new TodoBatch.Operation(op.getOp(), Long.toString(id), created));
+                    current.put(id, created);
+                    results[i] = new TodoBatch.Result(op.getOp(), Long.toString(id), 201);
+                    continue;
+                }
+
+                long id = Long.parseLong(op.getId());
+                Todo found;
+                if (current.containsKey(id)) {
+                    found = current.get(id);
+                } else {
+                    Pending change = pendingChange(id);
+                    found = change != null ? change.todo : stored.get(id);
+                }
+                if (found != null) {
+                    Todo changed = op.getOp() == TodoBatch.Type.delete ? null : withId(id, op.getTodo());
+                    logged.add(new TodoBatch.Operation(op.getOp(), op.getId(), changed));
+                    current.put(id, changed);
+                }
+                if (before != null) {
+                    before[i] = found;
+                }
+                results[i] = new TodoBatch.Result(op.getOp(), op.getId(), found != null ? 200 : 404);
+            }
+
+            if (!logged.isEmpty()) {
+                try {
+                    record = log.append(logged);
+                } catch (IOException ex) {
+                    logger.error("WriteBehindTodoStore.applyBatch: Failed to append to the log", ex);
+                    throw new TodoServiceException("WriteBehindTodoStore.applyBatch: Failed to append to the log", ex);
+                }
+                pending.add(record);
+                appendedSeq = record.getSeq();
+                for (TodoBatch.Operation op : logged) {
+                    staged.put(Long.parseLong(op.getId()), new Pending(record.getSeq(), op.getTodo()));
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        //Outside the lock, so that concurrent writers share one fsync
+        if (record != null) {
+            IOException failure = null;
+            try {
+                syncLog(record.getSeq());
+            } catch (IOException ex) {
+                failure = ex;
+            }
+            lock.lock();
+            try {
+                if (aborted.remove(record)) {
+                    logger.error("WriteBehindTodoStore.applyBatch: Dropped after an earlier record failed to sync");
+                    throw new TodoServiceException("WriteBehindTodoStore.applyBatch: Dropped after an earlier record failed to sync", failure);
+                }
+                if (failure != null && record.getSeq() > syncedSeq) {
+                    abort(record, failure);
+                }
+                if (record.getSeq() > syncedSeq) {
+                    publish(record.getSeq());
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * @return The last logged change to an entry, or null if none is waiting. Called
+     *         with the lock held.
+     */
+    private Pending pendingChange(long id) {
+        Pending change = staged.get(id);
+        return change != null ? change : overlay.get(id);
+    }
+
+    /**
+     * Acknowledge the records up to the given sequence number, now that they are on disk:
+     * make their changes visible, and let the writer apply them. Called with the lock held.
+     */
+    private void publish(long seq) {
+        for (MutationLog.Record record : pending) {
+            if (record.getSeq() > seq) {
+                break;
+            }
+            if (record.getSeq() <= syncedSeq) {
+                continue;
+            }
+            for (TodoBatch.Operation op : record.getOps()) {
+                long id = Long.parseLong(op.getId());
+                overlay.put(id, new Pending(record.getSeq(), op.getTodo()));
+                staged.computeIfPresent(id, (key, change) -> change.seq <= seq ? null : change);
+            }
+        }
+        syncedSeq = seq;
+        if (syncedSeq - appliedSeq >= flushSize) {
+            work.signal();
+        }
+    }
+
+    /**
+     * The given record failed to sync: drop it and every record after it, from memory and
+     * from the log, failing their writers too. Records the log reports as synced after all
+     * are published instead. Called with the lock held.
+     */
+    private void abort(MutationLog.Record failed, IOException cause) throws TodoServiceException {
+        long kept = syncedSeq;
+        try {
+            kept = Math.max(kept, log.abort());
+        } catch (IOException ex) {
+            //The dropped records may still be replayed at the next start
+            logger.error("WriteBehindTodoStore: Failed to drop unsynced records from the log", ex);
+        }
+        if (kept > syncedSeq) {
+            publish(kept);
+        }
+        if (failed.getSeq() <= kept) {
+            return;
+        }
+
+        for (Iterator<MutationLog.Record> it = pending.descendingIterator(); it.hasNext(); ) {
+            MutationLog.Record record = it.next();
+            if (record.getSeq() <= kept) {
+                break;
+            }
+            it.remove();
+            if (record != failed) {
+                aborted.add(record);
+            }
+        }
+        staged.clear();
+        appendedSeq = kept;
+        logger.error(String.format("WriteBehindTodoStore.applyBatch: Failed to sync the log, dropped records after %d", kept), cause);
+        throw new TodoServiceException("WriteBehindTodoStore.applyBatch: Failed to sync the log", cause);
+    }
+
+    /**
+     * Wait until there is room for another record. Called with the lock held.
+     */
+    private void awaitRoom() throws TodoServiceException {
+        long remaining = maxWaitNanos;
+        try {
+            while (pending.size() >= maxPending) {
+                if (remaining <= 0) {
+                    logger.error(String.format("WriteBehindTodoStore: %d records waiting to be written, rejecting the change", pending.size()));
+                    throw new TodoServiceException(String.format("WriteBehindTodoStore: %d records waiting to be written, rejecting the change", pending.size()), null);
+                }
+                work.signal();
+                remaining = applied.awaitNanos(remaining);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new TodoServiceException("WriteBehindTodoStore: Interrupted while waiting for the writer", ex);
+        }
+    }
+
+    /**
+     * Wait until every change acknowledged so far is in the database.
+     */
+    private void awaitApplied() throws TodoServiceException {
+        lock.lock();
+        try {
+            long target = syncedSeq;
+            long remaining = maxWaitNanos;
+            while (appliedSeq < target) {
+                if (remaining <= 0) {
+                    logger.error("WriteBehindTodoStore: Timed out waiting for pending changes to be written");
+                    throw new TodoServiceException("WriteBehindTodoStore: Timed out waiting for pending changes to be written", null);
+                }
+                flushRequested = true;
+                work.signal();
+                remaining = applied.awaitNanos(remaining);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new TodoServiceException("WriteBehindTodoStore: Interrupted while waiting for the writer", ex);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean isClosing() {
+        lock.lock();
+        try {
+            return closing;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait until the record with the given sequence number is on disk. Tests override it to
+     * simulate a failing disk.
+     */
+    void syncLog(long seq) throws IOException {
+        log.sync(seq);
+    }
+
+    private void release(long seq) {
+        try {
+            log.release(seq);
+        } catch (IOException ex) {
+            //Harmless: the segments are replayed, to no further effect, at the next start
+            logger.warn("Failed to delete applied write-behind log segments", ex);
+        }
+    }
+
+    private static List<TodoBatch.Operation> flatten(List<MutationLog.Record> records) {
+        List<TodoBatch.Operation> ops = new ArrayList<>();
+        for (MutationLog.Record record : records) {
+            ops.addAll(record.getOps());
+        }
+        return ops;
+    }
+
+    private static Todo withId(long id, Todo todo) {
+        return new Todo(Long.toString(id), todo.getTitle(), todo.isDone(), todo.getCreatedOn());
+    }
+}
@@ -27,9 +27,66 @@ app.config(function ($routeProvider) {
 
 app.controller('ListCtrl', function ($scope, $http, $location) {
 
+    var pageSize = 100;
+
+    //Follows changes made by anyone, so the list is only fetched again when the server says so
+    var feed = null;
+
+    //Changes that arrive while the list is loading; applied again once it is in, which is
+    //harmless since a change sets an entry to its new state
+    var pending = null;
+
     $scope.getTodos = function() {
-        $http.get('/api/v1/todos').success(function (data) {
+        pending = [];
+        $http.get('/api/v1/todos', {params: {limit: pageSize}}).success(function (data, status, headers) {
             $scope.todos = data;
+            $scope.total = parseInt(headers('X-Total-Count'), 10);
+            $scope.nextCursor = headers('X-Next-Cursor');
+            var changes = pending;
+            pending = null;
+            changes.forEach(applyChange);
+        }).error(function (data, status) {
+            pending = null;
+            console.log('Error ' + data)
+        })
+    }
+
+    function applyChange(change) {
+        if (pending) {
+            pending.push(change);
+            return;
+        }
+        if (!$scope.todos) {
+            return;
+        }
+        var index = -1;
+        for (var i = 0; i < $scope.todos.length; i++) {
+            if ($scope.todos[i].id === change.id) {
+                index = i;
+                break;
+            }
+        }
+        if (change.type === 'delete') {
+            if (index >= 0) {
+                $scope.todos.splice(index, 1);
+                $scope.total--;
+            }
+        } else if (index >= 0) {
+            $scope.todos[index] = change.todo;
+        } else if (change.type === 'create') {
+            $scope.total++;
+            //New entries come last; if more pages are left, "Load more" will fetch them
+            if (!$scope.nextCursor) {
+                $scope.todos.push(change.todo);
+            }
+        }
+    }
+
+    $scope.loadMore = function() {
+        $http.get('/api/v1/todos', {params: {limit: pageSize, cursor: $scope.nextCursor}}).success(function (data, status, headers) {
+            $scope.todos = $scope.todos.concat(data);
+            $scope.total = parseInt(headers('X-Total-Count'), 10);
+            $scope.nextCursor = headers('X-Next-Cursor');
         }).error(function (data, status) {
             console.log('Error ' + data)
         })
@@ -48,13 +105,33 @@ app.controller('ListCtrl', function ($scope, $http, $location) {
         console.log(todo);
         $http.delete('/api/v1/todos/' + todo.id).success(function (data) {
             console.log('Todo deleted');
-            $scope.getTodos();
+            if (!feed) {
+                $scope.getTodos();
+            }
         }).error(function (data, status) {
             console.log('Error ' + data)
         })
     }
 
-    $scope.getTodos();
+    if (window.EventSource) {
+        //The feed starts with a reset, which loads the list, and sends another one whenever
+        //it cannot resume after a reconnect
+        feed = new EventSource('/api/v1/todos/events');
+        feed.addEventListener('reset', function () {
+            $scope.$apply($scope.getTodos);
+        });
+        feed.addEventListener('change', function (event) {
+            var change = JSON.parse(event.data);
+            $scope.$apply(function () {
+                applyChange(change);
+            });
+        });
+        $scope.$on('$destroy', function () {
+            feed.close();
+        });
+    } else {
+        $scope.getTodos();
+    }
 });
 
 app.controller('CreateCtrl', function ($scope, $http, $location) {
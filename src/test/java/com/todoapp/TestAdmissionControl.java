@@ -0,0 +1,90 @@
+package com.todoapp;
+
+import org.sqlite.SQLiteDataSource;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.SQLTimeoutException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class TestAdmissionControl {
+
+    private File dbFile;
+    private ConnectionPool pool;
+    private long now = 0;
+
+    @Before
+    public void setup() throws Exception {
+        dbFile = File.createTempFile("admission", ".db");
+        SQLiteDataSource dataSource = new SQLiteDataSource();
+        dataSource.setUrl("jdbc:sqlite:" + dbFile.getAbsolutePath());
+        pool = new ConnectionPool(dataSource, "test", 1, 2000, 0);
+    }
+
+    @After
+    public void tearDown() {
+        pool.close();
+        dbFile.delete();
+    }
+
+    @Test
+    public void testConcurrency() throws Exception {
+        AdmissionControl admission = new AdmissionControl(2, 0, 100, Collections.emptyList(), () -> now);
+        assertEquals(AdmissionControl.Verdict.admitted, admission.admit());
+        assertEquals(AdmissionControl.Verdict.admitted, admission.admit());
+        assertEquals(AdmissionControl.Verdict.concurrency, admission.admit());
+        assertEquals(2, admission.running());
+        admission.done();
+        assertEquals(AdmissionControl.Verdict.admitted, admission.admit());
+    }
+
+    @Test
+    public void testQueueDelay() throws Exception {
+        AdmissionControl admission = new AdmissionControl(0, 10, 100, Collections.singletonList(pool), () -> now);
+
+        //A request that waits 100 ms for the only connection
+        Connection held = pool.getConnection();
+        Thread waiter = new Thread(() -> {
+            try (Connection conn = pool.getConnection()) {
+                //Only waiting matters
+                assertFalse(conn.isClosed());
+            } catch (Exception ex) {
+                throw new RuntimeException(ex);
+            }
+        });
+        waiter.start();
+        Thread.sleep(100);
+        held.close();
+        waiter.join();
+
+        assertEquals("Nothing is refused before the interval is over", AdmissionControl.Verdict.admitted, admission.admit());
+        now += TimeUnit.MILLISECONDS.toNanos(100);
+        assertEquals(AdmissionControl.Verdict.queueDelay, admission.admit());
+        assertTrue(admission.queueDelayNanos() > TimeUnit.MILLISECONDS.toNanos(10));
+        assertEquals(AdmissionControl.Verdict.queueDelay, admission.admit());
+
+        //An interval without waits lets requests through again
+        now += TimeUnit.MILLISECONDS.toNanos(100);
+        assertEquals(AdmissionControl.Verdict.admitted, admission.admit());
+    }
+
+    @Test
+    public void testTimeouts() throws Exception {
+        ConnectionPool impatient = new ConnectionPool(pool, "impatient", 1, 1, 0);
+        AdmissionControl admission = new AdmissionControl(0, 1000, 100, Collections.singletonList(impatient), () -> now);
+        try (Connection held = impatient.getConnection()) {
+            assertFalse(held.isClosed());
+            impatient.getConnection();
+            fail("The only connection is in use");
+        } catch (SQLTimeoutException expected) {
+            //expected
+        }
+        now += TimeUnit.MILLISECONDS.toNanos(100);
+        assertEquals(AdmissionControl.Verdict.queueDelay, admission.admit());
+        impatient.close();
+    }
+}
@@ -0,0 +1,124 @@
+package com.todoapp;
+
+import org.sqlite.SQLiteDataSource;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLTimeoutException;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class TestConnectionPool {
+
+    private File dbFile;
+    private ConnectionPool pool;
+
+    @Before
+    public void setup() throws Exception {
+        dbFile = File.createTempFile("pool", ".db");
+        SQLiteDataSource dataSource = new SQLiteDataSource();
+        dataSource.setUrl("jdbc:sqlite:" + dbFile.getAbsolutePath());
+        pool = new ConnectionPool(dataSource, "test", 2, 100, 0);
+    }
+
+    @After
+    public void tearDown() {
+        pool.close();
+        dbFile.delete();
+    }
+
+    @Test
+    public void testConnectionsAreReused() throws Exception {
+        pool.warmUp();
+        assertEquals("Warm-up should open every connection", 2, pool.getOpenCount());
+
+        for (int i = 0; i < 10; i++) {
+            try (Connection conn = pool.getConnection()) {
+                assertFalse(conn.isClosed());
+            }
+        }
+        assertEquals("Returned connections should be reused", 2, pool.getOpenCount());
+        assertEquals(2, pool.getIdleCount());
+        assertEquals(10, pool.getBorrowCount());
+    }
+
+    @Test
+    public void testClosedLeaseCannotBeUsed() throws Exception {
+        Connection conn = pool.getConnection();
+        conn.close();
+        assertTrue(conn.isClosed());
+        try {
+            conn.createStatement();
+            fail("Using a returned connection should fail");
+        } catch (java.sql.SQLException expected) {
+            //expected
+        }
+    }
+
+    @Test
+    public void testTimesOutWhenExhausted() throws Exception {
+        try (Connection c1 = pool.getConnection(); Connection c2 = pool.getConnection()) {
+            assertNotSame(c1, c2);
+            try {
+                pool.getConnection();
+                fail("Pool should not hand out more than its maximum size");
+            } catch (SQLTimeoutException expected) {
+                assertEquals(1, pool.getTimeoutCount());
+            }
+        }
+    }
+
+    @Test
+    public void testStatementsAreReused() throws Exception {
+        try (Connection conn = pool.getConnection()) {
+            conn.createStatement().executeUpdate("CREATE TABLE t (x INTEGER)");
+            conn.createStatement().executeUpdate("INSERT INTO t VALUES (1), (2)");
+        }
+        String sql = "SELECT COUNT(*) FROM t WHERE x > ?";
+        PreparedStatement first;
+        try (Connection conn = pool.getConnection()) {
+            first = conn.prepareStatement(sql);
+            first.setInt(1, 0);
+            //Left open and half read, as a careless caller might
+            ResultSet results = first.executeQuery();
+            assertTrue(results.next());
+            assertEquals(2, results.getInt(1));
+            first.close();
+            assertTrue(first.isClosed());
+        }
+
+        //The statement is idle, so another connection can write...
+        try (Connection c1 = pool.getConnection(); Connection c2 = pool.getConnection()) {
+            assertFalse(c1.isClosed());
+            c2.createStatement().executeUpdate("INSERT INTO t VALUES (3)");
+        }
+        //...and the write is seen when the statement is reused
+        for (int i = 0; i < 2; i++) {
+            try (Connection conn = pool.getConnection(); PreparedStatement statement = conn.prepareStatement(sql)) {
+                assertSame(conn, statement.getConnection());
+                statement.setInt(1, 0);
+                try (ResultSet results = statement.executeQuery()) {
+                    assertTrue(results.next());
+                    assertEquals(3, results.getInt(1));
+                }
+            }
+        }
+
+        //Closing the connection puts back a statement its caller never closed
+        PreparedStatement forgotten;
+        try (Connection conn = pool.getConnection()) {
+            forgotten = conn.prepareStatement(sql);
+            forgotten.setInt(1, 0);
+            assertTrue(forgotten.executeQuery().next());
+        }
+        assertTrue(forgotten.isClosed());
+        try (Connection conn = pool.getConnection()) {
+            conn.createStatement().executeUpdate("DROP TABLE t");
+        }
+        assertEquals(2, pool.getStatementMissCount());
+        assertTrue("Statements should be reused", pool.getStatementHitCount() >= 1);
+    }
+}
@@ -0,0 +1,46 @@
+package com.todoapp;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class TestIdempotencyCache {
+
+    @Test
+    public void testClaims() throws Exception {
+        IdempotencyCache cache = new IdempotencyCache(10, 60000);
+        assertEquals(IdempotencyCache.State.claimed, cache.claim("a", "POST /x 1").getState());
+        assertEquals(IdempotencyCache.State.inProgress, cache.claim("a", "POST /x 1").getState());
+        assertEquals(IdempotencyCache.State.mismatch, cache.claim("a", "POST /x 2").getState());
+
+        IdempotencyCache.Outcome outcome = new IdempotencyCache.Outcome(201, "/x/1", "created");
+        cache.complete("a", outcome);
+        IdempotencyCache.Claim replay = cache.claim("a", "POST /x 1");
+        assertEquals(IdempotencyCache.State.completed, replay.getState());
+        assertSame(outcome, replay.getOutcome());
+
+        //A released key can be claimed again; a completed one cannot be released
+        assertEquals(IdempotencyCache.State.claimed, cache.claim("b", "POST /x 1").getState());
+        cache.release("b");
+        assertEquals(IdempotencyCache.State.claimed, cache.claim("b", "POST /x 1").getState());
+        cache.release("a");
+        assertEquals(IdempotencyCache.State.completed, cache.claim("a", "POST /x 1").getState());
+    }
+
+    @Test
+    public void testBounds() throws Exception {
+        IdempotencyCache cache = new IdempotencyCache(3, 60000);
+        for (int i = 0; i < 5; i++) {
+            cache.claim("key-" + i, "POST /x");
+        }
+        assertEquals(3, cache.size());
+        assertEquals(IdempotencyCache.State.claimed, cache.claim("key-0", "POST /x").getState());
+        assertEquals(IdempotencyCache.State.inProgress, cache.claim("key-4", "POST /x").getState());
+
+        //Keys that outlive their time are forgotten
+        IdempotencyCache expiring = new IdempotencyCache(3, 0);
+        expiring.claim("a", "POST /x");
+        expiring.complete("a", new IdempotencyCache.Outcome(200, null, null));
+        assertEquals(IdempotencyCache.State.claimed, expiring.claim("a", "POST /x").getState());
+        assertFalse(new IdempotencyCache(0, 60000).isEnabled());
+    }
+}
@@ -0,0 +1,39 @@
+package com.todoapp;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class TestLatencyHistogram {
+
+    @Test
+    public void testBucketsCoverEveryValue() {
+        long previous = -1;
+        for (long value : new long[] { 0, 1, 31, 32, 33, 63, 64, 65, 1000, 123456789, LatencyHistogram.MAX_VALUE }) {
+            int index = LatencyHistogram.index(value);
+            long highest = LatencyHistogram.highestEquivalentValue(index);
+            assertTrue("Bucket must contain its value: " + value, highest >= value);
+            assertTrue("Buckets must be within about 3%: " + value, highest - value <= value / 32);
+            assertTrue(index >= previous);
+            previous = index;
+        }
+    }
+
+    @Test
+    public void testQuantiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertArrayEquals(new long[] { 0, 0 }, histogram.valuesAtQuantiles(0.5, 0.99));
+
+        for (long i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000);
+        }
+        histogram.record(-5);
+        assertEquals(1001, histogram.getCount());
+        assertEquals(1000000, histogram.getMax());
+
+        long[] values = histogram.valuesAtQuantiles(0.5, 0.9, 0.99, 1.0);
+        assertEquals(500000, values[0], 500000 / 32);
+        assertEquals(900000, values[1], 900000 / 32);
+        assertEquals(990000, values[2], 990000 / 32);
+        assertEquals(1000000, values[3]);
+    }
+}
@@ -0,0 +1,186 @@
+package com.todoapp;
+
+import org.sqlite.SQLiteDataSource;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class TestMemoryTodoStore {
+
+    private MemoryTodoStore store;
+
+    @Before
+    public void setup() {
+        store = new MemoryTodoStore();
+    }
+
+    @Test
+    public void testCrud() throws Exception {
+        //Enough entries to make every stripe grow and to exercise removal
+        for (int i = 1; i <= 5000; i++) {
+            assertEquals(i, store.create(todo("Test-" + i, i % 2 == 0, i)));
+        }
+        for (long id = 1; id <= 5000; id += 3) {
+            assertEquals("Test-" + id, store.delete(id).getTitle());
+        }
+        assertNull("Deleted twice", store.delete(1));
+        assertNull("Never existed", store.delete(0));
+        assertEquals("Test-2", store.update(2, todo("Changed", true, 2)).getTitle());
+        assertNull(store.update(1, todo("Deleted", true, 1)));
+
+        List<Todo> all = store.findAll();
+        assertEquals(5000 - 1667, all.size());
+        for (Todo todo : all) {
+            long id = Long.parseLong(todo.getId());
+            assertNotEquals(1, id % 3);
+            assertEquals(todo, store.find(id));
+        }
+        assertEquals("Changed", store.find(2).getTitle());
+        assertNull(store.find(4));
+    }
+
+    @Test
+    public void testMatchesSqlite() throws Exception {
+        File dbFile = File.createTempFile("store", ".db");
+        SQLiteDataSource dataSource = new SQLiteDataSource();
+        dataSource.setUrl("jdbc:sqlite:" + dbFile.getAbsolutePath());
+        try {
+            SqliteTodoStore sqlite = new SqliteTodoStore(dataSource, dataSource);
+            List<TodoBatch.Operation> ops = new ArrayList<>();
+            String[] words = { "milk", "bread", "milkshake", "eggs" };
+            for (int i = 0; i < 50; i++) {
+                //Repeat creation times, and leave some out, to test the tie-breaks
+                Date createdOn = i % 7 == 0 ? null : new Date(1420070400000L + (i % 10) * 1000L);
+                ops.add(new TodoBatch.Operation(TodoBatch.Type.create, null,
+                        new Todo(null, words[i % 4] + " " + words[(i / 4) % 4] + " " + i, i % 3 == 0, createdOn)));
+            }
+            ops.add(new TodoBatch.Operation(TodoBatch.Type.delete, "5", null));
+            ops.add(new TodoBatch.Operation(TodoBatch.Type.delete, "500", null));
+            assertEquals(statuses(sqlite.applyBatch(ops)), statuses(store.applyBatch(ops)));
+            assertEquals(sqlite.findAll(), store.findAll());
+
+            for (TodoQuery.SortField sort : TodoQuery.SortField.values()) {
+                for (boolean descending : new boolean[] { false, true }) {
+                    for (Boolean done : new Boolean[] { null, true, false }) {
+                        TodoQuery query = new TodoQuery(done, sort, descending, 7, null);
+                        while (true) {
+                            TodoPage expected = sqlite.findPage(query);
+                            TodoPage actual = store.findPage(query);
+                            assertEquals(expected.getItems(), actual.getItems());
+                            assertEquals(expected.getTotal(), actual.getTotal());
+                            if (expected.getNext() == null) {
+                                assertNull(actual.getNext());
+                                break;
+                            }
+                            assertEquals(expected.getNext().encode(), actual.getNext().encode());
+                            query = new TodoQuery(done, sort, descending, 7, expected.getNext());
+                        }
+                    }
+                }
+            }
+
+            //Versions are handed out the same way, so deltas match exactly
+            assertEquals(sqlite.update(2, todo("Changed", true, 2)), store.update(2, todo("Changed", true, 2)));
+            assertEquals(sqlite.delete(3), store.delete(3));
+            assertNull(sqlite.delete(3));
+            assertNull(store.delete(3));
+            for (long since : new long[] { 0, 40, 52 }) {
+                long version = since;
+                while (true) {
+                    TodoDelta expected = sqlite.changesSince(version, 7);
+                    TodoDelta actual = store.changesSince(version, 7);
+                    assertEquals(expected.getTodos(), actual.getTodos());
+                    assertEquals(expected.getDeleted(), actual.getDeleted());
+                    assertEquals(expected.getVersion(), actual.getVersion());
+                    assertEquals(expected.isMore(), actual.isMore());
+                    if (!expected.isMore()) {
+                        break;
+                    }
+                    version = expected.getVersion();
+                }
+            }
+
+            //Restores hand out versions the same way too
+            long before = sqlite.changesSince(0, 1000).getVersion();
+            List<Todo> snapshot = new ArrayList<>(sqlite.findAll().subList(10, 40));
+            snapshot.add(new Todo("100", "milk restored", false, null));
+            assertEquals(sqlite.restore(TestSqliteTodoStore.reader(snapshot)), store.restore(TestSqliteTodoStore.reader(snapshot)));
+            assertEquals(sqlite.findAll(), store.findAll());
+            TodoDelta expected = sqlite.changesSince(before, 1000);
+            TodoDelta actual = store.changesSince(before, 1000);
+            assertEquals(new HashSet<>(expected.getTodos()), new HashSet<>(actual.getTodos()));
+            assertEquals(new HashSet<>(expected.getDeleted()), new HashSet<>(actual.getDeleted()));
+            assertEquals(expected.getVersion(), actual.getVersion());
+
+            //Each in a version of its own, so that they can be paged through
+            Set<Todo> paged = new HashSet<>();
+            for (TodoDelta page = store.changesSince(before, 7); ; page = store.changesSince(page.getVersion(), 7)) {
+                paged.addAll(page.getTodos());
+                if (!page.isMore()) {
+                    break;
+                }
+            }
+            assertEquals(new HashSet<>(actual.getTodos()), paged);
+            assertEquals(101, store.create(todo("After", false, 0)));
+
+                        //Rankings differ, so only compare what matches
+            for (String q : new String[] { "milk", "MILK bre", "eggs 4", "nothing" }) {
+                TodoSearch search = new TodoSearch(q, 100, 0);
+                assertEquals(new HashSet<>(sqlite.search(search).getItems()), new HashSet<>(store.search(search).getItems()));
+                assertEquals(sqlite.search(search).getTotal(), store.search(search).getTotal());
+            }
+        } finally {
+            dbFile.delete();
+        }
+    }
+
+    @Test
+    public void testConcurrentCreates() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<List<Long>>> futures = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                futures.add(executor.submit(() -> {
+                    List<Long> ids = new ArrayList<>();
+                    for (int i = 0; i < 1000; i++) {
+                        ids.add(store.create(todo("Concurrent", false, i)));
+                    }
+                    return ids;
+                }));
+            }
+            Set<Long> ids = new HashSet<>();
+            for (Future<List<Long>> future : futures) {
+                ids.addAll(future.get());
+            }
+            assertEquals("Ids must be unique", 8000, ids.size());
+            assertEquals(8000, store.findAll().size());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    //------------------------------------------------------------------------//
+    // Helper Methods
+    //------------------------------------------------------------------------//
+
+    private static Todo todo(String title, boolean done, int seconds) {
+        return new Todo(null, title, done, new Date(1420070400000L + seconds * 1000L));
+    }
+
+    private static List<Integer> statuses(List<TodoBatch.Result> results) {
+        List<Integer> statuses = new ArrayList<>();
+        results.forEach(r -> statuses.add(r.getStatus()));
+        return statuses;
+    }
+}
@@ -0,0 +1,56 @@
+package com.todoapp;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class TestRateLimiter {
+
+    private long now = 0;
+
+    @Test
+    public void testBurstAndRefill() throws Exception {
+        RateLimiter limiter = new RateLimiter(10, 3, 100, () -> now);
+        for (int i = 0; i < 3; i++) {
+            assertEquals("A burst should be let through", 0, limiter.acquire("a"));
+        }
+        assertEquals("Another request should wait for a token", TimeUnit.MILLISECONDS.toNanos(100), limiter.acquire("a"));
+        assertEquals("Other clients have buckets of their own", 0, limiter.acquire("b"));
+
+        now += TimeUnit.MILLISECONDS.toNanos(100);
+        assertEquals(0, limiter.acquire("a"));
+        assertTrue(limiter.acquire("a") > 0);
+
+        //Refused requests take no tokens, so a client that waits gets a full burst back
+        now += TimeUnit.SECONDS.toNanos(1);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, limiter.acquire("a"));
+        }
+        assertTrue(limiter.acquire("a") > 0);
+    }
+
+    @Test
+    public void testIdleClientsAreDropped() throws Exception {
+        RateLimiter limiter = new RateLimiter(10, 1, 3, () -> now);
+        for (int i = 0; i < 5; i++) {
+            limiter.acquire("client-" + i);
+        }
+        assertEquals(5, limiter.clients());
+
+        //Once their buckets are full again, they are the same as no bucket
+        now += TimeUnit.SECONDS.toNanos(2);
+        limiter.acquire("client-5");
+        assertEquals(1, limiter.clients());
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        RateLimiter limiter = new RateLimiter(0, 1, 100, () -> now);
+        assertFalse(limiter.isEnabled());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(0, limiter.acquire("a"));
+        }
+        assertEquals(0, limiter.clients());
+    }
+}
@@ -0,0 +1,245 @@
+package com.todoapp;
+
+import org.sql2o.Connection;
+import org.sql2o.Sql2o;
+import org.sql2o.data.Row;
+import org.sqlite.SQLiteDataSource;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class TestSqliteTodoStore {
+
+    private File dbFile;
+    private SQLiteDataSource dataSource;
+
+    @Before
+    public void setup() throws Exception {
+        dbFile = File.createTempFile("store", ".db");
+        dataSource = new SQLiteDataSource();
+        dataSource.setUrl("jdbc:sqlite:" + dbFile.getAbsolutePath());
+    }
+
+    @After
+    public void tearDown() {
+        dbFile.delete();
+    }
+
+    @Test
+    public void testChangesSince() throws Exception {
+        SqliteTodoStore store = new SqliteTodoStore(dataSource, dataSource);
+        for (int i = 1; i <= 5; i++) {
+            store.create(todo("Test-" + i));
+        }
+        TodoDelta all = store.changesSince(0, 100);
+        assertEquals(5, all.getTodos().size());
+        assertEquals(5, all.getVersion());
+        assertFalse(all.isMore());
+
+        //Each entry is reported once, as it is now; a re-created id is no longer deleted
+        assertEquals("Test-2", store.update(2, todo("Changed")).getTitle());
+        assertEquals("Changed", store.update(2, todo("Changed again")).getTitle());
+        assertEquals("Test-4", store.delete(4).getTitle());
+        assertEquals("Test-5", store.delete(5).getTitle());
+        assertNull(store.delete(5));
+        assertNull(store.update(5, todo("Gone")));
+        store.applyAssigned(Collections.singletonList(new TodoBatch.Operation(TodoBatch.Type.create, "5", todo("Back"))));
+        TodoDelta delta = store.changesSince(all.getVersion(), 100);
+        assertEquals(Arrays.asList(new Todo("2", "Changed again", false, new Date(1420070400000L)),
+                                   new Todo("5", "Back", false, new Date(1420070400000L))), delta.getTodos());
+        assertEquals(Collections.singletonList("4"), delta.getDeleted());
+        assertEquals(10, delta.getVersion());
+
+        //Paged in version order
+        TodoDelta first = store.changesSince(all.getVersion(), 1);
+        assertEquals("2", first.getTodos().get(0).getId());
+        assertEquals(Collections.emptyList(), first.getDeleted());
+        assertEquals(7, first.getVersion());
+        assertTrue(first.isMore());
+        TodoDelta rest = store.changesSince(first.getVersion(), 100);
+        assertEquals("5", rest.getTodos().get(0).getId());
+        assertEquals(Collections.singletonList("4"), rest.getDeleted());
+        assertFalse(rest.isMore());
+        assertEquals(0, store.changesSince(rest.getVersion(), 100).getTodos().size());
+
+        //Found through the version indexes rather than by scanning
+        try (Connection conn = new Sql2o(dataSource).open()) {
+            String items = plan(conn, "SELECT item_id FROM item WHERE version > 5 ORDER BY version LIMIT 10");
+            String tombstones = plan(conn, "SELECT item_id FROM item_tombstone WHERE version > 5 ORDER BY version LIMIT 10");
+            assertTrue(items, items.contains("idx_item_version"));
+            assertTrue(tombstones, tombstones.contains("idx_item_tombstone_version"));
+        }
+    }
+
+    @Test
+    public void testRestore() throws Exception {
+        SqliteTodoStore store = new SqliteTodoStore(dataSource, dataSource);
+        for (int i = 1; i <= 3; i++) {
+            store.create(todo("Test-" + i));
+        }
+        long before = store.changesSince(0, 100).getVersion();
+
+        List<Todo> snapshot = Arrays.asList(new Todo("2", "Kept milk", true, null), new Todo("7", "New milk", false, new Date(1420070400000L)));
+        assertEquals(2, store.restore(reader(snapshot)));
+        assertEquals(snapshot, store.findAll());
+
+        //Restored rows are changed and missing ones deleted, each at a version of its own
+        TodoDelta delta = store.changesSince(before, 100);
+        assertEquals(snapshot, delta.getTodos());
+        assertEquals(Arrays.asList("1", "3"), delta.getDeleted());
+        assertEquals(before + 5, delta.getVersion());
+        TodoDelta first = store.changesSince(before, 3);
+        assertTrue(first.isMore());
+        TodoDelta rest = store.changesSince(first.getVersion(), 3);
+        assertEquals(Collections.singletonList(snapshot.get(1)), rest.getTodos());
+        assertFalse(rest.isMore());
+
+        //The indexes, search index and triggers are back
+        assertEquals(2, store.search(TodoSearch.fromParams("milk", null, null)).getTotal());
+        assertEquals(8, store.create(todo("More milk")));
+        assertEquals(3, store.search(TodoSearch.fromParams("milk", null, null)).getTotal());
+        try (Connection conn = new Sql2o(dataSource).open()) {
+            String page = plan(conn, "SELECT item_id FROM item WHERE done = 1 ORDER BY created_on");
+            assertTrue(page, page.contains("idx_item_done_created_on"));
+        }
+
+        //A snapshot that cannot be read changes nothing
+        try {
+            store.restore(() -> {
+                throw new TodoSnapshot.FormatException("Broken");
+            });
+            fail("Restored a broken snapshot");
+        } catch (TodoSnapshot.FormatException ex) {
+            //expected
+        }
+        assertEquals(3, store.findAll().size());
+        assertEquals(3, store.search(TodoSearch.fromParams("milk", null, null)).getTotal());
+    }
+
+    @Test
+    public void testTablesOfTheirOwn() throws Exception {
+        SqliteTodoStore items = new SqliteTodoStore(dataSource, dataSource);
+        SqliteTodoStore list = new SqliteTodoStore(dataSource, dataSource, "list_7");
+        items.create(todo("Milk"));
+        items.create(todo("Eggs"));
+        assertEquals(1, list.create(todo("Milk and honey")));
+
+        //Entries, searches, versions and ids are all kept apart
+        assertEquals(1, list.findAll().size());
+        assertEquals("Milk and honey", list.find(1).getTitle());
+        assertEquals(1, items.search(TodoSearch.fromParams("milk", null, null)).getTotal());
+        assertEquals(1, list.changesSince(0, 10).getVersion());
+        assertEquals(1, list.search(TodoSearch.fromParams("honey", null, null)).getTotal());
+        assertEquals(0, items.search(TodoSearch.fromParams("honey", null, null)).getTotal());
+        assertEquals("Milk and honey", list.delete(1).getTitle());
+        assertEquals(Collections.singletonList("1"), list.changesSince(0, 10).getDeleted());
+        assertEquals(2, items.findAll().size());
+        assertEquals(1, list.maxId());
+
+        //Dropping a list leaves nothing of it behind
+        list.drop();
+        try (Connection conn = new Sql2o(dataSource).open()) {
+            assertEquals(0, (int) conn.createQuery("SELECT COUNT(*) FROM sqlite_master WHERE name LIKE '%list_7%'").executeScalar(Integer.class));
+        }
+        assertEquals(2, items.findAll().size());
+        assertEquals(1, items.search(TodoSearch.fromParams("milk", null, null)).getTotal());
+
+        try {
+            new SqliteTodoStore(dataSource, dataSource, "list; DROP TABLE item");
+            fail("Accepted an invalid table name");
+        } catch (IllegalArgumentException ex) {
+            //expected
+        }
+    }
+
+    @Test
+    public void testVersionsExistingDatabase() throws Exception {
+        //A database from before versioning
+        try (Connection conn = new Sql2o(dataSource).open()) {
+            conn.createQuery("CREATE TABLE item (item_id INTEGER PRIMARY KEY AUTOINCREMENT, title TEXT, done BOOLEAN, created_on TIMESTAMP)")
+                .executeUpdate();
+            for (int i = 1; i <= 3; i++) {
+                conn.createQuery("INSERT INTO item (title, done, created_on) VALUES (:title, 0, :createdOn)")
+                    .addParameter("title", "Old-" + i)
+                    .addParameter("createdOn", new Date(1420070400000L))
+                    .executeUpdate();
+            }
+        }
+
+        SqliteTodoStore store = new SqliteTodoStore(dataSource, dataSource);
+        TodoDelta all = store.changesSince(0, 100);
+        assertEquals(3, all.getTodos().size());
+        assertEquals(3, all.getVersion());
+
+        assertEquals(4, store.create(todo("New")));
+        assertEquals(Collections.singletonList(new Todo("4", "New", false, new Date(1420070400000L))),
+                     store.changesSince(all.getVersion(), 100).getTodos());
+
+        //Opening it again changes nothing
+        new SqliteTodoStore(dataSource, dataSource);
+        assertEquals(4, store.changesSince(0, 100).getVersion());
+    }
+
+    @Test
+    public void testSchemaMigration() throws Exception {
+        new SqliteTodoStore(dataSource, dataSource).create(todo("Milk"));
+        try (Connection conn = new Sql2o(dataSource).open()) {
+            assertEquals(SqliteTodoStore.SCHEMA_VERSION, (int) conn.createQuery("SELECT version FROM schema_version WHERE name = 'item'")
+                    .executeScalar(Integer.class));
+
+            //A schema from before versioning is brought up from where it is
+            conn.createQuery("UPDATE schema_version SET version = 2").executeUpdate();
+            conn.createQuery("DROP TRIGGER item_version_insert").executeUpdate();
+        }
+        SqliteTodoStore store = new SqliteTodoStore(dataSource, dataSource);
+        assertEquals(2, store.create(todo("Eggs")));
+        assertEquals(2, store.changesSince(0, 10).getTodos().size());
+
+        //A current schema is left alone, except that a table dropped behind the store's
+        //back is created again
+        try (Connection conn = new Sql2o(dataSource).open()) {
+            conn.createQuery("DROP INDEX idx_item_done").executeUpdate();
+        }
+        new SqliteTodoStore(dataSource, dataSource);
+        try (Connection conn = new Sql2o(dataSource).open()) {
+            assertEquals(0, (int) conn.createQuery("SELECT COUNT(*) FROM sqlite_master WHERE name = 'idx_item_done'")
+                    .executeScalar(Integer.class));
+        }
+        try (Connection conn = new Sql2o(dataSource).open()) {
+            conn.createQuery("DROP TABLE item").executeUpdate();
+        }
+        assertEquals(0, new SqliteTodoStore(dataSource, dataSource).findAll().size());
+        try (Connection conn = new Sql2o(dataSource).open()) {
+            assertEquals(1, (int) conn.createQuery("SELECT COUNT(*) FROM sqlite_master WHERE name = 'idx_item_done'")
+                    .executeScalar(Integer.class));
+        }
+    }
+
+    //------------------------------------------------------------------------//
+    // Helper Methods
+    //------------------------------------------------------------------------//
+
+    private static String plan(Connection conn, String sql) {
+        StringBuilder plan = new StringBuilder();
+        for (Row row : conn.createQuery("EXPLAIN QUERY PLAN " + sql).executeAndFetchTable().rows()) {
+            plan.append(row.getString("detail")).append('\n');
+        }
+        return plan.toString();
+    }
+
+    static TodoSnapshot.Reader reader(List<Todo> todos) {
+        Iterator<Todo> it = todos.iterator();
+        return () -> it.hasNext() ? it.next() : null;
+    }
+
+    private static Todo todo(String title) {
+        return new Todo(null, title, false, new Date(1420070400000L));
+    }
+}
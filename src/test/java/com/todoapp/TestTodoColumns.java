@@ -0,0 +1,90 @@
+package com.todoapp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class TestTodoColumns {
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        List<Todo> todos = todos(200);
+        TodoColumns columns = TodoColumns.of(todos);
+        assertEquals(todos, columns);
+        assertEquals(todos, new ArrayList<>(columns));
+        assertEquals(todos.get(150), columns.get(150));
+
+        //Titles longer than an arena chunk get one of their own
+        assertTrue(columns.offHeapBytes() >= 8192);
+        assertEquals(200 * 28 + 4 * 8, columns.heapBytes());
+    }
+
+    @Test
+    public void testFlyweight() throws Exception {
+        List<Todo> todos = todos(200);
+        List<String> seen = new ArrayList<>();
+        List<String> expected = new ArrayList<>();
+        TodoColumns.of(todos).visit(todo -> seen.add(todo.getId() + todo.getTitle() + todo.isDone() + todo.getCreatedOn()));
+        for (Todo todo : todos) {
+            expected.add(todo.getId() + todo.getTitle() + todo.isDone() + todo.getCreatedOn());
+        }
+        assertEquals(expected, seen);
+    }
+
+    @Test
+    public void testJson() throws Exception {
+        List<Todo> todos = todos(200);
+        String json = TodoJson.GSON.toJson(new ArrayList<>(todos));
+        assertEquals(json, TodoJson.GSON.toJson(TodoColumns.of(todos)));
+        assertEquals(todos, TodoJson.GSON.fromJson(json, TodoColumns.class));
+        assertEquals("[]", TodoJson.GSON.toJson(TodoColumns.of(Collections.emptyList())));
+    }
+
+    @Test
+    public void testOnlyCachedListsInColumns() throws Exception {
+        TodoCache cache = new TodoCache(2);
+        TodoService service = new TodoService(new MemoryTodoStore(), cache);
+        service.createNewTodo(new Todo(null, "Test-1", false, null));
+        service.createNewTodo(new Todo(null, "Test-2", true, null));
+        assertTrue(service.findAll() instanceof TodoColumns);
+        assertSame(service.findAll(), service.findAllCached());
+
+        //A list larger than the cache is neither put in columns nor kept
+        service.createNewTodo(new Todo(null, "Test-3", false, null));
+        assertNull(service.findAllCached());
+        assertFalse(service.findAll() instanceof TodoColumns);
+        assertEquals(3, service.findAll().size());
+        List<String> ids = new ArrayList<>();
+        service.forEachTodo(todo -> ids.add(todo.getId()));
+        assertEquals(Arrays.asList("1", "2", "3"), ids);
+        assertNull(cache.getAll());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testUnmodifiable() throws Exception {
+        TodoColumns.of(todos(3)).add(new Todo("9", "x", false, null));
+    }
+
+    //------------------------------------------------------------------------//
+    // Helper Methods
+    //------------------------------------------------------------------------//
+
+    private static List<Todo> todos(int count) {
+        char[] longTitle = new char[10000];
+        Arrays.fill(longTitle, 'x');
+        List<Todo> todos = new ArrayList<>();
+        for (int i = 1; i <= count; i++) {
+            String title = i % 50 == 0 ? new String(longTitle)
+                    : i % 7 == 0 ? null
+                    : i % 3 == 0 ? "Cr\u00e8me br\u00fbl\u00e9e \u2713 " + i
+                    : "Test-" + i;
+            todos.add(new Todo(Long.toString(i * 3L), title, i % 2 == 0, i % 5 == 0 ? null : new Date(1429855815123L + i)));
+        }
+        return todos;
+    }
+}
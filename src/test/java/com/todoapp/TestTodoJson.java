@@ -0,0 +1,49 @@
+package com.todoapp;
+
+import com.google.gson.JsonSyntaxException;
+
+import java.io.StringReader;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class TestTodoJson {
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Todo todo = new Todo("7", "Test-1", true, new Date(1429855815123L));
+        String json = TodoJson.GSON.toJson(todo);
+        assertEquals("{\"id\":\"7\",\"title\":\"Test-1\",\"done\":true,\"createdOn\":\"2015-04-24T06:10:15.123Z\"}", json);
+        assertEquals(todo, TodoJson.readTodo(new StringReader(json)));
+    }
+
+    @Test
+    public void testReadsAllDateFormats() throws Exception {
+        Date expected = new Date(1429855815000L);
+        assertEquals(expected, TodoJson.parseDate("2015-04-24T06:10:15Z"));
+        assertEquals(expected, TodoJson.parseDate("2015-04-23T23:10:15-07:00"));
+        assertEquals(expected, TodoJson.parseDate("2015-04-23T23:10:15-0700"));
+
+        //Gson's old default format is in the server's time zone
+        SimpleDateFormat local = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        assertEquals(local.parse("2000-09-01 13:11:11"), TodoJson.parseDate("Sep 1, 2000 1:11:11 PM"));
+        assertEquals(local.parse("2000-09-01 13:11:11"), TodoJson.parseDate("Sep 1, 2000, 1:11:11 PM"));
+
+        Todo todo = TodoJson.readTodo(new StringReader("{\"title\":\"x\",\"createdOn\":1429855815000,\"extra\":[1,2]}"));
+        assertEquals(expected, todo.getCreatedOn());
+        assertNull(todo.getId());
+        assertFalse(todo.isDone());
+    }
+
+    @Test(expected = JsonSyntaxException.class)
+    public void testRejectsTruncatedBody() throws Exception {
+        TodoJson.readTodo(new StringReader("{\"title\":"));
+    }
+
+    @Test(expected = JsonSyntaxException.class)
+    public void testRejectsUnknownDate() throws Exception {
+        TodoJson.readTodo(new StringReader("{\"title\":\"x\",\"createdOn\":\"yesterday\"}"));
+    }
+}
@@ -10,14 +10,22 @@ import org.sqlite.SQLiteDataSource;
 import spark.Spark;
 import spark.utils.IOUtils;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.lang.reflect.Type;
 import java.net.URL;
 import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.*;
+import java.util.zip.GZIPInputStream;
 
 import org.junit.*;
 import static org.junit.Assert.*;
@@ -42,7 +50,7 @@ public class TestTodoServer {
     public void tearDown() {
         //Stop the server
         clearDB();
-        Spark.stop();
+        Bootstrap.stop();
     }
 
     //------------------------------------------------------------------------//
@@ -164,9 +172,610 @@ public class TestTodoServer {
         }
     }
  
+    @Test
+    public void testPagination() throws Exception {
+
+        //Add a few elements, created in the reverse order of their ids
+        SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
+        Todo[] entries = new Todo[] {
+          new Todo(null, "Test-1", false, df.parse("2015-04-23T23:10:15-0700")),
+          new Todo(null, "Test-2", true, df.parse("2015-03-07T01:10:20-0530")),
+          new Todo(null, "Test-3", false, df.parse("2014-02-19T13:25:43-0530")),
+          new Todo(null, "Test-4", true, df.parse("2013-02-19T13:25:43-0530")),
+          new Todo(null, "Test-5", false, df.parse("2012-02-19T13:25:43-0530"))
+        };
+
+        for (Todo t : entries) {
+            Response radd = request("POST", "/api/v1/todos", t);
+            assertEquals("Failed to add", 201, radd.httpStatus);
+        }
+
+        //Walk the list two at a time in creation order, following the cursors
+        List<String> titles = new ArrayList<>();
+        String path = "/api/v1/todos?limit=2&sort=createdOn";
+        int pages = 0;
+        while (true) {
+            Response r = request("GET", path, null);
+            assertEquals("Failed to get todos", 200, r.httpStatus);
+            assertEquals("Mismatch in total count", "5", r.header("X-Total-Count"));
+            getTodos(r).forEach(t -> titles.add(t.getTitle()));
+            pages++;
+
+            String cursor = r.header("X-Next-Cursor");
+            if (cursor == null) {
+                break;
+            }
+            path = "/api/v1/todos?limit=2&sort=createdOn&cursor=" + cursor;
+        }
+        assertEquals("Number of pages differ", 3, pages);
+        assertEquals(Arrays.asList("Test-5", "Test-4", "Test-3", "Test-2", "Test-1"), titles);
+
+        //Filter on the done flag, newest ids first
+        Response r = request("GET", "/api/v1/todos?done=false&order=desc", null);
+        assertEquals("Failed to get todos", 200, r.httpStatus);
+        assertEquals("Mismatch in total count", "3", r.header("X-Total-Count"));
+        assertNull("Unexpected next page", r.header("X-Next-Cursor"));
+        List<String> open = getTodos(r).stream().map(Todo::getTitle).collect(Collectors.toList());
+        assertEquals(Arrays.asList("Test-5", "Test-3", "Test-1"), open);
+    }
+
+    @Test
+    public void testExport() throws Exception {
+
+        //Add a few elements
+        SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
+        Todo[] entries = new Todo[] {
+          new Todo(null, "Test-1", false, df.parse("2015-04-23T23:10:15-0700")),
+          new Todo(null, "Test-2", true, df.parse("2015-03-07T01:10:20-0530")),
+          new Todo(null, "Test-3", false, df.parse("2010-02-19T13:25:43-0530"))
+        };
+
+        for (Todo t : entries) {
+            Response radd = request("POST", "/api/v1/todos", t);
+            assertEquals("Failed to add", 201, radd.httpStatus);
+        }
+
+        //The streamed export should match the regular listing
+        Response r1 = request("GET", "/api/v1/todos/export", null);
+        assertEquals("Failed to export todos", 200, r1.httpStatus);
+        Response r2 = request("GET", "/api/v1/todos", null);
+        assertEquals("Failed to get todos", 200, r2.httpStatus);
+        assertEquals("Mismatch between export and listing", getTodos(r2), getTodos(r1));
+        assertEquals("Number of todo entries differ", entries.length, getTodos(r1).size());
+    }
+
+    @Test
+    public void testSearch() throws Exception {
+
+        //Add a few elements
+        SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
+        String[] titles = { "Buy milk", "milk milk milk", "Milkshake recipe", "Walk the dog", "Bread and butter" };
+        for (String title : titles) {
+            Response radd = request("POST", "/api/v1/todos", new Todo(null, title, false, df.parse("2015-04-23T23:10:15-0700")));
+            assertEquals("Failed to add", 201, radd.httpStatus);
+        }
+
+        //Words match as prefixes, case-insensitively, best match first
+        Response r1 = request("GET", "/api/v1/todos/search?q=MILK", null);
+        assertEquals("Failed to search", 200, r1.httpStatus);
+        assertEquals("Mismatch in total count", "3", r1.header("X-Total-Count"));
+        assertEquals("milk milk milk", getTodos(r1).get(0).getTitle());
+        Response r2 = request("GET", "/api/v1/todos/search?q=milk%20rec", null);
+        assertEquals(Arrays.asList("Milkshake recipe"), getTodos(r2).stream().map(Todo::getTitle).collect(Collectors.toList()));
+
+        //Page through the results by following the Link header
+        Response r3 = request("GET", "/api/v1/todos/search?q=milk&limit=2", null);
+        assertEquals(2, getTodos(r3).size());
+        String link = r3.header("Link");
+        assertNotNull("Missing link to the next page", link);
+        Response r4 = request("GET", link.substring(link.indexOf('<') + 1, link.indexOf('>')), null);
+        assertEquals(1, getTodos(r4).size());
+        assertNull("Unexpected next page", r4.header("Link"));
+        assertNull("Counted past the first page", r4.header("X-Total-Count"));
+
+        //The index follows updates and deletes
+        Todo dog = getTodos(request("GET", "/api/v1/todos/search?q=dog", null)).get(0);
+        Todo cat = new Todo(dog.getId(), "Walk the cat", false, dog.getCreatedOn());
+        assertEquals("Failed to update", 200, request("PUT", "/api/v1/todos/" + dog.getId(), cat).httpStatus);
+        assertEquals("0", request("GET", "/api/v1/todos/search?q=dog", null).header("X-Total-Count"));
+        assertEquals("1", request("GET", "/api/v1/todos/search?q=cat", null).header("X-Total-Count"));
+        assertEquals("Failed to delete", 200, request("DELETE", "/api/v1/todos/" + dog.getId(), null).httpStatus);
+        assertEquals("0", request("GET", "/api/v1/todos/search?q=cat", null).header("X-Total-Count"));
+    }
+
+    @Test
+    public void testStats() throws Exception {
+
+        //Add an element before the counts are first asked for, and one after
+        SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
+        assertEquals(201, request("POST", "/api/v1/todos", new Todo(null, "Test-1", false, df.parse("2015-04-23T23:10:15-0700"))).httpStatus);
+        assertStats(1, 0, Collections.singletonMap("2015-04-24", 1L));
+        assertEquals(201, request("POST", "/api/v1/todos", new Todo(null, "Test-2", true, df.parse("2015-03-07T01:10:20-0530"))).httpStatus);
+        Map<String, Long> days = new TreeMap<>();
+        days.put("2015-03-07", 1L);
+        days.put("2015-04-24", 1L);
+        assertStats(2, 1, days);
+
+        //Updates move entries between done and open, and between days
+        List<Todo> todos = getTodos(request("GET", "/api/v1/todos", null));
+        Todo first = todos.stream().filter(t -> t.getTitle().equals("Test-1")).findFirst().get();
+        Todo second = todos.stream().filter(t -> t.getTitle().equals("Test-2")).findFirst().get();
+        assertEquals(200, request("PUT", "/api/v1/todos/" + first.getId(),
+                new Todo(first.getId(), "Test-1", true, df.parse("2015-03-07T10:00:00+0000"))).httpStatus);
+        assertStats(2, 2, Collections.singletonMap("2015-03-07", 2L));
+
+        //As do the operations of a batch, in order
+        List<TodoBatch.Operation> ops = Arrays.asList(
+            new TodoBatch.Operation(TodoBatch.Type.update, second.getId(), new Todo(null, "Test-2", false, df.parse("2016-01-01T12:00:00+0000"))),
+            new TodoBatch.Operation(TodoBatch.Type.delete, second.getId(), null),
+            new TodoBatch.Operation(TodoBatch.Type.create, null, new Todo(null, "Test-3", false, df.parse("2016-01-02T12:00:00+0000"))));
+        assertEquals(200, request("POST", "/api/v1/todos/batch", ops).httpStatus);
+        days = new TreeMap<>();
+        days.put("2015-03-07", 1L);
+        days.put("2016-01-02", 1L);
+        assertStats(2, 1, days);
+
+        assertEquals(200, request("DELETE", "/api/v1/todos/" + first.getId(), null).httpStatus);
+        assertStats(1, 0, Collections.singletonMap("2016-01-02", 1L));
+    }
+
+    @Test
+    public void testIdempotentWrites() throws Exception {
+
+        //A create answers with the new entry and where to find it
+        Todo todo = new Todo(null, "Test-1", false, new Date(1429855815000L));
+        Response created = write("POST", "/api/v1/todos", todo, "create-1");
+        assertEquals(201, created.httpStatus);
+        assertEquals("/api/v1/todos/1", created.header("Location"));
+        assertEquals(new Todo("1", "Test-1", false, todo.getCreatedOn()), created.getContentAsObject(Todo.class));
+        assertNull(created.header("Idempotent-Replayed"));
+
+        //A retry gets the same answer without creating anything
+        Response retried = write("POST", "/api/v1/todos", todo, "create-1");
+        assertEquals(201, retried.httpStatus);
+        assertEquals("/api/v1/todos/1", retried.header("Location"));
+        assertEquals(created.content, retried.content);
+        assertEquals("true", retried.header("Idempotent-Replayed"));
+        assertEquals(1, getTodos(request("GET", "/api/v1/todos", null)).size());
+
+        //The key cannot be reused for something else, and must be sensible
+        assertEquals(422, write("POST", "/api/v1/todos", new Todo(null, "Test-2", false, null), "create-1").httpStatus);
+        assertEquals(422, write("PUT", "/api/v1/todos/1", todo, "create-1").httpStatus);
+        assertEquals(400, write("POST", "/api/v1/todos", todo, "").httpStatus);
+
+        //Without a key, every request runs
+        assertEquals("/api/v1/todos/2", write("POST", "/api/v1/todos", todo, null).header("Location"));
+        assertEquals("/api/v1/todos/3", write("POST", "/api/v1/todos", todo, null).header("Location"));
+
+        //Other writes are replayed too, even after what they did was undone
+        assertEquals(200, write("DELETE", "/api/v1/todos/2", null, "delete-2").httpStatus);
+        Map<String, Object> op = new HashMap<>();
+        op.put("op", "create");
+        op.put("todo", new Todo(null, "Test-4", false, null));
+        assertEquals(200, write("POST", "/api/v1/todos/batch", Collections.singletonList(op), "batch-1").httpStatus);
+        Response replayed = write("DELETE", "/api/v1/todos/2", null, "delete-2");
+        assertEquals(200, replayed.httpStatus);
+        assertEquals("true", replayed.header("Idempotent-Replayed"));
+        assertEquals(3, getTodos(request("GET", "/api/v1/todos", null)).size());
+
+        Response metrics = request("GET", "/api/v1/metrics", null);
+        assertTrue(metrics.content, metrics.content.contains("todo_http_idempotent_replays_total 2\n"));
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+
+        //Add a few elements and take snapshots of them
+        SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
+        for (int i = 1; i <= 3; i++) {
+            assertEquals(201, request("POST", "/api/v1/todos", new Todo(null, "Test-" + i, i == 2, df.parse("2015-04-23T23:10:15-0700"))).httpStatus);
+        }
+        List<Todo> saved = getTodos(request("GET", "/api/v1/todos", null));
+        byte[] binary = decode(get("/api/v1/todos/snapshot", "identity"));
+        String ndjson = new String(decode(get("/api/v1/todos/snapshot?format=ndjson", "identity")), StandardCharsets.UTF_8);
+        assertEquals(3, ndjson.split("\n").length);
+
+        //Change the list, then restore each snapshot over it
+        assertEquals(200, request("DELETE", "/api/v1/todos/" + saved.get(0).getId(), null).httpStatus);
+        assertEquals(201, request("POST", "/api/v1/todos", new Todo(null, "Test-4", false, null)).httpStatus);
+        assertEquals("{\"restored\":3}", upload("/api/v1/todos/snapshot", binary, "application/octet-stream"));
+        assertEquals(saved, getTodos(request("GET", "/api/v1/todos", null)));
+        assertEquals(201, request("POST", "/api/v1/todos", new Todo(null, "Test-5", false, null)).httpStatus);
+        assertEquals("{\"restored\":3}", upload("/api/v1/todos/snapshot", ndjson.getBytes(StandardCharsets.UTF_8), "application/x-ndjson"));
+        assertEquals(saved, getTodos(request("GET", "/api/v1/todos", null)));
+        assertStats(3, 1, Collections.singletonMap("2015-04-24", 3L));
+
+        //A broken snapshot changes nothing
+        assertEquals(400, status("PUT", "/api/v1/todos/snapshot", saved));
+        assertEquals(saved, getTodos(request("GET", "/api/v1/todos", null)));
+    }
+
+    @Test
+    public void testChangesAcrossRestore() throws Exception {
+        for (int i = 1; i <= 25; i++) {
+            assertEquals(201, request("POST", "/api/v1/todos", new Todo(null, "Test-" + i, false, null)).httpStatus);
+        }
+        long before = new Gson().fromJson(request("GET", "/api/v1/todos/changes?since=0", null).content, TodoDelta.class).getVersion();
+        String ndjson = new String(decode(get("/api/v1/todos/snapshot?format=ndjson", "identity")), StandardCharsets.UTF_8);
+        assertEquals("{\"restored\":25}", upload("/api/v1/todos/snapshot", ndjson.getBytes(StandardCharsets.UTF_8), "application/x-ndjson"));
+
+        //A restore bigger than a page is synced over several pages, each row exactly once
+        Set<String> ids = new HashSet<>();
+        int pages = 0;
+        long version = before;
+        while (true) {
+            TodoDelta page = new Gson().fromJson(request("GET", "/api/v1/todos/changes?limit=10&since=" + version, null).content, TodoDelta.class);
+            pages++;
+            for (Todo todo : page.getTodos()) {
+                assertTrue(todo.getId(), ids.add(todo.getId()));
+            }
+            version = page.getVersion();
+            if (!page.isMore()) {
+                break;
+            }
+        }
+        assertEquals(25, ids.size());
+        assertEquals(3, pages);
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+
+        //Create three entries in one batch
+        SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
+        Todo[] entries = new Todo[] {
+          new Todo(null, "Test-1", false, df.parse("2015-04-23T23:10:15-0700")),
+          new Todo(null, "Test-2", true, df.parse("2015-03-07T01:10:20-0530")),
+          new Todo(null, "Test-3", false, df.parse("2010-02-19T13:25:43-0530"))
+        };
+        List<TodoBatch.Operation> creates = Arrays.stream(entries)
+            .map(t -> new TodoBatch.Operation(TodoBatch.Type.create, null, t))
+            .collect(Collectors.toList());
+        Response r1 = request("POST", "/api/v1/todos/batch", creates);
+        assertEquals("Failed to apply batch", 200, r1.httpStatus);
+        List<TodoBatch.Result> created = getResults(r1);
+        assertEquals(entries.length, created.size());
+        for (TodoBatch.Result result : created) {
+            assertEquals("Failed to create", 201, result.getStatus());
+        }
+
+        //The returned ids should be those of the new entries
+        Response r2 = request("GET", "/api/v1/todos", null);
+        List<Todo> todos = getTodos(r2);
+        for (int i = 0; i < entries.length; i++) {
+            assertEquals(String.format("Index %d: Mismatch in id", i), todos.get(i).getId(), created.get(i).getId());
+            assertEquals(String.format("Index %d: Mismatch in title", i), entries[i].getTitle(), todos.get(i).getTitle());
+        }
+
+        //Mix updates and deletes, including ones for an id that does not exist
+        Todo first = todos.get(0);
+        List<TodoBatch.Operation> changes = Arrays.asList(
+            new TodoBatch.Operation(TodoBatch.Type.update, first.getId(), new Todo(null, "Changed", true, first.getCreatedOn())),
+            new TodoBatch.Operation(TodoBatch.Type.delete, todos.get(1).getId(), null),
+            new TodoBatch.Operation(TodoBatch.Type.delete, "999999", null));
+        Response r3 = request("POST", "/api/v1/todos/batch", changes);
+        assertEquals("Failed to apply batch", 200, r3.httpStatus);
+        List<Integer> statuses = getResults(r3).stream().map(TodoBatch.Result::getStatus).collect(Collectors.toList());
+        assertEquals(Arrays.asList(200, 200, 404), statuses);
+
+        Response r4 = request("GET", "/api/v1/todos", null);
+        List<Todo> results = getTodos(r4);
+        assertEquals("Number of todo entries differ", 2, results.size());
+        assertEquals("Changed", results.get(0).getTitle());
+        assertTrue(results.get(0).isDone());
+        assertEquals("Test-3", results.get(1).getTitle());
+    }
+
+    @Test
+    public void testCachedFindSeesUpdates() throws Exception {
+
+        //Add a single element and find out its id
+        SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
+        Todo expected = new Todo(null, "Test-1", false, df.parse("2015-04-23T23:10:15-0700"));
+        Response r1 = request("POST", "/api/v1/todos", expected);
+        assertEquals("Failed to add", 201, r1.httpStatus);
+        Todo t = getTodos(request("GET", "/api/v1/todos", null)).get(0);
+
+        //Read it twice; the second read should be served from the cache
+        for (int i = 0; i < 2; i++) {
+            Response r2 = request("GET", "/api/v1/todos/" + t.getId(), null);
+            assertEquals("Failed to get todo", 200, r2.httpStatus);
+            assertEquals(t, r2.getContentAsObject(Todo.class));
+        }
+        Map<String, Double> stats = request("GET", "/api/v1/cache/stats", null)
+            .getContentAsObject(new TypeToken<Map<String, Double>>() { }.getType());
+        assertTrue("Expected a cache hit", stats.get("hits") >= 1);
+
+        //Update it and make sure both the single entry and the list reflect the change
+        Todo updated = new Todo(t.getId(), "Changed", true, t.getCreatedOn());
+        Response r3 = request("PUT", "/api/v1/todos/" + t.getId(), updated);
+        assertEquals("Failed to update", 200, r3.httpStatus);
+        assertEquals(updated, request("GET", "/api/v1/todos/" + t.getId(), null).getContentAsObject(Todo.class));
+        assertEquals(updated, getTodos(request("GET", "/api/v1/todos", null)).get(0));
+    }
+
+    @Test
+    public void testIfModifiedSince() throws Exception {
+        //Start early in a second, so that the change and the request after it share it
+        while (System.currentTimeMillis() % 1000 > 500) {
+            Thread.sleep(10);
+        }
+        SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
+        Todo expected = new Todo(null, "Test-1", false, df.parse("2015-04-23T23:10:15-0700"));
+        assertEquals("Failed to add", 201, request("POST", "/api/v1/todos", expected).httpStatus);
+
+        //A date within the second of the change cannot tell whether it came before it
+        assertEquals(200, ifModifiedSince("/api/v1/todos", System.currentTimeMillis()));
+
+        //Once the second is over, the date of the list can be used to revalidate
+        Thread.sleep(1000 - System.currentTimeMillis() % 1000 + 10);
+        URL url = new URL("http", Bootstrap.IP_ADDRESS, Bootstrap.PORT, "/api/v1/todos");
+        HttpURLConnection http = (HttpURLConnection) url.openConnection();
+        assertEquals(200, http.getResponseCode());
+        long lastModified = http.getLastModified();
+        assertTrue("Missing Last-Modified on the list", lastModified > 0);
+        assertEquals(304, ifModifiedSince("/api/v1/todos", lastModified));
+    }
+
+    @Test
+    public void testConditionalGet() throws Exception {
+
+        //Add a single element and find out its id
+        SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
+        Todo expected = new Todo(null, "Test-1", false, df.parse("2015-04-23T23:10:15-0700"));
+        Response r1 = request("POST", "/api/v1/todos", expected);
+        assertEquals("Failed to add", 201, r1.httpStatus);
+
+        //Both the list and the entry come with an ETag that can be used to revalidate
+        Response r2 = request("GET", "/api/v1/todos", null);
+        String listTag = r2.header("ETag");
+        assertNotNull("Missing ETag on the list", listTag);
+        assertEquals(304, conditionalGet("/api/v1/todos", listTag));
+
+        Todo t = getTodos(r2).get(0);
+        Response r3 = request("GET", "/api/v1/todos/" + t.getId(), null);
+        String itemTag = r3.header("ETag");
+        assertNotNull("Missing ETag on the entry", itemTag);
+        assertEquals(304, conditionalGet("/api/v1/todos/" + t.getId(), itemTag));
+
+        //After an update both tags are stale
+        Todo updated = new Todo(t.getId(), "Changed", true, t.getCreatedOn());
+        assertEquals("Failed to update", 200, request("PUT", "/api/v1/todos/" + t.getId(), updated).httpStatus);
+        assertEquals(200, conditionalGet("/api/v1/todos", listTag));
+        assertEquals(200, conditionalGet("/api/v1/todos/" + t.getId(), itemTag));
+    }
+
+    @Test
+    public void testStaticAssets() throws Exception {
+        //The page refers to fingerprinted files, and is itself revalidated on every visit
+        HttpURLConnection page = get("/", "gzip");
+        assertEquals(200, page.getResponseCode());
+        assertEquals("no-cache", page.getHeaderField("Cache-Control"));
+        String html = new String(decode(page), StandardCharsets.UTF_8);
+        Matcher script = Pattern.compile("src=\"(/js/angular\\.[0-9a-f]{10}\\.js)\"").matcher(html);
+        assertTrue("Missing fingerprinted script in " + html, script.find());
+        assertEquals(304, conditionalGet("/", page.getHeaderField("ETag")));
+
+        //Fingerprinted files are cached for good, and sent gzipped only to clients that accept it
+        byte[] expected = IOUtils.toByteArray(getClass().getResourceAsStream("/public/js/angular.js"));
+        HttpURLConnection gzipped = get(script.group(1), "gzip, deflate");
+        assertEquals(200, gzipped.getResponseCode());
+        assertEquals(TodoAssets.IMMUTABLE, gzipped.getHeaderField("Cache-Control"));
+        assertEquals("gzip", gzipped.getHeaderField("Content-Encoding"));
+        assertEquals("Accept-Encoding", gzipped.getHeaderField("Vary"));
+        assertTrue(gzipped.getContentLengthLong() < expected.length / 2);
+        assertArrayEquals(expected, decode(gzipped));
+
+        HttpURLConnection plain = get(script.group(1), "gzip;q=0");
+        assertNull(plain.getHeaderField("Content-Encoding"));
+        assertArrayEquals(expected, decode(plain));
+
+        //Small files are not worth compressing
+        HttpURLConnection small = get("/css/main.css", "gzip");
+        assertEquals(200, small.getResponseCode());
+        assertNull(small.getHeaderField("Content-Encoding"));
+        assertEquals(404, get("/js/missing.js", "gzip").getResponseCode());
+    }
+
+    @Test
+    public void testCompression() throws Exception {
+        //One entry is too small to be worth compressing, a list of them is not
+        for (int i = 0; i < 50; i++) {
+            Todo todo = new Todo(null, "A todo that takes some room " + i, false, new Date());
+            Response r = request("POST", "/api/v1/todos", todo);
+            assertEquals("Failed to add", 201, r.httpStatus);
+        }
+        List<Todo> todos = getTodos(request("GET", "/api/v1/todos", null));
+        assertEquals(50, todos.size());
+
+        HttpURLConnection list = get("/api/v1/todos", "gzip");
+        assertEquals(200, list.getResponseCode());
+        assertEquals("gzip", list.getHeaderField("Content-Encoding"));
+        assertEquals(todos, new Gson().fromJson(new String(decode(list), StandardCharsets.UTF_8),
+                new TypeToken<ArrayList<Todo>>() { }.getType()));
+
+        HttpURLConnection entry = get("/api/v1/todos/" + todos.get(0).getId(), "gzip");
+        assertEquals(200, entry.getResponseCode());
+        assertNull(entry.getHeaderField("Content-Encoding"));
+
+        //Revalidating a gzipped response works with the tag it was sent with
+        assertEquals(304, conditionalGet("/api/v1/todos", list.getHeaderField("ETag")));
+    }
+
+    @Test
+    public void testLists() throws Exception {
+        Response r1 = request("POST", "/api/v1/lists", Collections.singletonMap("name", "Groceries"));
+        assertEquals("Failed to create list", 201, r1.httpStatus);
+        TodoList groceries = r1.getContentAsObject(TodoList.class);
+        assertEquals("Groceries", groceries.getName());
+        assertEquals("/api/v1/lists/" + groceries.getId(), r1.header("Location"));
+        Response r2 = request("POST", "/api/v1/lists", Collections.singletonMap("name", "Chores"));
+        TodoList chores = r2.getContentAsObject(TodoList.class);
+        assertEquals(400, status("POST", "/api/v1/lists", Collections.singletonMap("name", " ")));
+
+        Type listsType = (new TypeToken<ArrayList<TodoList>>() { }).getType();
+        List<TodoList> all = request("GET", "/api/v1/lists", null).getContentAsObject(listsType);
+        assertEquals(Arrays.asList("Groceries", "Chores"), all.stream().map(TodoList::getName).collect(Collectors.toList()));
+        TodoList found = request("GET", "/api/v1/lists/" + chores.getId(), null).getContentAsObject(TodoList.class);
+        assertEquals("Chores", found.getName());
+
+        //Each list has its own entries, apart from each other and from the default list
+        String groceriesTodos = "/api/v1/lists/" + groceries.getId() + "/todos";
+        String choresTodos = "/api/v1/lists/" + chores.getId() + "/todos";
+        assertEquals(201, request("POST", groceriesTodos, new Todo(null, "Milk", false, new Date())).httpStatus);
+        assertEquals(201, request("POST", groceriesTodos, new Todo(null, "Eggs", false, new Date())).httpStatus);
+        assertEquals(201, request("POST", choresTodos, new Todo(null, "Dishes", false, new Date())).httpStatus);
+        assertEquals(201, request("POST", "/api/v1/todos", new Todo(null, "Default", false, new Date())).httpStatus);
+        assertEquals(2, getTodos(request("GET", groceriesTodos, null)).size());
+        assertEquals(1, getTodos(request("GET", choresTodos, null)).size());
+        assertEquals(1, getTodos(request("GET", "/api/v1/todos", null)).size());
+
+        //Every route of the default list works on the others too
+        Todo milk = getTodos(request("GET", groceriesTodos + "/search?q=milk", null)).get(0);
+        Todo bought = new Todo(milk.getId(), "Milk", true, milk.getCreatedOn());
+        assertEquals(bought, request("PUT", groceriesTodos + "/" + milk.getId(), bought).getContentAsObject(Todo.class));
+        Response page = request("GET", groceriesTodos + "?limit=1", null);
+        assertTrue(page.header("Link"), page.header("Link").startsWith("<" + groceriesTodos + "?"));
+        assertEquals(1, getTodos(request("GET", groceriesTodos + "?done=true", null)).size());
+        TodoDelta delta = request("GET", groceriesTodos + "/changes?since=0", null).getContentAsObject(TodoDelta.class);
+        assertEquals(2, delta.getTodos().size());
+
+        //Deleting a list deletes its entries
+        assertEquals(200, request("DELETE", "/api/v1/lists/" + groceries.getId(), null).httpStatus);
+        assertEquals(404, status("GET", groceriesTodos, null));
+        assertEquals(404, status("GET", "/api/v1/lists/" + groceries.getId(), null));
+        assertEquals(404, status("GET", "/api/v1/lists/999/todos", null));
+        assertEquals(1, getTodos(request("GET", choresTodos, null)).size());
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
+        Todo todo = new Todo(null, "Test-1", false, df.parse("2015-04-23T23:10:15-0700"));
+        assertEquals("Failed to add", 201, request("POST", "/api/v1/todos", todo).httpStatus);
+        Response list = request("GET", "/api/v1/todos", null);
+        assertEquals(304, conditionalGet("/api/v1/todos", list.header("ETag")));
+
+        Response r = request("GET", "/api/v1/metrics", null);
+        assertEquals(200, r.httpStatus);
+        assertTrue(r.header("Content-Type").startsWith("text/plain"));
+        assertTrue(r.content, r.content.contains("todo_http_requests_total{method=\"POST\",route=\"/api/v1/todos\",status=\"2xx\"} 1\n"));
+        assertTrue(r.content, r.content.contains("todo_http_requests_total{method=\"GET\",route=\"/api/v1/todos\",status=\"2xx\"} 1\n"));
+        assertTrue(r.content, r.content.contains("todo_http_request_duration_seconds{method=\"GET\",route=\"/api/v1/todos\",quantile=\"0.99\"}"));
+        assertTrue(r.content, r.content.contains("todo_http_serialization_duration_seconds_count{method=\"GET\",route=\"/api/v1/todos\"} 1\n"));
+        assertTrue(r.content, r.content.contains("todo_http_not_modified_total 1\n"));
+        assertTrue(r.content, r.content.contains("todo_http_rate_limited_total 0\n"));
+        assertTrue(r.content, r.content.contains("todo_startup_phase_duration_seconds{phase=\"services\"}"));
+        assertTrue(r.content, r.content.contains("todo_http_shed_total{reason=\"queue_delay\"} 0\n"));
+        assertTrue(r.content, r.content.contains("todo_db_query_duration_seconds_count{query=\"createNewTodo\"} 1\n"));
+        assertTrue(r.content, r.content.contains("todo_db_query_errors_total{query=\"createNewTodo\"} 0\n"));
+    }
+
+    @Test
+    public void testChangesSince() throws Exception {
+        SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
+        for (int i = 1; i <= 3; i++) {
+            Response radd = request("POST", "/api/v1/todos", new Todo(null, "Test-" + i, false, df.parse("2015-04-23T23:10:15-0700")));
+            assertEquals("Failed to add", 201, radd.httpStatus);
+        }
+
+        //A first sync gets everything
+        Response r1 = request("GET", "/api/v1/todos/changes?since=0", null);
+        assertEquals(200, r1.httpStatus);
+        TodoDelta all = new Gson().fromJson(r1.content, TodoDelta.class);
+        assertEquals(3, all.getTodos().size());
+        assertFalse(all.isMore());
+
+        //Later ones only get what changed
+        Todo first = all.getTodos().get(0);
+        assertEquals(200, request("PUT", "/api/v1/todos/" + first.getId(), new Todo(first.getId(), "Changed", true, first.getCreatedOn())).httpStatus);
+        assertEquals(200, request("DELETE", "/api/v1/todos/" + all.getTodos().get(1).getId(), null).httpStatus);
+        Response r2 = request("GET", "/api/v1/todos/changes?since=" + all.getVersion(), null);
+        TodoDelta delta = new Gson().fromJson(r2.content, TodoDelta.class);
+        assertEquals(1, delta.getTodos().size());
+        assertEquals("Changed", delta.getTodos().get(0).getTitle());
+        assertEquals(Collections.singletonList(all.getTodos().get(1).getId()), delta.getDeleted());
+
+        Response r3 = request("GET", "/api/v1/todos/changes?since=" + delta.getVersion(), null);
+        assertEquals(0, new Gson().fromJson(r3.content, TodoDelta.class).getTodos().size());
+
+        assertEquals(400, conditionalGet("/api/v1/todos/changes?since=yesterday", "\"none\""));
+        assertEquals(400, conditionalGet("/api/v1/todos/changes?limit=0", "\"none\""));
+    }
+
+    @Test
+    public void testChangeFeed() throws Exception {
+        //A new subscriber is told to load the list, then sees every change in order
+        HttpURLConnection feed = openFeed(null);
+        assertEquals("text/event-stream; charset=utf-8", feed.getContentType());
+        BufferedReader events = new BufferedReader(new InputStreamReader(feed.getInputStream(), StandardCharsets.UTF_8));
+        String[] reset = nextEvent(events);
+        assertEquals("reset", reset[0]);
+
+        SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
+        Todo todo = new Todo(null, "Test-1", false, df.parse("2015-04-23T23:10:15-0700"));
+        assertEquals(201, request("POST", "/api/v1/todos", todo).httpStatus);
+        String id = getTodos(request("GET", "/api/v1/todos", null)).get(0).getId();
+        assertEquals(200, request("PUT", "/api/v1/todos/" + id, new Todo(id, "Test-2", true, todo.getCreatedOn())).httpStatus);
+        assertEquals(200, request("DELETE", "/api/v1/todos/" + id, null).httpStatus);
+
+        String[] created = nextEvent(events);
+        String[] updated = nextEvent(events);
+        String[] deleted = nextEvent(events);
+        feed.disconnect();
+        assertEquals("change", created[0]);
+        assertTrue(created[2], created[2].contains("\"type\":\"create\"") && created[2].contains("\"title\":\"Test-1\""));
+        assertTrue(updated[2], updated[2].contains("\"type\":\"update\"") && updated[2].contains("\"title\":\"Test-2\""));
+        assertTrue(deleted[2], deleted[2].contains("\"type\":\"delete\"") && deleted[2].contains("\"id\":\"" + id + "\""));
+
+        //Reconnecting resumes after the last event seen
+        feed = openFeed(created[1]);
+        events = new BufferedReader(new InputStreamReader(feed.getInputStream(), StandardCharsets.UTF_8));
+        assertEquals(updated[1], nextEvent(events)[1]);
+        assertEquals(deleted[1], nextEvent(events)[1]);
+        feed.disconnect();
+
+        //A position from another run of the server cannot be resumed
+        feed = openFeed("someotherepoch-2");
+        events = new BufferedReader(new InputStreamReader(feed.getInputStream(), StandardCharsets.UTF_8));
+        assertEquals("reset", nextEvent(events)[0]);
+        feed.disconnect();
+    }
+
     //------------------------------------------------------------------------//
     // Generic Helper Methods and classes
     //------------------------------------------------------------------------//
+
+    private HttpURLConnection openFeed(String lastEventId) throws IOException {
+        URL url = new URL("http", Bootstrap.IP_ADDRESS, Bootstrap.PORT, "/api/v1/todos/events");
+        HttpURLConnection http = (HttpURLConnection) url.openConnection();
+        http.setReadTimeout(5000);
+        if (lastEventId != null) {
+            http.setRequestProperty("Last-Event-ID", lastEventId);
+        }
+        assertEquals(200, http.getResponseCode());
+        return http;
+    }
+
+    /**
+     * @return The event name, id and data of the next server-sent event
+     */
+    private static String[] nextEvent(BufferedReader events) throws IOException {
+        String[] event = new String[3];
+        for (String line = events.readLine(); line != null; line = events.readLine()) {
+            if (line.isEmpty() && event[0] != null) {
+                return event;
+            } else if (line.startsWith("event: ")) {
+                event[0] = line.substring(7);
+            } else if (line.startsWith("id: ")) {
+                event[1] = line.substring(4);
+            } else if (line.startsWith("data: ")) {
+                event[2] = line.substring(6);
+            }
+        }
+        fail("The event stream ended");
+        return null;
+    }
     
     private Response request(String method, String path, Object content) {
         try {
@@ -186,7 +795,7 @@ public class TestTodoServer {
             }
 
             String responseBody = IOUtils.toString(http.getInputStream());
-			return new Response(http.getResponseCode(), responseBody);
+			return new Response(http.getResponseCode(), responseBody, http.getHeaderFields());
 		} catch (IOException e) {
 			e.printStackTrace();
 			fail("Sending request failed: " + e.getMessage());
@@ -194,18 +803,111 @@ public class TestTodoServer {
 		}
     }
 
-        
+    /**
+     * Send a write, with an Idempotency-Key unless it is null, whatever status it gets.
+     */
+    private Response write(String method, String path, Object content, String idempotencyKey) throws IOException {
+        URL url = new URL("http", Bootstrap.IP_ADDRESS, Bootstrap.PORT, path);
+        HttpURLConnection http = (HttpURLConnection) url.openConnection();
+        http.setRequestMethod(method);
+        if (idempotencyKey != null) {
+            http.setRequestProperty("Idempotency-Key", idempotencyKey);
+        }
+        if (content != null) {
+            http.setDoOutput(true);
+            http.setRequestProperty("Content-Type", "application/json");
+            try (OutputStreamWriter output = new OutputStreamWriter(http.getOutputStream())) {
+                output.write(new Gson().toJson(content));
+            }
+        }
+        InputStream body = http.getResponseCode() < 400 ? http.getInputStream() : http.getErrorStream();
+        return new Response(http.getResponseCode(), body == null ? "" : IOUtils.toString(body), http.getHeaderFields());
+    }
+
+    private HttpURLConnection get(String path, String acceptEncoding) throws IOException {
+        URL url = new URL("http", Bootstrap.IP_ADDRESS, Bootstrap.PORT, path);
+        HttpURLConnection http = (HttpURLConnection) url.openConnection();
+        http.setRequestProperty("Accept-Encoding", acceptEncoding);
+        return http;
+    }
+
+    /**
+     * @return The body of a response, uncompressed if need be
+     */
+    private static byte[] decode(HttpURLConnection http) throws IOException {
+        InputStream in = http.getInputStream();
+        if ("gzip".equals(http.getHeaderField("Content-Encoding"))) {
+            in = new GZIPInputStream(in);
+        }
+        try (InputStream body = in) {
+            return body.readAllBytes();
+        }
+    }
+
+    private int status(String method, String path, Object content) throws IOException {
+        URL url = new URL("http", Bootstrap.IP_ADDRESS, Bootstrap.PORT, path);
+        HttpURLConnection http = (HttpURLConnection) url.openConnection();
+        http.setRequestMethod(method);
+        if (content != null) {
+            http.setDoOutput(true);
+            http.setRequestProperty("Content-Type", "application/json");
+            try (OutputStreamWriter output = new OutputStreamWriter(http.getOutputStream())) {
+                output.write(new Gson().toJson(content));
+            }
+        }
+        return http.getResponseCode();
+    }
+
+    /**
+     * PUT a body as is.
+     * @return The response body
+     */
+    private String upload(String path, byte[] body, String contentType) throws IOException {
+        URL url = new URL("http", Bootstrap.IP_ADDRESS, Bootstrap.PORT, path);
+        HttpURLConnection http = (HttpURLConnection) url.openConnection();
+        http.setRequestMethod("PUT");
+        http.setDoOutput(true);
+        http.setRequestProperty("Content-Type", contentType);
+        try (OutputStream output = http.getOutputStream()) {
+            output.write(body);
+        }
+        assertEquals(200, http.getResponseCode());
+        return new String(decode(http), StandardCharsets.UTF_8);
+    }
+
+    private int conditionalGet(String path, String etag) throws IOException {
+        URL url = new URL("http", Bootstrap.IP_ADDRESS, Bootstrap.PORT, path);
+        HttpURLConnection http = (HttpURLConnection) url.openConnection();
+        http.setRequestProperty("If-None-Match", etag);
+        return http.getResponseCode();
+    }
+
+    private int ifModifiedSince(String path, long millis) throws IOException {
+        URL url = new URL("http", Bootstrap.IP_ADDRESS, Bootstrap.PORT, path);
+        HttpURLConnection http = (HttpURLConnection) url.openConnection();
+        http.setIfModifiedSince(millis);
+        return http.getResponseCode();
+    }
+
     private static class Response {
 
 		public String content;
         
 		public int httpStatus;
 
-		public Response(int httpStatus, String content) {
+        public Map<String, List<String>> headers;
+
+		public Response(int httpStatus, String content, Map<String, List<String>> headers) {
 			this.content = content;
             this.httpStatus = httpStatus;
+            this.headers = headers;
 		}
 
+        public String header(String name) {
+            List<String> values = headers.get(name);
+            return values == null || values.isEmpty() ? null : values.get(0);
+        }
+
         public <T> T getContentAsObject(Type type) {
             return new Gson().fromJson(content, type);
         }
@@ -224,6 +926,9 @@ public class TestTodoServer {
         try (Connection conn = db.open()) {
             String sql = "DROP TABLE IF EXISTS item" ;
             conn.createQuery(sql).executeUpdate();
+            conn.createQuery("DROP TABLE IF EXISTS item_tombstone").executeUpdate();
+            conn.createQuery("DROP TABLE IF EXISTS item_sync").executeUpdate();
+            conn.createQuery("DROP TABLE IF EXISTS list").executeUpdate();
         }
     }
 
@@ -234,4 +939,19 @@ public class TestTodoServer {
         return r.getContentAsObject(type);
     }
 
-}
\ No newline at end of file
+    private void assertStats(long total, long done, Map<String, Long> createdPerDay) {
+        Response r = request("GET", "/api/v1/todos/stats", null);
+        assertEquals("Failed to get stats", 200, r.httpStatus);
+        TodoStats.Snapshot stats = r.getContentAsObject(TodoStats.Snapshot.class);
+        assertEquals("Mismatch in total", total, stats.getTotal());
+        assertEquals("Mismatch in done", done, stats.getDone());
+        assertEquals("Mismatch in open", total - done, stats.getOpen());
+        assertEquals("Mismatch in days", createdPerDay, stats.getCreatedPerDay());
+    }
+
+    private List<TodoBatch.Result> getResults(Response r) {
+        Type type = (new TypeToken<ArrayList<TodoBatch.Result>>() { }). getType();
+        return r.getContentAsObject(type);
+    }
+
+}
@@ -0,0 +1,145 @@
+package com.todoapp;
+
+import spark.Service;
+import spark.embeddedserver.EmbeddedServers;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class TestTodoServerFactory {
+
+    private ExecutorService executor;
+    private TodoServerFactory factory;
+    private Service http;
+    private int port;
+
+    @Before
+    public void setup() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        executor = TodoServerFactory.newBoundedExecutor(1, 1);
+        factory = new TodoServerFactory(20, 4, 60000, 0, executor);
+        EmbeddedServers.add(EmbeddedServers.defaultIdentifier(), factory);
+        http = Service.ignite().ipAddress(Bootstrap.IP_ADDRESS).port(port);
+    }
+
+    @After
+    public void tearDown() {
+        http.stop();
+        http.awaitStop();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testRunsApiRequestsOnExecutor() throws Exception {
+        http.get("/api/thread", (req, res) -> Thread.currentThread().getName());
+        http.get("/other", (req, res) -> Thread.currentThread().getName());
+        http.awaitInitialization();
+
+        assertTrue(get("/api/thread").startsWith("todo-request-"));
+        assertTrue(get("/other").startsWith("todo-http"));
+        assertEquals(404, status("/api/missing"));
+    }
+
+    @Test
+    public void testRejectsRequestsWhenExecutorIsFull() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        http.get("/api/slow", (req, res) -> release.await(10, TimeUnit.SECONDS) ? "done" : "timed out");
+        http.awaitInitialization();
+
+        //One request running and one queued fill the executor
+        ExecutorService clients = Executors.newFixedThreadPool(2);
+        try {
+            Future<Integer> running = clients.submit(() -> status("/api/slow"));
+            Future<Integer> queued = clients.submit(() -> status("/api/slow"));
+            int rejected = 0;
+            for (int i = 0; i < 50 && rejected == 0; i++) {
+                Thread.sleep(20);
+                if (status("/api/slow") == 503) {
+                    rejected++;
+                }
+            }
+            release.countDown();
+            assertEquals(1, rejected);
+            assertEquals(200, (int) running.get());
+            assertEquals(200, (int) queued.get());
+        } finally {
+            release.countDown();
+            clients.shutdown();
+        }
+    }
+
+    @Test
+    public void testEventStreamsDoNotHoldExecutor() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        http.get("/api/todos/events", (req, res) -> {
+            res.raw().getOutputStream().write(Thread.currentThread().getName().getBytes(StandardCharsets.UTF_8));
+            res.raw().flushBuffer();
+            release.await(10, TimeUnit.SECONDS);
+            return "";
+        });
+        http.get("/api/thread", (req, res) -> Thread.currentThread().getName());
+        http.awaitInitialization();
+
+        //More streams than the executor has threads and queue, all open at once
+        List<HttpURLConnection> streams = new ArrayList<>();
+        try {
+            for (int i = 0; i < 3; i++) {
+                HttpURLConnection stream = (HttpURLConnection) new URL("http", Bootstrap.IP_ADDRESS, port, "/api/todos/events").openConnection();
+                assertEquals(200, stream.getResponseCode());
+                byte[] thread = new byte[9];
+                assertEquals(9, stream.getInputStream().readNBytes(thread, 0, 9));
+                assertEquals("todo-http", new String(thread, StandardCharsets.UTF_8));
+                streams.add(stream);
+            }
+            assertTrue(get("/api/thread").startsWith("todo-request-"));
+        } finally {
+            release.countDown();
+            streams.forEach(HttpURLConnection::disconnect);
+        }
+    }
+
+    @Test
+    public void testHoldsRequestsUntilReady() throws Exception {
+        factory.setReady(false);
+        http.init();
+        http.awaitInitialization();
+        assertEquals(503, status("/api/thread"));
+
+        http.get("/api/thread", (req, res) -> Thread.currentThread().getName());
+        factory.setReady(true);
+        assertEquals(200, status("/api/thread"));
+    }
+
+    //------------------------------------------------------------------------//
+    // Helper Methods
+    //------------------------------------------------------------------------//
+
+    private String get(String path) throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http", Bootstrap.IP_ADDRESS, port, path).openConnection();
+        try (InputStream in = connection.getInputStream()) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private int status(String path) throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http", Bootstrap.IP_ADDRESS, port, path).openConnection();
+        int status = connection.getResponseCode();
+        connection.disconnect();
+        return status;
+    }
+}
@@ -0,0 +1,38 @@
+package com.todoapp;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class TestTodoShardRouter {
+
+    private static final int KEYS = 20000;
+
+    @Test
+    public void testSpreadsKeysEvenly() {
+        TodoShardRouter router = new TodoShardRouter(4);
+        int[] counts = new int[4];
+        for (int i = 1; i <= KEYS; i++) {
+            counts[router.shardFor(Integer.toString(i))]++;
+        }
+        for (int count : counts) {
+            assertTrue("Uneven spread: " + count, Math.abs(count - KEYS / 4) < KEYS / 4 / 5);
+        }
+        assertEquals(router.shardFor("42"), new TodoShardRouter(4).shardFor("42"));
+    }
+
+    @Test
+    public void testAddingAShardMovesFewKeys() {
+        TodoShardRouter four = new TodoShardRouter(4);
+        TodoShardRouter five = new TodoShardRouter(5);
+        int moved = 0;
+        for (int i = 1; i <= KEYS; i++) {
+            String key = Integer.toString(i);
+            if (four.shardFor(key) != five.shardFor(key)) {
+                //Only to the new shard, never between the old ones
+                assertEquals(4, five.shardFor(key));
+                moved++;
+            }
+        }
+        assertTrue("Moved " + moved, moved > KEYS / 5 * 0.8 && moved < KEYS / 5 * 1.2);
+    }
+}
@@ -0,0 +1,93 @@
+package com.todoapp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class TestTodoSnapshot {
+
+    private static final List<Todo> TODOS = Arrays.asList(
+            new Todo("1", "Milk", false, new Date(1429855815123L)),
+            new Todo("5", "Cr\u00e8me br\u00fbl\u00e9e \u2713", true, null),
+            new Todo("9", null, false, new Date(0)));
+
+    @Test
+    public void testStreams() throws Exception {
+        for (TodoSnapshot.Format format : TodoSnapshot.Format.values()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (TodoSnapshot.Writer writer = TodoSnapshot.writer(out, format)) {
+                write(writer);
+            }
+            try (TodoSnapshot.Reader reader = TodoSnapshot.reader(new ByteArrayInputStream(out.toByteArray()), format)) {
+                assertEquals(format.name(), TODOS, read(reader));
+            }
+        }
+    }
+
+    @Test
+    public void testFiles() throws Exception {
+        for (String suffix : new String[] { ".snap", ".ndjson" }) {
+            Path file = File.createTempFile("snapshot", suffix).toPath();
+            try {
+                try (TodoSnapshot.Writer writer = TodoSnapshot.create(file)) {
+                    write(writer);
+                }
+                try (TodoSnapshot.Reader reader = TodoSnapshot.open(file)) {
+                    assertEquals(suffix, TODOS, read(reader));
+                }
+            } finally {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Test
+    public void testTruncated() throws Exception {
+        Path file = File.createTempFile("snapshot", ".snap").toPath();
+        try {
+            try (TodoSnapshot.Writer writer = TodoSnapshot.create(file)) {
+                write(writer);
+            }
+            byte[] whole = Files.readAllBytes(file);
+            for (int cut : new int[] { 3, whole.length - 20, whole.length - 1 }) {
+                Files.write(file, Arrays.copyOf(whole, cut));
+                try (TodoSnapshot.Reader reader = TodoSnapshot.open(file)) {
+                    read(reader);
+                    fail("Read a snapshot cut at " + cut);
+                } catch (TodoSnapshot.FormatException ex) {
+                    //expected
+                }
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    //------------------------------------------------------------------------//
+    // Helper Methods
+    //------------------------------------------------------------------------//
+
+    private static void write(TodoSnapshot.Writer writer) throws Exception {
+        for (Todo todo : TODOS) {
+            writer.visit(todo);
+        }
+        writer.finish();
+    }
+
+    private static List<Todo> read(TodoSnapshot.Reader reader) throws Exception {
+        List<Todo> todos = new ArrayList<>();
+        for (Todo todo = reader.next(); todo != null; todo = reader.next()) {
+            todos.add(todo);
+        }
+        return todos;
+    }
+}
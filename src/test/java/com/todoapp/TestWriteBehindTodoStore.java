@@ -0,0 +1,155 @@
+package com.todoapp;
+
+import org.sqlite.SQLiteDataSource;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class TestWriteBehindTodoStore {
+
+    private Path dir;
+    private SqliteTodoStore sqlite;
+
+    @Before
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory("writebehind");
+        SQLiteDataSource dataSource = new SQLiteDataSource();
+        dataSource.setUrl("jdbc:sqlite:" + dir.resolve("todo.db"));
+        dataSource.setBusyTimeout(5000);
+        sqlite = new SqliteTodoStore(dataSource, dataSource);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (File file : dir.toFile().listFiles()) {
+            file.delete();
+        }
+        Files.delete(dir);
+    }
+
+    @Test
+    public void testChangesAreVisibleAndWritten() throws Exception {
+        WriteBehindTodoStore store = open(10, 1000, 10000);
+        assertEquals(1, store.create(todo("Test-1")));
+        assertEquals(2, store.create(todo("Test-2")));
+        assertEquals(3, store.create(todo("Test-3")));
+        assertEquals("Test-2", store.update(2, todo("Changed")).getTitle());
+        assertEquals("Test-3", store.delete(3).getTitle());
+        assertNull(store.delete(3));
+        assertNull(store.update(9, todo("Missing")));
+
+        //Point reads see pending changes, listings wait for them
+        assertEquals("Changed", store.find(2).getTitle());
+        assertNull(store.find(3));
+        assertEquals(2, store.findAll().size());
+        assertEquals(2, sqlite.findAll().size());
+
+        store.close();
+        assertEquals("Changed", sqlite.find(2).getTitle());
+        assertNull(sqlite.find(3));
+        assertEquals("Applied log segments are deleted", 0, dir.toFile().listFiles((d, name) -> name.startsWith("todo.db-wbl")).length);
+    }
+
+    @Test
+    public void testReplaysLogAfterCrash() throws Exception {
+        //Never flushes on its own, as if the process died before the writer ran
+        WriteBehindTodoStore crashed = open(3600000, 1000000, 1000000);
+        crashed.create(todo("Test-1"));
+        crashed.create(todo("Test-2"));
+        crashed.delete(1);
+        assertTrue(sqlite.findAll().isEmpty());
+
+        WriteBehindTodoStore restarted = open(10, 1000, 10000);
+        List<Todo> all = sqlite.findAll();
+        assertEquals(1, all.size());
+        assertEquals("Test-2", all.get(0).getTitle());
+        assertEquals("Ids continue after replayed ones", 3, restarted.create(todo("Test-3")));
+        restarted.close();
+
+        //Applying the same log again changes nothing
+        crashed.close();
+        assertEquals(2, sqlite.findAll().size());
+        assertEquals("Test-3", sqlite.find(3).getTitle());
+    }
+
+    @Test
+    public void testRejectsChangesWhenBacklogIsFull() throws Exception {
+        WriteBehindTodoStore store = new WriteBehindTodoStore(sqlite, dir.resolve("todo.db-wbl"), 3600000, 1000000, 1, 50);
+        try {
+            store.create(todo("Test-1"));
+            try {
+                store.create(todo("Test-2"));
+                fail("Expected the second change to be rejected");
+            } catch (TodoService.TodoServiceException ex) {
+                assertTrue(ex.getMessage().contains("waiting to be written"));
+            }
+        } finally {
+            store.close();
+        }
+        assertEquals(1, sqlite.findAll().size());
+    }
+
+    @Test
+    public void testDropsChangesThatFailToSync() throws Exception {
+        AtomicBoolean failing = new AtomicBoolean();
+        WriteBehindTodoStore store = new WriteBehindTodoStore(sqlite, dir.resolve("todo.db-wbl"), 10, 1000, 10000, 5000) {
+            @Override
+            void syncLog(long seq) throws IOException {
+                if (failing.get()) {
+                    throw new IOException("disk full");
+                }
+                super.syncLog(seq);
+            }
+        };
+        assertEquals(1, store.create(todo("Test-1")));
+
+        failing.set(true);
+        try {
+            store.update(1, todo("Lost"));
+            fail("Expected the change to fail");
+        } catch (TodoService.TodoServiceException ex) {
+            assertTrue(ex.getMessage().contains("Failed to sync"));
+        }
+        try {
+            store.create(todo("Lost"));
+            fail("Expected the change to fail");
+        } catch (TodoService.TodoServiceException ex) {
+            assertTrue(ex.getMessage().contains("Failed to sync"));
+        }
+        assertEquals("Failed changes are never visible", "Test-1", store.find(1).getTitle());
+        assertEquals(1, store.findAll().size());
+
+        failing.set(false);
+        assertEquals("Test-1", store.update(1, todo("Changed")).getTitle());
+        store.close();
+        assertEquals("Changed", sqlite.find(1).getTitle());
+        assertEquals(1, sqlite.findAll().size());
+
+        //Nor replayed at the next start
+        WriteBehindTodoStore restarted = open(10, 1000, 10000);
+        restarted.close();
+        List<Todo> all = sqlite.findAll();
+        assertEquals(1, all.size());
+        assertEquals("Changed", all.get(0).getTitle());
+    }
+
+    //------------------------------------------------------------------------//
+    // Helper Methods
+    //------------------------------------------------------------------------//
+
+    private WriteBehindTodoStore open(long flushIntervalMillis, int flushSize, int maxPending) throws Exception {
+        return new WriteBehindTodoStore(sqlite, dir.resolve("todo.db-wbl"), flushIntervalMillis, flushSize, maxPending, 5000);
+    }
+
+    private static Todo todo(String title) {
+        return new Todo(null, title, false, new Date(1420070400000L));
+    }
+}